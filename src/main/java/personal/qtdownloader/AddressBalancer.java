@@ -0,0 +1,247 @@
+/**
+ * Class: AddressBalancer.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the segments of a download over the addresses of its host. Each
+ * segment goes to the address with the fewest segments for its speed, so
+ * that the faster addresses of a round-robin host get more of the segments.
+ * An address without an observed speed counts as an average one.
+ *
+ * @author quan
+ */
+public class AddressBalancer {
+
+    /**
+     * The head start of the IPv6 connection attempt over the IPv4 one, as
+     * recommended by RFC 8305.
+     */
+    public static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final List<InetAddress> addresses;
+    private final DnsCache dnsCache;
+    private final Map<InetAddress, Integer> assigned;
+
+    /**
+     * Create a balancer.
+     *
+     * @param addresses The addresses to spread the segments over.
+     * @param dnsCache The cache holding the speeds of the addresses.
+     */
+    public AddressBalancer(List<InetAddress> addresses, DnsCache dnsCache) {
+        this.addresses = addresses;
+        this.dnsCache = dnsCache;
+        this.assigned = new HashMap<>();
+    }
+
+    /**
+     * Choose the address of the next segment.
+     *
+     * @return The address.
+     */
+    public synchronized InetAddress next() {
+        double knownSpeeds = 0;
+        int knownCount = 0;
+        for (InetAddress address : addresses) {
+            double speed = dnsCache.getSpeed(address);
+            if (speed > 0) {
+                knownSpeeds += speed;
+                knownCount++;
+            }
+        }
+        double averageSpeed = (knownCount == 0) ? 1 : knownSpeeds / knownCount;
+
+        // Keep the resolver's order between addresses of equal load
+        InetAddress best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (InetAddress address : addresses) {
+            double speed = dnsCache.getSpeed(address);
+            double load = (assigned.getOrDefault(address, 0) + 1)
+                    / ((speed > 0) ? speed : averageSpeed);
+
+            if (load < bestLoad) {
+                best = address;
+                bestLoad = load;
+            }
+        }
+
+        assigned.merge(best, 1, Integer::sum);
+        return best;
+    }
+
+    /**
+     * Get the addresses the segments are spread over.
+     *
+     * @return The addresses.
+     */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * Get the given URL with its host replaced by the given address. The
+     * request must carry the original host in its Host header.
+     *
+     * @param url The URL.
+     * @param address The address of the URL's host.
+     * @return The URL to the address.
+     * @throws MalformedURLException if the URL cannot be built.
+     */
+    public static URL toAddressUrl(URL url, InetAddress address)
+            throws MalformedURLException {
+        String host = address.getHostAddress();
+        if (address instanceof Inet6Address)
+            host = "[" + host + "]";
+
+        return new URL(url.getProtocol(), host, url.getPort(), url.getFile());
+    }
+
+    /**
+     * Get the value of the Host header for the given URL.
+     *
+     * @param url The URL.
+     * @return The URL's host, with its port if it is not the default one.
+     */
+    public static String getHostHeader(URL url) {
+        return (url.getPort() == -1) ? url.getHost()
+                : url.getHost() + ":" + url.getPort();
+    }
+
+    /**
+     * Check if the Host header can be set on a connection. The JVM drops it
+     * unless the sun.net.http.allowRestrictedHeaders system property was set
+     * before the first HTTP connection.
+     *
+     * @return True if the Host header can be set.
+     */
+    public static boolean isHostHeaderAllowed() {
+        try {
+            // Opening the connection does not connect it
+            HttpURLConnection conn = (HttpURLConnection) new URL(
+                    "http://127.0.0.1/").openConnection();
+            conn.setRequestProperty("Host", "qtdownloader.invalid");
+            return "qtdownloader.invalid".equals(conn.getRequestProperty("Host"));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Find the reachable addresses of a host which has both IPv4 and IPv6
+     * addresses, Happy Eyeballs style: a connection to its first IPv6
+     * address is attempted, then a connection to its first IPv4 address
+     * after a short delay or as soon as the first one fails. The addresses
+     * of the family which connects first are kept, with the other family's
+     * after them if its connection had also succeeded by then.
+     *
+     * @param addresses The host's addresses.
+     * @param port The port to connect to.
+     * @param executor The executor to run the connection attempts on.
+     * @return The reachable addresses, or the given ones if the host has a
+     * single family or neither family could be reached.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static List<InetAddress> race(List<InetAddress> addresses, int port,
+            Executor executor) throws InterruptedException {
+        InetAddress first6 = null;
+        InetAddress first4 = null;
+        for (InetAddress address : addresses) {
+            if (first6 == null && address instanceof Inet6Address)
+                first6 = address;
+            else if (first4 == null && address instanceof Inet4Address)
+                first4 = address;
+        }
+
+        if (first6 == null || first4 == null)
+            return addresses;
+
+        // The families in the order they connected
+        List<Class<?>> connected = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        CountDownLatch firstFailed = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+
+        InetSocketAddress target6 = new InetSocketAddress(first6, port);
+        InetSocketAddress target4 = new InetSocketAddress(first4, port);
+
+        executor.execute(() -> {
+            if (tryConnect(target6)) {
+                connected.add(Inet6Address.class);
+                done.countDown();
+            } else {
+                firstFailed.countDown();
+                if (failures.incrementAndGet() == 2)
+                    done.countDown();
+            }
+        });
+
+        executor.execute(() -> {
+            try {
+                // Wait for the head start unless the race is already over
+                firstFailed.await(CONNECTION_ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                if (done.getCount() == 0)
+                    return;
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            if (tryConnect(target4)) {
+                connected.add(Inet4Address.class);
+                done.countDown();
+            } else if (failures.incrementAndGet() == 2) {
+                done.countDown();
+            }
+        });
+
+        done.await(CONNECTION_ATTEMPT_DELAY_MILLIS + CONNECT_TIMEOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+
+        List<Class<?>> families;
+        synchronized (connected) {
+            families = new ArrayList<>(connected);
+        }
+        if (families.isEmpty())
+            return addresses;
+
+        List<InetAddress> reachable = new ArrayList<>();
+        for (Class<?> family : families)
+            for (InetAddress address : addresses)
+                if (family.isInstance(address))
+                    reachable.add(address);
+
+        return reachable;
+    }
+
+    private static boolean tryConnect(InetSocketAddress target) {
+        try (Socket socket = new Socket()) {
+            socket.connect(target, CONNECT_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Class: AlignedBufferPool.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers whose memory starts at a multiple of a given
+ * alignment, as direct I/O needs. They are expensive to allocate, so they
+ * are reused like the buffers of the {@link BufferPool}.
+ *
+ * @author quan
+ */
+public class AlignedBufferPool {
+
+    private static final Method ALIGNED_SLICE = findAlignedSlice();
+
+    private final int maxPooledBuffers;
+    private final Map<Long, Queue<ByteBuffer>> freeBuffers;
+    private final AtomicInteger pooledBuffers;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPooledBuffers The maximum number of free buffers to keep.
+     */
+    public AlignedBufferPool(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.freeBuffers = new ConcurrentHashMap<>();
+        this.pooledBuffers = new AtomicInteger();
+    }
+
+    /**
+     * Find ByteBuffer.alignedSlice, which only exists since Java 9.
+     */
+    private static Method findAlignedSlice() {
+        try {
+            return ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if aligned buffers can be allocated on this JVM.
+     *
+     * @return True if the buffers are aligned.
+     */
+    public static boolean isSupported() {
+        return ALIGNED_SLICE != null;
+    }
+
+    /**
+     * Get an aligned buffer, reusing a free one if there is any.
+     *
+     * @param size The buffer's size, a multiple of the alignment.
+     * @param alignment The alignment, a power of two.
+     * @return The cleared buffer.
+     */
+    public ByteBuffer acquire(int size, int alignment) {
+        Queue<ByteBuffer> buffers = freeBuffers.get(key(size, alignment));
+        ByteBuffer buffer = (buffers == null) ? null : buffers.poll();
+
+        if (buffer == null)
+            return allocate(size, alignment);
+
+        pooledBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. It must not be used afterwards.
+     *
+     * @param buffer The buffer.
+     * @param alignment The alignment it was acquired with.
+     */
+    public void release(ByteBuffer buffer, int alignment) {
+        // Drop the buffer if the pool is full
+        if (pooledBuffers.incrementAndGet() > maxPooledBuffers) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+
+        freeBuffers.computeIfAbsent(key(buffer.capacity(), alignment),
+                (Long key) -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+
+    private static long key(int size, int alignment) {
+        return ((long) size << 32) | alignment;
+    }
+
+    private static ByteBuffer allocate(int size, int alignment) {
+        if (ALIGNED_SLICE == null)
+            return ByteBuffer.allocateDirect(size);
+
+        // Allocate enough to cut an aligned buffer of the size out of it
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size + alignment);
+        try {
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(buffer, alignment);
+            aligned.limit(size);
+            return aligned.slice();
+        } catch (ReflectiveOperationException ex) {
+            return ByteBuffer.allocateDirect(size);
+        }
+    }
+}
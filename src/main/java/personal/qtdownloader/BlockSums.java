@@ -0,0 +1,320 @@
+/**
+ * Class: BlockSums.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The block checksums of a file, in the style of zsync, for downloading the
+ * file as a delta against an older version of it. The file is cut into
+ * blocks of a fixed size, and each block has a weak rolling checksum, which
+ * can be computed at every offset of the older file cheaply, and a strong
+ * SHA-1 hash to confirm the matches.
+ *
+ * The checksum file starts with "key: value" header lines ending with an
+ * empty line, followed by a 4 byte weak checksum and a 20 byte SHA-1 hash
+ * for each block:
+ *
+ * <pre>
+ * qtdownloader-blocksums: 1
+ * Length: 1073741824
+ * Blocksize: 16384
+ * SHA-1: 5d41402abc4b2a76b9719d911017c592ae3a9f0e
+ *
+ * </pre>
+ *
+ * @author quan
+ */
+public class BlockSums {
+
+    public static final String FORMAT_VERSION = "1";
+    public static final int DEFAULT_BLOCK_SIZE = 16384;
+    public static final String FILE_EXTENSION = ".blocksums";
+
+    private static final int STRONG_LENGTH = 20;
+
+    private final Path source;
+    private final long length;
+    private final int blockSize;
+    private final int[] weakSums;
+    private final byte[][] strongSums;
+    private final byte[] fileHash;
+
+    private BlockSums(Path source, long length, int blockSize, int[] weakSums,
+            byte[][] strongSums, byte[] fileHash) {
+        this.source = source;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.weakSums = weakSums;
+        this.strongSums = strongSums;
+        this.fileHash = fileHash;
+    }
+
+    /**
+     * Compute the block checksums of the given file.
+     *
+     * @param file The file.
+     * @param blockSize The block size.
+     * @return The block checksums, without a source.
+     * @throws IOException if the file cannot be read.
+     */
+    public static BlockSums compute(Path file, int blockSize) throws IOException {
+        long length = Files.size(file);
+        int blockCount = getBlockCount(length, blockSize);
+        int[] weakSums = new int[blockCount];
+        byte[][] strongSums = new byte[blockCount][];
+        MessageDigest fileDigest = newSha1();
+        MessageDigest blockDigest = newSha1();
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream data = new DataInputStream(in);
+            byte[] block = new byte[blockSize];
+
+            for (int i = 0; i < blockCount; i++) {
+                int count = (int) Math.min(blockSize, length - (long) i * blockSize);
+                data.readFully(block, 0, count);
+
+                weakSums[i] = weakSum(block, 0, count);
+                blockDigest.update(block, 0, count);
+                strongSums[i] = blockDigest.digest();
+                fileDigest.update(block, 0, count);
+            }
+        }
+
+        return new BlockSums(null, length, blockSize, weakSums, strongSums,
+                fileDigest.digest());
+    }
+
+    /**
+     * Write the block checksums to the given file.
+     *
+     * @param file The checksum file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            StringBuilder header = new StringBuilder();
+            header.append("qtdownloader-blocksums: ").append(FORMAT_VERSION).append('\n');
+            header.append("Length: ").append(length).append('\n');
+            header.append("Blocksize: ").append(blockSize).append('\n');
+            if (fileHash != null)
+                header.append("SHA-1: ").append(toHex(fileHash)).append('\n');
+            header.append('\n');
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+
+            DataOutputStream data = new DataOutputStream(out);
+            for (int i = 0; i < weakSums.length; i++) {
+                data.writeInt(weakSums[i]);
+                data.write(strongSums[i]);
+            }
+            data.flush();
+        }
+    }
+
+    /**
+     * Read a checksum file.
+     *
+     * @param file The checksum file.
+     * @return The block checksums.
+     * @throws IOException if the file cannot be read or is invalid.
+     */
+    public static BlockSums parse(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file)))) {
+            Map<String, String> header = new HashMap<>();
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int separator = line.indexOf(": ");
+                if (separator == -1)
+                    throw new IOException("Invalid header line in " + file + ": " + line);
+
+                header.put(line.substring(0, separator), line.substring(separator + 2));
+            }
+
+            if (!FORMAT_VERSION.equals(header.get("qtdownloader-blocksums")))
+                throw new IOException("Unsupported block checksum file " + file);
+
+            long length;
+            int blockSize;
+            try {
+                length = Long.parseLong(header.get("Length"));
+                blockSize = Integer.parseInt(header.get("Blocksize"));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid block checksum file " + file, ex);
+            }
+            if (length < 0 || blockSize < 1)
+                throw new IOException("Invalid block checksum file " + file);
+
+            int blockCount = getBlockCount(length, blockSize);
+            int[] weakSums = new int[blockCount];
+            byte[][] strongSums = new byte[blockCount][STRONG_LENGTH];
+            for (int i = 0; i < blockCount; i++) {
+                weakSums[i] = in.readInt();
+                in.readFully(strongSums[i]);
+            }
+
+            String hash = header.get("SHA-1");
+            return new BlockSums(file, length, blockSize, weakSums, strongSums,
+                    (hash == null) ? null : fromHex(hash));
+        } catch (EOFException ex) {
+            throw new IOException("Truncated block checksum file " + file, ex);
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1)
+                throw new EOFException();
+
+            line.append((char) c);
+        }
+
+        return line.toString();
+    }
+
+    private static int getBlockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Compute the weak checksum of the given bytes: the sum of the bytes and
+     * the sum of the bytes weighted by their distance to the end, 16 bits
+     * each. It can be rolled along a file with {@link #roll}.
+     *
+     * @param data The data.
+     * @param offset The offset of the bytes.
+     * @param length The number of bytes.
+     * @return The weak checksum.
+     */
+    public static int weakSum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Move the weak checksum of a block one byte forward.
+     *
+     * @param sum The checksum of the block.
+     * @param blockSize The block's length.
+     * @param out The byte leaving the block.
+     * @param in The byte entering the block.
+     * @return The checksum of the block one byte further.
+     */
+    public static int roll(int sum, int blockSize, byte out, byte in) {
+        int a = sum & 0xffff;
+        int b = sum >>> 16;
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - blockSize * (out & 0xff) + a) & 0xffff;
+
+        return (b << 16) | a;
+    }
+
+    static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex.length() != 2 * STRONG_LENGTH)
+            throw new IOException("Invalid SHA-1 hash: " + hex);
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1)
+                throw new IOException("Invalid SHA-1 hash: " + hex);
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Get the checksum file these checksums were read from.
+     *
+     * @return The file, or null if they were computed.
+     */
+    public Path getSource() {
+        return source;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weakSums.length;
+    }
+
+    /**
+     * Get the length of the given block. The last block may be shorter.
+     *
+     * @param block The block's index, starting from 0.
+     * @return The block's length.
+     */
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, length - (long) block * blockSize);
+    }
+
+    public int getWeakSum(int block) {
+        return weakSums[block];
+    }
+
+    public byte[] getStrongSum(int block) {
+        return strongSums[block];
+    }
+
+    /**
+     * Get the SHA-1 hash of the whole file.
+     *
+     * @return The hash, or null if the checksum file has none.
+     */
+    public byte[] getFileHash() {
+        return fileHash;
+    }
+}
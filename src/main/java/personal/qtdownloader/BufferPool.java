@@ -0,0 +1,71 @@
+/**
+ * Class: BufferPool.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte arrays for the download buffers, so that the buffers handed
+ * from the download threads to the disk writers are reused instead of being
+ * allocated for every read.
+ *
+ * @author quan
+ */
+public class BufferPool {
+
+    private final int maxPooledBuffers;
+    private final Map<Integer, Queue<byte[]>> freeBuffers;
+    private final AtomicInteger pooledBuffers;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPooledBuffers The maximum number of free buffers to keep.
+     */
+    public BufferPool(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.freeBuffers = new ConcurrentHashMap<>();
+        this.pooledBuffers = new AtomicInteger();
+    }
+
+    /**
+     * Get a buffer of the given size, reusing a free one if there is any.
+     *
+     * @param size The buffer's size.
+     * @return The buffer. Its content is undefined.
+     */
+    public byte[] acquire(int size) {
+        Queue<byte[]> buffers = freeBuffers.get(size);
+        byte[] buffer = (buffers == null) ? null : buffers.poll();
+
+        if (buffer == null)
+            return new byte[size];
+
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. It must not be used afterwards.
+     *
+     * @param buffer The buffer.
+     */
+    public void release(byte[] buffer) {
+        // Drop the buffer if the pool is full
+        if (pooledBuffers.incrementAndGet() > maxPooledBuffers) {
+            pooledBuffers.decrementAndGet();
+            return;
+        }
+
+        freeBuffers.computeIfAbsent(buffer.length,
+                (Integer size) -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+}
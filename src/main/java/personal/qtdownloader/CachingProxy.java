@@ -0,0 +1,228 @@
+/**
+ * Class: CachingProxy.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An HTTP proxy which serves the files of the allowed origins from a
+ * {@link ChunkCache}, so that the hosts of a network download a file from
+ * the origin only once between them.
+ *
+ * A request is either a proxy request with the file's absolute URL, or a
+ * plain request whose path is looked up on the first origin. Single byte
+ * ranges are served, other Range headers get the whole file. The clients'
+ * credentials are not passed on to the origins, and files the origin does
+ * not serve in ranges are not proxied.
+ *
+ * @author quan
+ */
+public class CachingProxy implements AutoCloseable {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final HttpServer server;
+    private final ExecutorService clientPool;
+    private final List<String> origins;
+    private final ChunkCache cache;
+
+    /**
+     * Create a proxy on the given address.
+     *
+     * @param address The address to listen on.
+     * @param origins The URLs of the origins whose files are served.
+     * @param cache The cache of the files.
+     * @throws IOException if the socket cannot be bound.
+     */
+    public CachingProxy(InetSocketAddress address, List<String> origins, ChunkCache cache)
+            throws IOException {
+        if (origins.isEmpty())
+            throw new IllegalArgumentException("The proxy needs an origin");
+
+        this.origins = new ArrayList<>();
+        for (String origin : origins) {
+            String normalized = DownloadCoordinator.normalizeUrl(origin);
+            this.origins.add(normalized.endsWith("/")
+                    ? normalized.substring(0, normalized.length() - 1) : normalized);
+        }
+
+        this.cache = cache;
+        this.clientPool = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(address, 50);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(clientPool);
+    }
+
+    /**
+     * Start serving on background threads.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Get the port the proxy listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Get the origin's URL of the file asked for, if it belongs to an
+     * allowed origin.
+     *
+     * @param uri The request's URI.
+     * @return The URL, or null if the file is not on an allowed origin.
+     */
+    URL getOriginUrl(URI uri) throws IOException {
+        // Keep the path from climbing out of an origin's path
+        uri = uri.normalize();
+        if (uri.getRawPath() != null && uri.getRawPath().contains("/../"))
+            return null;
+
+        String target;
+        if (uri.isAbsolute()) {
+            target = DownloadCoordinator.normalizeUrl(uri.toString());
+        } else {
+            String query = (uri.getRawQuery() == null) ? "" : "?" + uri.getRawQuery();
+            target = origins.get(0) + uri.getRawPath() + query;
+        }
+
+        for (String origin : origins) {
+            if (target.equals(origin) || target.startsWith(origin + "/")
+                    || target.startsWith(origin + "?"))
+                return new URL(target);
+        }
+
+        return null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                sendError(exchange, 405);
+                return;
+            }
+
+            URL url = getOriginUrl(exchange.getRequestURI());
+            if (url == null) {
+                sendError(exchange, 403);
+                return;
+            }
+
+            ChunkCache.Entry entry;
+            try {
+                entry = cache.acquire(url);
+            } catch (IOException ex) {
+                sendError(exchange, 502);
+                return;
+            }
+
+            try {
+                serve(exchange, entry, head);
+            } finally {
+                cache.release(entry);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Serve the whole file or the requested range of it.
+     */
+    private void serve(HttpExchange exchange, ChunkCache.Entry entry, boolean head)
+            throws IOException {
+        ChunkCache.Metadata metadata = entry.getMetadata();
+        int code = metadata.getResponseCode();
+        if (code != 200 && code != 206) {
+            sendError(exchange, code);
+            return;
+        }
+        if (!metadata.isCacheable()) {
+            sendError(exchange, 502);
+            return;
+        }
+
+        long length = metadata.getLength();
+        long start = 0;
+        long end = length - 1;
+        int status = 200;
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Accept-Ranges", "bytes");
+        if (metadata.getEtag() != null)
+            headers.set("ETag", metadata.getEtag());
+        if (metadata.getLastModified() != null)
+            headers.set("Last-Modified", metadata.getLastModified());
+        if (metadata.getContentType() != null)
+            headers.set("Content-Type", metadata.getContentType());
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = (range == null) ? null : RANGE.matcher(range.trim());
+        if (matcher != null && matcher.matches()
+                && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            if (matcher.group(1).isEmpty()) {
+                // The last bytes of the file
+                start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+            } else {
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty())
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+            }
+
+            if (start > end) {
+                headers.set("Content-Range", "bytes */" + length);
+                sendError(exchange, 416);
+                return;
+            }
+
+            status = 206;
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+
+        long bodyLength = end - start + 1;
+        headers.set("Content-Length", String.valueOf(bodyLength));
+        exchange.sendResponseHeaders(status, head ? -1 : bodyLength);
+
+        if (!head) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                cache.copyRange(entry, start, end, out);
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code) throws IOException {
+        exchange.sendResponseHeaders(code, -1);
+    }
+
+    /**
+     * Stop serving. The cache is left open.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        clientPool.shutdownNow();
+    }
+}
@@ -0,0 +1,492 @@
+/**
+ * Class: ChunkCache.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A disk cache of the files of remote origins, kept in chunks, so that the
+ * ranges of a file are cached as they are asked for. The missing chunks of
+ * a range are fetched from the origin in parallel, a few chunks per
+ * request, and a chunk which is already being fetched for another request
+ * is waited for instead of fetched again. The least recently used files
+ * are evicted once the cache grows past its size.
+ *
+ * The cache starts empty: the chunk files of a previous run are deleted.
+ *
+ * @author quan
+ */
+public class ChunkCache implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20; // 1MB
+    public static final int DEFAULT_FETCH_THREADS = 8;
+    public static final long METADATA_MAX_AGE_MILLIS = 60000;
+
+    private static final String CHUNKS_EXTENSION = ".chunks";
+    private static final int MAX_CHUNKS_PER_FETCH = 4;
+
+    private final Path directory;
+    private final long maxSize;
+    private final int chunkSize;
+    private final ExecutorService fetchPool;
+    private final LinkedHashMap<String, Entry> entries;
+    private long cachedSize;
+    private long nextFileNumber;
+
+    /**
+     * Create a cache in the given directory.
+     *
+     * @param directory The directory of the chunk files.
+     * @param maxSize The size past which files are evicted.
+     * @param chunkSize The size of the chunks.
+     * @param fetchThreads The number of chunk requests to the origins
+     * running at the same time.
+     * @throws IOException if the directory cannot be created or cleared.
+     */
+    public ChunkCache(Path directory, long maxSize, int chunkSize, int fetchThreads)
+            throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.chunkSize = chunkSize;
+        this.fetchPool = Executors.newFixedThreadPool(fetchThreads);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.cachedSize = 0;
+        this.nextFileNumber = 0;
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                "*" + CHUNKS_EXTENSION)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+    }
+
+    /**
+     * Get the size of the cached chunks.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getCachedSize() {
+        return cachedSize;
+    }
+
+    /**
+     * Get the entry of the given file, asking the origin for the file's
+     * size and validators if they are not known or too old. A file which
+     * changed at the origin is cached again from scratch.
+     *
+     * @param url The file's URL.
+     * @return The entry, which must be released.
+     * @throws IOException if the origin cannot be asked.
+     */
+    public Entry acquire(URL url) throws IOException {
+        String key = DownloadCoordinator.getKey(url.toString());
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.validatedAt
+                    < METADATA_MAX_AGE_MILLIS) {
+                entry.readers++;
+                return entry;
+            }
+        }
+
+        Metadata metadata = probe(url);
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.metadata.sameFile(metadata)) {
+                entry.validatedAt = System.currentTimeMillis();
+                entry.readers++;
+                return entry;
+            }
+
+            if (entry != null)
+                remove(entry);
+
+            entry = new Entry(url, key, metadata);
+            if (metadata.isCacheable())
+                entries.put(key, entry);
+            entry.readers++;
+            return entry;
+        }
+    }
+
+    /**
+     * Give back an entry taken with {@link #acquire(URL)}.
+     *
+     * @param entry The entry.
+     */
+    public synchronized void release(Entry entry) {
+        entry.readers--;
+        if (entry.removed && entry.readers == 0)
+            entry.delete();
+
+        evict();
+    }
+
+    /**
+     * Ask the origin for the first byte of the file, whose response tells
+     * the file's size and whether ranges are served.
+     */
+    private Metadata probe(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setReadTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+            conn.setRequestProperty("Range", "bytes=0-0");
+
+            HttpResult result = HttpResult.fromConnection(conn);
+            return new Metadata(result, conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), conn.getContentType());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Write the given range of the entry's file, fetching its missing
+     * chunks from the origin. The range is written as soon as its first
+     * chunk is there.
+     *
+     * @param entry The file's entry.
+     * @param start The first byte of the range.
+     * @param end The last byte of the range.
+     * @param out The stream to write to.
+     * @throws IOException if a chunk cannot be fetched or the stream fails.
+     */
+    public void copyRange(Entry entry, long start, long end, OutputStream out)
+            throws IOException {
+        int first = (int) (start / chunkSize);
+        int last = (int) (end / chunkSize);
+        List<CompletableFuture<Void>> chunks = requestChunks(entry, first, last);
+
+        byte[] buffer = new byte[chunkSize];
+        for (int chunk = first; chunk <= last; chunk++) {
+            try {
+                chunks.get(chunk - first).get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw (cause instanceof IOException) ? (IOException) cause
+                        : new IOException(cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching " + entry.url, ex);
+            }
+
+            long chunkStart = (long) chunk * chunkSize;
+            long from = Math.max(start, chunkStart);
+            int length = (int) (Math.min(end, chunkStart + chunkSize - 1) - from + 1);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+            long position = from;
+            while (data.hasRemaining()) {
+                int count = entry.channel.read(data, position);
+                if (count == -1)
+                    throw new IOException("Chunk file of " + entry.url + " is short");
+                position += count;
+            }
+
+            out.write(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Get a future for each of the given chunks, which completes once the
+     * chunk is in the cache, and start fetching the chunks nobody fetches
+     * yet.
+     */
+    private List<CompletableFuture<Void>> requestChunks(Entry entry, int first, int last) {
+        List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        List<Integer> missing = new ArrayList<>();
+
+        synchronized (this) {
+            for (int chunk = first; chunk <= last; chunk++) {
+                CompletableFuture<Void> future;
+                if (entry.present.get(chunk)) {
+                    future = CompletableFuture.completedFuture(null);
+                } else if (entry.inFlight.containsKey(chunk)) {
+                    future = entry.inFlight.get(chunk);
+                } else {
+                    future = new CompletableFuture<>();
+                    entry.inFlight.put(chunk, future);
+                    missing.add(chunk);
+                }
+                chunks.add(future);
+            }
+        }
+
+        // Fetch the runs of missing chunks, a few chunks per request
+        int index = 0;
+        while (index < missing.size()) {
+            int runStart = missing.get(index);
+            int runEnd = runStart;
+            index++;
+            while (index < missing.size() && missing.get(index) == runEnd + 1
+                    && runEnd - runStart + 1 < MAX_CHUNKS_PER_FETCH) {
+                runEnd = missing.get(index);
+                index++;
+            }
+
+            int fetchStart = runStart;
+            int fetchEnd = runEnd;
+            fetchPool.execute(() -> fetchChunks(entry, fetchStart, fetchEnd));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Fetch the given chunks from the origin into the cache. Runs on a
+     * fetch thread.
+     */
+    private void fetchChunks(Entry entry, int first, int last) {
+        int chunk = first;
+        try {
+            long start = (long) first * chunkSize;
+            long end = Math.min(entry.metadata.length, (long) (last + 1) * chunkSize) - 1;
+
+            HttpURLConnection conn = (HttpURLConnection) entry.url.openConnection();
+            try {
+                conn.setReadTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+                conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+
+                HttpResult result = HttpResult.fromConnection(conn);
+                long rangeStart = HttpResult.parseContentRangeStart(
+                        conn.getHeaderField("Content-Range"));
+                if (!result.rangesSupported || rangeStart != start)
+                    throw new IOException("The origin did not send the requested range");
+
+                String etag = conn.getHeaderField("ETag");
+                if (entry.metadata.etag != null && !entry.metadata.etag.equals(etag)) {
+                    synchronized (this) {
+                        remove(entry);
+                    }
+                    throw new IOException(entry.url + " changed at the origin");
+                }
+
+                byte[] buffer = new byte[chunkSize];
+                try (DataInputStream in = new DataInputStream(conn.getInputStream())) {
+                    for (; chunk <= last; chunk++) {
+                        long chunkStart = (long) chunk * chunkSize;
+                        int length = (int) (Math.min(end + 1, chunkStart + chunkSize)
+                                - chunkStart);
+                        in.readFully(buffer, 0, length);
+
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                        long position = chunkStart;
+                        while (data.hasRemaining())
+                            position += entry.channel.write(data, position);
+
+                        CompletableFuture<Void> future;
+                        synchronized (this) {
+                            entry.present.set(chunk);
+                            if (!entry.removed) {
+                                entry.cachedSize += length;
+                                cachedSize += length;
+                            }
+                            future = entry.inFlight.remove(chunk);
+                        }
+                        future.complete(null);
+                    }
+                }
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The next request for the chunks fetches them again
+            for (; chunk <= last; chunk++) {
+                CompletableFuture<Void> future;
+                synchronized (this) {
+                    future = entry.inFlight.remove(chunk);
+                }
+                if (future != null)
+                    future.completeExceptionally(ex);
+            }
+        }
+
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    /**
+     * Evict the least recently used files which are not in use until the
+     * cache fits in its size.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (cachedSize > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.readers > 0 || !entry.inFlight.isEmpty())
+                continue;
+
+            iterator.remove();
+            cachedSize -= entry.cachedSize;
+            entry.removed = true;
+            entry.delete();
+        }
+    }
+
+    /**
+     * Remove the given entry, whose file is deleted once nobody reads it.
+     */
+    private void remove(Entry entry) {
+        if (entry.removed)
+            return;
+
+        entries.remove(entry.key, entry);
+        cachedSize -= entry.cachedSize;
+        entry.removed = true;
+        if (entry.readers == 0)
+            entry.delete();
+    }
+
+    /**
+     * Stop fetching and delete the cached files.
+     */
+    @Override
+    public synchronized void close() {
+        fetchPool.shutdownNow();
+
+        for (Entry entry : new ArrayList<>(entries.values()))
+            remove(entry);
+    }
+
+    /**
+     * What the origin told about a file.
+     */
+    public static class Metadata {
+
+        private final int responseCode;
+        private final long length;
+        private final boolean rangesSupported;
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+
+        private Metadata(HttpResult result, String etag, String lastModified,
+                String contentType) {
+            this.responseCode = result.responseCode;
+            this.length = result.contentLength;
+            this.rangesSupported = result.rangesSupported;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Check if the file can be cached: the origin has it, tells its
+         * size and serves ranges of it.
+         *
+         * @return True if the file can be cached.
+         */
+        public boolean isCacheable() {
+            return rangesSupported && length > 0;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        private boolean sameFile(Metadata other) {
+            return isCacheable() && other.isCacheable() && length == other.length
+                    && Objects.equals(etag, other.etag)
+                    && Objects.equals(lastModified, other.lastModified);
+        }
+    }
+
+    /**
+     * A cached file.
+     */
+    public class Entry {
+
+        private final URL url;
+        private final String key;
+        private final Metadata metadata;
+        private final BitSet present;
+        private final Map<Integer, CompletableFuture<Void>> inFlight;
+        private final Path chunkFile;
+        private FileChannel channel;
+        private long cachedSize;
+        private long validatedAt;
+        private int readers;
+        private boolean removed;
+
+        private Entry(URL url, String key, Metadata metadata) throws IOException {
+            this.url = url;
+            this.key = key;
+            this.metadata = metadata;
+            this.present = new BitSet();
+            this.inFlight = new HashMap<>();
+            // A file which changed at the origin gets a new chunk file,
+            // while the old one may still be read.
+            this.chunkFile = directory.resolve(key + "-" + (nextFileNumber++)
+                    + CHUNKS_EXTENSION);
+            this.channel = metadata.isCacheable()
+                    ? FileChannel.open(chunkFile, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE)
+                    : null;
+            this.cachedSize = 0;
+            this.validatedAt = System.currentTimeMillis();
+            this.readers = 0;
+            this.removed = !metadata.isCacheable();
+        }
+
+        public Metadata getMetadata() {
+            return metadata;
+        }
+
+        private void delete() {
+            try {
+                if (channel != null)
+                    channel.close();
+                channel = null;
+                Files.deleteIfExists(chunkFile);
+            } catch (IOException ex) {
+                // TODO Log the error
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Class: ConsoleProgressHandler.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+/**
+ * Prints the progress of a download to the console.
+ *
+ * @author quan
+ */
+public class ConsoleProgressHandler implements ProgressHandler {
+
+    @Override
+    public void handle(HttpResult verifyResult) {
+        System.out.println("Response code: " + verifyResult.responseCode);
+        System.out.println("Fize size: " + ((verifyResult.contentLength == -1)
+                ? "unknown" : Utility.readableFileSize(verifyResult.contentLength)));
+        System.out.println();
+    }
+
+    @Override
+    public void update(Progress progress) {
+        progress.updateProgressBar();
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Class: DaemonClient.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The command line side of the daemon mode: submits a job to a running
+ * {@link DaemonServer} and reports the progress it streams back.
+ *
+ * @author quan
+ */
+public class DaemonClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+
+    private DaemonClient(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(
+                socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Connect to the daemon whose port and token are in the given file.
+     *
+     * @param portFile The daemon's port file.
+     * @return The client, or null if no daemon is running.
+     */
+    public static DaemonClient connect(Path portFile) {
+        if (!Files.isReadable(portFile))
+            return null;
+
+        try {
+            List<String> lines = Files.readAllLines(portFile, StandardCharsets.UTF_8);
+            int port = Integer.parseInt(lines.get(0).trim());
+            String token = lines.get(1).trim();
+
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            DaemonClient client = new DaemonClient(socket);
+            client.writeLine("AUTH " + token);
+
+            return client;
+        } catch (IOException | RuntimeException ex) {
+            // A stale port file left by a daemon which is not running.
+            return null;
+        }
+    }
+
+    /**
+     * Ask the daemon for the last session of downloading from the given URL.
+     *
+     * @param url The download URL.
+     * @return The session.
+     * @throws IOException if the daemon cannot be reached.
+     */
+    public DownloadSession findSession(String url) throws IOException {
+        writeLine("SESSION " + DaemonServer.encode(url));
+
+        String[] reply = readReply("SESSION");
+        DownloadSession session = new DownloadSession(
+                new File(url).getName(), url, Long.parseLong(reply[2]));
+        session.alreadyDownloaded = Boolean.parseBoolean(reply[1]);
+
+        return session;
+    }
+
+    /**
+     * Run a download in the daemon and wait for it to finish. The handler's
+     * events are rebuilt from the daemon's replies, so there are no segment
+     * events.
+     *
+     * @param config The download's configuration.
+     * @param handler The handler to notify of the download's progress.
+     * @return The result of the download.
+     * @throws IOException if the daemon cannot be reached.
+     */
+    public DownloadResult download(DownloadConfig config, ProgressHandler handler)
+            throws IOException {
+        writeLine("DOWNLOAD");
+        DaemonServer.writeConfig(config, out);
+
+        Progress progress = new Progress();
+        progress.setStartDownloadTime(Instant.now());
+        Instant lastProgressTime = Instant.now();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] reply = line.split(" ");
+
+            switch (reply[0]) {
+                case "VERIFIED": {
+                    HttpResult result = new HttpResult(Integer.parseInt(reply[1]),
+                            Long.parseLong(reply[2]));
+                    progress.setUrlVerifyResult(result);
+                    progress.setStartDownloadTime(Instant.now());
+                    handler.handle(result);
+                    handler.onEvents(Collections.singletonList(
+                            ProgressEvent.probeDone(result)));
+                    break;
+                }
+                case "PROGRESS": {
+                    long downloaded = Long.parseLong(reply[1]);
+                    long sinceStart = Long.parseLong(reply[2]);
+                    Instant now = Instant.now();
+                    long elapsed = Duration.between(lastProgressTime, now).toMillis();
+                    double speed = (elapsed == 0) ? 0 : (sinceStart
+                            - progress.getDownloadedSinceStart()) * 1000.0 / elapsed;
+                    lastProgressTime = now;
+
+                    progress.updateDownloadedSize(downloaded - progress.getDownloadedSize());
+                    progress.updateDownloadedSinceStart(
+                            sinceStart - progress.getDownloadedSinceStart());
+                    handler.update(progress);
+                    handler.onEvents(Collections.singletonList(ProgressEvent.bytes(
+                            downloaded, progress.getContentSize(), speed)));
+                    break;
+                }
+                case "DONE": {
+                    long firstByte = Long.parseLong(reply[5]);
+                    DownloadResult result = new DownloadResult(DaemonServer.decode(reply[1]),
+                            Long.parseLong(reply[2]), Long.parseLong(reply[3]),
+                            Duration.ofMillis(Long.parseLong(reply[4])),
+                            (firstByte == -1) ? null : Instant.ofEpochMilli(firstByte));
+                    handler.onEvents(Collections.singletonList(
+                            ProgressEvent.completed(result)));
+                    return result;
+                }
+                case "ERROR": {
+                    String message = DaemonServer.decode(reply[1]);
+                    handler.onEvents(Collections.singletonList(
+                            ProgressEvent.failed(message)));
+                    throw new RuntimeException(message);
+                }
+                default:
+                    break;
+            }
+        }
+
+        throw new IOException("The daemon closed the connection");
+    }
+
+    /**
+     * Ask the daemon to shut down.
+     *
+     * @throws IOException if the daemon cannot be reached.
+     */
+    public void shutdown() throws IOException {
+        writeLine("SHUTDOWN");
+    }
+
+    private String[] readReply(String expected) throws IOException {
+        String line = in.readLine();
+        if (line == null || !line.startsWith(expected + " "))
+            throw new IOException("Unexpected reply from the daemon: " + line);
+
+        return line.split(" ");
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // TODO Log the error
+        }
+    }
+}
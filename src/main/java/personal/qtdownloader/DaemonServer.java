@@ -0,0 +1,443 @@
+/**
+ * Class: DaemonServer.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long-running process which keeps the session database, the download
+ * engine and the JVM warm, and accepts download jobs from the command line
+ * client on a loopback socket.
+ *
+ * The protocol is line based. A client first sends "AUTH token", with the
+ * token read from the port file, then any of:
+ * <ul>
+ * <li>"SESSION url", answered by "SESSION alreadyDownloaded downloadedSize"</li>
+ * <li>"DOWNLOAD" followed by "key=value" lines of the configuration and an
+ * empty line, answered by "VERIFIED" and "PROGRESS" lines and finally a
+ * "DONE" or an "ERROR" line</li>
+ * <li>"SHUTDOWN", which stops the daemon</li>
+ * </ul>
+ *
+ * @author quan
+ */
+public class DaemonServer implements AutoCloseable {
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+    private final ServerSocket serverSocket;
+    private final Path portFile;
+    private final String token;
+    private final SessionStore sessionStore;
+    private final DownloadEngine engine;
+    private final ExecutorService clientPool;
+
+    /**
+     * Start listening on an ephemeral loopback port, which is written along
+     * with the access token to the given port file.
+     *
+     * @param portFile The file clients read the port and token from.
+     * @param sessionStore The session database, or null if there is none.
+     * @throws IOException if the socket or the port file cannot be created.
+     */
+    public DaemonServer(Path portFile, SessionStore sessionStore) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.portFile = portFile;
+        this.sessionStore = sessionStore;
+        this.engine = new DownloadEngine();
+        this.engine.setProfileStore(sessionStore);
+        this.clientPool = Executors.newCachedThreadPool();
+
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        StringBuilder tokenBuilder = new StringBuilder();
+        for (byte b : secret)
+            tokenBuilder.append(String.format("%02x", b));
+        this.token = tokenBuilder.toString();
+
+        // Only the owner may read the token. The file is created with its
+        // permissions, so that no one else can open it before the token is
+        // written.
+        Files.deleteIfExists(portFile);
+        try {
+            Files.createFile(portFile, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            // Not a POSIX file system, keep the default permissions.
+            Files.createFile(portFile);
+        }
+        Files.write(portFile, (serverSocket.getLocalPort() + "\n" + token + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Accept clients until the daemon is shut down.
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                clientPool.execute(() -> handleClient(socket));
+            } catch (IOException ex) {
+                // The server socket was closed.
+            }
+        }
+    }
+
+    /**
+     * Get the port the daemon listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void handleClient(Socket socket) {
+        try (Socket client = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        client.getInputStream(), StandardCharsets.UTF_8));
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                        client.getOutputStream(), StandardCharsets.UTF_8))) {
+            String auth = in.readLine();
+            if (auth == null || !auth.equals("AUTH " + token))
+                return;
+
+            String command;
+            while ((command = in.readLine()) != null) {
+                // A malformed request fails only itself, the client can go on
+                try {
+                    if (command.startsWith("SESSION ")) {
+                        String url = decode(command.substring("SESSION ".length()));
+                        DownloadSession session = findSession(url);
+                        writeLine(out, "SESSION " + session.alreadyDownloaded + " "
+                                + session.getDownloadedSize());
+                    } else if (command.equals("DOWNLOAD")) {
+                        Map<String, String> fields = readFields(in);
+                        DownloadConfig config;
+                        try {
+                            config = readConfig(fields);
+                        } catch (IOException ex) {
+                            throw new IllegalArgumentException(ex.getMessage(), ex);
+                        }
+                        runDownload(config, out);
+                    } else if (command.equals("SHUTDOWN")) {
+                        close();
+                        return;
+                    } else {
+                        throw new IllegalArgumentException("Unknown command: " + command);
+                    }
+                } catch (RuntimeException ex) {
+                    writeLine(out, "ERROR " + encode((ex.getMessage() != null)
+                            ? ex.getMessage() : ex.toString()));
+                }
+            }
+        } catch (IOException ex) {
+            // The client went away.
+        }
+    }
+
+    /**
+     * Read the "key=value" lines of a configuration, up to the empty line
+     * which ends it. The lines are read to the end even if one of them is
+     * malformed, so that the next request starts at its command.
+     *
+     * @throws IllegalArgumentException if a line has no value.
+     */
+    private static Map<String, String> readFields(BufferedReader in)
+            throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        String malformed = null;
+
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            int separator = line.indexOf('=');
+            if (separator <= 0) {
+                malformed = line;
+                continue;
+            }
+
+            try {
+                fields.put(line.substring(0, separator),
+                        decode(line.substring(separator + 1)));
+            } catch (IllegalArgumentException ex) {
+                // A broken escape sequence
+                malformed = line;
+            }
+        }
+
+        if (malformed != null)
+            throw new IllegalArgumentException("Malformed configuration line: "
+                    + malformed);
+        return fields;
+    }
+
+    private DownloadSession findSession(String url) {
+        if (sessionStore == null)
+            return new DownloadSession(new File(url).getName(), url, -1);
+
+        return sessionStore.find(url);
+    }
+
+    /**
+     * Run a download job and stream its progress to the client. The job is
+     * cancelled if the client goes away.
+     */
+    private void runDownload(DownloadConfig config, BufferedWriter out)
+            throws IOException {
+        DownloadSession session = findSession(config.getURL());
+        RecordingProgressHandler handler = new RecordingProgressHandler();
+        CompletableFuture<DownloadResult> future = engine.submit(config, handler);
+
+        boolean verifiedSent = false;
+        long lastDownloaded = -1;
+        try {
+            while (true) {
+                try {
+                    DownloadResult result = future.get(PROGRESS_INTERVAL_MILLIS,
+                            TimeUnit.MILLISECONDS);
+
+                    session.setDownloadSize(result.getDownloadedSize());
+                    if (sessionStore != null)
+                        sessionStore.save(session);
+
+                    writeLine(out, "DONE " + encode(result.getOutputPath()) + " "
+                            + result.getDownloadedSize() + " "
+                            + result.getExtractedSize() + " "
+                            + result.getDownloadTime().toMillis() + " "
+                            + ((result.getFirstByteTime() == null) ? -1
+                                    : result.getFirstByteTime().toEpochMilli()));
+                    return;
+                } catch (TimeoutException ex) {
+                    // Report the progress so far.
+                }
+
+                HttpResult verifyResult = handler.verifyResult;
+                if (!verifiedSent && verifyResult != null) {
+                    writeLine(out, "VERIFIED " + verifyResult.responseCode + " "
+                            + verifyResult.contentLength);
+                    verifiedSent = true;
+                }
+
+                Progress progress = handler.progress;
+                if (progress != null) {
+                    long downloaded;
+                    long sinceStart;
+                    synchronized (progress) {
+                        downloaded = progress.getDownloadedSize();
+                        sinceStart = progress.getDownloadedSinceStart();
+                    }
+
+                    if (downloaded != lastDownloaded) {
+                        writeLine(out, "PROGRESS " + downloaded + " " + sinceStart);
+                        lastDownloaded = downloaded;
+                    }
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            String message = (cause.getMessage() != null) ? cause.getMessage()
+                    : cause.toString();
+            writeLine(out, "ERROR " + encode(message));
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            // The client went away, nobody is waiting for the download.
+            future.cancel(true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Stop accepting clients and stop the running downloads.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // TODO Log the error
+        }
+
+        engine.close();
+        clientPool.shutdownNow();
+
+        try {
+            Files.deleteIfExists(portFile);
+        } catch (IOException ex) {
+            // TODO Log the error
+        }
+    }
+
+    private static void writeLine(BufferedWriter out, String line)
+            throws IOException {
+        out.write(line);
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Write the given configuration as "key=value" lines.
+     *
+     * @param config The configuration.
+     * @param out The writer to write to.
+     * @throws IOException if failed to write.
+     */
+    static void writeConfig(DownloadConfig config, BufferedWriter out)
+            throws IOException {
+        writeField(out, "url", config.getURL());
+        // The daemon runs in another working directory than the client
+        writeField(out, "outputDirectory", absolute(config.getOutputDirectory()));
+        writeField(out, "fileName", config.getFileName());
+        writeField(out, "username", config.getUsername());
+        writeField(out, "password", config.getPassword());
+        // The settings left at their defaults stay so, for the host profiles
+        if (config.isPartsCountSet())
+            writeField(out, "partsCount", String.valueOf(config.getPartsCount()));
+        if (config.isBufferSizeSet())
+            writeField(out, "bufferSize", String.valueOf(config.getBufferSize()));
+        if (config.isSmallFileThresholdSet())
+            writeField(out, "smallFileThreshold",
+                    String.valueOf(config.getSmallFileThreshold()));
+        writeField(out, "progressIntervalMillis",
+                String.valueOf(config.getProgressIntervalMillis()));
+        writeField(out, "tempDirectory", absolute(config.getTempDirectory()));
+        writeField(out, "resume", String.valueOf(config.isResume()));
+        writeField(out, "decompress", String.valueOf(config.isDecompress()));
+        writeField(out, "extract", String.valueOf(config.isExtract()));
+        writeField(out, "compressedTransfer", String.valueOf(config.isCompressedTransfer()));
+        writeField(out, "durability", config.getDurability().toString());
+        writeField(out, "directIo", String.valueOf(config.isDirectIo()));
+        if (!config.getWorkers().isEmpty()) {
+            writeField(out, "workers", String.join(",", config.getWorkers()));
+            writeField(out, "workerToken", config.getWorkerToken());
+        }
+        if (config.getMetalink() != null)
+            writeField(out, "metalink", absolute(config.getMetalink().getSource().toString()));
+        if (config.getBlockSums() != null) {
+            if (config.getBlockSums().getSource() == null)
+                throw new IOException("Only block checksums read from a file"
+                        + " can be sent to the daemon");
+
+            writeField(out, "deltaBase", absolute(config.getDeltaBase()));
+            writeField(out, "blockSums", absolute(config.getBlockSums().getSource().toString()));
+        }
+        out.write('\n');
+        out.flush();
+    }
+
+    private static String absolute(String path) {
+        if (path == null)
+            return null;
+
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    private static void writeField(BufferedWriter out, String key, String value)
+            throws IOException {
+        if (value == null)
+            return;
+
+        out.write(key + "=" + encode(value) + "\n");
+    }
+
+    private static DownloadConfig readConfig(Map<String, String> fields)
+            throws IOException {
+        String metalink = fields.get("metalink");
+        DownloadConfig.Builder builder = ((metalink == null)
+                ? new DownloadConfig.Builder(fields.get("url"))
+                : new DownloadConfig.Builder(Metalink.parse(Paths.get(metalink))))
+                .outputDirectory(fields.get("outputDirectory"))
+                .fileName(fields.get("fileName"))
+                .credentials(fields.get("username"), fields.get("password"))
+                .progressIntervalMillis(Long.parseLong(fields.get("progressIntervalMillis")))
+                .tempDirectory(fields.get("tempDirectory"))
+                .resume(Boolean.parseBoolean(fields.get("resume")))
+                .decompress(Boolean.parseBoolean(fields.get("decompress")))
+                .extract(Boolean.parseBoolean(fields.get("extract")))
+                .compressedTransfer(Boolean.parseBoolean(fields.get("compressedTransfer")))
+                .durability(DurabilityPolicy.parse(fields.get("durability")))
+                .directIo(Boolean.parseBoolean(fields.get("directIo")));
+        if (fields.containsKey("partsCount"))
+            builder.partsCount(Integer.parseInt(fields.get("partsCount")));
+        if (fields.containsKey("bufferSize"))
+            builder.bufferSize(Integer.parseInt(fields.get("bufferSize")));
+        if (fields.containsKey("smallFileThreshold"))
+            builder.smallFileThreshold(Long.parseLong(fields.get("smallFileThreshold")));
+        if (fields.containsKey("workers"))
+            builder.workers(Arrays.asList(fields.get("workers").split(",")),
+                    fields.get("workerToken"));
+        if (fields.containsKey("blockSums"))
+            builder.delta(fields.get("deltaBase"),
+                    BlockSums.parse(Paths.get(fields.get("blockSums"))));
+
+        return builder.build();
+    }
+
+    static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Keeps the latest state of a download for the thread reporting it to
+     * the client, so that the download threads never write to the socket.
+     */
+    private static class RecordingProgressHandler implements ProgressHandler {
+
+        private volatile HttpResult verifyResult;
+        private volatile Progress progress;
+
+        @Override
+        public void handle(HttpResult verifyResult) {
+            this.verifyResult = verifyResult;
+        }
+
+        @Override
+        public void update(Progress progress) {
+            this.progress = progress;
+        }
+    }
+}
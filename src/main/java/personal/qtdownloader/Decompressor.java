@@ -0,0 +1,54 @@
+/**
+ * Class: Decompressor.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A decompression format that can be applied to the in-order byte stream of
+ * a download. Additional formats (zstd, xz, ...) can be plugged in by putting
+ * an implementation on the class path and listing it in
+ * META-INF/services/personal.qtdownloader.Decompressor.
+ *
+ * @author quan
+ */
+public interface Decompressor {
+
+    /**
+     * Get the name of the format, e.g. "gzip".
+     *
+     * @return The name of the format.
+     */
+    String getName();
+
+    /**
+     * Check if the given file name has an extension of this format.
+     *
+     * @param fileName The file name to check.
+     * @return True if this decompressor handles the file.
+     */
+    boolean handles(String fileName);
+
+    /**
+     * Get the name of the file after decompression, e.g. "a.tar.gz" becomes
+     * "a.tar" and "a.tgz" becomes "a.tar".
+     *
+     * @param fileName The compressed file's name.
+     * @return The decompressed file's name.
+     */
+    String stripExtension(String fileName);
+
+    /**
+     * Wrap the given compressed stream in a decompressing stream.
+     *
+     * @param in The compressed stream.
+     * @return The decompressed stream.
+     * @throws IOException if the stream header is invalid.
+     */
+    InputStream wrap(InputStream in) throws IOException;
+}
@@ -0,0 +1,68 @@
+/**
+ * Class: Decompressors.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Lookup of the available decompression formats: the built-in gzip format
+ * plus every format found through the ServiceLoader.
+ *
+ * @author quan
+ */
+public class Decompressors {
+
+    private static final List<Decompressor> DECOMPRESSORS;
+
+    static {
+        List<Decompressor> list = new ArrayList<>();
+        list.add(new GzipDecompressor());
+
+        for (Decompressor decompressor : ServiceLoader.load(Decompressor.class)) {
+            list.add(decompressor);
+        }
+
+        DECOMPRESSORS = Collections.unmodifiableList(list);
+    }
+
+    private Decompressors() {
+    }
+
+    /**
+     * Find the decompressor for the given file name.
+     *
+     * @param fileName The name of the compressed file.
+     * @return The decompressor, or null if the file is not compressed in any
+     * known format.
+     */
+    public static Decompressor forFileName(String fileName) {
+        for (Decompressor decompressor : DECOMPRESSORS) {
+            if (decompressor.handles(fileName))
+                return decompressor;
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the decompressor with the given format name.
+     *
+     * @param name The format's name, e.g. "gzip".
+     * @return The decompressor, or null if there is none with that name.
+     */
+    public static Decompressor forName(String name) {
+        for (Decompressor decompressor : DECOMPRESSORS) {
+            if (decompressor.getName().equalsIgnoreCase(name))
+                return decompressor;
+        }
+
+        return null;
+    }
+}
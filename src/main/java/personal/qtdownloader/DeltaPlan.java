@@ -0,0 +1,297 @@
+/**
+ * Class: DeltaPlan.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Which blocks of a new file are found in an older local version of it, and
+ * which byte ranges have to be downloaded. The older file is scanned in
+ * parallel slices, with the weak checksum rolled over every offset and the
+ * strong hash computed only where the weak one matches a block.
+ *
+ * @author quan
+ */
+public class DeltaPlan {
+
+    private static final int MIN_SLICE_SIZE = 1 << 20; // 1MB
+    private static final int READ_SIZE = 1 << 16; // 64KB
+
+    private final BlockSums blockSums;
+    private final Path oldFile;
+    private final AtomicLongArray sources;
+
+    private DeltaPlan(BlockSums blockSums, Path oldFile) {
+        this.blockSums = blockSums;
+        this.oldFile = oldFile;
+        this.sources = new AtomicLongArray(blockSums.getBlockCount());
+        for (int i = 0; i < sources.length(); i++)
+            sources.set(i, -1);
+    }
+
+    /**
+     * Scan the older file for the blocks of the new one.
+     *
+     * @param blockSums The new file's block checksums.
+     * @param oldFile The older version of the file.
+     * @param executor The executor to run the slices of the scan on.
+     * @param parallelism The number of slices to scan at the same time.
+     * @return The future plan.
+     */
+    public static CompletableFuture<DeltaPlan> scan(BlockSums blockSums,
+            Path oldFile, Executor executor, int parallelism) {
+        return CompletableFuture.supplyAsync(() -> new DeltaPlan(blockSums, oldFile),
+                executor).thenCompose((DeltaPlan plan) -> plan.scanSlices(executor, parallelism));
+    }
+
+    private CompletableFuture<DeltaPlan> scanSlices(Executor executor, int parallelism) {
+        long oldLength;
+        try {
+            oldLength = Files.size(oldFile);
+        } catch (IOException ex) {
+            CompletableFuture<DeltaPlan> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+
+        // Only whole blocks are looked for, the last block of the new file
+        // is downloaded if it is shorter.
+        int blockSize = blockSums.getBlockSize();
+        Map<Integer, List<Integer>> blocksByWeakSum = new HashMap<>();
+        for (int i = 0; i < blockSums.getBlockCount(); i++) {
+            if (blockSums.getBlockLength(i) == blockSize)
+                blocksByWeakSum.computeIfAbsent(blockSums.getWeakSum(i),
+                        (Integer sum) -> new ArrayList<>(1)).add(i);
+        }
+
+        // The offsets where a block can start, cut into slices
+        long offsets = oldLength - blockSize + 1;
+        if (offsets <= 0 || blocksByWeakSum.isEmpty())
+            return CompletableFuture.completedFuture(this);
+
+        long sliceSize = Math.max(MIN_SLICE_SIZE, (offsets + parallelism - 1) / parallelism);
+        List<CompletableFuture<Void>> slices = new ArrayList<>();
+        for (long start = 0; start < offsets; start += sliceSize) {
+            long sliceStart = start;
+            long sliceEnd = Math.min(offsets, start + sliceSize);
+            slices.add(CompletableFuture.runAsync(() -> {
+                try {
+                    scanSlice(blocksByWeakSum, sliceStart, sliceEnd);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, executor));
+        }
+
+        return CompletableFuture.allOf(slices.toArray(new CompletableFuture<?>[0]))
+                .thenApply((Void ignored) -> this);
+    }
+
+    /**
+     * Look for blocks starting at the offsets of the older file from the
+     * given start up to the given end.
+     */
+    private void scanSlice(Map<Integer, List<Integer>> blocksByWeakSum,
+            long sliceStart, long sliceEnd) throws IOException {
+        int blockSize = blockSums.getBlockSize();
+        MessageDigest digest = BlockSums.newSha1();
+        byte[] buffer = new byte[Math.max(2 * blockSize, READ_SIZE + blockSize)];
+
+        try (InputStream in = Files.newInputStream(oldFile)) {
+            skipFully(in, sliceStart);
+
+            // The buffer holds the file from bufferStart, the window is the
+            // block at windowStart in the buffer.
+            long bufferStart = sliceStart;
+            int filled = 0;
+            int window = 0;
+            int sum = 0;
+            boolean sumValid = false;
+
+            while (bufferStart + window < sliceEnd) {
+                // Keep the window and the byte after it in the buffer
+                if (window + blockSize + 1 > filled) {
+                    System.arraycopy(buffer, window, buffer, 0, filled - window);
+                    filled -= window;
+                    bufferStart += window;
+                    window = 0;
+
+                    int count;
+                    while (filled < buffer.length
+                            && (count = in.read(buffer, filled, buffer.length - filled)) != -1)
+                        filled += count;
+
+                    if (filled < blockSize)
+                        break;
+                }
+
+                if (!sumValid) {
+                    sum = BlockSums.weakSum(buffer, window, blockSize);
+                    sumValid = true;
+                }
+
+                List<Integer> candidates = blocksByWeakSum.get(sum);
+                if (candidates != null && matchBlocks(candidates, digest, buffer,
+                        window, bufferStart + window)) {
+                    // Look for the next block after the matching one
+                    window += blockSize;
+                    sumValid = false;
+                    continue;
+                }
+
+                if (window + blockSize >= filled)
+                    break; // The end of the file
+                sum = BlockSums.roll(sum, blockSize, buffer[window],
+                        buffer[window + blockSize]);
+                window++;
+            }
+        }
+    }
+
+    /**
+     * Check the strong hash of the window against the blocks with the same
+     * weak checksum, and take the window as the source of those that match.
+     *
+     * @return True if the window matched a block.
+     */
+    private boolean matchBlocks(List<Integer> candidates, MessageDigest digest,
+            byte[] buffer, int window, long position) {
+        digest.update(buffer, window, blockSums.getBlockSize());
+        byte[] strongSum = digest.digest();
+
+        boolean matched = false;
+        for (int block : candidates) {
+            if (Arrays.equals(strongSum, blockSums.getStrongSum(block))) {
+                sources.compareAndSet(block, -1, position);
+                matched = true;
+            }
+        }
+
+        return matched;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0)
+                throw new IOException("Unexpected end of file while scanning");
+
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Copy the blocks found in the older file to their positions in the
+     * output file, which must already have the new file's size.
+     *
+     * @param output The output file.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public void copyMatchedBlocks(Path output) throws IOException {
+        int blockSize = blockSums.getBlockSize();
+
+        try (FileChannel in = FileChannel.open(oldFile, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            int block = 0;
+            while (block < sources.length()) {
+                long source = sources.get(block);
+                if (source == -1) {
+                    block++;
+                    continue;
+                }
+
+                // Copy the blocks which follow each other in both files at once
+                int end = block + 1;
+                while (end < sources.length()
+                        && sources.get(end) == source + (long) (end - block) * blockSize)
+                    end++;
+
+                long position = (long) block * blockSize;
+                long remaining = (long) (end - block) * blockSize;
+                out.position(position);
+                while (remaining > 0) {
+                    long copied = in.transferTo(source, remaining, out);
+                    if (copied <= 0)
+                        throw new IOException("Unexpected end of " + oldFile);
+
+                    source += copied;
+                    remaining -= copied;
+                }
+
+                block = end;
+            }
+        }
+    }
+
+    /**
+     * Get the byte ranges of the new file which were not found in the older
+     * one, merging the neighbouring blocks. Ranges separated by no more
+     * than the given gap are merged too, so that a few scattered blocks
+     * found in the older file do not cut the download into many small
+     * requests.
+     *
+     * @param maxGap The largest gap between two ranges to merge, in bytes.
+     * @return The ranges, each as its first and last byte.
+     */
+    public List<long[]> getMissingRanges(long maxGap) {
+        List<long[]> ranges = new ArrayList<>();
+        int blockSize = blockSums.getBlockSize();
+
+        int block = 0;
+        while (block < sources.length()) {
+            if (sources.get(block) != -1) {
+                block++;
+                continue;
+            }
+
+            int end = block + 1;
+            while (end < sources.length() && sources.get(end) == -1)
+                end++;
+
+            long first = (long) block * blockSize;
+            long last = (long) (end - 1) * blockSize + blockSums.getBlockLength(end - 1) - 1;
+            long[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && first - previous[1] - 1 <= maxGap)
+                previous[1] = last;
+            else
+                ranges.add(new long[] {first, last});
+
+            block = end;
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Get the number of bytes found in the older file.
+     *
+     * @return The size of the blocks found.
+     */
+    public long getMatchedSize() {
+        long size = 0;
+        for (int i = 0; i < sources.length(); i++)
+            if (sources.get(i) != -1)
+                size += blockSums.getBlockLength(i);
+
+        return size;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Class: DirectFileWriter.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a segment straight to its position in the output file with direct
+ * I/O, bypassing the page cache, so that a very large download does not
+ * evict the cached data of the other programs on the machine.
+ *
+ * The data is gathered in an aligned buffer and written in whole buffers
+ * at aligned positions, as direct I/O needs. The segment must start at an
+ * aligned position, and only the last segment of the file may end at an
+ * unaligned one: its last write is padded, and the file must be truncated
+ * to its size afterwards.
+ *
+ * Where direct I/O is not available, which needs Java 10 and a file system
+ * which supports it, the segment is written through the page cache and
+ * forced to the disk regularly instead. The written pages are then clean,
+ * and the first to be dropped when memory runs short.
+ *
+ * @author quan
+ */
+public class DirectFileWriter implements AutoCloseable {
+
+    public static final int BUFFER_SIZE = 1 << 20; // 1MB
+    public static final int DEFAULT_ALIGNMENT = 4096;
+
+    private static final long FORCE_BYTES = 1 << 26; // 64MB
+    private static final OpenOption DIRECT = findDirectOption();
+
+    private final FileChannel channel;
+    private final boolean direct;
+    private final int alignment;
+    private final AlignedBufferPool bufferPool;
+    private final long startPosition;
+    private ByteBuffer buffer;
+    private long flushedSize;
+    private long unforcedBytes;
+
+    private DirectFileWriter(FileChannel channel, boolean direct, int alignment,
+            AlignedBufferPool bufferPool, long startPosition) {
+        this.channel = channel;
+        this.direct = direct;
+        this.alignment = alignment;
+        this.bufferPool = bufferPool;
+        this.startPosition = startPosition;
+        this.buffer = bufferPool.acquire(BUFFER_SIZE, alignment);
+        this.flushedSize = 0;
+        this.unforcedBytes = 0;
+    }
+
+    /**
+     * Find ExtendedOpenOption.DIRECT, which only exists since Java 10.
+     */
+    private static OpenOption findDirectOption() {
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : options.getEnumConstants())
+                if (((Enum<?>) option).name().equals("DIRECT"))
+                    return (OpenOption) option;
+        } catch (ClassNotFoundException ex) {
+            // Not available on this JVM
+        }
+
+        return null;
+    }
+
+    /**
+     * Open the given file to write a segment at the given position, with
+     * direct I/O if it is available.
+     *
+     * @param file The file, which must exist.
+     * @param startPosition The segment's position, a multiple of the
+     * alignment.
+     * @param alignment The file system's alignment from
+     * {@link #getAlignment(Path)}.
+     * @param bufferPool The pool of aligned buffers.
+     * @return The writer.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static DirectFileWriter open(Path file, long startPosition, int alignment,
+            AlignedBufferPool bufferPool) throws IOException {
+        if (DIRECT != null && AlignedBufferPool.isSupported()) {
+            try {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, DIRECT);
+                return new DirectFileWriter(channel, true, alignment, bufferPool,
+                        startPosition);
+            } catch (IOException | UnsupportedOperationException ex) {
+                // The file system does not support direct I/O
+            }
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        return new DirectFileWriter(channel, false, alignment, bufferPool, startPosition);
+    }
+
+    /**
+     * Get the alignment of direct I/O for the file system of the given
+     * directory: its block size, if the JVM tells it.
+     *
+     * @param directory The directory.
+     * @return The alignment, a power of two.
+     */
+    public static int getAlignment(Path directory) {
+        try {
+            FileStore store = Files.getFileStore(directory);
+            Method getBlockSize = FileStore.class.getMethod("getBlockSize");
+            long blockSize = (Long) getBlockSize.invoke(store);
+
+            if (blockSize > 0 && blockSize <= BUFFER_SIZE
+                    && Long.bitCount(blockSize) == 1)
+                return (int) blockSize;
+        } catch (IOException | ReflectiveOperationException
+                | UnsupportedOperationException ex) {
+            // Not available on this JVM or file system
+        }
+
+        return DEFAULT_ALIGNMENT;
+    }
+
+    /**
+     * Check if the file is written with direct I/O.
+     *
+     * @return True if the writes bypass the page cache.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Write the given data after the data written so far.
+     *
+     * @param data The data.
+     * @param offset The offset of the bytes in the data.
+     * @param length The number of bytes.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, count);
+            offset += count;
+            length -= count;
+
+            if (!buffer.hasRemaining())
+                flush();
+        }
+    }
+
+    /**
+     * Write the gathered data, padded to the alignment.
+     */
+    private void flush() throws IOException {
+        int dataLength = buffer.position();
+        if (dataLength == 0)
+            return;
+
+        // Only the last write of the file's last segment is padded
+        if (direct) {
+            int padded = (dataLength + alignment - 1) / alignment * alignment;
+            while (buffer.position() < padded)
+                buffer.put((byte) 0);
+        }
+
+        buffer.flip();
+        long position = startPosition + flushedSize;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+
+        flushedSize += dataLength;
+        if (!direct) {
+            unforcedBytes += dataLength;
+            if (unforcedBytes >= FORCE_BYTES) {
+                channel.force(false);
+                unforcedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Drop the data gathered since the last write, for a segment which is
+     * downloaded again from the end of the written data.
+     *
+     * @return The number of bytes dropped.
+     */
+    public int discardPending() {
+        int dropped = buffer.position();
+        buffer.clear();
+        return dropped;
+    }
+
+    /**
+     * Get the number of bytes of the segment written to the file.
+     *
+     * @return The written size.
+     */
+    public long getFlushedSize() {
+        return flushedSize;
+    }
+
+    /**
+     * Write the rest of the segment.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void finish() throws IOException {
+        flush();
+        if (!direct)
+            channel.force(false);
+    }
+
+    /**
+     * Close the file and give the buffer back to the pool.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            bufferPool.release(buffer, alignment);
+            buffer = null;
+        }
+
+        channel.close();
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Class: DiskSpaceAdmission.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits downloads of an engine only when the disks they write to have room
+ * for them. The space of the admitted downloads stays reserved until they
+ * finish, since a preallocated output file does not take its space on the
+ * disk before it is written. The data they write takes its space from the
+ * disk's usable space, so it is taken off their reservations as it is
+ * written, and not counted twice. A download which does not fit next to the
+ * running ones waits for them to finish.
+ *
+ * @author quan
+ */
+public class DiskSpaceAdmission {
+
+    private static final long RECHECK_INTERVAL_MILLIS = 1000;
+
+    private final List<Reservation> reservations;
+
+    public DiskSpaceAdmission() {
+        reservations = new ArrayList<>();
+    }
+
+    /**
+     * Reserve the given space if it is free on every given disk, next to the
+     * space reserved by the running downloads.
+     *
+     * @param neededSpace The space needed on each disk, in bytes.
+     * @return The reservation, or null if the download has to wait for it.
+     * @throws IOException if a disk cannot hold the download even alone.
+     */
+    public synchronized Reservation tryAdmit(Map<FileStore, Long> neededSpace)
+            throws IOException {
+        boolean fits = true;
+
+        for (Map.Entry<FileStore, Long> entry : neededSpace.entrySet()) {
+            FileStore store = entry.getKey();
+            long needed = entry.getValue();
+            long usable = store.getUsableSpace();
+
+            if (needed > usable) {
+                // It does not fit even if the running downloads finish
+                String errMessage = "Not enough disk space on " + store
+                        + "! Needed: " + Utility.readableFileSize(needed)
+                        + ", available: " + Utility.readableFileSize(usable);
+                throw new IOException(errMessage);
+            }
+
+            if (needed > usable - getReservedSpace(store))
+                fits = false;
+        }
+
+        if (!fits)
+            return null;
+
+        Reservation reservation = new Reservation(neededSpace);
+        reservations.add(reservation);
+        return reservation;
+    }
+
+    /**
+     * Wait until the given space is free on every given disk, next to the
+     * space reserved by the running downloads, then reserve it.
+     *
+     * @param download The download to admit. Waiting stops if it is cancelled.
+     * @param neededSpace The space needed on each disk, in bytes.
+     * @return The reservation.
+     * @throws IOException if a disk cannot hold the download even alone, or
+     * the download was cancelled while waiting.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized Reservation admit(Download download, Map<FileStore, Long> neededSpace)
+            throws IOException, InterruptedException {
+        Reservation reservation;
+        while ((reservation = tryAdmit(neededSpace)) == null) {
+            if (download.isCancelled())
+                throw new IOException("Download cancelled while waiting for disk space");
+
+            // Wait for a running download to finish, or for space to be
+            // freed outside the program.
+            wait(RECHECK_INTERVAL_MILLIS);
+        }
+
+        return reservation;
+    }
+
+    /**
+     * Release the space reserved by a download.
+     *
+     * @param reservation The download's reservation.
+     */
+    public synchronized void release(Reservation reservation) {
+        reservations.remove(reservation);
+        notifyAll();
+    }
+
+    /**
+     * Get the space currently reserved on the given disk: what the admitted
+     * downloads have not written yet.
+     *
+     * @param store The disk.
+     * @return The reserved space in bytes.
+     */
+    public synchronized long getReservedSpace(FileStore store) {
+        long reserved = 0;
+        for (Reservation reservation : reservations)
+            reserved += reservation.getRemaining(store);
+
+        return reserved;
+    }
+
+    /**
+     * The space reserved by an admitted download, less what it has written
+     * so far.
+     */
+    public static class Reservation {
+
+        private final Map<FileStore, Long> neededSpace;
+        private final Map<FileStore, AtomicLong> writtenSpace;
+
+        private Reservation(Map<FileStore, Long> neededSpace) {
+            this.neededSpace = new HashMap<>(neededSpace);
+            this.writtenSpace = new HashMap<>();
+            for (FileStore store : neededSpace.keySet())
+                writtenSpace.put(store, new AtomicLong());
+        }
+
+        /**
+         * Take the given data off the reservation, once the download wrote
+         * it to the disk.
+         *
+         * @param store The disk written to.
+         * @param bytes The number of bytes written.
+         */
+        public void written(FileStore store, long bytes) {
+            AtomicLong written = writtenSpace.get(store);
+            if (written != null)
+                written.addAndGet(bytes);
+        }
+
+        /**
+         * Get the space still reserved on the given disk.
+         *
+         * @param store The disk.
+         * @return The space in bytes.
+         */
+        public long getRemaining(FileStore store) {
+            Long needed = neededSpace.get(store);
+            if (needed == null)
+                return 0;
+
+            return Math.max(0, needed - writtenSpace.get(store).get());
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Class: DiskWriter.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The write-behind stage between the download threads and the disk. The
+ * download threads hand their filled buffers to a bounded queue and go back
+ * to reading the network, while the writer threads drain the queue to the
+ * files. A full queue blocks the download threads until the disk catches up.
+ *
+ * Every file is written by a single writer thread, so its writes stay in
+ * order, and the buffers queued for the same file are merged into one
+ * gathering write.
+ *
+ * @author quan
+ */
+public class DiskWriter implements AutoCloseable {
+
+    public static final int DEFAULT_WRITER_THREADS = 2;
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_MERGED_WRITES = 64;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final List<BlockingQueue<WriteRequest>> queues;
+    private final ExecutorService writerPool;
+    private final BufferPool bufferPool;
+    private final AtomicInteger nextQueue;
+
+    /**
+     * Create the writer threads.
+     *
+     * @param writerThreads The number of writer threads.
+     * @param threadFactory The factory of the writer threads.
+     */
+    public DiskWriter(int writerThreads, ThreadFactory threadFactory) {
+        this.queues = new ArrayList<>();
+        this.writerPool = Executors.newFixedThreadPool(writerThreads, threadFactory);
+        this.bufferPool = new BufferPool(QUEUE_CAPACITY * writerThreads);
+        this.nextQueue = new AtomicInteger();
+
+        for (int i = 0; i < writerThreads; i++) {
+            BlockingQueue<WriteRequest> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            writerPool.execute(() -> drain(queue));
+        }
+    }
+
+    /**
+     * Get a buffer to read data into, which is given back to the pool once
+     * it was written.
+     *
+     * @param size The buffer's size.
+     * @return The buffer.
+     */
+    public byte[] acquireBuffer(int size) {
+        return bufferPool.acquire(size);
+    }
+
+    /**
+     * Give back a buffer which was not handed to a sink.
+     *
+     * @param buffer The buffer.
+     */
+    public void releaseBuffer(byte[] buffer) {
+        bufferPool.release(buffer);
+    }
+
+    /**
+     * Open a file to write to through the writer threads.
+     *
+     * @param fileName The file's name.
+     * @param append True to append to the file, false to overwrite it.
+     * @return The sink to hand the data for the file to.
+     * @throws IOException if the file cannot be opened.
+     */
+    public Sink open(String fileName, boolean append) throws IOException {
+        return open(fileName, append, DurabilityPolicy.NONE);
+    }
+
+    /**
+     * Open a file to write to through the writer threads, which force the
+     * data to the disk as often as the given policy asks for.
+     *
+     * @param fileName The file's name.
+     * @param append True to append to the file, false to overwrite it.
+     * @param durability When the data is forced to the disk.
+     * @return The sink to hand the data for the file to.
+     * @throws IOException if the file cannot be opened.
+     */
+    public Sink open(String fileName, boolean append, DurabilityPolicy durability)
+            throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND
+                        : StandardOpenOption.TRUNCATE_EXISTING);
+
+        BlockingQueue<WriteRequest> queue = queues.get(
+                Math.floorMod(nextQueue.getAndIncrement(), queues.size()));
+
+        return new Sink(fileName, channel, queue, durability.newTracker());
+    }
+
+    /**
+     * Write the queued buffers until the writer is closed.
+     */
+    private void drain(BlockingQueue<WriteRequest> queue) {
+        List<WriteRequest> batch = new ArrayList<>();
+
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_MERGED_WRITES - 1);
+
+                // Write each run of buffers for the same file at once
+                int start = 0;
+                while (start < batch.size()) {
+                    Sink sink = batch.get(start).sink;
+                    int end = start + 1;
+                    while (end < batch.size() && batch.get(end).sink == sink)
+                        end++;
+
+                    sink.writeAll(batch.subList(start, end));
+                    start = end;
+                }
+
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            // The writer was closed.
+        }
+    }
+
+    /**
+     * Stop the writer threads. Data still in the queues is not written.
+     */
+    @Override
+    public void close() {
+        writerPool.shutdownNow();
+    }
+
+    /**
+     * A file written by the writer threads.
+     */
+    public class Sink implements AutoCloseable {
+
+        private final String fileName;
+        private final FileChannel channel;
+        private final BlockingQueue<WriteRequest> queue;
+        private final DurabilityPolicy.Tracker tracker;
+        private int pendingWrites;
+        private volatile IOException failure;
+
+        private Sink(String fileName, FileChannel channel,
+                BlockingQueue<WriteRequest> queue, DurabilityPolicy.Tracker tracker) {
+            this.fileName = fileName;
+            this.channel = channel;
+            this.queue = queue;
+            this.tracker = tracker;
+            this.pendingWrites = 0;
+            this.failure = null;
+        }
+
+        /**
+         * Hand the given data to the writer threads. Blocks while the queue
+         * is full.
+         *
+         * @param buffer The buffer, which belongs to the writer from now on.
+         * It must come from {@link DiskWriter#acquireBuffer(int)}.
+         * @param length The number of bytes in the buffer to write.
+         * @throws IOException if an earlier write to the file failed.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public void write(byte[] buffer, int length) throws IOException,
+                InterruptedException {
+            try {
+                checkFailure();
+            } catch (IOException ex) {
+                bufferPool.release(buffer);
+                throw ex;
+            }
+
+            synchronized (this) {
+                pendingWrites++;
+            }
+
+            WriteRequest request = new WriteRequest(this, buffer, length);
+            try {
+                if (!queue.offer(request)) {
+                    DownloadEvents.BufferWait wait = DownloadEvents.beginBufferWait(
+                            "disk writer", fileName);
+                    while (!queue.offer(request, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (failure != null || writerPool.isShutdown())
+                            throw new IOException("Writing to " + fileName + " failed",
+                                    failure);
+                    }
+                    if (wait != null)
+                        wait.done();
+                }
+            } catch (IOException | InterruptedException ex) {
+                bufferPool.release(buffer);
+                synchronized (this) {
+                    pendingWrites--;
+                    notifyAll();
+                }
+                throw ex;
+            }
+        }
+
+        /**
+         * Write the given buffers in one gathering write. Runs on a writer
+         * thread.
+         */
+        private void writeAll(List<WriteRequest> requests) {
+            if (failure == null) {
+                ByteBuffer[] buffers = new ByteBuffer[requests.size()];
+                long total = 0;
+                for (int i = 0; i < buffers.length; i++) {
+                    WriteRequest request = requests.get(i);
+                    buffers[i] = ByteBuffer.wrap(request.buffer, 0, request.length);
+                    total += request.length;
+                }
+
+                try {
+                    long remaining = total;
+                    while (remaining > 0)
+                        remaining -= channel.write(buffers);
+                    tracker.written(channel, total);
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+
+            for (WriteRequest request : requests)
+                bufferPool.release(request.buffer);
+
+            synchronized (this) {
+                pendingWrites -= requests.size();
+                notifyAll();
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null)
+                throw new IOException("Writing to " + fileName + " failed", failure);
+        }
+
+        /**
+         * Wait for the data handed to the writer threads to be written, then
+         * close the file.
+         *
+         * @throws IOException if a write to the file failed.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                synchronized (this) {
+                    while (pendingWrites > 0) {
+                        if (writerPool.isShutdown())
+                            throw new IOException("The writer of " + fileName
+                                    + " was closed");
+
+                        wait(OFFER_TIMEOUT_MILLIS);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing "
+                        + fileName);
+            } finally {
+                channel.close();
+            }
+
+            checkFailure();
+        }
+    }
+
+    /**
+     * A buffer waiting to be written.
+     */
+    private static class WriteRequest {
+
+        private final Sink sink;
+        private final byte[] buffer;
+        private final int length;
+
+        private WriteRequest(Sink sink, byte[] buffer, int length) {
+            this.sink = sink;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
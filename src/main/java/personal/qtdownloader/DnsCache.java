@@ -0,0 +1,162 @@
+/**
+ * Class: DnsCache.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The addresses of the hosts downloaded from, shared by all downloads of an
+ * engine, along with the speed observed from each address.
+ *
+ * The addresses are kept for the JVM's positive DNS cache time, the
+ * networkaddress.cache.ttl security property, or 30 seconds if it is not
+ * set. The record TTLs themselves are not visible to Java. At most
+ * {@link #MAX_HOSTS} hosts and {@link #MAX_ADDRESSES} speeds are kept, the
+ * least recently used ones being dropped first, so that an engine which
+ * downloads from many hosts does not grow without bound.
+ *
+ * @author quan
+ */
+public class DnsCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    public static final int MAX_HOSTS = 1024;
+    public static final int MAX_ADDRESSES = 4096;
+
+    private static final double SPEED_WEIGHT = 0.3;
+
+    private final HostResolver resolver;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+    private final Map<InetAddress, Double> speeds;
+
+    /**
+     * Create a cache with the JVM's resolver and cache time.
+     */
+    public DnsCache() {
+        this(HostResolver.SYSTEM, getDefaultTtlMillis());
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param resolver The resolver to look the hosts up with.
+     * @param ttlMillis How long the addresses are kept, in milliseconds.
+     */
+    public DnsCache(HostResolver resolver, long ttlMillis) {
+        this.resolver = resolver;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest) {
+                return size() > MAX_HOSTS || System.currentTimeMillis()
+                        - eldest.getValue().resolvedTime >= ttlMillis;
+            }
+        };
+        this.speeds = Collections.synchronizedMap(
+                new LinkedHashMap<InetAddress, Double>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, Double> eldest) {
+                return size() > MAX_ADDRESSES;
+            }
+        });
+    }
+
+    /**
+     * Get the JVM's positive DNS cache time.
+     *
+     * @return The cache time in milliseconds.
+     */
+    public static long getDefaultTtlMillis() {
+        String ttl = Security.getProperty("networkaddress.cache.ttl");
+        if (ttl == null)
+            return DEFAULT_TTL_MILLIS;
+
+        try {
+            long seconds = Long.parseLong(ttl.trim());
+            // A negative time means forever
+            return (seconds < 0) ? Long.MAX_VALUE : seconds * 1000;
+        } catch (NumberFormatException ex) {
+            return DEFAULT_TTL_MILLIS;
+        }
+    }
+
+    /**
+     * Get the addresses of the given host, resolving it if they are not
+     * cached or have expired.
+     *
+     * @param host The host name.
+     * @return The host's addresses, in the resolver's order.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    public List<InetAddress> lookup(String host) throws UnknownHostException {
+        String key = host.toLowerCase();
+        long now = System.currentTimeMillis();
+
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && now - entry.resolvedTime < ttlMillis)
+                return entry.addresses;
+        }
+
+        // Resolve outside the lock, so that a slow lookup does not hold up
+        // the other hosts.
+        List<InetAddress> addresses = Collections.unmodifiableList(
+                new ArrayList<>(Arrays.asList(resolver.resolve(host))));
+
+        synchronized (entries) {
+            entries.put(key, new Entry(addresses, now));
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Record the speed a segment was downloaded at from the given address.
+     * The speeds are averaged with more weight on the recent ones.
+     *
+     * @param address The address.
+     * @param bytesPerSecond The segment's speed in bytes per second.
+     */
+    public void recordSpeed(InetAddress address, double bytesPerSecond) {
+        speeds.merge(address, bytesPerSecond, (Double average, Double speed)
+                -> average + SPEED_WEIGHT * (speed - average));
+    }
+
+    /**
+     * Get the average speed observed from the given address.
+     *
+     * @param address The address.
+     * @return The speed in bytes per second, or 0 if nothing was downloaded
+     * from the address yet.
+     */
+    public double getSpeed(InetAddress address) {
+        return speeds.getOrDefault(address, 0.0);
+    }
+
+    /**
+     * The addresses of a host.
+     */
+    private static class Entry {
+
+        private final List<InetAddress> addresses;
+        private final long resolvedTime;
+
+        private Entry(List<InetAddress> addresses, long resolvedTime) {
+            this.addresses = addresses;
+            this.resolvedTime = resolvedTime;
+        }
+    }
+}
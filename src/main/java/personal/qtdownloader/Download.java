@@ -1,250 +1,809 @@
 /**
- * Class: DownloadDemo.java
+ * Class: Download.java
  *
  * @author quan
  *
  */
 package personal.qtdownloader;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
+import java.net.InetAddress;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import static personal.qtdownloader.Main.mURL;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.net.ssl.HttpsURLConnection;
 
 /**
+ * A single download, run by a {@link DownloadEngine}.
  *
  * @author quan
  */
-public class Download implements Runnable {
+public class Download implements Callable<DownloadResult> {
+
+    public static final String WORKING_FILE_EXTENSION = ".qtdownload";
+
+    /**
+     * The largest run of blocks found in the older file which is downloaded
+     * anyway to merge the missing ranges around it into one request.
+     */
+    private static final long DELTA_MAX_GAP = 65536;
+
+    /**
+     * How often the progress is published for a download which takes this
+     * one over after a crash, while no other download waits for it.
+     */
+    private static final long STATUS_PUBLISH_INTERVAL_MILLIS = 10000;
+
+    /**
+     * The number of connections the JVM keeps alive for a server, unless
+     * the http.maxConnections system property says otherwise.
+     */
+    private static final int PREWARM_CONNECTIONS = 5;
+    private static final long PREWARM_WAIT_MILLIS = 1000;
 
     protected final Progress progress;
-    protected final boolean[] joinPartIsDone;
-    
-    private final String url;
-    private final int partsCount;
-    private final boolean mResume;
-    private final String outputDirectory;
-    private String fileName;
-    private final String originalFileName;
-    private final String[] partNamesList;
-    private final HashMap<String, String> userOptions;
-    private final Thread mThread;
-    
-    private final ExecutorService downloadThreadsPool;
-    private final Future[] futurePool;
-    
+
+    private final DownloadConfig config;
+    private final DownloadEngine engine;
+    private final ProgressDispatcher dispatcher;
+    private final HandshakeTimer handshakeTimer;
+    private String[] partNamesList;
+    private volatile boolean cancelled;
+    private final AtomicInteger retryCount;
+    private boolean serverRanges;
+    private Duration probeTime;
+    private int partsCount;
+    private long partLength;
+    private boolean rangesSupported;
+    private boolean directIo;
+    private int alignment;
+
     private URL downloadUrl;
+    private Path sourceFile;
+    private HttpURLConnection probeConnection;
+    private ExtractThread extractThread;
+    private String contentEncoding;
+    private Decompressor contentDecoder;
+    private AddressBalancer addressBalancer;
+    private RangeWorkerPool rangeWorkers;
+    private DeltaPlan deltaPlan;
+    private List<long[]> partRanges;
+    private DownloadCoordinator coordinator;
+    private DownloadCoordinator.Status takeoverStatus;
+    private boolean takeoverResume;
+    private boolean statusFinished;
+    private volatile long[] layout;
+    private volatile DiskSpaceAdmission.Reservation reservation;
+    private FileStore outputStore;
+    private FileStore writeStore;
 
     /**
-     * Constructor for the Download class which takes an URL string as parameter
+     * Create a download with the given configuration.
      *
-     * @param urlString
-     * @param partsCount
+     * @param config The download's configuration.
+     * @param engine The engine whose thread pools are used.
+     * @param handlers The handlers to notify of the download's progress.
      */
-    public Download(String urlString, int partsCount) {
-        this.url = urlString;
-        this.downloadUrl = null;
-        this.partsCount = partsCount;
+    public Download(DownloadConfig config, DownloadEngine engine,
+            List<ProgressHandler> handlers) {
+        this.config = config;
+        this.engine = engine;
         this.progress = new Progress();
-        this.userOptions = Main.userOptions;
-        this.downloadThreadsPool = Executors.newFixedThreadPool(partsCount);
-        this.futurePool = new Future[partsCount];
-        
-        this.joinPartIsDone = new boolean[partsCount + 2];
-        Arrays.fill(this.joinPartIsDone, false);
-        
-        // Get the user option for whether to resume downloading or not.
-        this.mResume = "y".equals(userOptions.get("resume"));
-
-        // Get the output directory, which is either specified by the user
-        // or the current directory by default
-        String outputDir = userOptions.get("-o");
-        this.outputDirectory = (userOptions.containsKey("-o")) ? outputDir : "./";
-
-        // Get the file name from either the user's option 
-        // use or the file's default name
-        String usrFileName = userOptions.get("-f");
-        this.fileName = (userOptions.containsKey("-f")) ? 
-                usrFileName : (new File(url).getName());
-        this.originalFileName = new File(url).getName();
-
-        // Generate the list of part files' names.
-        this.partNamesList = new String[partsCount];
-        for (int i = 0; i < partsCount; i++) {
-            partNamesList[i] = Main.PROGRAM_TEMP_DIR + "." + originalFileName
+        this.dispatcher = new ProgressDispatcher(progress, handlers,
+                engine.getEventScheduler(), config.getProgressIntervalMillis());
+        this.handshakeTimer = new HandshakeTimer(
+                engine.getSslContext().getSocketFactory(), dispatcher);
+        this.downloadUrl = null;
+        this.sourceFile = null;
+        this.probeConnection = null;
+        this.extractThread = null;
+        this.contentEncoding = null;
+        this.contentDecoder = null;
+        this.addressBalancer = null;
+        this.rangeWorkers = null;
+        this.deltaPlan = null;
+        this.partRanges = null;
+        this.coordinator = null;
+        this.takeoverStatus = null;
+        this.takeoverResume = false;
+        this.statusFinished = false;
+        this.layout = null;
+        this.cancelled = false;
+        this.retryCount = new AtomicInteger();
+        this.serverRanges = false;
+        this.probeTime = Duration.ZERO;
+        this.partsCount = config.getPartsCount();
+        this.partLength = 0;
+        this.rangesSupported = false;
+        this.directIo = false;
+        this.alignment = DirectFileWriter.DEFAULT_ALIGNMENT;
+
+        this.partNamesList = createPartNames(config.getPartsCount());
+    }
+
+    /**
+     * Generate the list of part files' names. The normalized URL's hash
+     * keeps downloads of files with the same name apart.
+     */
+    private String[] createPartNames(int count) {
+        // The parts of a compressed transfer hold encoded bytes, which are
+        // not mixed with the parts of an unencoded one
+        String key = DownloadCoordinator.getKey(config.getURL());
+        if (config.isCompressedTransfer())
+            key += ".gzip";
+
+        String[] names = new String[count];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = config.getTempDirectory() + "."
+                    + config.getOriginalFileName() + "." + key
                     + ".part" + (i + 1);
         }
 
-        // Create a thread for this main download thread.
-        mThread = new Thread(this, "Main download thread");
+        return names;
     }
 
     /**
-     * Check the validity of the given URL.
+     * Send the probe request for the given URL. The probe is a GET of the
+     * whole file from its first byte, so that its response carries both the
+     * file's size and the data of the first part.
      *
-     * @param urlString The given URL.
-     * @return The content size from the requested URL. 
-     * If -1 then the response from the server is not success.
+     * @param url The given URL.
+     * @return The result of the probe. The content length is -1 if the
+     * server did not tell the file's size.
      *
      * @throws ConnectException if failed to connect to the given URL.
      */
-    private HttpResult checkURLValidity(URL url) throws ConnectException {
+    private HttpResult probe(URL url) throws ConnectException {
+        DownloadEvents.Probe probeEvent = DownloadEvents.beginProbe(url.toString());
+
         // Create new connection from the given url
         try {
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            useSharedTls(conn);
+            conn.setReadTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+            conn.setRequestProperty("Range", "bytes=0-");
 
-            // Connect to the created connection.
-            conn.setRequestMethod("HEAD");
-
-            if (userOptions.containsKey("-u") && userOptions.containsKey("-p")) {
-                String username = userOptions.get("-u");
-                String password = userOptions.get("-p");
-                String credentials = username + ":" + password;
-                credentials = Base64.getEncoder().encodeToString(credentials.getBytes());
-
-                conn.setRequestProperty("Authorization", "Basic " + credentials);
-            }
+            String authorization = config.getAuthorization();
+            if (authorization != null)
+                conn.setRequestProperty("Authorization", authorization);
+            if (config.isCompressedTransfer())
+                conn.setRequestProperty("Accept-Encoding", "gzip");
 
+            long startNanos = System.nanoTime();
             conn.connect();
 
-            // Check for the response code
-            int responseCode = conn.getResponseCode();
-            long contentSize = conn.getContentLengthLong();
+            // Check for the response code and the file's size
+            HttpResult result = HttpResult.fromConnection(conn);
+            probeTime = Duration.ofNanos(System.nanoTime() - startNanos);
+            if (probeEvent != null)
+                probeEvent.done(result.responseCode, result.contentLength);
 
-            // Return the content size
-            HttpResult result = new HttpResult(responseCode, contentSize);
+            // The connection has followed the redirects, the other parts go
+            // straight to where it ended up.
+            downloadUrl = conn.getURL();
+            probeConnection = conn;
 
             return result;
         } catch (IOException ex) {
+            if (probeEvent != null)
+                probeEvent.done(-1, -1);
             throw new ConnectException(ex.getMessage());
         }
     }
-    
+
+    /**
+     * Probe the local source file of a file URL. Any range of a regular
+     * file can be read, so it is always split into parts.
+     *
+     * @return The result of the probe, with a response code of 404 if the
+     * file is missing or cannot be read.
+     * @throws IOException if the file's size cannot be read.
+     */
+    private HttpResult probeFile() throws IOException {
+        if (!Files.isRegularFile(sourceFile) || !Files.isReadable(sourceFile))
+            return new HttpResult(HttpURLConnection.HTTP_NOT_FOUND, -1);
+
+        HttpResult result = new HttpResult(HttpURLConnection.HTTP_OK,
+                Files.size(sourceFile));
+        result.rangesSupported = true;
+        return result;
+    }
+
+    /**
+     * Check that the server serves byte ranges of the file, for a server
+     * which advertises ranges but answered the probe with the whole file.
+     * The last byte of the file is requested.
+     *
+     * @param contentSize The file's size.
+     * @return True if the server sent the requested byte.
+     */
+    private boolean confirmRanges(long contentSize) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) downloadUrl.openConnection();
+            useSharedTls(conn);
+            conn.setRequestProperty("Range", "bytes=" + (contentSize - 1)
+                    + "-" + (contentSize - 1));
+
+            String authorization = config.getAuthorization();
+            if (authorization != null)
+                conn.setRequestProperty("Authorization", authorization);
+            if (config.isCompressedTransfer())
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+
+            HttpResult result = HttpResult.fromConnection(conn);
+            long start = HttpResult.parseContentRangeStart(
+                    conn.getHeaderField("Content-Range"));
+
+            return result.rangesSupported && result.contentLength == contentSize
+                    && start == contentSize - 1;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
     /**
-     * Check if there is a file with the same name as the output file.
-     * If there is, prompt the user to for their choice:
-     * whether to overwrite, or change the file name to something else.
+     * Make the given connection use the engine's shared SSL context, if it
+     * is an HTTPS connection, and time its handshake.
+     *
+     * @param conn The connection, not connected yet.
      */
-    private boolean checkForDuplicateFileInFolder() throws IOException {
-        boolean fileExisted = Files.exists(Paths.get(getMainFilePath()));
-        
-        if (fileExisted) {
-            // There exists a file with the same name.
-            System.out.println("\nThere is already a file named " + fileName
-                    + " in folder " + outputDirectory);
-            
-            
-            // Get the user's choice whether to overwrite the file or not.
-            char answer = 0;
-            Scanner reader = new Scanner(System.in);
-            while (answer != 'y' && answer != 'Y'
-                    && answer != 'n' && answer != 'N') {
-                System.out.print("Do you want to overwrite it (y/n)? ");
-                answer = reader.next().charAt(0);
+    void useSharedTls(HttpURLConnection conn) {
+        if (conn instanceof HttpsURLConnection)
+            ((HttpsURLConnection) conn).setSSLSocketFactory(handshakeTimer);
+    }
+
+    /**
+     * Open the connections of the segments of an HTTPS download while its
+     * probe is in flight, once the probe's handshake completed so that they
+     * can resume its session. Each connection asks for the file's first byte
+     * and is then kept alive, to be taken by a segment instead of connecting
+     * anew. The connections of HEAD requests are not always kept alive.
+     * No more connections are opened than the JVM keeps alive for a server.
+     *
+     * @param url The URL probed.
+     * @return The future which completes when the connections are open, or
+     * null if none are opened.
+     */
+    private CompletableFuture<Void> startPrewarm(URL url) {
+        int count = Math.min(config.getPartsCount() - 1,
+                Integer.getInteger("http.maxConnections", PREWARM_CONNECTIONS));
+        if (!"https".equalsIgnoreCase(url.getProtocol()) || count < 1)
+            return null;
+
+        return handshakeTimer.getFirstHandshake().thenCompose((Void done) -> {
+            CompletableFuture<?>[] connections = new CompletableFuture<?>[count];
+            for (int i = 0; i < count; i++) {
+                connections[i] = CompletableFuture.runAsync(() -> prewarm(url),
+                        engine.getJoinPool());
             }
-            
-            // Check the user's choice.
-            if (answer != 'y') {
-                // If the user wants to, get the user's choice whether to
-                // manually change the filename or not.
-                System.out.println("If you don't want to change the output file, "
-                        + "your file will be renamed to (1)" + fileName + " ");
-                
-                answer = 0;
-                while (answer != 'y' && answer != 'Y'
-                        && answer != 'n' && answer != 'N') {
-                    System.out.print("Do you want to change it? (y/n) ");
-                    answer = reader.next().charAt(0);
-                }
-                
-                if (answer == 'y') {
-                    // If the user wants to manually change it, prompt
-                    // the user for the new file name.
-                    String newFileName = fileName;
-                    
-                    InputStreamReader inp = new InputStreamReader(System.in);
-                    BufferedReader br = new BufferedReader(inp);
-
-                    while (newFileName.equals(fileName) || newFileName.equals("")) {
-                        System.out.print("New file name: ");
-                        newFileName = br.readLine();
-                    }
-                    
-                    fileName = newFileName;
-                } else {
-                    // If the user doesn't want to, append a prefix.
-                    fileName = "(1)" + fileName;
+            return CompletableFuture.allOf(connections);
+        });
+    }
+
+    /**
+     * Open a connection to the given URL's server and leave it in the JVM's
+     * keep-alive cache.
+     */
+    private void prewarm(URL url) {
+        if (cancelled)
+            return;
+
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            useSharedTls(conn);
+            conn.setReadTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+            conn.setRequestProperty("Range", "bytes=0-0");
+
+            String authorization = config.getAuthorization();
+            if (authorization != null)
+                conn.setRequestProperty("Authorization", authorization);
+            if (config.isCompressedTransfer())
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+
+            // Reading the whole body puts the connection back into the
+            // keep-alive cache. A server which sends more than the byte
+            // asked for is not read from.
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                    && conn.getContentLengthLong() == 1) {
+                try (InputStream in = conn.getInputStream()) {
+                    while (in.read() != -1);
                 }
-                
-                return true;
             } else {
-                try {
-                    Files.deleteIfExists(Paths.get(getMainFilePath()));
-                } catch (IOException ex) {
-                    // TODO log the error
-                }
-                
-                return false;
+                conn.disconnect();
             }
-        } else {
-            return false;
+        } catch (IOException ex) {
+            // The segment connects by itself
+            if (conn != null)
+                conn.disconnect();
         }
     }
 
     /**
-     * Start the given number of threads to download from the given URL.
+     * Wait a moment for the connections opened while probing, so that the
+     * segments take them instead of connecting beside them.
      *
-     * @param url The URL object containing the download URL.
-     * @param contentSize The size of the file being downloaded.
-     * @param partCount The number of download mPartsCount.
-     * @param progress
+     * @param prewarm The future of the connections.
+     */
+    private void awaitPrewarm(CompletableFuture<Void> prewarm) {
+        if (!handshakeTimer.getFirstHandshake().isDone())
+            return;
+
+        try {
+            prewarm.get(PREWARM_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            // The segments connect by themselves
+        }
+    }
+
+    /**
+     * Start resolving the host of the given URL through the engine's DNS
+     * cache, along with the Happy Eyeballs race between its IPv4 and IPv6
+     * addresses, while the probe request is sent. Only plain HTTP segments
+     * are sent to the addresses, as HTTPS needs the host name to check the
+     * server's certificate.
      *
-     * @return An ArrayList of downloading thread objects.
+     * @param url The URL.
+     * @return The future reachable addresses of the host, or null if the
+     * segments go to the host name.
      */
-    private ArrayList<DownloadThread> startDownloadThreads(int partCount) {
-        ArrayList<DownloadThread> downloadThreadsList = new ArrayList<>(partCount);
+    private CompletableFuture<List<InetAddress>> resolveAddresses(URL url) {
+        if (!"http".equalsIgnoreCase(url.getProtocol()))
+            return null;
+
+        int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+        return CompletableFuture.supplyAsync(unchecked(() -> AddressBalancer.race(
+                engine.getDnsCache().lookup(url.getHost()), port,
+                engine.getJoinPool())), engine.getJoinPool());
+    }
+
+    /**
+     * Create the balancer which spreads the segments over the host's
+     * addresses, if the host has more than one and the probe was not
+     * redirected to another host.
+     *
+     * @param addresses The future addresses of the original URL's host.
+     * @param originalUrl The original URL.
+     * @return The balancer, or null if the segments go to the host name.
+     */
+    private AddressBalancer createAddressBalancer(
+            CompletableFuture<List<InetAddress>> addresses, URL originalUrl) {
+        if (addresses == null)
+            return null;
+
+        if (!downloadUrl.getProtocol().equalsIgnoreCase(originalUrl.getProtocol())
+                || !downloadUrl.getHost().equalsIgnoreCase(originalUrl.getHost())
+                || downloadUrl.getPort() != originalUrl.getPort()) {
+            addresses.cancel(false);
+            return null;
+        }
+
+        try {
+            List<InetAddress> reachable = addresses.get();
+            if (reachable.size() < 2 || !AddressBalancer.isHostHeaderAllowed())
+                return null;
+
+            return new AddressBalancer(reachable, engine.getDnsCache());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            // The probe got through, so the JVM resolves the host anyway
+            return null;
+        }
+    }
+
+    /**
+     * Choose the address of the host to send a segment's request to.
+     *
+     * @return The address, or null if the request goes to the host name.
+     */
+    InetAddress nextAddress() {
+        return (addressBalancer == null) ? null : addressBalancer.next();
+    }
+
+    /**
+     * Record the speed a segment was downloaded at from the given address.
+     *
+     * @param address The address.
+     * @param bytes The number of bytes downloaded.
+     * @param millis The time taken in milliseconds.
+     */
+    void recordAddressSpeed(InetAddress address, long bytes, long millis) {
+        if (bytes > 0 && millis > 0)
+            engine.getDnsCache().recordSpeed(address, bytes * 1000.0 / millis);
+    }
+
+    /**
+     * Take the connection of the probe request, whose response body is the
+     * file from its first byte. It can be taken only once.
+     *
+     * @return The probe connection, or null if it was already taken.
+     */
+    synchronized HttpURLConnection takeProbeConnection() {
+        HttpURLConnection conn = probeConnection;
+        probeConnection = null;
+        return conn;
+    }
+
+    /**
+     * Check if the probe connection is still there for the first part.
+     *
+     * @return True if no part has taken the probe connection.
+     */
+    synchronized boolean hasProbeConnection() {
+        return probeConnection != null;
+    }
 
-        for (int i = 0; i < partCount; i++) {
+    /**
+     * Close the probe connection if no part has taken it.
+     */
+    private void closeProbeConnection() {
+        HttpURLConnection conn = takeProbeConnection();
+        if (conn != null)
+            conn.disconnect();
+    }
+
+    /**
+     * Start the download threads. Each part is joined as soon as it is
+     * downloaded, at its position in the preallocated main file. If the
+     * download is extracted, the join of each part is chained after the
+     * download of that part and the join of the previous part instead.
+     *
+     * @return The future which completes when all parts have been
+     * downloaded and joined.
+     */
+    private CompletableFuture<Long> startDownloadThreads() {
+        CompletableFuture<Long> previousJoin = CompletableFuture.completedFuture(0L);
+
+        for (int i = 0; i < partsCount; i++) {
             // Create new download threads and start them.
             DownloadThread downloadThread = new DownloadThread(i + 1, this);
-            downloadThreadsList.add(downloadThread);
+            CompletableFuture<Long> downloaded = CompletableFuture.supplyAsync(
+                    unchecked(downloadThread), engine.getSegmentPool());
             
-            Future result = downloadThreadsPool.submit(downloadThread);
-            futurePool[i] = result;
+            // Stop the other parts as soon as one of them fails.
+            downloaded.whenComplete((Long partSize, Throwable ex) -> {
+                if (ex != null)
+                    cancel();
+            });
+
+            String partFileName = partNamesList[i];
+            int partNumber = i + 1;
+            if (directIo) {
+                // The part was written straight into the main file
+                previousJoin = previousJoin.thenCombine(downloaded, Long::sum);
+            } else if (extractThread == null) {
+                // Write the data to its position in the main file.
+                long position = getPartStart(partNumber);
+                CompletableFuture<Long> joined = downloaded.thenApplyAsync(
+                        (Long partSize) -> joinPart(new JoinPartThread(
+                                getWorkingFilePath(), partFileName, position,
+                                partSize, null, config.getDurability()),
+                                partNumber, partSize),
+                        engine.getJoinPool());
+                previousJoin = previousJoin.thenCombine(joined, Long::sum);
+            } else {
+                // Feed the data to the extract stage once all the previous
+                // parts are in it.
+                previousJoin = downloaded.thenCombineAsync(previousJoin,
+                        (Long partSize, Long joinedSize) -> joinPart(
+                                new JoinPartThread(getWorkingFilePath(),
+                                        partFileName, partSize, extractThread),
+                                partNumber, partSize),
+                        engine.getJoinPool());
+            }
+        }
+
+        return previousJoin;
+    }
+
+    /**
+     * Get the space the download needs on each disk: the output's size on
+     * the output directory's disk, and for a download in parts also the part
+     * files' size on the temporary directory's disk, unless the parts are
+     * written straight into the output with direct I/O. An extracted output may
+     * grow past the downloaded size, which cannot be known beforehand.
+     *
+     * @param contentSize The file's size, or -1 if it is unknown.
+     * @return The space needed on each disk, empty if the size is unknown.
+     * @throws IOException if a directory's disk cannot be found.
+     */
+    private Map<FileStore, Long> getNeededSpace(long contentSize) throws IOException {
+        Map<FileStore, Long> neededSpace = new HashMap<>();
+        if (contentSize <= 0)
+            return neededSpace;
+
+        outputStore = Files.getFileStore(Paths.get(config.getOutputDirectory()));
+        writeStore = outputStore;
+        neededSpace.merge(outputStore, contentSize, Long::sum);
+
+        if (rangesSupported && !directIo) {
+            // A resumed download already has some of the parts on the disk
+            long partsSize = contentSize;
+            if (partRanges != null) {
+                partsSize = 0;
+                for (long[] range : partRanges)
+                    partsSize += range[1] - range[0] + 1;
+            }
+            for (int i = 0; i < partsCount; i++)
+                partsSize -= new File(partNamesList[i]).length();
+
+            writeStore = Files.getFileStore(Paths.get(config.getTempDirectory()));
+            neededSpace.merge(writeStore, Math.max(partsSize, 0), Long::sum);
+        }
+
+        return neededSpace;
+    }
+
+    /**
+     * Check that the server's file has the size given by the Metalink
+     * document.
+     */
+    private void checkMetalinkSize(Metalink metalink, long contentSize) {
+        if (metalink.getSize() != -1 && contentSize != -1
+                && metalink.getSize() != contentSize) {
+            closeProbeConnection();
+            throw new RuntimeException("The file's size " + contentSize
+                    + " does not match the size " + metalink.getSize()
+                    + " in the Metalink file!");
+        }
+    }
+
+    /**
+     * Check the downloaded file against the hash of the whole file from the
+     * Metalink document, if it has no piece hashes which were checked
+     * already, or from the block checksums of a delta download.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private void verifyFileHash() throws IOException {
+        Metalink metalink = config.getMetalink();
+        BlockSums blockSums = config.getBlockSums();
+        String algorithm;
+        byte[] hash;
+        String source;
+        if (metalink != null && !metalink.hasPieces() && metalink.getHash() != null) {
+            algorithm = metalink.getHashAlgorithm();
+            hash = metalink.getHash();
+            source = "Metalink file";
+        } else if (blockSums != null && blockSums.getFileHash() != null) {
+            algorithm = "SHA-1";
+            hash = blockSums.getFileHash();
+            source = "block checksum file";
+        } else {
+            return;
+        }
+
+        if (extractThread != null)
+            return;
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        try (InputStream in = Files.newInputStream(Paths.get(getWorkingFilePath()))) {
+            byte[] buffer = new byte[config.getBufferSize()];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                digest.update(buffer, 0, count);
+        }
+
+        if (!MessageDigest.isEqual(digest.digest(), hash))
+            throw new RuntimeException("The downloaded file does not match the"
+                    + " hash in the " + source + "!");
+    }
+
+    /**
+     * Force the complete output file to the disk if the durability policy
+     * asks for it, then give it its final name in one atomic rename, so
+     * that the output file never exists half written. An earlier file of
+     * the same name is only replaced then.
+     *
+     * @throws IOException if the file cannot be forced or renamed.
+     */
+    private void finishOutputFile() throws IOException {
+        if (config.isUntar())
+            return;
+
+        Path workingFile = Paths.get(getWorkingFilePath());
+        Path mainFile = Paths.get(getMainFilePath());
+        boolean sync = config.getDurability().syncsOnCompletion();
+
+        if (sync) {
+            try (FileChannel channel = FileChannel.open(workingFile,
+                    StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+
+        try {
+            Files.move(workingFile, mainFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException | FileAlreadyExistsException ex) {
+            // Some platforms do not move over an existing file atomically
+            Files.move(workingFile, mainFile, StandardCopyOption.REPLACE_EXISTING);
         }
 
-        return downloadThreadsList;
+        // The rename itself is durable once the directory is synced, which
+        // not every platform allows.
+        if (sync) {
+            try (FileChannel directory = FileChannel.open(
+                    mainFile.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException ex) {
+                // The rename is still atomic
+            }
+        }
+    }
+
+    /**
+     * Delete the working file of a failed download.
+     */
+    private void deleteWorkingFile() {
+        try {
+            Files.deleteIfExists(Paths.get(getWorkingFilePath()));
+        } catch (IOException ex) {
+            // TODO Log the exception
+        }
     }
-    
+
+    /**
+     * Start scanning the older version of the file for the blocks of a
+     * delta download, while the probe request is sent.
+     *
+     * @return The future plan, or null if the whole file is downloaded.
+     */
+    private CompletableFuture<DeltaPlan> startDeltaScan() {
+        if (config.getBlockSums() == null)
+            return null;
+
+        return DeltaPlan.scan(config.getBlockSums(), Paths.get(config.getDeltaBase()),
+                engine.getJoinPool(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Turn the byte ranges which were not found in the older file into the
+     * parts to download. A server without ranges sends the whole file.
+     *
+     * @param deltaScan The future plan.
+     * @param contentSize The file's size.
+     * @throws Exception if the older file cannot be scanned.
+     */
+    private void planDelta(CompletableFuture<DeltaPlan> deltaScan, long contentSize)
+            throws Exception {
+        BlockSums blockSums = config.getBlockSums();
+        if (contentSize != blockSums.getLength()) {
+            deltaScan.cancel(false);
+            closeProbeConnection();
+            throw new RuntimeException("The file's size " + contentSize
+                    + " does not match the size " + blockSums.getLength()
+                    + " in the block checksum file!");
+        }
+
+        if (!rangesSupported) {
+            deltaScan.cancel(false);
+            return;
+        }
+
+        try {
+            deltaPlan = deltaScan.get();
+        } catch (ExecutionException ex) {
+            closeProbeConnection();
+            throw unwrap(ex);
+        }
+
+        partRanges = deltaPlan.getMissingRanges(DELTA_MAX_GAP);
+        partsCount = partRanges.size();
+        partNamesList = createPartNames(partsCount);
+    }
+
+    /**
+     * Download the probe's response straight into the output file, or into
+     * the extract stage, without part files and joins.
+     *
+     * @throws Exception if the download failed.
+     */
+    private void downloadSingleStream() throws Exception {
+        // Create the output file even if the stream turns out to be empty
+        if (extractThread == null)
+            new FileOutputStream(getWorkingFilePath()).close();
+
+        new DownloadThread(1, this).call();
+    }
+
+    /**
+     * Join the given part to the main file.
+     *
+     * @return The number of bytes transferred.
+     */
+    private long joinPart(JoinPartThread joinPartThread, int partNumber,
+            long partSize) {
+        long transferredBytes;
+        try {
+            transferredBytes = joinPartThread.call();
+        } catch (SecurityException ex) {
+            String errMessage = "You do not have the permission to the output"
+                    + "file!";
+            throw new CompletionException(new RuntimeException(errMessage, ex));
+        } catch (Exception ex) {
+            String errMessage = "Error while transferring from part " +
+                    partNumber + " to the main file!";
+            throw new CompletionException(new RuntimeException(errMessage, ex));
+        }
+
+        if (transferredBytes != partSize) {
+            String errMessage = "Transfer from part file to main file incomplete"
+                    + " at part " + partNumber + "!";
+            errMessage += " " + transferredBytes + " " + partSize;
+            throw new CompletionException(new RuntimeException(errMessage));
+        }
+
+        DiskSpaceAdmission.Reservation joinReservation = reservation;
+        if (joinReservation != null)
+            joinReservation.written(outputStore, transferredBytes);
+
+        return transferredBytes;
+    }
+
+    /**
+     * Wrap the given callable in a supplier for the CompletableFuture API.
+     */
+    private static <T> Supplier<T> unchecked(Callable<T> callable) {
+        return () -> {
+            try {
+                return callable.call();
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        };
+    }
+
     /**
      * Delete the part files after downloading.
      */
     private void deletePartFiles() {
         for (String partFileName : partNamesList) {
             Path partFilePath = Paths.get(partFileName);
-            
+
             try {
                 Files.deleteIfExists(partFilePath);
             } catch (IOException ex) {
@@ -252,206 +811,731 @@ public class Download implements Runnable {
             }
         }
     }
-    
+
     /**
-     * Print the appropriate error message for the given exception.
+     * Update the progress. The handlers see it at the next progress
+     * interval.
      *
-     * @param ex The exception whose message is to be printed.
+     * @param resumedSize The size already downloaded by a previous attempt.
+     * @param downloadedSize The size downloaded since the start.
      */
-    private static void printErrorMessage(Exception ex) {
-        /*
-         * Print the appropriate error message from the exception caught.
-         */
-        if (ex instanceof MalformedURLException) {
-            System.err.println("\nInvalid URL: " + ex.getMessage());
-        } else if (ex instanceof ConnectException) {
-            ConnectException connectException = (ConnectException) ex;
-            System.err.println("\nFailed to connect to the given URL: "
-                    + connectException.getMessage());
-            System.err.println("\nCheck your internet connection or URL again.");
-        } else if (ex instanceof IOException) {
-            System.err.println("\nFailed to open the output file: "
-                    + ex.getMessage());
-        } else if (ex instanceof InterruptedException) {
-            System.err.println("\nOne of the thread was interrupted: "
-                    + ex.getMessage());
-        } else if (ex instanceof RuntimeException) {
-            System.err.println(ex.getMessage());
+    void updateProgress(long resumedSize, long downloadedSize) {
+        DownloadEvents.ProgressLockWait lockWait = DownloadEvents.beginProgressLockWait();
+        synchronized (progress) {
+            if (lockWait != null)
+                lockWait.done();
+
+            progress.updateDownloadedSize(resumedSize + downloadedSize);
+            progress.updateDownloadedSinceStart(downloadedSize);
+            if (downloadedSize > 0 && progress.getFirstByteTime() == null)
+                progress.setFirstByteTime(Instant.now());
+
+            // The written data now takes its space from the disk itself
+            if (downloadedSize > 0 && reservation != null)
+                reservation.written(writeStore, downloadedSize);
+
+            progress.notifyAll();
         }
+    }
 
-        /*
-         * Exit the program.
-         */
-        System.err.println("\nExiting!");
-        System.exit(1);
+    /**
+     * Queue an event for the handlers.
+     *
+     * @param event The event.
+     */
+    void postEvent(ProgressEvent event) {
+        dispatcher.post(event);
     }
 
     /**
-     * Start the thread.
+     * Count a failed segment attempt which is retried.
      */
-    public void startThread() {
-        mThread.start();
+    void countRetry() {
+        retryCount.incrementAndGet();
     }
 
     /**
-     * Join the thread.
+     * Stop the download. The download threads stop at their next read.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check if the download was cancelled.
      *
-     * @throws InterruptedException if the thread is interrupted.
+     * @return True if the download was cancelled.
      */
-    public void joinThread() throws InterruptedException {
-        mThread.join();
+    public boolean isCancelled() {
+        return cancelled;
     }
-    
+
+    /**
+     * Get the download's configuration.
+     *
+     * @return The download's configuration.
+     */
+    public DownloadConfig getConfig() {
+        return config;
+    }
+
     /**
      * Get the output file's path.
      * @return The output file's path.
      */
     public String getMainFilePath() {
-        return outputDirectory + fileName;
+        return config.getMainFilePath();
     }
-    
+
+    /**
+     * Get the path the output file is written to until it is complete. It
+     * is in the output directory, so that it can be renamed to the output
+     * file's path atomically.
+     *
+     * @return The working file's path.
+     */
+    public String getWorkingFilePath() {
+        return config.getOutputDirectory() + "." + config.getFileName()
+                + WORKING_FILE_EXTENSION;
+    }
+
+    /**
+     * Get the name of the given part's file.
+     *
+     * @param partNumber The part's number, starting from 1.
+     * @return The part file's name.
+     */
+    public String getPartFileName(int partNumber) {
+        return partNamesList[partNumber - 1];
+    }
+
     /**
      * Get the size of the downloaded part.
-     * 
+     *
      * @return The size of the downloaded part.
      */
     public long getDownloadedSize() {
         return progress.getDownloadedSize();
     }
-    
+
+    /**
+     * Get the writer which writes the downloaded data to the disk.
+     *
+     * @return The disk writer.
+     */
+    DiskWriter getDiskWriter() {
+        return engine.getDiskWriter();
+    }
+
+    /**
+     * Get the Content-Encoding of the file as the probe received it.
+     *
+     * @return The encoding, or null if the file is not encoded.
+     */
+    String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Get the local file the download copies, for a file URL.
+     *
+     * @return The file, or null if the download is not from a file URL.
+     */
+    Path getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Get the range workers the segments are handed to.
+     *
+     * @return The workers, or null if the segments are downloaded by this
+     * process.
+     */
+    RangeWorkerPool getRangeWorkers() {
+        return rangeWorkers;
+    }
+
+    /**
+     * Get the pool of the aligned buffers for direct I/O.
+     *
+     * @return The buffer pool.
+     */
+    AlignedBufferPool getAlignedBufferPool() {
+        return engine.getAlignedBufferPool();
+    }
+
+    /**
+     * Get the extract stage the downloaded stream is fed to.
+     *
+     * @return The extract stage, or null if the stream is written as it is.
+     */
+    ExtractThread getExtractThread() {
+        return extractThread;
+    }
+
     /**
      * Get the download URL.
-     * 
+     *
      * @return The download URL.
      */
     public URL getDownloadURL() {
         return downloadUrl;
     }
-    
+
     /**
      * Returns whether to resume the interrupted download or not.
-     * 
+     *
      * @return Whether to resume the interrupted download or not.
      */
     public boolean resumeDownload() {
-        return mResume;
+        return config.isResume() || takeoverResume;
     }
-    
+
     /**
-     * Get the number of parts to split the file into to download.
-     * 
+     * Get the number of parts to split the file into to download. It is 1
+     * if the file is downloaded in a single stream.
+     *
      * @return The number of parts.
      */
     public int getPartCount() {
         return partsCount;
     }
-    
+
     /**
-     * Check if all the download threads have finished.
-     * @return True if all the download threads have finished, false otherwise.
+     * Get the position of the given part in the file.
+     *
+     * @param partNumber The part's number, starting from 1. The number after
+     * the last part gives the file's size.
+     * @return The position of the part's first byte.
      */
-    private boolean downloadThreadsIsDone() {
-        for (Future task : futurePool) {
-            if (!task.isDone())
-                return false;
-        }
-        
-        return true;
+    long getPartStart(int partNumber) {
+        if (partNumber > partsCount)
+            return progress.getContentSize();
+        if (partRanges != null)
+            return partRanges.get(partNumber - 1)[0];
+
+        return (partNumber - 1) * partLength;
     }
-    
+
+    /**
+     * Get the position of the last byte of the given part in the file.
+     *
+     * @param partNumber The part's number, starting from 1.
+     * @return The position of the part's last byte.
+     */
+    long getPartEnd(int partNumber) {
+        if (partRanges != null)
+            return partRanges.get(partNumber - 1)[1];
+
+        return getPartStart(partNumber + 1) - 1;
+    }
+
+    /**
+     * Check if the file is downloaded in byte ranges. Otherwise it is
+     * downloaded in a single stream from the probe request, straight into
+     * the output file.
+     *
+     * @return True if the file is downloaded in byte ranges.
+     */
+    boolean isRangesSupported() {
+        return rangesSupported;
+    }
+
+    /**
+     * Check if the parts are written straight into the output file with
+     * direct I/O, instead of into part files which are joined afterwards.
+     *
+     * @return True if the parts bypass the page cache.
+     */
+    boolean isDirectIo() {
+        return directIo;
+    }
+
+    /**
+     * Get the alignment of the positions and sizes of direct I/O writes.
+     *
+     * @return The alignment, a power of two.
+     */
+    int getAlignment() {
+        return alignment;
+    }
+
     /**
      * Start downloading from the given URL.
+     *
+     * @return The result of the download.
+     * @throws Exception if the download failed.
      */
     @Override
-    public void run() {
-        // Check if there is a file whose name is the same as the output file
-        boolean checkResult = true;
-        
-        while (checkResult) {
+    public DownloadResult call() throws Exception {
+        dispatcher.start();
+
+        try {
+            DownloadResult result = coordinateAndDownload();
+            dispatcher.finish(ProgressEvent.completed(result));
+            return result;
+        } catch (Exception ex) {
+            String message = (ex.getMessage() != null) ? ex.getMessage()
+                    : ex.toString();
+            dispatcher.finish(ProgressEvent.failed(message));
+            throw ex;
+        }
+    }
+
+    /**
+     * Download the file once this download owns the downloads of its URL,
+     * publishing its progress for the other downloads of the URL. While
+     * another download owns them, its progress is followed instead, and
+     * the file it downloaded is copied once it is done.
+     *
+     * @return The result of the download.
+     * @throws Exception if the download failed.
+     */
+    private DownloadResult coordinateAndDownload() throws Exception {
+        Instant start = Instant.now();
+
+        try (DownloadCoordinator urlCoordinator = new DownloadCoordinator(
+                config.getTempDirectory(), config.getURL())) {
+            boolean waited = !urlCoordinator.tryAcquire();
+            if (waited)
+                followOwner(urlCoordinator, start);
+
+            // The last owner either finished the file, or failed or died
+            // while downloading it, in which case its download is taken
+            // over. A file finished before this download started may have
+            // changed since.
+            DownloadCoordinator.Status status = urlCoordinator.readStatus();
+            if (status != null && status.getState() == DownloadCoordinator.Status.State.COMPLETED
+                    && waited) {
+                DownloadResult shared = copyOwnerOutput(status, start);
+                if (shared != null)
+                    return shared;
+            } else if (status != null
+                    && status.getState() == DownloadCoordinator.Status.State.DOWNLOADING) {
+                takeoverStatus = status;
+            }
+
+            // The progress is published at each interval only while other
+            // downloads wait for it. Otherwise it is published once the
+            // parts are laid out and then rarely, for a download which takes
+            // this one over after a crash.
+            coordinator = urlCoordinator;
+            long interval = config.getProgressIntervalMillis();
+            long[] lastPublished = {System.nanoTime()};
+            long[][] publishedLayout = {null};
+            ScheduledFuture<?> publisher = engine.getEventScheduler().scheduleWithFixedDelay(
+                    () -> {
+                        long now = System.nanoTime();
+                        long[] partLayout = layout;
+                        if (partLayout == publishedLayout[0] && !urlCoordinator.hasWaiters()
+                                && now - lastPublished[0] < TimeUnit.MILLISECONDS.toNanos(
+                                        STATUS_PUBLISH_INTERVAL_MILLIS))
+                            return;
+
+                        publishStatus(DownloadCoordinator.Status.State.DOWNLOADING);
+                        lastPublished[0] = now;
+                        publishedLayout[0] = partLayout;
+                    }, interval, interval, TimeUnit.MILLISECONDS);
+
             try {
-                checkResult = checkForDuplicateFileInFolder();
-            } catch (IOException ex) {
-                RuntimeException rte = new RuntimeException(
-                        "Error while reading user's choice", ex);
-                printErrorMessage(rte);
+                DownloadResult result = probeAndDownload();
+                publisher.cancel(false);
+                publishStatus(DownloadCoordinator.Status.State.COMPLETED);
+                return result;
+            } catch (Exception ex) {
+                publisher.cancel(false);
+                publishStatus(DownloadCoordinator.Status.State.FAILED);
+                throw ex;
             }
         }
-        
-        // Start the download
-        DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
-        Date date = new Date();
-        System.out.println("\n--- " + dateFormat.format(date) + " ---\n");
-        System.out.println("Downloading from: " + mURL);
-        
-        // Create the URL object
-        try {
-            downloadUrl = new URL(url);
-        } catch (MalformedURLException ex) {
-            printErrorMessage(ex);
+    }
+
+    /**
+     * Follow the progress of the download which owns the downloads of the
+     * URL until this download gets to own them.
+     *
+     * @param urlCoordinator The coordinator of the URL's downloads.
+     * @param start When this download started.
+     * @throws Exception if the download was cancelled.
+     */
+    private void followOwner(DownloadCoordinator urlCoordinator, Instant start)
+            throws Exception {
+        long followedSize = 0;
+        boolean probed = false;
+
+        while (!urlCoordinator.tryAcquire()) {
+            if (cancelled)
+                throw new IOException("Download cancelled while waiting for"
+                        + " another download of the same URL");
+
+            urlCoordinator.markWaiting();
+            DownloadCoordinator.Status status = urlCoordinator.readStatus();
+            if (status != null && status.getState() == DownloadCoordinator.Status.State.DOWNLOADING
+                    && (status.getContentSize() != -1 || status.getDownloadedSize() > 0)) {
+                if (!probed) {
+                    HttpResult result = new HttpResult(HttpURLConnection.HTTP_OK,
+                            status.getContentSize());
+                    progress.setStartDownloadTime(start);
+                    progress.setUrlVerifyResult(result);
+                    dispatcher.probeDone(result);
+                    probed = true;
+                }
+
+                long newSize = status.getDownloadedSize() - followedSize;
+                if (newSize > 0)
+                    updateProgress(0, newSize);
+                else if (newSize < 0)
+                    updateProgress(newSize, 0);
+                followedSize = status.getDownloadedSize();
+            }
+
+            Thread.sleep(Math.min(config.getProgressIntervalMillis(),
+                    DownloadCoordinator.WAITING_TOUCH_MILLIS));
         }
 
-        // Check the validity of the URL
-        System.out.println("Sending HTTP request...");
-        
-        HttpResult result = new HttpResult();
+        // The followed progress was not this download's
+        synchronized (progress) {
+            progress.updateDownloadedSize(-followedSize);
+            progress.updateDownloadedSinceStart(-followedSize);
+        }
+    }
+
+    /**
+     * Copy the file downloaded by the owner of the URL's downloads to the
+     * output file, unless it is the output file already.
+     *
+     * @param status The owner's last status.
+     * @param start When this download started.
+     * @return The result of the download, or null if the owner's file
+     * cannot be used because it is extracted, or is gone.
+     * @throws IOException if the file cannot be copied.
+     */
+    private DownloadResult copyOwnerOutput(DownloadCoordinator.Status status,
+            Instant start) throws IOException {
+        boolean transformed = config.getDecompressor() != null || config.isUntar();
+        if (transformed || status.isTransformed())
+            return null;
+
+        Path ownerOutput = Paths.get(status.getOutputPath());
+        if (!Files.isRegularFile(ownerOutput) || (status.getContentSize() != -1
+                && Files.size(ownerOutput) != status.getContentSize()))
+            return null;
+
+        Path mainFile = Paths.get(getMainFilePath());
+        if (!Files.exists(mainFile) || !Files.isSameFile(ownerOutput, mainFile)) {
+            Files.copy(ownerOutput, Paths.get(getWorkingFilePath()),
+                    StandardCopyOption.REPLACE_EXISTING);
+            finishOutputFile();
+        }
+
+        long size = Files.size(mainFile);
+        return new DownloadResult(getMainFilePath(), size, -1,
+                Duration.between(start, Instant.now()), progress.getFirstByteTime());
+    }
+
+    /**
+     * Publish the state of this download for the other downloads of its
+     * URL. Nothing is published after the final state.
+     *
+     * @param state The download's state.
+     */
+    private synchronized void publishStatus(DownloadCoordinator.Status.State state) {
+        if (statusFinished)
+            return;
+        statusFinished = state != DownloadCoordinator.Status.State.DOWNLOADING;
+
+        long contentSize;
+        long downloadedSize;
+        synchronized (progress) {
+            contentSize = progress.getContentSize();
+            downloadedSize = progress.getDownloadedSize();
+        }
+
+        long[] partLayout = layout;
+        int parts = (partLayout == null) ? 0 : (int) partLayout[0];
+        long length = (partLayout == null) ? 0 : partLayout[1];
+        String outputPath = config.isUntar() ? config.getOutputDirectory()
+                : getMainFilePath();
+        boolean transformed = config.getDecompressor() != null || config.isUntar()
+                || contentDecoder != null;
+
         try {
-            result = checkURLValidity(downloadUrl);
-        } catch (ConnectException ex) {
-            printErrorMessage(ex);
+            coordinator.writeStatus(new DownloadCoordinator.Status(state, contentSize,
+                    downloadedSize, parts, length, outputPath, transformed));
+        } catch (IOException ex) {
+            // The waiters see the next status
         }
-        
+    }
+
+    /**
+     * Probe the URL, then download the file once the download is admitted.
+     *
+     * @return The result of the download.
+     * @throws Exception if the download failed.
+     */
+    private DownloadResult probeAndDownload() throws Exception {
+        // Create the URL object
+        URL originalUrl = new URL(config.getURL());
+        downloadUrl = originalUrl;
+
+        // Probe the URL, the probe's response is the first part's data. The
+        // host is resolved for the segments and the older file of a delta
+        // download is scanned in the meantime.
+        CompletableFuture<List<InetAddress>> addresses = resolveAddresses(originalUrl);
+        CompletableFuture<DeltaPlan> deltaScan = startDeltaScan();
+        CompletableFuture<Void> prewarm = startPrewarm(originalUrl);
+
+        // A file URL is copied from the local file system
+        if ("file".equalsIgnoreCase(originalUrl.getProtocol()))
+            sourceFile = Paths.get(originalUrl.toURI());
+        HttpResult result = (sourceFile != null) ? probeFile() : probe(downloadUrl);
+
         long contentSize = result.contentLength;
         int responseCode = result.responseCode;
+        serverRanges = result.rangesSupported || result.rangesAdvertised;
+
+        if (responseCode != HttpURLConnection.HTTP_OK
+                && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            closeProbeConnection();
 
-        if (contentSize == -1 || responseCode != 200) {
             String errMessage = "Error while checking URL validity!";
             errMessage += "\nResponse code: " + responseCode;
             errMessage += "\nContent size: " + contentSize;
-            printErrorMessage(new RuntimeException(errMessage));
-        }
-        
-        System.out.println("Response code: " + result.responseCode);
-        System.out.println("Fize size: "
-                + Utility.readableFileSize(result.contentLength));
-        System.out.println();
-        
+            throw new RuntimeException(errMessage);
+        }
+
+        // A compressed transfer is decoded in the extract stage, and its
+        // parts are ranges of the encoded file.
+        if (config.isCompressedTransfer() && result.contentEncoding != null) {
+            contentEncoding = result.contentEncoding;
+            contentDecoder = Decompressors.forName(contentEncoding);
+            if (contentDecoder == null) {
+                closeProbeConnection();
+                throw new RuntimeException("The server sent the file in an"
+                        + " unsupported encoding: " + contentEncoding);
+            }
+        }
+
+        // Split the file into parts only if it is not a small file, its size
+        // is known and the server serves byte ranges. Otherwise the probe's
+        // response is downloaded in a single stream, which also works for
+        // chunked responses. A server which ignored the probe's range but
+        // advertises ranges is asked once more with a ranged request before
+        // splitting.
+        boolean smallFile = contentSize != -1
+                && contentSize < config.getSmallFileThreshold();
+        rangesSupported = !smallFile && contentSize > 0 && (result.rangesSupported
+                || (result.rangesAdvertised && confirmRanges(contentSize)));
+        partsCount = rangesSupported
+                ? (int) Math.min(config.getPartsCount(), contentSize) : 1;
+        partLength = rangesSupported ? contentSize / partsCount : contentSize;
+
+        // The parts of a file with piece hashes end at piece boundaries, so
+        // that each piece is checked within its part.
+        Metalink metalink = config.getMetalink();
+        if (metalink != null)
+            checkMetalinkSize(metalink, contentSize);
+        if (rangesSupported && metalink != null && metalink.hasPieces()) {
+            int pieceCount = metalink.getPieceCount();
+            int piecesPerPart = (pieceCount + partsCount - 1) / partsCount;
+            partsCount = (pieceCount + piecesPerPart - 1) / piecesPerPart;
+            partLength = piecesPerPart * metalink.getPieceLength();
+        }
+
+        // Direct I/O writes the parts straight into the output file in
+        // aligned blocks, so the parts start at aligned positions.
+        directIo = rangesSupported && config.isDirectIo();
+        if (directIo) {
+            alignment = DirectFileWriter.getAlignment(
+                    Paths.get(config.getOutputDirectory()));
+            partLength = (partLength + alignment - 1) / alignment * alignment;
+            partsCount = (int) Math.min(partsCount,
+                    (contentSize + partLength - 1) / partLength);
+        }
+
+        // A delta download's parts are the ranges missing from the older file
+        if (deltaScan != null)
+            planDelta(deltaScan, contentSize);
+
+        // The part files are published for a download which takes this one
+        // over, which resumes them if it splits the file the same way.
+        if (rangesSupported && !directIo && partRanges == null) {
+            layout = new long[] {partsCount, partLength};
+
+            takeoverResume = takeoverStatus != null
+                    && takeoverStatus.getContentSize() == contentSize
+                    && takeoverStatus.getPartsCount() == partsCount
+                    && takeoverStatus.getPartLength() == partLength;
+        }
+
+        // Hand the segments to the range workers, if there are any. A local
+        // file is not theirs to read, and they ask for the file unencoded.
+        if (rangesSupported && sourceFile == null && contentDecoder == null
+                && !config.getWorkers().isEmpty())
+            rangeWorkers = new RangeWorkerPool(config.getWorkers(),
+                    config.getWorkerToken());
+
+        // Spread the segments over the host's addresses
+        if (partsCount > 1)
+            addressBalancer = createAddressBalancer(addresses, originalUrl);
+        else if (addresses != null)
+            addresses.cancel(false);
+
+        // Let the segments take the connections opened while probing
+        if (partsCount > 1 && prewarm != null)
+            awaitPrewarm(prewarm);
+
+        // Wait until the disks have room for the download. The probe's
+        // connection would go idle while waiting, so it is closed and the
+        // first part is requested again once the download is admitted.
+        Map<FileStore, Long> neededSpace = getNeededSpace(contentSize);
+        DiskSpaceAdmission admission = engine.getDiskSpaceAdmission();
+        try {
+            reservation = admission.tryAdmit(neededSpace);
+            if (reservation == null) {
+                closeProbeConnection();
+                reservation = admission.admit(this, neededSpace);
+            }
+        } catch (Exception ex) {
+            closeProbeConnection();
+            throw ex;
+        }
+
+        try {
+            return download(result);
+        } catch (Exception ex) {
+            // The output file keeps its previous content, if it had any
+            deleteWorkingFile();
+            throw ex;
+        } finally {
+            admission.release(reservation);
+        }
+    }
+
+    /**
+     * Download the file once it was probed and admitted.
+     *
+     * @param result The result of the probe.
+     * @return The result of the download.
+     * @throws Exception if the download failed.
+     */
+    private DownloadResult download(HttpResult result) throws Exception {
+        dispatcher.probeDone(result);
+
         // Start the threads to download.
         Instant start = Instant.now();
         progress.setStartDownloadTime(start);
         progress.setUrlVerifyResult(result);
-        
-        startDownloadThreads(partsCount);
-        
-        // Wait for the threads to finish downloading
-        while (downloadThreadsIsDone()) {}
-        
-        for (Future futureTask : futurePool) {
+
+        // Start the extract stage before the parts start being joined.
+        Decompressor decompressor = config.getDecompressor();
+        Future<Long> extractResult = null;
+        if (config.isUntar()) {
+            extractThread = new ExtractThread(contentDecoder, decompressor, true,
+                    Paths.get(config.getOutputDirectory()));
+        } else if (decompressor != null || contentDecoder != null) {
+            extractThread = new ExtractThread(contentDecoder, decompressor, false,
+                    Paths.get(getWorkingFilePath()));
+        }
+
+        if (extractThread != null)
+            extractResult = engine.getExtractPool().submit(extractThread);
+
+        // Give the output file its whole size up front, so that the parts
+        // are written at their positions in any order and the file is not
+        // grown piece by piece.
+        if (rangesSupported && extractThread == null) {
+            try (RandomAccessFile mainFile = new RandomAccessFile(getWorkingFilePath(), "rw")) {
+                mainFile.setLength(result.contentLength);
+            } catch (IOException ex) {
+                closeProbeConnection();
+                throw ex;
+            }
+        }
+
+        // Copy the blocks of a delta download found in the older file. The
+        // probe's response only serves as the first part if that part starts
+        // at the beginning of the file.
+        if (deltaPlan != null) {
+            if (partsCount == 0 || getPartStart(1) != 0)
+                closeProbeConnection();
+
+            try {
+                deltaPlan.copyMatchedBlocks(Paths.get(getWorkingFilePath()));
+            } catch (IOException ex) {
+                closeProbeConnection();
+                throw ex;
+            }
+            updateProgress(deltaPlan.getMatchedSize(), 0);
+        }
+
+        // Wait for the threads to finish downloading and joining, or
+        // download the single stream on this thread
+        try {
+            if (rangesSupported)
+                startDownloadThreads().get();
+            else
+                downloadSingleStream();
+        } catch (ExecutionException ex) {
+            closeProbeConnection();
+            cancel();
+            if (extractResult != null)
+                extractResult.cancel(true);
+            throw unwrap(ex);
+        } catch (Exception ex) {
+            closeProbeConnection();
+            cancel();
+            if (extractResult != null)
+                extractResult.cancel(true);
+            throw ex;
+        }
+
+        // Wait for the extract stage to process the rest of the stream
+        long extractedSize = -1;
+        if (extractThread != null) {
             try {
-                futureTask.get();
+                extractThread.finish();
+                extractedSize = extractResult.get();
             } catch (ExecutionException ex) {
-                Throwable exception = ex.getCause();
-                printErrorMessage((Exception) exception);
-            } catch (InterruptedException ex) {
-                printErrorMessage(ex);
+                throw new RuntimeException("Error while extracting the "
+                        + "download: " + ex.getCause().getMessage(), ex.getCause());
             }
         }
-        
-        downloadThreadsPool.shutdown();
-        
+
+        // Cut the padding of the last direct I/O write
+        if (directIo) {
+            try (FileChannel mainFile = FileChannel.open(
+                    Paths.get(getWorkingFilePath()), StandardOpenOption.WRITE)) {
+                mainFile.truncate(result.contentLength);
+            }
+        }
+
         // Delete the part files
         deletePartFiles();
+        verifyFileHash();
+        finishOutputFile();
+
+        String outputPath = config.isUntar() ? config.getOutputDirectory()
+                : getMainFilePath();
+        return new DownloadResult(outputPath, progress.getDownloadedSize(),
+                extractedSize, Duration.between(start, Instant.now()),
+                progress.getFirstByteTime(), handshakeTimer.getHandshakeCount(),
+                handshakeTimer.getResumedCount(), handshakeTimer.getHandshakeTime(),
+                partsCount, serverRanges, retryCount.get(), probeTime);
+    }
+
+    /**
+     * Get the exception which made a download or join stage fail.
+     */
+    private static Exception unwrap(ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        while (cause instanceof CompletionException && cause.getCause() != null)
+            cause = cause.getCause();
+
+        if (cause instanceof Exception)
+            return (Exception) cause;
 
-        // Notify that all parts have finished downloading        
-        Instant downloadFinish = Instant.now();
-        double downloadTime = ((double) (Duration.between(start,
-                downloadFinish).toMillis())) / 1000;
-        System.out.println("\n\nTotal download time: " + downloadTime);
-        
-        // Print the current time
-        dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
-        date = new Date();
-        System.out.println("Finished downloading!");
-        System.out.println("\n--- " + dateFormat.format(date) + " ---");
+        return ex;
     }
 
 }
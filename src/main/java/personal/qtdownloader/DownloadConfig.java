@@ -0,0 +1,622 @@
+/**
+ * Class: DownloadConfig.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The immutable configuration of a single download. Instances are created
+ * with a {@link Builder}:
+ *
+ * <pre>
+ * DownloadConfig config = new DownloadConfig.Builder(url)
+ *         .outputDirectory("/data/")
+ *         .partsCount(4)
+ *         .build();
+ * </pre>
+ *
+ * @author quan
+ */
+public final class DownloadConfig {
+
+    public static final int DEFAULT_PARTS_COUNT = 8;
+    public static final int DEFAULT_BUFFER_SIZE = (int) Math.pow(2, 13); // 8KB
+    public static final long DEFAULT_SMALL_FILE_THRESHOLD = (long) Math.pow(2, 20); // 1MB
+    public static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 200;
+
+    private final String url;
+    private final String outputDirectory;
+    private final String fileName;
+    private final String username;
+    private final String password;
+    private final int partsCount;
+    private final int bufferSize;
+    private final long smallFileThreshold;
+    private final boolean partsCountSet;
+    private final boolean bufferSizeSet;
+    private final boolean smallFileThresholdSet;
+    private final long progressIntervalMillis;
+    private final String tempDirectory;
+    private final boolean resume;
+    private final boolean decompress;
+    private final boolean extract;
+    private final boolean compressedTransfer;
+    private final Metalink metalink;
+    private final String deltaBase;
+    private final BlockSums blockSums;
+    private final DurabilityPolicy durability;
+    private final boolean directIo;
+    private final List<String> workers;
+    private final String workerToken;
+
+    private DownloadConfig(Builder builder) {
+        this.url = builder.url;
+        this.outputDirectory = builder.outputDirectory;
+        this.fileName = builder.fileName;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.partsCount = builder.partsCount;
+        this.bufferSize = builder.bufferSize;
+        this.smallFileThreshold = builder.smallFileThreshold;
+        this.partsCountSet = builder.partsCountSet;
+        this.bufferSizeSet = builder.bufferSizeSet;
+        this.smallFileThresholdSet = builder.smallFileThresholdSet;
+        this.progressIntervalMillis = builder.progressIntervalMillis;
+        this.tempDirectory = builder.tempDirectory;
+        this.resume = builder.resume;
+        this.decompress = builder.decompress;
+        this.extract = builder.extract;
+        this.compressedTransfer = builder.compressedTransfer;
+        this.metalink = builder.metalink;
+        this.deltaBase = builder.deltaBase;
+        this.blockSums = builder.blockSums;
+        this.durability = builder.durability;
+        this.directIo = builder.directIo;
+        this.workers = Collections.unmodifiableList(new ArrayList<>(builder.workers));
+        this.workerToken = builder.workerToken;
+    }
+
+    /**
+     * Create a builder initialized with the values of this configuration.
+     *
+     * @return The builder.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder(url);
+        builder.outputDirectory = outputDirectory;
+        builder.fileName = fileName;
+        builder.username = username;
+        builder.password = password;
+        builder.partsCount = partsCount;
+        builder.bufferSize = bufferSize;
+        builder.smallFileThreshold = smallFileThreshold;
+        builder.partsCountSet = partsCountSet;
+        builder.bufferSizeSet = bufferSizeSet;
+        builder.smallFileThresholdSet = smallFileThresholdSet;
+        builder.progressIntervalMillis = progressIntervalMillis;
+        builder.tempDirectory = tempDirectory;
+        builder.resume = resume;
+        builder.decompress = decompress;
+        builder.extract = extract;
+        builder.compressedTransfer = compressedTransfer;
+        builder.metalink = metalink;
+        builder.deltaBase = deltaBase;
+        builder.blockSums = blockSums;
+        builder.durability = durability;
+        builder.directIo = directIo;
+        builder.workers = new ArrayList<>(workers);
+        builder.workerToken = workerToken;
+
+        return builder;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * Get the output directory, always ending with a separator.
+     *
+     * @return The output directory.
+     */
+    public String getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * Get the name of the file as it is on the server.
+     *
+     * @return The original file name.
+     */
+    public String getOriginalFileName() {
+        if (metalink != null)
+            return metalink.getName();
+
+        return new File(url).getName();
+    }
+
+    /**
+     * Get the output file's name: the name given by the user, or the
+     * original file name, without the compression extension if the file is
+     * decompressed.
+     *
+     * @return The output file's name.
+     */
+    public String getFileName() {
+        if (fileName != null)
+            return fileName;
+
+        Decompressor decompressor = getDecompressor();
+        if (decompressor != null)
+            return decompressor.stripExtension(getOriginalFileName());
+
+        return getOriginalFileName();
+    }
+
+    /**
+     * Get the output file's path.
+     *
+     * @return The output file's path.
+     */
+    public String getMainFilePath() {
+        return outputDirectory + getFileName();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Get the value of the Authorization header for the credentials.
+     *
+     * @return The header's value, or null if there are no credentials.
+     */
+    public String getAuthorization() {
+        if (username == null || password == null)
+            return null;
+
+        String credentials = username + ":" + password;
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes());
+    }
+
+    public int getPartsCount() {
+        return partsCount;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the size below which a file is downloaded in a single request
+     * straight into the output file, without part files.
+     *
+     * @return The small file threshold in bytes.
+     */
+    public long getSmallFileThreshold() {
+        return smallFileThreshold;
+    }
+
+    /**
+     * Check if the number of parts was given to the builder, rather than
+     * left at its default, which a host profile may tune.
+     *
+     * @return True if the number of parts was given.
+     */
+    public boolean isPartsCountSet() {
+        return partsCountSet;
+    }
+
+    /**
+     * Check if the buffer size was given to the builder, rather than left
+     * at its default.
+     *
+     * @return True if the buffer size was given.
+     */
+    public boolean isBufferSizeSet() {
+        return bufferSizeSet;
+    }
+
+    /**
+     * Check if the small file threshold was given to the builder, rather
+     * than left at its default.
+     *
+     * @return True if the small file threshold was given.
+     */
+    public boolean isSmallFileThresholdSet() {
+        return smallFileThresholdSet;
+    }
+
+    /**
+     * Get the interval at which the progress events are delivered to the
+     * handlers.
+     *
+     * @return The progress interval in milliseconds.
+     */
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    /**
+     * Get the directory the part files are written to, always ending with
+     * a separator.
+     *
+     * @return The temporary directory.
+     */
+    public String getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public boolean isDecompress() {
+        return decompress;
+    }
+
+    public boolean isExtract() {
+        return extract;
+    }
+
+    /**
+     * Check if the server is asked to send the file gzip encoded, to be
+     * decoded while it is written.
+     *
+     * @return True if a compressed transfer is asked for.
+     */
+    public boolean isCompressedTransfer() {
+        return compressedTransfer;
+    }
+
+    /**
+     * Get the Metalink document describing the file.
+     *
+     * @return The document, or null if the file is downloaded from its URL
+     * alone.
+     */
+    public Metalink getMetalink() {
+        return metalink;
+    }
+
+    /**
+     * Get the older local version of the file which the download is a
+     * delta against.
+     *
+     * @return The older file's path, or null if the whole file is
+     * downloaded.
+     */
+    public String getDeltaBase() {
+        return deltaBase;
+    }
+
+    /**
+     * Get the block checksums of the file for a delta download.
+     *
+     * @return The block checksums, or null if the whole file is downloaded.
+     */
+    public BlockSums getBlockSums() {
+        return blockSums;
+    }
+
+    /**
+     * Get when the downloaded data is forced to the disk.
+     *
+     * @return The durability policy.
+     */
+    public DurabilityPolicy getDurability() {
+        return durability;
+    }
+
+    /**
+     * Check if the parts are written straight into the output file with
+     * direct I/O, bypassing the page cache.
+     *
+     * @return True if the writes bypass the page cache.
+     */
+    public boolean isDirectIo() {
+        return directIo;
+    }
+
+    /**
+     * Get the range workers the segments are handed to.
+     *
+     * @return The workers' "host:port" addresses, empty if the segments
+     * are downloaded by this process.
+     */
+    public List<String> getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Get the token the range workers expect.
+     *
+     * @return The token, or null if there are no workers.
+     */
+    public String getWorkerToken() {
+        return workerToken;
+    }
+
+    /**
+     * Get the decompressor to apply to the downloaded stream.
+     *
+     * @return The decompressor, or null if the stream is written as it is.
+     */
+    public Decompressor getDecompressor() {
+        if (!decompress && !extract)
+            return null;
+
+        return Decompressors.forFileName(getOriginalFileName());
+    }
+
+    /**
+     * Check if the downloaded stream is unpacked as a tar archive into the
+     * output directory, in which case no main file is written.
+     *
+     * @return True if the stream is unpacked.
+     */
+    public boolean isUntar() {
+        if (!extract)
+            return false;
+
+        Decompressor decompressor = getDecompressor();
+        String name = (decompressor == null) ? getOriginalFileName()
+                : decompressor.stripExtension(getOriginalFileName());
+
+        return name.toLowerCase().endsWith(".tar");
+    }
+
+    /**
+     * Builder for {@link DownloadConfig}.
+     */
+    public static final class Builder {
+
+        private final String url;
+        private String outputDirectory;
+        private String fileName;
+        private String username;
+        private String password;
+        private int partsCount;
+        private int bufferSize;
+        private long smallFileThreshold;
+        private boolean partsCountSet;
+        private boolean bufferSizeSet;
+        private boolean smallFileThresholdSet;
+        private long progressIntervalMillis;
+        private String tempDirectory;
+        private boolean resume;
+        private boolean decompress;
+        private boolean extract;
+        private boolean compressedTransfer;
+        private Metalink metalink;
+        private String deltaBase;
+        private BlockSums blockSums;
+        private DurabilityPolicy durability;
+        private boolean directIo;
+        private List<String> workers;
+        private String workerToken;
+
+        /**
+         * Create a builder for downloading from the given URL.
+         *
+         * @param url The download URL.
+         */
+        public Builder(String url) {
+            if (url == null)
+                throw new IllegalArgumentException("The URL must not be null");
+
+            this.url = url;
+            this.outputDirectory = "./";
+            this.fileName = null;
+            this.partsCount = DEFAULT_PARTS_COUNT;
+            this.bufferSize = DEFAULT_BUFFER_SIZE;
+            this.smallFileThreshold = DEFAULT_SMALL_FILE_THRESHOLD;
+            this.partsCountSet = false;
+            this.bufferSizeSet = false;
+            this.smallFileThresholdSet = false;
+            this.progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+            this.tempDirectory = withSeparator(System.getProperty("java.io.tmpdir"));
+            this.resume = false;
+            this.compressedTransfer = false;
+            this.metalink = null;
+            this.deltaBase = null;
+            this.blockSums = null;
+            this.durability = DurabilityPolicy.ON_COMPLETION;
+            this.directIo = false;
+            this.workers = new ArrayList<>();
+            this.workerToken = null;
+        }
+
+        /**
+         * Create a builder for downloading the file described by the given
+         * Metalink document, from its first URL.
+         *
+         * @param metalink The Metalink document.
+         */
+        public Builder(Metalink metalink) {
+            this(metalink.getUrls().get(0));
+            this.metalink = metalink;
+        }
+
+        public Builder outputDirectory(String outputDirectory) {
+            this.outputDirectory = withSeparator(outputDirectory);
+            return this;
+        }
+
+        public Builder fileName(String fileName) {
+            this.fileName = fileName;
+            return this;
+        }
+
+        public Builder credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        public Builder partsCount(int partsCount) {
+            if (partsCount < 1)
+                throw new IllegalArgumentException("Invalid parts count: " + partsCount);
+
+            this.partsCount = partsCount;
+            this.partsCountSet = true;
+            return this;
+        }
+
+        public Builder bufferSize(int bufferSize) {
+            if (bufferSize < 1)
+                throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+
+            this.bufferSize = bufferSize;
+            this.bufferSizeSet = true;
+            return this;
+        }
+
+        public Builder smallFileThreshold(long smallFileThreshold) {
+            if (smallFileThreshold < 0)
+                throw new IllegalArgumentException("Invalid small file threshold: "
+                        + smallFileThreshold);
+
+            this.smallFileThreshold = smallFileThreshold;
+            this.smallFileThresholdSet = true;
+            return this;
+        }
+
+        public Builder progressIntervalMillis(long progressIntervalMillis) {
+            if (progressIntervalMillis < 1)
+                throw new IllegalArgumentException("Invalid progress interval: "
+                        + progressIntervalMillis);
+
+            this.progressIntervalMillis = progressIntervalMillis;
+            return this;
+        }
+
+        public Builder tempDirectory(String tempDirectory) {
+            this.tempDirectory = withSeparator(tempDirectory);
+            return this;
+        }
+
+        public Builder resume(boolean resume) {
+            this.resume = resume;
+            return this;
+        }
+
+        public Builder decompress(boolean decompress) {
+            this.decompress = decompress;
+            return this;
+        }
+
+        public Builder extract(boolean extract) {
+            this.extract = extract;
+            return this;
+        }
+
+        /**
+         * Ask the server to send the file gzip encoded and decode it while
+         * it is written, which saves most of the transfer of text files. A
+         * server which gives the encoded length and serves its ranges still
+         * has the encoded file downloaded in parts. The encoded bytes have
+         * no hashes to check, so a compressed transfer cannot use a
+         * Metalink file, be a delta download or use direct I/O.
+         *
+         * @param compressedTransfer True to ask for a compressed transfer.
+         * @return This builder.
+         */
+        public Builder compressedTransfer(boolean compressedTransfer) {
+            this.compressedTransfer = compressedTransfer;
+            return this;
+        }
+
+        /**
+         * Download only the blocks of the file which are not found in the
+         * given older version of it.
+         *
+         * @param deltaBase The older local version of the file.
+         * @param blockSums The block checksums of the file.
+         * @return This builder.
+         */
+        public Builder delta(String deltaBase, BlockSums blockSums) {
+            this.deltaBase = deltaBase;
+            this.blockSums = blockSums;
+            return this;
+        }
+
+        public Builder durability(DurabilityPolicy durability) {
+            if (durability == null)
+                throw new IllegalArgumentException("The durability policy must not be null");
+
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * Write the parts straight into the output file with direct I/O,
+         * so that a very large download does not evict the page cache of
+         * the other programs. Where direct I/O is not available the writes
+         * go through the page cache and are forced to the disk regularly.
+         *
+         * @param directIo True to bypass the page cache.
+         * @return This builder.
+         */
+        public Builder directIo(boolean directIo) {
+            this.directIo = directIo;
+            return this;
+        }
+
+        /**
+         * Hand the segments to the given range workers on other nodes,
+         * which download them and stream them back.
+         *
+         * @param workers The workers' "host:port" addresses.
+         * @param workerToken The token the workers expect.
+         * @return This builder.
+         * @see RangeWorker
+         */
+        public Builder workers(List<String> workers, String workerToken) {
+            for (String worker : workers)
+                RangeWorkerPool.parseAddress(worker);
+
+            this.workers = new ArrayList<>(workers);
+            this.workerToken = workerToken;
+            return this;
+        }
+
+        public DownloadConfig build() {
+            if (blockSums != null && (decompress || extract || metalink != null))
+                throw new IllegalArgumentException("A delta download cannot be"
+                        + " extracted or use a Metalink file");
+            if (directIo && (decompress || extract || metalink != null || blockSums != null))
+                throw new IllegalArgumentException("A download with direct I/O cannot"
+                        + " be extracted, use a Metalink file or be a delta download");
+            if (directIo && resume)
+                throw new IllegalArgumentException("A download with direct I/O cannot"
+                        + " be resumed");
+            if (compressedTransfer && (metalink != null || blockSums != null || directIo))
+                throw new IllegalArgumentException("A compressed transfer cannot use"
+                        + " a Metalink file, be a delta download or use direct I/O");
+            if (!workers.isEmpty() && (workerToken == null || workerToken.isEmpty()))
+                throw new IllegalArgumentException("The range workers need a token");
+
+            return new DownloadConfig(this);
+        }
+
+        private static String withSeparator(String directory) {
+            if (directory.endsWith("/") || directory.endsWith(File.separator))
+                return directory;
+
+            return directory + File.separator;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * Class: DownloadCoordinator.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes sure that only one download of a URL runs at a time, across all the
+ * processes sharing the temporary directory. The downloads of a URL share a
+ * lock file in the temporary directory, named after the hash of the
+ * normalized URL. The download holding the lock owns the download and
+ * publishes its progress in a status file next to the lock, which the other
+ * downloads of the URL follow until they can take the lock themselves.
+ *
+ * The lock is released by the operating system when its owner dies, so a
+ * waiter which gets the lock while the status still says that the file is
+ * downloading knows that the owner died and takes the download over.
+ *
+ * Closing any channel of a file may release all the locks the process holds
+ * on it, so the downloads of a URL in the same process are kept apart
+ * without the lock file, which only the owner opens.
+ *
+ * The waiters touch a waiting file next to the lock while they wait. An
+ * owner which gives up the download while nobody is waiting deletes the
+ * files of the URL, so that they do not pile up in the temporary directory.
+ * The lock file is marked as stale before it is deleted, so that a waiter
+ * which locked it after that knows to open the new one.
+ *
+ * @author quan
+ */
+public class DownloadCoordinator implements AutoCloseable {
+
+    public static final String LOCK_EXTENSION = ".lock";
+    public static final String STATUS_EXTENSION = ".status";
+    public static final String WAITING_EXTENSION = ".waiting";
+
+    /**
+     * How often the waiters touch the waiting file, at most.
+     */
+    public static final long WAITING_TOUCH_MILLIS = 1000;
+    private static final long WAITER_TIMEOUT_MILLIS = 5 * WAITING_TOUCH_MILLIS;
+
+    private static final Set<Path> OWNED_LOCK_FILES = ConcurrentHashMap.newKeySet();
+
+    private final String key;
+    private final Path lockFile;
+    private final Path statusFile;
+    private final Path waitingFile;
+    private FileChannel channel;
+    private FileLock lock;
+    private long lastWaitingTouch;
+
+    /**
+     * Create the coordinator of the downloads of the given URL.
+     *
+     * @param tempDirectory The temporary directory, ending with a separator.
+     * @param url The download URL.
+     */
+    public DownloadCoordinator(String tempDirectory, String url) {
+        this.key = getKey(url);
+        this.lockFile = Paths.get(tempDirectory + ".qtdownloader-" + key
+                + LOCK_EXTENSION).toAbsolutePath();
+        this.statusFile = Paths.get(tempDirectory + ".qtdownloader-" + key
+                + STATUS_EXTENSION);
+        this.waitingFile = Paths.get(tempDirectory + ".qtdownloader-" + key
+                + WAITING_EXTENSION);
+        this.channel = null;
+        this.lock = null;
+        this.lastWaitingTouch = -1;
+    }
+
+    /**
+     * Normalize the given URL, so that the spellings of the same URL share
+     * their downloads: the scheme and the host are lower cased, the default
+     * port and the fragment are left out, and an empty path becomes "/".
+     *
+     * @param url The URL.
+     * @return The normalized URL, or the URL itself if it cannot be parsed.
+     */
+    public static String normalizeUrl(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getScheme() == null || uri.getHost() == null)
+                return url;
+
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if ((scheme.equals("http") && port == 80)
+                    || (scheme.equals("https") && port == 443))
+                port = -1;
+
+            String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty())
+                    ? "/" : uri.getRawPath();
+            String query = (uri.getRawQuery() == null) ? "" : "?" + uri.getRawQuery();
+
+            return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT)
+                    + ((port == -1) ? "" : ":" + port) + path + query;
+        } catch (URISyntaxException ex) {
+            return url;
+        }
+    }
+
+    /**
+     * Get the key the files of the downloads of the given URL are named
+     * after: the start of the SHA-1 hash of the normalized URL.
+     *
+     * @param url The URL.
+     * @return The key, 16 hexadecimal digits.
+     */
+    public static String getKey(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(normalizeUrl(url).getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++)
+                hex.append(String.format("%02x", hash[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Get the key of the URL, see {@link #getKey(String)}.
+     *
+     * @return The key.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Try to become the owner of the URL's download. Never blocks.
+     *
+     * @return True if this download owns the URL's download now.
+     * @throws IOException if the lock file cannot be opened.
+     */
+    public boolean tryAcquire() throws IOException {
+        if (lock != null)
+            return true;
+
+        // Another download in this process owns it
+        if (!OWNED_LOCK_FILES.add(lockFile))
+            return false;
+
+        try {
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            lock = channel.tryLock();
+
+            // Locked after the last owner deleted it, the file at the lock
+            // file's path is another one now
+            if (lock != null && channel.size() > 0) {
+                lock.release();
+                lock = null;
+            }
+        } finally {
+            if (lock == null) {
+                if (channel != null)
+                    channel.close();
+                channel = null;
+                OWNED_LOCK_FILES.remove(lockFile);
+            }
+        }
+
+        return lock != null;
+    }
+
+    /**
+     * Tell the owner of the URL's download that this download waits for it.
+     * Called by the waiters at least every {@link #WAITING_TOUCH_MILLIS}.
+     *
+     * @throws IOException if the waiting file cannot be touched.
+     */
+    public void markWaiting() throws IOException {
+        try {
+            Files.createFile(waitingFile);
+        } catch (FileAlreadyExistsException ex) {
+            // Touched by the other waiters too
+        }
+
+        Files.setLastModifiedTime(waitingFile, FileTime.fromMillis(System.currentTimeMillis()));
+        lastWaitingTouch = Files.getLastModifiedTime(waitingFile).toMillis();
+    }
+
+    /**
+     * Check if other downloads of the URL wait for this one.
+     *
+     * @return True if another download touched the waiting file recently.
+     */
+    public boolean hasWaiters() {
+        try {
+            long touched = Files.getLastModifiedTime(waitingFile).toMillis();
+            return touched != lastWaitingTouch
+                    && touched >= System.currentTimeMillis() - WAITER_TIMEOUT_MILLIS;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the status published by the owner of the URL's download.
+     *
+     * @return The status, or null if no download of the URL published one.
+     * @throws IOException if the status file cannot be read.
+     */
+    public Status readStatus() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(statusFile)) {
+            properties.load(in);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+
+        try {
+            return Status.fromProperties(properties);
+        } catch (IllegalArgumentException ex) {
+            // Written by another version
+            return null;
+        }
+    }
+
+    /**
+     * Publish the status of the URL's download. Only the owner may publish.
+     * The status file is replaced in one atomic rename, so that the waiters
+     * never read it half written.
+     *
+     * @param status The status.
+     * @throws IOException if the status file cannot be written.
+     */
+    public void writeStatus(Status status) throws IOException {
+        if (lock == null)
+            throw new IllegalStateException("Only the owner publishes the status");
+
+        Path tempFile = Paths.get(statusFile + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            status.toProperties().store(out, null);
+        }
+
+        try {
+            Files.move(tempFile, statusFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tempFile, statusFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Give up the URL's download, letting the next waiter own it. If no
+     * other download waits for it, the files of the URL are deleted.
+     *
+     * @throws IOException if the lock file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lock == null)
+            return;
+
+        try {
+            if (!hasWaiters()) {
+                Files.deleteIfExists(statusFile);
+                Files.deleteIfExists(waitingFile);
+                channel.write(ByteBuffer.wrap(new byte[] {1}), 0);
+                Files.deleteIfExists(lockFile);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private void release() throws IOException {
+        try {
+            lock.release();
+            channel.close();
+        } finally {
+            lock = null;
+            channel = null;
+            OWNED_LOCK_FILES.remove(lockFile);
+        }
+    }
+
+    /**
+     * The state of a URL's download, as published by its owner.
+     */
+    public static class Status {
+
+        /**
+         * The states of a download.
+         */
+        public enum State {
+            DOWNLOADING,
+            COMPLETED,
+            FAILED
+        }
+
+        private final State state;
+        private final long contentSize;
+        private final long downloadedSize;
+        private final int partsCount;
+        private final long partLength;
+        private final String outputPath;
+        private final boolean transformed;
+
+        /**
+         * Create a status.
+         *
+         * @param state The download's state.
+         * @param contentSize The file's size, or -1 if it is not known yet.
+         * @param downloadedSize The size downloaded so far.
+         * @param partsCount The number of part files, or 0 if the file is
+         * not downloaded into part files.
+         * @param partLength The length of the parts but the last.
+         * @param outputPath The output file's path.
+         * @param transformed True if the output is decompressed or
+         * unpacked, and is not the file itself.
+         */
+        public Status(State state, long contentSize, long downloadedSize,
+                int partsCount, long partLength, String outputPath,
+                boolean transformed) {
+            this.state = state;
+            this.contentSize = contentSize;
+            this.downloadedSize = downloadedSize;
+            this.partsCount = partsCount;
+            this.partLength = partLength;
+            this.outputPath = outputPath;
+            this.transformed = transformed;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getContentSize() {
+            return contentSize;
+        }
+
+        public long getDownloadedSize() {
+            return downloadedSize;
+        }
+
+        public int getPartsCount() {
+            return partsCount;
+        }
+
+        public long getPartLength() {
+            return partLength;
+        }
+
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        public boolean isTransformed() {
+            return transformed;
+        }
+
+        private Properties toProperties() {
+            Properties properties = new Properties();
+            properties.setProperty("state", state.name());
+            properties.setProperty("contentSize", String.valueOf(contentSize));
+            properties.setProperty("downloadedSize", String.valueOf(downloadedSize));
+            properties.setProperty("partsCount", String.valueOf(partsCount));
+            properties.setProperty("partLength", String.valueOf(partLength));
+            properties.setProperty("outputPath", outputPath);
+            properties.setProperty("transformed", String.valueOf(transformed));
+            return properties;
+        }
+
+        private static Status fromProperties(Properties properties) {
+            String state = properties.getProperty("state");
+            String outputPath = properties.getProperty("outputPath");
+            if (state == null || outputPath == null)
+                throw new IllegalArgumentException("Incomplete status");
+
+            return new Status(State.valueOf(state),
+                    Long.parseLong(properties.getProperty("contentSize")),
+                    Long.parseLong(properties.getProperty("downloadedSize")),
+                    Integer.parseInt(properties.getProperty("partsCount")),
+                    Long.parseLong(properties.getProperty("partLength")),
+                    outputPath,
+                    Boolean.parseBoolean(properties.getProperty("transformed")));
+        }
+    }
+}
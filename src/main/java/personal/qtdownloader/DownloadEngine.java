@@ -0,0 +1,321 @@
+/**
+ * Class: DownloadEngine.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * The entry point for using QTDownloader as a library. An engine owns the
+ * thread pools shared by all of its downloads, so many downloads can run
+ * concurrently in one JVM:
+ *
+ * <pre>
+ * try (DownloadEngine engine = new DownloadEngine()) {
+ *     DownloadResult result = engine.submit(config).get();
+ * }
+ * </pre>
+ *
+ * @author quan
+ */
+public class DownloadEngine implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_SEGMENT_THREADS = 64;
+    public static final int TLS_SESSION_CACHE_SIZE = 1000;
+    public static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    /**
+     * How long closing the engine waits for the last profile updates.
+     */
+    private static final long PROFILE_UPDATE_WAIT_MILLIS = 5000;
+
+    private final ExecutorService downloadPool;
+    private final ExecutorService segmentPool;
+    private final ExecutorService joinPool;
+    private final ExecutorService extractPool;
+    private final ExecutorService profilePool;
+    private final DiskSpaceAdmission diskSpaceAdmission;
+    private final DiskWriter diskWriter;
+    private final AlignedBufferPool alignedBufferPool;
+    private final ScheduledExecutorService eventScheduler;
+    private final DnsCache dnsCache;
+    private final SSLContext sslContext;
+    private volatile SessionStore profileStore;
+
+    /**
+     * Create an engine with the default number of segment threads.
+     */
+    public DownloadEngine() {
+        this(DEFAULT_MAX_SEGMENT_THREADS);
+    }
+
+    /**
+     * Create an engine.
+     *
+     * @param maxSegmentThreads The maximum number of parts downloading at the
+     * same time across all downloads.
+     */
+    public DownloadEngine(int maxSegmentThreads) {
+        this(maxSegmentThreads, new DnsCache());
+    }
+
+    /**
+     * Create an engine which resolves the hosts with the given resolver.
+     *
+     * @param maxSegmentThreads The maximum number of parts downloading at the
+     * same time across all downloads.
+     * @param resolver The resolver of the hosts to download from.
+     */
+    public DownloadEngine(int maxSegmentThreads, HostResolver resolver) {
+        this(maxSegmentThreads, resolver, createSslContext());
+    }
+
+    /**
+     * Create an engine which resolves the hosts with the given resolver and
+     * makes its HTTPS connections with the given SSL context, for example
+     * one which trusts a private certificate authority.
+     *
+     * @param maxSegmentThreads The maximum number of parts downloading at the
+     * same time across all downloads.
+     * @param resolver The resolver of the hosts to download from.
+     * @param sslContext The SSL context shared by all downloads.
+     */
+    public DownloadEngine(int maxSegmentThreads, HostResolver resolver,
+            SSLContext sslContext) {
+        this(maxSegmentThreads, new DnsCache(resolver, DnsCache.getDefaultTtlMillis()),
+                sslContext);
+    }
+
+    private DownloadEngine(int maxSegmentThreads, DnsCache dnsCache) {
+        this(maxSegmentThreads, dnsCache, createSslContext());
+    }
+
+    private DownloadEngine(int maxSegmentThreads, DnsCache dnsCache,
+            SSLContext sslContext) {
+        this.dnsCache = dnsCache;
+        this.sslContext = sslContext;
+        downloadPool = Executors.newCachedThreadPool(threadFactory("download"));
+        segmentPool = Executors.newFixedThreadPool(maxSegmentThreads,
+                threadFactory("segment"));
+        joinPool = Executors.newCachedThreadPool(threadFactory("join"));
+        extractPool = Executors.newCachedThreadPool(threadFactory("extract"));
+        profilePool = Executors.newSingleThreadExecutor(threadFactory("profile"));
+        diskSpaceAdmission = new DiskSpaceAdmission();
+        diskWriter = new DiskWriter(DiskWriter.DEFAULT_WRITER_THREADS,
+                threadFactory("writer"));
+        alignedBufferPool = new AlignedBufferPool(maxSegmentThreads);
+        eventScheduler = Executors.newSingleThreadScheduledExecutor(
+                threadFactory("events"));
+    }
+
+    /**
+     * Start downloading with the given configuration.
+     *
+     * @param config The download's configuration.
+     * @param handlers The handlers to notify of the download's progress.
+     * @return The future result of the download. Cancelling it stops the
+     * download.
+     */
+    public CompletableFuture<DownloadResult> submit(DownloadConfig config,
+            ProgressHandler... handlers) {
+        SessionStore profiles = profileStore;
+        List<ProgressHandler> handlerList = Arrays.asList(handlers);
+        CompletableFuture<DownloadResult> result = new CompletableFuture<>();
+        AtomicReference<Download> running = new AtomicReference<>();
+
+        downloadPool.execute(() -> {
+            if (result.isDone())
+                return;
+
+            // The profile is looked up on the download's thread, as the
+            // database may still be opening or busy with another download
+            String host = (profiles != null) ? HostProfile.hostOf(config.getURL()) : null;
+            DownloadConfig tuned = config;
+            if (host != null) {
+                try {
+                    tuned = profiles.findProfile(host).tune(config);
+                } catch (RuntimeException ex) {
+                    // The download goes on untuned
+                }
+            }
+
+            DownloadResult downloadResult;
+            try {
+                Download download = new Download(tuned, this, handlerList);
+                running.set(download);
+                if (result.isCancelled())
+                    download.cancel();
+
+                downloadResult = download.call();
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+
+                // Only the network failing says something about the host
+                if (host != null && ex instanceof IOException && !result.isCancelled())
+                    learn(profiles, host, tuned, null);
+                return;
+            }
+
+            result.complete(downloadResult);
+            if (host != null)
+                learn(profiles, host, tuned, downloadResult);
+        });
+
+        result.whenComplete((downloadResult, ex) -> {
+            Download download = running.get();
+            if (result.isCancelled() && download != null)
+                download.cancel();
+        });
+
+        return result;
+    }
+
+    /**
+     * Learn from the downloads of the engine, in per-host profiles kept in
+     * the given session database. The downloads from a known host start
+     * with the number of parts, buffer size and small file threshold its
+     * profile suggests, in place of those left at their defaults.
+     *
+     * @param profileStore The session database, or null to stop tuning.
+     */
+    public void setProfileStore(SessionStore profileStore) {
+        this.profileStore = profileStore;
+    }
+
+    /**
+     * Update the profile of the given host with a download's result, or
+     * with its failure if there is no result. The update runs after the
+     * download was completed, on a thread of its own, so that the profile
+     * store failing does not change the download's outcome.
+     */
+    private void learn(SessionStore profiles, String host, DownloadConfig config,
+            DownloadResult downloadResult) {
+        try {
+            profilePool.execute(() -> {
+                // Concurrent downloads from the host must not lose each
+                // other's update
+                synchronized (profiles) {
+                    try {
+                        HostProfile profile = profiles.findProfile(host);
+                        if (downloadResult != null)
+                            profile.update(config, downloadResult);
+                        else
+                            profile.failed();
+                        profiles.saveProfile(profile);
+                    } catch (RuntimeException ex) {
+                        // The profile keeps its earlier state
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // The engine was closed
+        }
+    }
+
+    ExecutorService getSegmentPool() {
+        return segmentPool;
+    }
+
+    ExecutorService getJoinPool() {
+        return joinPool;
+    }
+
+    ExecutorService getExtractPool() {
+        return extractPool;
+    }
+
+    DiskSpaceAdmission getDiskSpaceAdmission() {
+        return diskSpaceAdmission;
+    }
+
+    DiskWriter getDiskWriter() {
+        return diskWriter;
+    }
+
+    AlignedBufferPool getAlignedBufferPool() {
+        return alignedBufferPool;
+    }
+
+    ScheduledExecutorService getEventScheduler() {
+        return eventScheduler;
+    }
+
+    DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Create the SSL context of an engine. Its client session cache keeps
+     * the sessions of the servers downloaded from, which the later
+     * connections to them resume instead of doing a full handshake.
+     */
+    private static SSLContext createSslContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Cannot create the SSL context: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Shut down the engine's thread pools. Running downloads are interrupted,
+     * and the profile updates of the completed ones are waited for.
+     */
+    @Override
+    public void close() {
+        downloadPool.shutdownNow();
+        segmentPool.shutdownNow();
+        joinPool.shutdownNow();
+        extractPool.shutdownNow();
+        diskWriter.close();
+        eventScheduler.shutdownNow();
+
+        // The downloads which completed just before may still update their
+        // host's profile
+        profilePool.shutdown();
+        try {
+            profilePool.awaitTermination(PROFILE_UPDATE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "qtdownloader-" + name + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Class: DownloadEvents.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+/**
+ * The JDK Flight Recorder events of the download stages, so that a recording
+ * shows which segment or stage of a download stalled:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=download.jfr -jar qtdownloader.jar URL
+ * jfr print --categories QTDownloader download.jfr
+ * </pre>
+ *
+ * The events are created only if the running JVM has the jdk.jfr API, which
+ * older Java 8 runtimes lack, and are nearly free while no recording is
+ * running. They are defined by JfrEvents, which is compiled for Java 11 from
+ * src/main/java11 and loaded by reflection, so that the rest of the program
+ * still builds against the Java 8 API. The begin methods return null if
+ * there is no API, in which case the callers skip the event. The waits for a full queue or for the lock of
+ * the progress are only recorded if they took at least a millisecond, and
+ * no event records a stack trace.
+ *
+ * @author quan
+ */
+public final class DownloadEvents {
+
+    private static final Recorder RECORDER = loadRecorder();
+    private static final boolean AVAILABLE = RECORDER != null;
+
+    private DownloadEvents() {
+    }
+
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName("personal.qtdownloader.JfrEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if the events can be recorded in this JVM.
+     *
+     * @return True if the JVM has the jdk.jfr API.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Begin the event of a probe request.
+     *
+     * @param url The URL probed.
+     * @return The event, or null if there is no flight recorder.
+     */
+    static Probe beginProbe(String url) {
+        if (!AVAILABLE)
+            return null;
+
+        return RECORDER.beginProbe(url);
+    }
+
+    /**
+     * Begin the event of a segment's download.
+     *
+     * @param file The file the segment is written to.
+     * @param part The part's number, starting from 1.
+     * @param rangeStart The first byte of the segment's range.
+     * @param rangeEnd The last byte of the segment's range.
+     * @return The event, or null if there is no flight recorder.
+     */
+    static Segment beginSegment(String file, int part, long rangeStart,
+            long rangeEnd) {
+        if (!AVAILABLE)
+            return null;
+
+        return RECORDER.beginSegment(file, part, rangeStart, rangeEnd);
+    }
+
+    /**
+     * Record the retry of a segment.
+     *
+     * @param file The file the segment is written to.
+     * @param part The part's number, starting from 1.
+     * @param attempt The number of the failed attempt.
+     * @param reason Why the attempt failed.
+     */
+    static void segmentRetried(String file, int part, int attempt, String reason) {
+        if (!AVAILABLE)
+            return;
+
+        RECORDER.segmentRetried(file, part, attempt, reason);
+    }
+
+    /**
+     * Begin the event of a part's join into the output file or the extract
+     * stage.
+     *
+     * @param partFile The part file.
+     * @param position Where the part is written in the output file, or -1 if
+     * it is appended or extracted.
+     * @return The event, or null if there is no flight recorder.
+     */
+    static Join beginJoin(String partFile, long position) {
+        if (!AVAILABLE)
+            return null;
+
+        return RECORDER.beginJoin(partFile, position);
+    }
+
+    /**
+     * Begin the event of a wait for room in a full queue of buffers.
+     *
+     * @param stage The stage whose queue is full.
+     * @param file The file the buffer is for.
+     * @return The event, or null if there is no flight recorder.
+     */
+    static BufferWait beginBufferWait(String stage, String file) {
+        if (!AVAILABLE)
+            return null;
+
+        return RECORDER.beginBufferWait(stage, file);
+    }
+
+    /**
+     * Begin the event of a wait for the lock of a download's progress.
+     *
+     * @return The event, or null if there is no flight recorder.
+     */
+    static ProgressLockWait beginProgressLockWait() {
+        if (!AVAILABLE)
+            return null;
+
+        return RECORDER.beginProgressLockWait();
+    }
+
+    /**
+     * The event of a probe request.
+     */
+    interface Probe {
+
+        /**
+         * End the event once the probe was answered.
+         *
+         * @param responseCode The response's code.
+         * @param contentLength The response's content length.
+         */
+        void done(int responseCode, long contentLength);
+    }
+
+    /**
+     * The event of a segment's download, including its retries.
+     */
+    interface Segment {
+
+        /**
+         * End the event once the segment finished or failed.
+         *
+         * @param bytes The number of bytes downloaded.
+         * @param completed True if the segment finished.
+         */
+        void done(long bytes, boolean completed);
+    }
+
+    /**
+     * The event of a part's join.
+     */
+    interface Join {
+
+        /**
+         * End the event once the part was joined.
+         *
+         * @param bytes The number of bytes joined.
+         */
+        void done(long bytes);
+    }
+
+    /**
+     * The event of a wait for room in a full queue of buffers.
+     */
+    interface BufferWait {
+
+        /**
+         * End the event once the buffer was queued.
+         */
+        void done();
+    }
+
+    /**
+     * The event of a wait for the lock of a download's progress.
+     */
+    interface ProgressLockWait {
+
+        /**
+         * End the event once the lock was taken.
+         */
+        void done();
+    }
+
+    /**
+     * Creates the events, implemented with the jdk.jfr API by JfrEvents.
+     */
+    interface Recorder {
+
+        Probe beginProbe(String url);
+
+        Segment beginSegment(String file, int part, long rangeStart, long rangeEnd);
+
+        void segmentRetried(String file, int part, int attempt, String reason);
+
+        Join beginJoin(String partFile, long position);
+
+        BufferWait beginBufferWait(String stage, String file);
+
+        ProgressLockWait beginProgressLockWait();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Class: DownloadResult.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The result of a finished download.
+ *
+ * @author quan
+ */
+public class DownloadResult {
+
+    private final String outputPath;
+    private final long downloadedSize;
+    private final long extractedSize;
+    private final Duration downloadTime;
+    private final Instant firstByteTime;
+    private final int handshakeCount;
+    private final int resumedHandshakeCount;
+    private final Duration handshakeTime;
+    private final int partsCount;
+    private final boolean rangesSupported;
+    private final int retryCount;
+    private final Duration probeTime;
+
+    /**
+     *
+     * @param outputPath The output file, or the output directory if the
+     * download was unpacked.
+     * @param downloadedSize The number of bytes downloaded.
+     * @param extractedSize The number of bytes written by the extract stage,
+     * -1 if there was none.
+     * @param downloadTime The time spent downloading.
+     * @param firstByteTime When the first byte of data arrived, null if no
+     * data had to be downloaded.
+     */
+    public DownloadResult(String outputPath, long downloadedSize,
+            long extractedSize, Duration downloadTime, Instant firstByteTime) {
+        this(outputPath, downloadedSize, extractedSize, downloadTime,
+                firstByteTime, 0, 0, Duration.ZERO);
+    }
+
+    /**
+     *
+     * @param outputPath The output file, or the output directory if the
+     * download was unpacked.
+     * @param downloadedSize The number of bytes downloaded.
+     * @param extractedSize The number of bytes written by the extract stage,
+     * -1 if there was none.
+     * @param downloadTime The time spent downloading.
+     * @param firstByteTime When the first byte of data arrived, null if no
+     * data had to be downloaded.
+     * @param handshakeCount The number of TLS handshakes.
+     * @param resumedHandshakeCount The number of those which resumed an
+     * earlier session.
+     * @param handshakeTime The total time spent in the handshakes.
+     */
+    public DownloadResult(String outputPath, long downloadedSize,
+            long extractedSize, Duration downloadTime, Instant firstByteTime,
+            int handshakeCount, int resumedHandshakeCount, Duration handshakeTime) {
+        this(outputPath, downloadedSize, extractedSize, downloadTime, firstByteTime,
+                handshakeCount, resumedHandshakeCount, handshakeTime, 0, false, 0,
+                Duration.ZERO);
+    }
+
+    /**
+     *
+     * @param outputPath The output file, or the output directory if the
+     * download was unpacked.
+     * @param downloadedSize The number of bytes downloaded.
+     * @param extractedSize The number of bytes written by the extract stage,
+     * -1 if there was none.
+     * @param downloadTime The time spent downloading.
+     * @param firstByteTime When the first byte of data arrived, null if no
+     * data had to be downloaded.
+     * @param handshakeCount The number of TLS handshakes.
+     * @param resumedHandshakeCount The number of those which resumed an
+     * earlier session.
+     * @param handshakeTime The total time spent in the handshakes.
+     * @param partsCount The number of parts the file was split into.
+     * @param rangesSupported True if the server serves byte ranges.
+     * @param retryCount The number of failed segment attempts.
+     * @param probeTime The time until the probe request was answered.
+     */
+    public DownloadResult(String outputPath, long downloadedSize,
+            long extractedSize, Duration downloadTime, Instant firstByteTime,
+            int handshakeCount, int resumedHandshakeCount, Duration handshakeTime,
+            int partsCount, boolean rangesSupported, int retryCount,
+            Duration probeTime) {
+        this.outputPath = outputPath;
+        this.downloadedSize = downloadedSize;
+        this.extractedSize = extractedSize;
+        this.downloadTime = downloadTime;
+        this.firstByteTime = firstByteTime;
+        this.handshakeCount = handshakeCount;
+        this.resumedHandshakeCount = resumedHandshakeCount;
+        this.handshakeTime = handshakeTime;
+        this.partsCount = partsCount;
+        this.rangesSupported = rangesSupported;
+        this.retryCount = retryCount;
+        this.probeTime = probeTime;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public long getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    public long getExtractedSize() {
+        return extractedSize;
+    }
+
+    public Duration getDownloadTime() {
+        return downloadTime;
+    }
+
+    public Instant getFirstByteTime() {
+        return firstByteTime;
+    }
+
+    public int getHandshakeCount() {
+        return handshakeCount;
+    }
+
+    public int getResumedHandshakeCount() {
+        return resumedHandshakeCount;
+    }
+
+    public Duration getHandshakeTime() {
+        return handshakeTime;
+    }
+
+    /**
+     * Get the number of parts the file was split into.
+     *
+     * @return The number of parts, 1 for a single stream, or 0 if it is
+     * unknown.
+     */
+    public int getPartsCount() {
+        return partsCount;
+    }
+
+    /**
+     * Check if the server serves byte ranges of the file, even if the file
+     * was too small to be split.
+     *
+     * @return True if ranges are served.
+     */
+    public boolean isRangesSupported() {
+        return rangesSupported;
+    }
+
+    /**
+     * Get the number of segment attempts which failed and were retried.
+     *
+     * @return The number of retries.
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Get the time from sending the probe request to receiving its
+     * response's headers, which is about the server's time to first byte.
+     *
+     * @return The time.
+     */
+    public Duration getProbeTime() {
+        return probeTime;
+    }
+}
@@ -16,6 +16,7 @@ public class DownloadSession {
     private final String mFileName;
     private final String mURL;
     private long mDownloadedSize;
+    private long mLastModified;
     public boolean alreadyDownloaded;
     public boolean resumeDownload;
     public boolean cancelDownload;
@@ -24,6 +25,7 @@ public class DownloadSession {
         mFileName = fileName;
         mURL = url;
         mDownloadedSize = downloadedSize;
+        mLastModified = 0;
     }
 
     public String getFileName() {
@@ -42,4 +44,19 @@ public class DownloadSession {
         mDownloadedSize = downloadSize;
     }
 
+    /**
+     * Get the last modified time the server gave for the file when it was
+     * downloaded.
+     *
+     * @return The time in milliseconds since the epoch, or 0 if it is
+     * unknown.
+     */
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        mLastModified = lastModified;
+    }
+
 }
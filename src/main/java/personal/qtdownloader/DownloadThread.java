@@ -1,5 +1,5 @@
 /**
- * Class: Download.java
+ * Class: DownloadThread.java
  *
  * @author quan
  *
@@ -7,25 +7,23 @@
 package personal.qtdownloader;
 
 import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 /**
  *
@@ -33,19 +31,37 @@ import java.util.concurrent.Future;
  */
 public class DownloadThread implements Callable<Long> {
 
+    public static final int MAX_RETRIES = 3;
+    public static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    /**
+     * The size of each copy from a local source file, between which the
+     * progress is updated.
+     */
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
     //private Thread mThread;
     private long startByte;
     private long endByte;
     private long partSize;
     private final boolean resume;
+    private final boolean ranged;
+    private final boolean directIo;
+    private boolean append;
     private URL url;
     private long downloadedSize;
     private long alreadyDownloadedSize;
+    private InetAddress address;
+    private final long partStart;
+    private final PieceVerifier verifier;
+    private DirectFileWriter directWriter;
 
     private final int partNumber;
     private final String mFileName;
+    private final ExtractThread extractThread;
     private final Download currentDownload;
-    private final HashMap<String, String> userOptions;
+    private final DownloadConfig config;
 
     /**
      * Construct a download object with the given URL and byte range to downloads
@@ -55,34 +71,51 @@ public class DownloadThread implements Callable<Long> {
      */
     public DownloadThread(int partNumber, Download download) {
         this.partNumber = partNumber;
+        this.ranged = download.isRangesSupported();
+        this.directIo = download.isDirectIo();
         
         // Calculate the start byte and end byte
-        partSize = download.progress.getContentSize() / download.getPartCount();
-        
-        long start_byte = (partNumber - 1) * partSize;
-        long end_byte;
-        if (partNumber == download.getPartCount())
-            end_byte = download.progress.getContentSize() - 1;
-        else
-            end_byte = partNumber * partSize - 1;
+        long contentSize = download.progress.getContentSize();
+        long start_byte = download.getPartStart(partNumber);
+        long end_byte = download.getPartEnd(partNumber);
         
         this.startByte = start_byte;
         this.endByte = end_byte;
-        this.partSize = end_byte - start_byte + 1;
-        this.resume = download.resumeDownload();
+        this.partStart = ranged ? start_byte : 0;
+
+        // A single stream's size is -1 if the server did not tell it, and it
+        // cannot be resumed without ranges.
+        this.partSize = ranged ? end_byte - start_byte + 1 : contentSize;
+        this.resume = ranged && !directIo && download.resumeDownload();
         this.url = download.getDownloadURL();
         downloadedSize = 0;
         alreadyDownloadedSize = 0;
-        userOptions = Main.userOptions;
-
-        // Get the file name.
-        mFileName = Main.PROGRAM_TEMP_DIR + "."
-                + (new File(url.toExternalForm()).getName()
-                + ".part" + partNumber);
+        address = null;
+        config = download.getConfig();
+
+        // Get the file name. A single stream, or a segment written with
+        // direct I/O, is written straight into the output file or the
+        // extract stage.
+        if (directIo) {
+            mFileName = download.getWorkingFilePath();
+            extractThread = null;
+        } else if (ranged) {
+            mFileName = download.getPartFileName(partNumber);
+            extractThread = null;
+        } else {
+            mFileName = download.getWorkingFilePath();
+            extractThread = download.getExtractThread();
+        }
 
         currentDownload = download;
 
+        // The pieces of a Metalink file are checked while they arrive
+        Metalink metalink = config.getMetalink();
+        verifier = (metalink != null && metalink.hasPieces())
+                ? new PieceVerifier(metalink, partStart) : null;
+
         // If resume a download then set the start byte
+        append = resume;
         if (resume) {
             try (RandomAccessFile partFile = new RandomAccessFile(mFileName, "rw")) {
                 alreadyDownloadedSize = partFile.length();
@@ -103,112 +136,163 @@ public class DownloadThread implements Callable<Long> {
      * @throws IOException if failed to connect to the given URL.
      */
     public HttpURLConnection getHttpConnection() throws IOException {
-        // Connect to the URL
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        // Connect to the URL, or to the address of its host chosen for this
+        // attempt, which is told the host in the Host header.
+        HttpURLConnection conn;
+        address = currentDownload.nextAddress();
+        if (address == null) {
+            conn = (HttpURLConnection) url.openConnection();
+        } else {
+            conn = (HttpURLConnection) AddressBalancer.toAddressUrl(url, address)
+                    .openConnection();
+            conn.setRequestProperty("Host", AddressBalancer.getHostHeader(url));
+        }
+        currentDownload.useSharedTls(conn);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
 
-        String downloadRange = "bytes=" + startByte + "-" + endByte;
-        conn.setRequestProperty("Range", downloadRange);
+        if (ranged) {
+            String downloadRange = "bytes=" + startByte + "-" + endByte;
+            conn.setRequestProperty("Range", downloadRange);
+        }
 
         // Get the http login credentials and set the corresponding properties
         // in the http connection varible
-        if (userOptions.containsKey("-u") && userOptions.containsKey("-p")) {
-            String username = userOptions.get("-u");
-            String password = userOptions.get("-p");
-            String credentials = username + ":" + password;
-            credentials = Base64.getEncoder().encodeToString(credentials.getBytes());
-
-            conn.setRequestProperty("Authorization", "Basic " + credentials);
-        }
+        String authorization = config.getAuthorization();
+        if (authorization != null)
+            conn.setRequestProperty("Authorization", authorization);
+        if (config.isCompressedTransfer())
+            conn.setRequestProperty("Accept-Encoding", "gzip");
 
         conn.connect();
 
+        // Make sure that the server sent the requested range and not the
+        // whole file, which would end up in the part file.
+        if (ranged) {
+            HttpResult result = HttpResult.fromConnection(conn);
+            long start = HttpResult.parseContentRangeStart(
+                    conn.getHeaderField("Content-Range"));
+
+            if (!result.rangesSupported || start != startByte) {
+                conn.disconnect();
+                throw new IOException("The server did not send the requested"
+                        + " range at part " + partNumber + "!");
+            }
+
+            // The ranges of a compressed transfer are of the encoded file
+            if (config.isCompressedTransfer() && !Objects.equals(
+                    result.contentEncoding, currentDownload.getContentEncoding())) {
+                conn.disconnect();
+                throw new IOException("The server changed the encoding of the"
+                        + " file at part " + partNumber + "!");
+            }
+        }
+
         // Return the connection.
         return conn;
     }
 
     /**
-     * Write the data from the given connection to file.
+     * Write the data from the given connection to file. The data is handed
+     * to the engine's disk writer, so that this thread goes back to reading
+     * the connection while the data is written.
      *
      * @param conn
      * @throws java.io.IOException
      */
     public void downloadToFile(HttpURLConnection conn) throws IOException {
-        // Get the input stream.
-        InputStream is = conn.getInputStream();
+        downloadFromStream(conn.getInputStream());
+    }
 
+    /**
+     * Write the data from the given stream of the part's bytes to file.
+     *
+     * @param is The stream, from the server or from a range worker.
+     * @throws IOException if the stream or the file failed.
+     */
+    private void downloadFromStream(InputStream is) throws IOException {
         // Size of the chunk of data to be downloaded and written to the 
         // output file at a time.
-        int chunkSize = (int) Math.pow(2, 13); // 8KB
-
-        try (DataInputStream dataStream = new DataInputStream(is)) {
-            // Get the file's length.
-            long contentLength = conn.getContentLengthLong();
-            contentLength += alreadyDownloadedSize;
-
-            // Read a chunk of given size at time and write the actual amount
-            // of bytes read to the output file.
-            byte[] dataArray = new byte[chunkSize];
+        int chunkSize = config.getBufferSize();
+        DiskWriter diskWriter = currentDownload.getDiskWriter();
+
+        // The file is overwritten unless the part is resumed or retried, in
+        // which case the data is appended to what was downloaded before. A
+        // stream which is extracted, or a segment written with direct I/O,
+        // does not go through the disk writer.
+        try (DataInputStream dataStream = new DataInputStream(is);
+                DiskWriter.Sink sink = (extractThread == null && directWriter == null)
+                        ? diskWriter.open(mFileName, append, config.getDurability())
+                        : null) {
+            // Read a chunk of given size at time and hand the actual amount
+            // of bytes read to the disk writer.
             int result;
 
-            // A boolean variable to determine whether to overwrite the output
-            // file or not.
-            // After the first time the writeToFile function is called, it will
-            // be changed to false, which means the next times the data is 
-            // written it is appended to the file.
-            boolean overwrite = true;
-            if (resume) {
-                overwrite = false;
-            }
-
-            synchronized (currentDownload.progress) {
-                currentDownload.progress.updateDownloadedSize(downloadedSize);
-                currentDownload.progress.updateProgressBar();
-                currentDownload.progress.notifyAll();
-            }
-
             // While the total downloaded size is still smaller than the 
-            // content length from the connection, keep reading data.
-            while (downloadedSize < contentLength) {
-                result = dataStream.read(dataArray, 0, chunkSize);
+            // part's size, keep reading data. The response may go on past
+            // the part's end, so never read more than what is left.
+            while (partSize == -1 || downloadedSize < partSize) {
+                if (currentDownload.isCancelled())
+                    throw new IOException("Download cancelled at part " + partNumber);
+                
+                int bytesToRead = (partSize == -1) ? chunkSize
+                        : (int) Math.min(chunkSize, partSize - downloadedSize);
+                // The buffer goes back to the pool unless it is handed on,
+                // also when the read fails and the segment is retried.
+                byte[] dataArray = diskWriter.acquireBuffer(chunkSize);
+                try {
+                    result = dataStream.read(dataArray, 0, bytesToRead);
+                    if (result != -1 && verifier != null)
+                        verifier.update(dataArray, 0, result);
+                } catch (IOException | RuntimeException ex) {
+                    diskWriter.releaseBuffer(dataArray);
+                    throw ex;
+                }
 
                 if (result == -1) {
+                    diskWriter.releaseBuffer(dataArray);
                     break;
                 }
 
                 downloadedSize += result;
-                writeToFile(dataArray, result, overwrite);
-                overwrite = false;
-
-                synchronized (currentDownload.progress) {
-                    currentDownload.progress.updateDownloadedSize(result);
-                    currentDownload.progress.updateDownloadedSinceStart(result);
-                    currentDownload.progress.updateProgressBar();
+                writeToFile(sink, dataArray, result);
 
-                    currentDownload.progress.notifyAll();
-                }
+                currentDownload.updateProgress(0, result);
             }
         }
     }
 
     /**
-     * Write the given data to the download part file.
+     * Write the given data to the download part file, to the extract stage
+     * for a single stream which is extracted, or to the output file for a
+     * segment written with direct I/O.
      *
-     * @param bytes Byte array of data to write to the download part file.
+     * @param sink The part file's sink, or null if the data does not go
+     * through the disk writer.
+     * @param bytes Byte array of data to write, which belongs to the disk
+     * writer from now on.
      * @param bytesToWrite Number of bytes in the byte array to be written.
-     * @param overwrite True if the file is to be overwritten by the given data.
      * @throws IOException if failed to write to file.
      */
-    public void writeToFile(byte[] bytes, int bytesToWrite, boolean overwrite) 
+    public void writeToFile(DiskWriter.Sink sink, byte[] bytes, int bytesToWrite)
             throws IOException {
-        try (FileOutputStream fout = new FileOutputStream(mFileName, !overwrite)) {
-            // Write to the output file using FileChannel.
-            FileChannel outChannel = fout.getChannel();
-
-            // Wrap the given byte array in a ByteBuffer.
-            ByteBuffer data = ByteBuffer.wrap(bytes, 0, bytesToWrite);
-
-            // Write the data.
-            outChannel.write(data);
+        try {
+            if (sink != null) {
+                sink.write(bytes, bytesToWrite);
+            } else {
+                // The direct writer and the extract stage copy the data
+                try {
+                    if (directWriter != null)
+                        directWriter.write(bytes, 0, bytesToWrite);
+                    else
+                        extractThread.feed(bytes, bytesToWrite);
+                } finally {
+                    currentDownload.getDiskWriter().releaseBuffer(bytes);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing"
+                    + " the data at part " + partNumber);
         }
     }
 
@@ -230,64 +314,348 @@ public class DownloadThread implements Callable<Long> {
         return partSize;
     }
 
-    @Override
-    public Long call() throws Exception {
+    /**
+     * Get the connection to download the part from. The first part uses the
+     * download's probe connection, unless it was partly downloaded before.
+     *
+     * @return The connection to download the part from.
+     * @throws IOException if failed to connect to the given URL.
+     */
+    private HttpURLConnection openConnection() throws IOException {
+        if (partNumber == 1) {
+            HttpURLConnection probe = currentDownload.takeProbeConnection();
+            if (probe != null) {
+                if (alreadyDownloadedSize == 0) {
+                    address = null;
+                    return probe;
+                }
+
+                probe.disconnect();
+            }
+        }
+
+        return getHttpConnection();
+    }
+
+    /**
+     * Download the rest of the part with a new connection, or with the
+     * probe connection for the first attempt of the first part.
+     *
+     * @throws IOException if the download failed or a ranged part ended
+     * early.
+     */
+    private void downloadPart() throws IOException {
+        Path sourceFile = currentDownload.getSourceFile();
+        if (sourceFile != null) {
+            copyFromFile(sourceFile);
+            return;
+        }
+
+        // Hand the part to a range worker if the download has any, unless
+        // the probe's response is there for it.
+        RangeWorkerPool workers = currentDownload.getRangeWorkers();
+        if (workers != null && ranged
+                && !(partNumber == 1 && currentDownload.hasProbeConnection())) {
+            RangeWorkerPool.Worker worker = workers.acquire();
+            if (worker != null) {
+                downloadFromWorker(workers, worker);
+                return;
+            }
+        }
+
         // Connect to the URL
-        HttpURLConnection conn = getHttpConnection();
+        long start = System.currentTimeMillis();
+        long startSize = downloadedSize;
+        HttpURLConnection conn = openConnection();
 
         // Download to file
-        downloadToFile(conn);
-        
-        // Check if the download was incomplete or not
-        if (downloadedSize != partSize) {
-            String errMessage = "Download incomplete at part " + partNumber + "!";
-            throw new RuntimeException(errMessage);
+        try {
+            downloadToFile(conn);
+        } finally {
+            // The probe connection carries the rest of the file after the
+            // first part, which is not read.
+            conn.disconnect();
+
+            // Tell the speed of the address to the next segments
+            if (address != null)
+                currentDownload.recordAddressSpeed(address, downloadedSize - startSize,
+                        System.currentTimeMillis() - start);
         }
-        
-        // Write the data to the main file from the part file
-        synchronized (currentDownload.joinPartIsDone)  {
-            if (partNumber != 1) { 
-                while (!currentDownload.joinPartIsDone[partNumber - 2])
-                    currentDownload.joinPartIsDone.wait();
+
+        if (ranged && downloadedSize != partSize)
+            throw new IOException("Connection closed early at part " + partNumber);
+    }
+
+    /**
+     * Download the rest of the part through the given range worker. A
+     * worker which fails is left out for a while, so that the retry goes
+     * to another worker.
+     *
+     * @throws IOException if the worker failed or the range ended early.
+     */
+    private void downloadFromWorker(RangeWorkerPool workers,
+            RangeWorkerPool.Worker worker) throws IOException {
+        boolean failed = true;
+        try (InputStream in = worker.fetch(url, startByte, endByte,
+                config.getAuthorization())) {
+            downloadFromStream(in);
+            if (downloadedSize != partSize)
+                throw new IOException("Range worker " + worker.getAddress()
+                        + " closed early at part " + partNumber);
+
+            failed = false;
+        } finally {
+            workers.release(worker, failed && !currentDownload.isCancelled());
+        }
+    }
+
+    /**
+     * Hash the data a resumed part already has on the disk, so that its
+     * pieces are checked along with the rest of the part.
+     *
+     * @throws IOException if the part file cannot be read.
+     */
+    private void verifyResumedData() throws IOException {
+        try (InputStream in = Files.newInputStream(Paths.get(mFileName))) {
+            byte[] buffer = new byte[config.getBufferSize()];
+            long remaining = alreadyDownloadedSize;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1)
+                    throw new IOException("Part file " + mFileName + " shrank");
+
+                verifier.update(buffer, 0, count);
+                remaining -= count;
             }
         }
-        
-        // Create a new join part thread
-        ExecutorService joinPartsThreadPool = Executors.newFixedThreadPool(1);
-        JoinPartThread joinPartThread = new JoinPartThread(
-                currentDownload.getMainFilePath(), 
-                mFileName, partSize);
-        
-        // Get the result and compare to the size of the part the thread is 
-        // downloading.
-        Future<Long> result = joinPartsThreadPool.submit(joinPartThread);
-        Long transferredBytes;
+    }
+
+    /**
+     * Download again the pieces which did not match their hashes, trying
+     * the other URLs of the Metalink document before the one the part came
+     * from, and write them over the bad data in the file.
+     *
+     * @throws IOException if a piece cannot be repaired.
+     */
+    private void repairPieces() throws IOException {
+        Metalink metalink = config.getMetalink();
+        List<String> urls = metalink.getUrls();
+
+        for (int piece : verifier.getFailedPieces()) {
+            if (extractThread != null)
+                throw new IOException("Piece " + (piece + 1) + " failed verification"
+                        + " at part " + partNumber + " and was already extracted");
+
+            long position = piece * metalink.getPieceLength();
+            int length = (int) metalink.getPieceLength(piece);
+            boolean repaired = false;
+
+            for (int i = 1; i <= urls.size() && !repaired; i++) {
+                String pieceUrl = urls.get(i % urls.size());
+                byte[] data;
+                try {
+                    data = downloadRange(new URL(pieceUrl), position, length);
+                } catch (IOException ex) {
+                    continue;
+                }
+
+                if (PieceVerifier.verify(metalink, piece, data)) {
+                    writeAt(data, position - partStart);
+                    currentDownload.postEvent(ProgressEvent.pieceRepaired(
+                            partNumber, piece + 1, pieceUrl));
+                    repaired = true;
+                }
+            }
+
+            if (!repaired)
+                throw new IOException("Piece " + (piece + 1) + " failed"
+                        + " verification at part " + partNumber
+                        + " from all URLs of the Metalink file");
+        }
+
+        verifier.getFailedPieces().clear();
+    }
+
+    /**
+     * Download the given byte range of the file from the given URL.
+     */
+    private byte[] downloadRange(URL rangeUrl, long position, int length)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) rangeUrl.openConnection();
         try {
-            transferredBytes = result.get();
-        } catch (ExecutionException ex) {
-            String errMessage = "Error while transferring from part " +
-                    partNumber + " to the main file!";
-            throw new RuntimeException(errMessage, ex.getCause());
-        } catch (SecurityException ex) {
-            String errMessage = "You do not have the permission to the output"
-                    + "file!";
-            throw new RuntimeException(errMessage, ex);
+            currentDownload.useSharedTls(conn);
+            conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+            conn.setRequestProperty("Range", "bytes=" + position + "-"
+                    + (position + length - 1));
+
+            // The credentials are only for the download's own host
+            String authorization = config.getAuthorization();
+            if (authorization != null && rangeUrl.getHost().equalsIgnoreCase(url.getHost()))
+                conn.setRequestProperty("Authorization", authorization);
+
+            HttpResult result = HttpResult.fromConnection(conn);
+            long start = HttpResult.parseContentRangeStart(
+                    conn.getHeaderField("Content-Range"));
+            if (!result.rangesSupported || start != position)
+                throw new IOException("The server did not send the requested range");
+
+            byte[] data = new byte[length];
+            try (DataInputStream in = new DataInputStream(conn.getInputStream())) {
+                in.readFully(data);
+            }
+
+            return data;
+        } finally {
+            conn.disconnect();
         }
-        
-        joinPartsThreadPool.shutdown();
-        synchronized (currentDownload.joinPartIsDone) {
-            currentDownload.joinPartIsDone[partNumber - 1] = true;
-            currentDownload.joinPartIsDone.notifyAll();
+    }
+
+    /**
+     * Write the given data at the given position of the part's file.
+     */
+    private void writeAt(byte[] data, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(mFileName),
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
         }
-        
-        if (transferredBytes != partSize) {
-            String errMessage = "Transfer from part file to main file incomplete"
-                    + " at part " + partNumber + "!";
-            errMessage += " " + transferredBytes + " " + partSize;
-            throw new RuntimeException(errMessage);
+    }
+
+    /**
+     * Copy the rest of the part from the download's local source file. The
+     * kernel copies the data from file to file where it can, unless the data
+     * has to pass through this thread to be hashed, extracted or written
+     * with direct I/O.
+     *
+     * @param sourceFile The source file.
+     * @throws IOException if the copy failed or the file got shorter.
+     */
+    private void copyFromFile(Path sourceFile) throws IOException {
+        try (FileChannel source = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+            if (verifier != null || directWriter != null || extractThread != null) {
+                source.position(partStart + downloadedSize);
+                downloadFromStream(Channels.newInputStream(source));
+                return;
+            }
+
+            // The part file is only appended to after the data which was
+            // already copied.
+            try (FileChannel target = FileChannel.open(Paths.get(mFileName),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (append)
+                    target.position(target.size());
+                else
+                    target.truncate(0);
+
+                DurabilityPolicy.Tracker tracker = config.getDurability().newTracker();
+                while (downloadedSize < partSize) {
+                    if (currentDownload.isCancelled())
+                        throw new IOException("Download cancelled at part " + partNumber);
+
+                    long count = Math.min(TRANSFER_SIZE, partSize - downloadedSize);
+                    long transferred = source.transferTo(partStart + downloadedSize,
+                            count, target);
+                    if (transferred == 0)
+                        break;
+
+                    downloadedSize += transferred;
+                    tracker.written(target, transferred);
+                    currentDownload.updateProgress(0, transferred);
+                }
+            }
         }
-        
+    }
+
+    /**
+     * Download the part, retrying a failed ranged part from where it
+     * stopped. A single stream cannot be continued without ranges.
+     */
+    private void downloadWithRetries() throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadPart();
+                return;
+            } catch (IOException ex) {
+                if (!ranged || currentDownload.isCancelled() || attempt > MAX_RETRIES)
+                    throw ex;
+
+                currentDownload.countRetry();
+                currentDownload.postEvent(ProgressEvent.segmentRetried(
+                        partNumber, attempt, ex.getMessage()));
+                DownloadEvents.segmentRetried(mFileName, partNumber, attempt,
+                        ex.getMessage());
+                Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+
+                // Direct I/O only writes whole aligned blocks, so the data
+                // gathered since the last write is downloaded again.
+                if (directWriter != null) {
+                    int dropped = directWriter.discardPending();
+                    downloadedSize -= dropped;
+                    currentDownload.updateProgress(-dropped, 0);
+                }
+
+                startByte = endByte - partSize + 1 + downloadedSize;
+                append = true;
+            }
+        }
+    }
+
+    @Override
+    public Long call() throws Exception {
+        currentDownload.postEvent(ProgressEvent.segmentStarted(partNumber));
+        currentDownload.updateProgress(downloadedSize, 0);
+
+        DownloadEvents.Segment segmentEvent = DownloadEvents.beginSegment(
+                mFileName, partNumber, startByte, endByte);
+        boolean completed = false;
+        try {
+            downloadSegment();
+            completed = true;
+        } finally {
+            if (segmentEvent != null)
+                segmentEvent.done(downloadedSize - alreadyDownloadedSize, completed);
+        }
+
+        currentDownload.postEvent(ProgressEvent.segmentFinished(partNumber, downloadedSize));
         return downloadedSize;
     }
 
+    /**
+     * Download the segment, then check that it is complete and that its
+     * pieces match their hashes.
+     */
+    private void downloadSegment() throws Exception {
+        if (verifier != null && alreadyDownloadedSize > 0)
+            verifyResumedData();
+
+        if (directIo) {
+            directWriter = DirectFileWriter.open(Paths.get(mFileName), partStart,
+                    currentDownload.getAlignment(),
+                    currentDownload.getAlignedBufferPool());
+        }
+
+        try {
+            downloadWithRetries();
+            if (directWriter != null)
+                directWriter.finish();
+        } finally {
+            if (directWriter != null)
+                directWriter.close();
+        }
+
+        // A stream of unknown size is complete at its end
+        if (partSize == -1)
+            partSize = downloadedSize;
+
+        // Check if the download was incomplete or not
+        if (downloadedSize != partSize) {
+            String errMessage = "Download incomplete at part " + partNumber + "!";
+            throw new RuntimeException(errMessage);
+        }
+
+        if (verifier != null)
+            repairPieces();
+    }
+
 }
@@ -0,0 +1,194 @@
+/**
+ * Class: DurabilityPolicy.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * When the downloaded data is forced to the disk. Forcing it more often
+ * loses less of a download to a crash, at the cost of throughput:
+ *
+ * <ul>
+ * <li>{@link #NONE}: never, the operating system writes the data back when
+ * it sees fit.</li>
+ * <li>{@link #ON_COMPLETION}: once the output is complete, before it is
+ * renamed to its final name.</li>
+ * <li>{@link #periodic(long, long)}: every given number of bytes or seconds
+ * written to a file, and on completion.</li>
+ * </ul>
+ *
+ * @author quan
+ */
+public final class DurabilityPolicy {
+
+    /**
+     * The kinds of policies.
+     */
+    public enum Mode {
+        NONE,
+        PERIODIC,
+        ON_COMPLETION
+    }
+
+    public static final DurabilityPolicy NONE = new DurabilityPolicy(Mode.NONE, 0, 0);
+    public static final DurabilityPolicy ON_COMPLETION =
+            new DurabilityPolicy(Mode.ON_COMPLETION, 0, 0);
+
+    private static final long MEGABYTE = 1 << 20;
+
+    private final Mode mode;
+    private final long syncBytes;
+    private final long syncMillis;
+
+    private DurabilityPolicy(Mode mode, long syncBytes, long syncMillis) {
+        this.mode = mode;
+        this.syncBytes = syncBytes;
+        this.syncMillis = syncMillis;
+    }
+
+    /**
+     * Create a policy which forces the data of a file to the disk every
+     * given number of bytes or milliseconds, whichever comes first, and on
+     * completion.
+     *
+     * @param syncBytes The number of bytes between two syncs, or 0 to sync
+     * on time only.
+     * @param syncMillis The time between two syncs in milliseconds, or 0 to
+     * sync on size only.
+     * @return The policy.
+     */
+    public static DurabilityPolicy periodic(long syncBytes, long syncMillis) {
+        if (syncBytes < 0 || syncMillis < 0 || (syncBytes == 0 && syncMillis == 0))
+            throw new IllegalArgumentException("Invalid sync period: " + syncBytes
+                    + " bytes, " + syncMillis + " ms");
+
+        return new DurabilityPolicy(Mode.PERIODIC, syncBytes, syncMillis);
+    }
+
+    /**
+     * Parse a policy: "none", "completion", or the period of a periodic
+     * policy as a number of megabytes followed by "M", a number of seconds
+     * followed by "s", or both separated by a comma, such as "64M,10s".
+     *
+     * @param value The policy's text.
+     * @return The policy.
+     * @throws IllegalArgumentException if the text is not a policy.
+     */
+    public static DurabilityPolicy parse(String value) {
+        String lowerCase = value.trim().toLowerCase(Locale.ROOT);
+        if (lowerCase.equals("none"))
+            return NONE;
+        if (lowerCase.equals("completion"))
+            return ON_COMPLETION;
+
+        long syncBytes = 0;
+        long syncMillis = 0;
+        try {
+            for (String period : lowerCase.split(",")) {
+                if (period.endsWith("m"))
+                    syncBytes = Long.parseLong(period.substring(0, period.length() - 1)) * MEGABYTE;
+                else if (period.endsWith("s"))
+                    syncMillis = Long.parseLong(period.substring(0, period.length() - 1)) * 1000;
+                else
+                    throw new NumberFormatException();
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid durability policy: " + value);
+        }
+
+        return periodic(syncBytes, syncMillis);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Check if the output is forced to the disk once it is complete.
+     *
+     * @return True unless the policy is {@link #NONE}.
+     */
+    public boolean syncsOnCompletion() {
+        return mode != Mode.NONE;
+    }
+
+    /**
+     * Get the largest number of bytes written to a file between two syncs.
+     *
+     * @return The number of bytes, or Long.MAX_VALUE if the syncs do not
+     * depend on the size.
+     */
+    public long getSyncBytes() {
+        return (mode == Mode.PERIODIC && syncBytes > 0) ? syncBytes : Long.MAX_VALUE;
+    }
+
+    /**
+     * Create the tracker of the writes to a single file.
+     *
+     * @return The tracker.
+     */
+    public Tracker newTracker() {
+        return new Tracker();
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case NONE:
+                return "none";
+            case ON_COMPLETION:
+                return "completion";
+            default:
+                StringBuilder period = new StringBuilder();
+                if (syncBytes > 0)
+                    period.append(syncBytes / MEGABYTE).append('M');
+                if (syncMillis > 0)
+                    period.append((period.length() > 0) ? "," : "")
+                            .append(syncMillis / 1000).append('s');
+                return period.toString();
+        }
+    }
+
+    /**
+     * Counts the writes to a file and forces them to the disk when the
+     * period of a periodic policy is over.
+     */
+    public class Tracker {
+
+        private long unsyncedBytes;
+        private long lastSyncTime;
+
+        private Tracker() {
+            this.unsyncedBytes = 0;
+            this.lastSyncTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Count the given number of bytes written to the given file, and
+         * force the file to the disk if it is time to.
+         *
+         * @param channel The file.
+         * @param bytes The number of bytes written.
+         * @throws IOException if the file cannot be forced.
+         */
+        public void written(FileChannel channel, long bytes) throws IOException {
+            if (mode != Mode.PERIODIC)
+                return;
+
+            unsyncedBytes += bytes;
+            long now = System.currentTimeMillis();
+            if ((syncBytes > 0 && unsyncedBytes >= syncBytes)
+                    || (syncMillis > 0 && now - lastSyncTime >= syncMillis)) {
+                channel.force(false);
+                unsyncedBytes = 0;
+                lastSyncTime = now;
+            }
+        }
+    }
+}
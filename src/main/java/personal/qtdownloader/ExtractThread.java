@@ -0,0 +1,197 @@
+/**
+ * Class: ExtractThread.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The optional pipeline stage after the in-order byte stream of a download.
+ * The joined parts are fed to this thread, which decompresses them and
+ * either writes the result to a file or unpacks it as a tar archive into a
+ * directory. Running it on its own thread keeps the decompression work off
+ * the download threads.
+ *
+ * @author quan
+ */
+public class ExtractThread implements Callable<Long> {
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks;
+    private final Decompressor contentDecoder;
+    private final Decompressor decompressor;
+    private final boolean untar;
+    private final Path outputPath;
+    private volatile boolean failed;
+
+    /**
+     * Create an extract stage.
+     *
+     * @param decompressor The decompressor to apply, or null if the stream
+     * is not compressed.
+     * @param untar True to unpack the stream as a tar archive.
+     * @param outputPath The output directory if untar is true, the output
+     * file otherwise.
+     */
+    public ExtractThread(Decompressor decompressor, boolean untar, Path outputPath) {
+        this(null, decompressor, untar, outputPath);
+    }
+
+    /**
+     * Create an extract stage for a stream which was encoded for the
+     * transfer.
+     *
+     * @param contentDecoder The decoder of the transfer's Content-Encoding,
+     * applied first, or null if the stream is not encoded.
+     * @param decompressor The decompressor to apply, or null if the stream
+     * is not compressed.
+     * @param untar True to unpack the stream as a tar archive.
+     * @param outputPath The output directory if untar is true, the output
+     * file otherwise.
+     */
+    public ExtractThread(Decompressor contentDecoder, Decompressor decompressor,
+            boolean untar, Path outputPath) {
+        this.chunks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.contentDecoder = contentDecoder;
+        this.decompressor = decompressor;
+        this.untar = untar;
+        this.outputPath = outputPath;
+        this.failed = false;
+    }
+
+    /**
+     * Feed the next chunk of the in-order byte stream. Blocks while the
+     * queue is full.
+     *
+     * @param data The data, which is copied.
+     * @param length The number of bytes of data to feed.
+     * @throws IOException if the extraction has already failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void feed(byte[] data, int length) throws IOException,
+            InterruptedException {
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, 0, chunk, 0, length);
+        put(chunk);
+    }
+
+    /**
+     * Signal that the whole byte stream has been fed.
+     *
+     * @throws IOException if the extraction has already failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void finish() throws IOException, InterruptedException {
+        put(END_OF_STREAM);
+    }
+
+    private void put(byte[] chunk) throws IOException, InterruptedException {
+        if (chunks.offer(chunk))
+            return;
+
+        DownloadEvents.BufferWait wait = DownloadEvents.beginBufferWait(
+                "extract", outputPath.toString());
+        while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (failed)
+                throw new IOException("Extraction of " + outputPath + " failed");
+        }
+        if (wait != null)
+            wait.done();
+    }
+
+    @Override
+    public Long call() throws Exception {
+        try (InputStream queueStream = new ChunkInputStream();
+                InputStream decoded = (contentDecoder == null) ? queueStream
+                        : contentDecoder.wrap(queueStream);
+                InputStream in = (decompressor == null) ? decoded
+                        : decompressor.wrap(decoded)) {
+            long written = 0;
+            if (untar) {
+                Files.createDirectories(outputPath);
+                written = new TarExtractor(outputPath).extract(in);
+            } else {
+                byte[] buffer = new byte[(int) Math.pow(2, 16)]; // 64KB
+                try (OutputStream out = Files.newOutputStream(outputPath)) {
+                    int result;
+                    while ((result = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, result);
+                        written += result;
+                    }
+                }
+            }
+
+            // Consume what follows the end of the archive or of the
+            // compressed stream, like padding or garbage after the gzip
+            // trailer, so that the feeding thread is never left blocked.
+            byte[] padding = new byte[(int) Math.pow(2, 13)];
+            while (queueStream.read(padding) != -1) {}
+
+            return written;
+        } catch (Exception ex) {
+            failed = true;
+            chunks.clear();
+            throw ex;
+        }
+    }
+
+    /**
+     * An input stream reading the chunks fed into the queue.
+     */
+    private class ChunkInputStream extends InputStream {
+
+        private byte[] current = new byte[0];
+        private int position = 0;
+        private boolean ended = false;
+
+        private boolean nextChunk() throws IOException {
+            while (!ended && position == current.length) {
+                try {
+                    current = chunks.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Extraction interrupted", ex);
+                }
+                position = 0;
+                ended = (current == END_OF_STREAM);
+            }
+
+            return !ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+
+            return count;
+        }
+    }
+}
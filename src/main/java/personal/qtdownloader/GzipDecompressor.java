@@ -0,0 +1,48 @@
+/**
+ * Class: GzipDecompressor.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The built-in gzip decompressor.
+ *
+ * @author quan
+ */
+public class GzipDecompressor implements Decompressor {
+
+    private static final int BUFFER_SIZE = (int) Math.pow(2, 16); // 64KB
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public boolean handles(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".gz") || name.endsWith(".tgz");
+    }
+
+    @Override
+    public String stripExtension(String fileName) {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".tgz"))
+            return fileName.substring(0, fileName.length() - 4) + ".tar";
+        if (name.endsWith(".gz"))
+            return fileName.substring(0, fileName.length() - 3);
+
+        return fileName;
+    }
+
+    @Override
+    public InputStream wrap(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Class: HandshakeTimer.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The TLS socket factory of a download's HTTPS connections. It creates the
+ * sockets with the engine's shared SSL context, so that their sessions are
+ * resumed across the segments and the downloads, and times their handshakes.
+ *
+ * Unconnected sockets are not offered, so HttpsURLConnection connects a
+ * plain socket and layers the TLS socket over it, and the time measured is
+ * the handshake alone without the TCP connect. A handshake counts as resumed
+ * if its session was created before the socket.
+ *
+ * @author quan
+ */
+public class HandshakeTimer extends SSLSocketFactory {
+
+    private final SSLSocketFactory factory;
+    private final ProgressDispatcher dispatcher;
+    private final CompletableFuture<Void> firstHandshake;
+    private int handshakeCount;
+    private int resumedCount;
+    private long handshakeNanos;
+
+    /**
+     * Create a timer.
+     *
+     * @param factory The factory of the engine's shared SSL context.
+     * @param dispatcher The dispatcher to post the handshake events to, or
+     * null if they are not posted.
+     */
+    public HandshakeTimer(SSLSocketFactory factory, ProgressDispatcher dispatcher) {
+        this.factory = factory;
+        this.dispatcher = dispatcher;
+        this.firstHandshake = new CompletableFuture<>();
+        this.handshakeCount = 0;
+        this.resumedCount = 0;
+        this.handshakeNanos = 0;
+    }
+
+    /**
+     * Time the handshake of the given socket, which has not started yet.
+     */
+    private Socket time(Socket socket, String host) {
+        if (!(socket instanceof SSLSocket))
+            return socket;
+
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        ((SSLSocket) socket).addHandshakeCompletedListener(
+                (HandshakeCompletedEvent event) -> {
+            long nanos = System.nanoTime() - startNanos;
+            boolean resumed = event.getSession().getCreationTime() < startMillis;
+
+            synchronized (this) {
+                handshakeCount++;
+                if (resumed)
+                    resumedCount++;
+                handshakeNanos += nanos;
+            }
+
+            if (dispatcher != null)
+                dispatcher.post(ProgressEvent.handshake(host, resumed, nanos / 1000000));
+            firstHandshake.complete(null);
+        });
+
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port,
+            boolean autoClose) throws IOException {
+        return time(factory.createSocket(socket, host, port, autoClose), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return time(factory.createSocket(host, port), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+            int localPort) throws IOException {
+        return time(factory.createSocket(host, port, localHost, localPort), host);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return time(factory.createSocket(host, port), host.getHostName());
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+            InetAddress localAddress, int localPort) throws IOException {
+        return time(factory.createSocket(address, port, localAddress, localPort),
+                address.getHostName());
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return factory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return factory.getSupportedCipherSuites();
+    }
+
+    /**
+     * Get the future which completes once the first handshake completed,
+     * after which the session can be resumed.
+     *
+     * @return The future.
+     */
+    public CompletableFuture<Void> getFirstHandshake() {
+        return firstHandshake;
+    }
+
+    public synchronized int getHandshakeCount() {
+        return handshakeCount;
+    }
+
+    public synchronized int getResumedCount() {
+        return resumedCount;
+    }
+
+    /**
+     * Get the total time spent in the handshakes.
+     *
+     * @return The time.
+     */
+    public synchronized Duration getHandshakeTime() {
+        return Duration.ofNanos(handshakeNanos);
+    }
+}
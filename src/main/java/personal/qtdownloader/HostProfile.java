@@ -0,0 +1,262 @@
+/**
+ * Class: HostProfile.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * What the past downloads from a host taught about it: the number of parts
+ * which gave the best throughput, the throughput, the time to first byte,
+ * the rate of failed segments and whether the host serves byte ranges. The
+ * values are moving averages, each download weighing {@link #DECAY} against
+ * the history, so that a profile follows a host whose network changed.
+ *
+ * A new download from the host starts with the settings the profile
+ * suggests instead of the defaults. Every few downloads, one tries twice or
+ * half the best number of parts, and becomes the best if it was faster.
+ *
+ * @author quan
+ */
+public class HostProfile {
+
+    public static final double DECAY = 0.3;
+    public static final int MAX_PARTS_COUNT = 32;
+    public static final int MAX_BUFFER_SIZE = 1 << 20; // 1MB
+    public static final long MAX_SMALL_FILE_THRESHOLD = 64L << 20; // 64MB
+
+    private static final int EXPLORE_EVERY = 4;
+    private static final long MIN_THROUGHPUT_SAMPLE_SIZE = 4L << 20; // 4MB
+    private static final double MAX_ERROR_RATE = 0.5;
+
+    private final String host;
+    private int partsCount;
+    private double throughput;
+    private double ttfbMillis;
+    private double errorRate;
+    private boolean rangesSupported;
+    private int samples;
+
+    /**
+     * Create the profile of a host nothing was downloaded from yet.
+     *
+     * @param host The host, with its port if it is not the default one.
+     */
+    public HostProfile(String host) {
+        this(host, DownloadConfig.DEFAULT_PARTS_COUNT, 0, -1, 0, true, 0);
+    }
+
+    HostProfile(String host, int partsCount, double throughput, double ttfbMillis,
+            double errorRate, boolean rangesSupported, int samples) {
+        this.host = host;
+        this.partsCount = partsCount;
+        this.throughput = throughput;
+        this.ttfbMillis = ttfbMillis;
+        this.errorRate = errorRate;
+        this.rangesSupported = rangesSupported;
+        this.samples = samples;
+    }
+
+    /**
+     * Get the host of the given URL, as the profiles are keyed.
+     *
+     * @param url The URL.
+     * @return The host in lower case, with its port if the URL has one, or
+     * null if the URL has no host.
+     */
+    public static String hostOf(String url) {
+        try {
+            String authority = new URL(url).getAuthority();
+            if (authority == null || authority.isEmpty())
+                return null;
+
+            // Credentials in the URL are not part of the key
+            return authority.substring(authority.lastIndexOf('@') + 1).toLowerCase();
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the given configuration with the settings the profile suggests,
+     * in place of the settings which were not given to its builder.
+     *
+     * @param config The download's configuration.
+     * @return The tuned configuration.
+     */
+    public DownloadConfig tune(DownloadConfig config) {
+        if (samples == 0)
+            return config;
+
+        DownloadConfig.Builder builder = config.toBuilder();
+        if (!config.isPartsCountSet())
+            builder.partsCount(suggestPartsCount());
+        if (!config.isBufferSizeSet())
+            builder.bufferSize(suggestBufferSize());
+        if (!config.isSmallFileThresholdSet())
+            builder.smallFileThreshold(suggestSmallFileThreshold());
+
+        return builder.build();
+    }
+
+    /**
+     * Get the number of parts for the next download: the best one, fewer
+     * if many segments failed, or another one to try every few downloads.
+     * A host which does not serve ranges gets a single part.
+     *
+     * @return The number of parts.
+     */
+    public int suggestPartsCount() {
+        if (!rangesSupported)
+            return 1;
+        if (errorRate > MAX_ERROR_RATE)
+            return Math.max(1, partsCount / 2);
+
+        if (samples % EXPLORE_EVERY == 0) {
+            // Alternately try more and fewer parts
+            if ((samples / EXPLORE_EVERY) % 2 == 1)
+                return Math.min(MAX_PARTS_COUNT, partsCount * 2);
+            return Math.max(1, partsCount / 2);
+        }
+
+        return partsCount;
+    }
+
+    /**
+     * Get the size of the reads of each segment: about 10 milliseconds of
+     * a segment's data, so that fast connections are read in fewer calls.
+     *
+     * @return The buffer size.
+     */
+    public int suggestBufferSize() {
+        double segmentThroughput = throughput / Math.max(1, partsCount);
+        long size = Long.highestOneBit((long) (segmentThroughput / 100));
+
+        return (int) Math.max(DownloadConfig.DEFAULT_BUFFER_SIZE,
+                Math.min(MAX_BUFFER_SIZE, size));
+    }
+
+    /**
+     * Get the size below which a file is downloaded in a single request:
+     * what the host sends in one time to first byte, since the other parts'
+     * requests would not save more than that.
+     *
+     * @return The threshold.
+     */
+    public long suggestSmallFileThreshold() {
+        if (ttfbMillis < 0 || throughput == 0)
+            return DownloadConfig.DEFAULT_SMALL_FILE_THRESHOLD;
+
+        long inFlight = (long) (throughput * ttfbMillis / 1000);
+        return Math.max(DownloadConfig.DEFAULT_SMALL_FILE_THRESHOLD,
+                Math.min(MAX_SMALL_FILE_THRESHOLD, inFlight));
+    }
+
+    /**
+     * Learn from a completed download from the host. The throughput only
+     * counts for files large enough to show it, which were split into as
+     * many parts as asked for; a download with another number of parts than
+     * the best one replaces it if it was faster.
+     *
+     * @param config The download's configuration.
+     * @param result The download's result.
+     */
+    public void update(DownloadConfig config, DownloadResult result) {
+        // Without a probe, the file came from another download of it
+        if (result.getProbeTime().isZero())
+            return;
+
+        samples++;
+        rangesSupported = result.isRangesSupported();
+        ttfbMillis = average(ttfbMillis, result.getProbeTime().toNanos() / 1e6);
+        errorRate = average(errorRate,
+                (double) result.getRetryCount() / Math.max(1, result.getPartsCount()));
+
+        long millis = result.getDownloadTime().toMillis();
+        if (result.getDownloadedSize() < MIN_THROUGHPUT_SAMPLE_SIZE || millis <= 0
+                || result.getPartsCount() != config.getPartsCount())
+            return;
+
+        double sample = result.getDownloadedSize() * 1000.0 / millis;
+        if (result.getPartsCount() == partsCount || throughput == 0) {
+            partsCount = result.getPartsCount();
+            throughput = (throughput == 0) ? sample : average(throughput, sample);
+        } else if (sample > throughput) {
+            partsCount = result.getPartsCount();
+            throughput = sample;
+        }
+    }
+
+    /**
+     * Learn from a failed download from the host.
+     */
+    public void failed() {
+        samples++;
+        errorRate = average(errorRate, 1);
+    }
+
+    private static double average(double average, double sample) {
+        if (average < 0)
+            return sample;
+
+        return DECAY * sample + (1 - DECAY) * average;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Get the number of parts which gave the best throughput.
+     *
+     * @return The number of parts.
+     */
+    public int getPartsCount() {
+        return partsCount;
+    }
+
+    /**
+     * Get the throughput with the best number of parts.
+     *
+     * @return The throughput in bytes per second, or 0 if it is unknown.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Get the time to first byte.
+     *
+     * @return The time in milliseconds, or -1 if it is unknown.
+     */
+    public double getTtfbMillis() {
+        return ttfbMillis;
+    }
+
+    /**
+     * Get the rate of failures: segment retries per part, and whole failed
+     * downloads.
+     *
+     * @return The rate.
+     */
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public boolean isRangesSupported() {
+        return rangesSupported;
+    }
+
+    /**
+     * Get the number of downloads the profile learned from.
+     *
+     * @return The number of downloads.
+     */
+    public int getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Class: HostResolver.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves a host name to its addresses, for the engine's DNS cache.
+ *
+ * @author quan
+ */
+@FunctionalInterface
+public interface HostResolver {
+
+    /**
+     * The JVM's resolver.
+     */
+    HostResolver SYSTEM = InetAddress::getAllByName;
+
+    /**
+     * Resolve the given host name.
+     *
+     * @param host The host name.
+     * @return All addresses of the host.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -6,10 +6,28 @@
  */
 package personal.qtdownloader;
 
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
 public class HttpResult {
 
     public int responseCode;
     public long contentLength;
+
+    /**
+     * Whether the response was a partial one for the requested range.
+     */
+    public boolean rangesSupported;
+
+    /**
+     * Whether the server advertised "Accept-Ranges: bytes".
+     */
+    public boolean rangesAdvertised;
+
+    /**
+     * The Content-Encoding of the response, or null if it is not encoded.
+     */
+    public String contentEncoding;
     
     public HttpResult() {
         responseCode = 404;
@@ -25,4 +43,98 @@ public class HttpResult {
         responseCode = r;
         contentLength = c;
     }
+
+    /**
+     * Get the result of the given connection's response. For a partial
+     * response the content length is the complete length from the
+     * Content-Range header, not the length of the range.
+     *
+     * @param conn The connection whose response has been received.
+     * @return The result.
+     * @throws IOException if the response cannot be read.
+     */
+    public static HttpResult fromConnection(HttpURLConnection conn)
+            throws IOException {
+        int responseCode = conn.getResponseCode();
+        long contentLength = conn.getContentLengthLong();
+        String contentRange = conn.getHeaderField("Content-Range");
+
+        // A partial response counts only if it says which range it is.
+        boolean partial = responseCode == HttpURLConnection.HTTP_PARTIAL
+                && parseContentRangeStart(contentRange) != -1;
+        if (partial)
+            contentLength = parseContentRangeLength(contentRange);
+
+        HttpResult result = new HttpResult(responseCode, contentLength);
+        result.rangesSupported = partial;
+        result.rangesAdvertised = "bytes".equalsIgnoreCase(
+                conn.getHeaderField("Accept-Ranges"));
+        result.contentEncoding = parseContentEncoding(conn.getContentEncoding());
+
+        return result;
+    }
+
+    /**
+     * Normalize the value of a Content-Encoding header.
+     *
+     * @param contentEncoding The header's value.
+     * @return The encoding in lower case, or null if the header is missing
+     * or says that the content is not encoded.
+     */
+    public static String parseContentEncoding(String contentEncoding) {
+        if (contentEncoding == null)
+            return null;
+
+        String encoding = contentEncoding.trim().toLowerCase();
+        if (encoding.isEmpty() || encoding.equals("identity"))
+            return null;
+
+        return encoding.equals("x-gzip") ? "gzip" : encoding;
+    }
+
+    /**
+     * Get the first byte's position from a "bytes start-end/length"
+     * Content-Range header.
+     *
+     * @param contentRange The header's value.
+     * @return The first byte's position, or -1 if the header is missing or
+     * malformed.
+     */
+    public static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return -1;
+
+        int dash = contentRange.indexOf('-');
+        if (dash == -1)
+            return -1;
+
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the complete length from a "bytes start-end/length" Content-Range
+     * header.
+     *
+     * @param contentRange The header's value.
+     * @return The complete length, or -1 if it is unknown.
+     */
+    public static long parseContentRangeLength(String contentRange) {
+        if (contentRange == null)
+            return -1;
+
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1)
+            return -1;
+
+        String length = contentRange.substring(slash + 1).trim();
+        try {
+            return length.equals("*") ? -1 : Long.parseLong(length);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
 }
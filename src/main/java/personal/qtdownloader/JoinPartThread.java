@@ -18,12 +18,69 @@ public class JoinPartThread implements Callable<Long> {
     
     private final String mainFileName;
     private final String partFileName;
+    private final long position;
     private final long partSize;
+    private final ExtractThread extractThread;
+    private final DurabilityPolicy durability;
     
     public JoinPartThread(String mainFileName, String partFileName, long partSize) {
+        this(mainFileName, partFileName, partSize, null);
+    }
+    
+    /**
+     * Create a join part thread which feeds the part to the given extract
+     * stage instead of appending it to the main file.
+     *
+     * @param mainFileName The main file's name.
+     * @param partFileName The part file's name.
+     * @param partSize The size of the part.
+     * @param extractThread The extract stage, or null to append to the main
+     * file.
+     */
+    public JoinPartThread(String mainFileName, String partFileName, long partSize,
+            ExtractThread extractThread) {
+        this(mainFileName, partFileName, -1, partSize, extractThread);
+    }
+    
+    /**
+     * Create a join part thread which writes the part at the given position
+     * of the main file, so that the parts can be joined in any order.
+     *
+     * @param mainFileName The main file's name.
+     * @param partFileName The part file's name.
+     * @param position The position of the part in the main file, or -1 to
+     * append the part to the main file.
+     * @param partSize The size of the part.
+     * @param extractThread The extract stage, or null to write to the main
+     * file.
+     */
+    public JoinPartThread(String mainFileName, String partFileName, long position,
+            long partSize, ExtractThread extractThread) {
+        this(mainFileName, partFileName, position, partSize, extractThread,
+                DurabilityPolicy.NONE);
+    }
+    
+    /**
+     * Create a join part thread which forces the main file to the disk as
+     * often as the given policy asks for while writing the part.
+     *
+     * @param mainFileName The main file's name.
+     * @param partFileName The part file's name.
+     * @param position The position of the part in the main file, or -1 to
+     * append the part to the main file.
+     * @param partSize The size of the part.
+     * @param extractThread The extract stage, or null to write to the main
+     * file.
+     * @param durability When the main file is forced to the disk.
+     */
+    public JoinPartThread(String mainFileName, String partFileName, long position,
+            long partSize, ExtractThread extractThread, DurabilityPolicy durability) {
+        this.durability = durability;
         this.mainFileName = mainFileName;
         this.partFileName = partFileName;
+        this.position = position;
         this.partSize = partSize;
+        this.extractThread = extractThread;
     }
     
     private long writeDataToMainFile() throws IOException {
@@ -32,15 +89,48 @@ public class JoinPartThread implements Callable<Long> {
             FileChannel mainChannel = mainFile.getChannel();
             FileChannel partFileChannel = partFile.getChannel();
             
-            // Start appending the data at the end of the main file
-            long mainFileSize = mainFile.length();
+            // Start writing the data at the part's position, or append it at
+            // the end of the main file
+            long mainFileSize = (position == -1) ? mainFile.length() : position;
+            
+            // Try tranferring until it's done or an exception is thrown. A
+            // periodic durability policy syncs between the transfers.
+            long transferredBytes = 0;
+            DurabilityPolicy.Tracker tracker = durability.newTracker();
+            
+            while (transferredBytes != partSize) {
+                long result = mainChannel.transferFrom(partFileChannel,
+                    mainFileSize + transferredBytes, Math.min(partSize - transferredBytes,
+                            durability.getSyncBytes()));
+                
+                // The part file is shorter than the part
+                if (result == 0)
+                    break;
+                
+                transferredBytes += result;
+                tracker.written(mainChannel, result);
+            }
+            
+            return transferredBytes;
+        }
+    }
+    
+    private long feedDataToExtractThread() throws IOException, InterruptedException {
+        try (RandomAccessFile partFile = new RandomAccessFile(partFileName, "r")) {
+            byte[] data = new byte[(int) Math.pow(2, 16)]; // 64KB
             
-            // Try tranferring until it's done or an exception is thrown
+            // Read the part file in order and hand it to the extract stage
             long transferredBytes = 0;
             
             while (transferredBytes != partSize) {
-                transferredBytes += mainChannel.transferFrom(partFileChannel,
-                    mainFileSize + transferredBytes, partSize);
+                int toRead = (int) Math.min(data.length, partSize - transferredBytes);
+                int result = partFile.read(data, 0, toRead);
+                
+                if (result == -1)
+                    break;
+                
+                extractThread.feed(data, result);
+                transferredBytes += result;
             }
             
             return transferredBytes;
@@ -54,7 +144,11 @@ public class JoinPartThread implements Callable<Long> {
      */
     @Override
     public Long call() throws Exception {
-        Long result = writeDataToMainFile();
+        DownloadEvents.Join joinEvent = DownloadEvents.beginJoin(partFileName, position);
+        Long result = (extractThread == null) ? writeDataToMainFile()
+                : feedDataToExtractThread();
+        if (joinEvent != null)
+            joinEvent.done(result);
         
         return result;
     }
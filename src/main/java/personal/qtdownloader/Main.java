@@ -6,34 +6,52 @@
  */
 package personal.qtdownloader;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
-import java.sql.*;
+import java.nio.file.Paths;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class Main {
 
     public static String mURL;
     public static HashMap<String, String> userOptions;
-    public static Connection dbConn;
+    public static SessionStore sessionStore;
 
     public static final String PROGRAM_DIR;
     public static final String PROGRAM_TEMP_DIR;
     public static final String DATABASE_FILE;
     public static final String DATABASE_PATH;
     public static final String TABLE_NAME;
+    public static final String DAEMON_PORT_FILE;
     
     public static final HashMap<String, String> cmdLineOptions;
+    
+    private static final Instant MAIN_START = Instant.now();
+    private static final String DEFAULT_CACHE_SIZE = "10G";
 
     /**
      * Initialize static final fields.
@@ -43,12 +61,43 @@ public class Main {
         cmdLineOptions = new HashMap<>();
         cmdLineOptions.put("-o", "Output file's directory");
         cmdLineOptions.put("-f", "Output file name");
+        cmdLineOptions.put("--delta", "Older local version of the file to download only the changed blocks against");
+        cmdLineOptions.put("--blocksums", "Block checksum file of the file, for --delta");
+        cmdLineOptions.put("--make-blocksums", "Write the block checksum file of the given file, then exit");
+        cmdLineOptions.put("--fsync", "When to force the data to the disk: none, completion (default), or every <N>M and/or <T>s, such as 64M,10s");
+        cmdLineOptions.put("--workers", "Comma separated host:port range workers to hand the segments to");
+        cmdLineOptions.put("--worker", "Run as a range worker listening on the given port, then exit when stopped");
+        cmdLineOptions.put("--worker-token", "The token the range workers and their coordinators share");
+        cmdLineOptions.put("--worker-bind", "Address the range worker listens on (default 127.0.0.1). The token and the Authorization header travel unencrypted, so only bind to a trusted network");
+        cmdLineOptions.put("--proxy", "Run as a caching proxy of the --origins listening on the given port, then exit when stopped");
+        cmdLineOptions.put("--origins", "Comma separated URLs of the origins the caching proxy serves");
+        cmdLineOptions.put("--cache-dir", "Directory of the caching proxy's cache");
+        cmdLineOptions.put("--cache-size", "Size of the caching proxy's cache, such as 10G (default)");
+        cmdLineOptions.put("--mirror", "Mirror the files under the URL, as listed by its index pages, into the output directory");
+        cmdLineOptions.put("--include", "Only mirror the files whose relative path matches the given regular expression");
+        cmdLineOptions.put("--exclude", "Do not mirror the files and directories whose relative path matches the given regular expression");
+        cmdLineOptions.put("--manifest", "Download the URLs listed in the given file, one per line, skipping those completed by an earlier run");
+        cmdLineOptions.put("--jobs", "Number of files mirrored or downloaded from a manifest at the same time (default 4)");
+        cmdLineOptions.put("--host-jobs", "Number of files mirrored at the same time from each host (default 2)");
+        cmdLineOptions.put("--compressed", "Ask the server to send the file gzip encoded and decode it while downloading");
+        cmdLineOptions.put("--direct", "Write the file with direct I/O, bypassing the page cache, for very large downloads");
         cmdLineOptions.put("-h", "Print usage");
         cmdLineOptions.put("--help", "Print usage");
         cmdLineOptions.put("-u", "HTTP authorization username");
         cmdLineOptions.put("--username", "HTTP authorization username");
         cmdLineOptions.put("-p", "HTTP authorization password");
         cmdLineOptions.put("--password", "HTTP authorization password");
+        cmdLineOptions.put("--daemon", "Run as a daemon which the next runs submit their downloads to");
+        cmdLineOptions.put("--no-daemon", "Download in this process even if a daemon is running");
+        cmdLineOptions.put("--stop-daemon", "Stop the running daemon");
+        cmdLineOptions.put("--timing", "Print the time spent before the first byte arrived and in TLS handshakes");
+        cmdLineOptions.put("--json", "Print the progress as newline-delimited JSON events");
+        cmdLineOptions.put("-s", "Size in bytes below which a file is downloaded in a single request");
+        cmdLineOptions.put("--small-file", "Size in bytes below which a file is downloaded in a single request");
+        cmdLineOptions.put("-z", "Decompress the file while downloading");
+        cmdLineOptions.put("--decompress", "Decompress the file while downloading");
+        cmdLineOptions.put("-x", "Decompress and unpack the tar archive into the output directory while downloading");
+        cmdLineOptions.put("--extract", "Decompress and unpack the tar archive into the output directory while downloading");
 
         // Set up necessary directory paths
         String programDir = System.getenv("HOME") + "/.QTDownloader";
@@ -80,10 +129,15 @@ public class Main {
         PROGRAM_DIR = programDir;
         PROGRAM_TEMP_DIR = programTmpDir;
         
-        // Set up database path
+        // Set up database path. Downloads running at the same time in other
+        // processes share the database through the first one's server.
         DATABASE_FILE = "qtdb";
-        DATABASE_PATH = "jdbc:h2:" + programDir + "\\" + DATABASE_FILE;
-        TABLE_NAME = "sessions";
+        DATABASE_PATH = "jdbc:h2:" + programDir + "\\" + DATABASE_FILE
+                + ";AUTO_SERVER=TRUE";
+        TABLE_NAME = SessionStore.TABLE_NAME;
+        
+        // The daemon's port and access token
+        DAEMON_PORT_FILE = programDir + File.separator + "daemon.port";
     }
 
     /**
@@ -91,12 +145,35 @@ public class Main {
      * @param args Array of arguments.
      */
     public static void main(String[] args) {
+        // Segments sent to one of the host's addresses carry the host in
+        // their Host header, which the JVM only allows with this property.
+        // It must be set before the first HTTP connection.
+        if (System.getProperty("sun.net.http.allowRestrictedHeaders") == null)
+            System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+
         // Parse the arguments
         if (args.length == 0) {
             printUsage();
             System.exit(0);
         }
 
+        // Submit the download to the daemon if one is running. Otherwise
+        // start opening the database in the background, so that it overlaps
+        // with checking the arguments and the URL.
+        List<String> argList = Arrays.asList(args);
+        boolean noDownload = argList.contains("--stop-daemon")
+                || argList.contains("--make-blocksums")
+                || argList.contains("--worker")
+                || argList.contains("--proxy")
+                || argList.contains("--manifest");
+        DaemonClient daemon = null;
+        if (!argList.contains("--daemon") && !argList.contains("--no-daemon")
+                && !argList.contains("--mirror") && !noDownload)
+            daemon = DaemonClient.connect(Paths.get(DAEMON_PORT_FILE));
+        if (daemon == null && !noDownload)
+            setUpDatabase();
+
+
         userOptions = new HashMap<>();
         try {
             userOptions = readArgumentOptions(args);
@@ -104,93 +181,406 @@ public class Main {
             printErrorMessage(ex);
         }
 
+        // Run or stop the daemon
+        if (userOptions.containsKey("--daemon")) {
+            runDaemon();
+            return;
+        }
+        if (userOptions.containsKey("--stop-daemon")) {
+            stopDaemon();
+            return;
+        }
+        if (userOptions.containsKey("--make-blocksums")) {
+            makeBlockSums(userOptions.get("--make-blocksums"));
+            return;
+        }
+        if (userOptions.containsKey("--proxy")) {
+            runProxy(Integer.parseInt(userOptions.get("--proxy")));
+            return;
+        }
+        if (userOptions.containsKey("--manifest")) {
+            runManifest(userOptions.get("--manifest"));
+            return;
+        }
+        if (userOptions.containsKey("--worker")) {
+            runWorker(userOptions.get("--worker-bind"),
+                    Integer.parseInt(userOptions.get("--worker")),
+                    userOptions.get("--worker-token"));
+            return;
+        }
+
         mURL = args[args.length - 1]; // The url is the last argument.
-        int partsCount = 8;           // Number of parts to divide to download.
-        
-        // Set up the database
-        setUpDatabase();
+        if (userOptions.containsKey("--mirror")) {
+            runMirror(mURL);
+            return;
+        }
+
+        // A Metalink file gives the URLs and hashes of the file, which is
+        // downloaded from its first URL.
+        Metalink metalink = null;
+        if (Metalink.isMetalinkFile(mURL) && new File(mURL).isFile()) {
+            try {
+                metalink = Metalink.parse(Paths.get(mURL));
+                mURL = metalink.getUrls().get(0);
+            } catch (IOException ex) {
+                printErrorMessage(new RuntimeException("qtdownloader: "
+                        + ex.getMessage(), ex));
+            }
+        }
         
         // Check if the file has been downloaded or not
-        String fileName = new File(mURL).getName();
-        DownloadSession currentDownloadSession;
-        currentDownloadSession = checkIfFileWasDownloaded(fileName, mURL);
-
-        // If the last attempt to download the file was interrupted and
-        // the user chose to resume downloading.
-        userOptions.put("resume", currentDownloadSession.resumeDownload ? "y" : "n");
+        DownloadSession currentDownloadSession = null;
+        if (daemon != null) {
+            try {
+                currentDownloadSession = daemon.findSession(mURL);
+            } catch (IOException ex) {
+                daemon.close();
+                daemon = null;
+                setUpDatabase();
+            }
+        }
+        if (daemon == null)
+            currentDownloadSession = sessionStore.find(mURL);
+        checkIfFileWasDownloaded(currentDownloadSession);
 
         // If the user chooses to cancel downloading, exit the program
         if (currentDownloadSession.cancelDownload) {
             return;
         }
         
-        // Start new download with the given URL
-        Download newDownload = new Download(mURL, partsCount);
-
-        // Start the download.
-        newDownload.startThread();
-
-        // Wait for the main download thread to end.
+        // Build the download's configuration from the user's options. The
+        // file is resumed if the last attempt to download it was interrupted
+        // and the user chose to resume downloading.
+        DownloadConfig.Builder configBuilder = ((metalink == null)
+                ? new DownloadConfig.Builder(mURL) : new DownloadConfig.Builder(metalink))
+                .tempDirectory(PROGRAM_TEMP_DIR)
+                .resume(currentDownloadSession.resumeDownload)
+                .decompress(userOptions.containsKey("-z"))
+                .extract(userOptions.containsKey("-x"))
+                .compressedTransfer(userOptions.containsKey("--compressed"))
+                .directIo(userOptions.containsKey("--direct"));
+        if (userOptions.containsKey("-o"))
+            configBuilder.outputDirectory(userOptions.get("-o"));
+        if (userOptions.containsKey("-f"))
+            configBuilder.fileName(userOptions.get("-f"));
+        if (userOptions.containsKey("-s"))
+            configBuilder.smallFileThreshold(Long.parseLong(userOptions.get("-s")));
+        if (userOptions.containsKey("-u") && userOptions.containsKey("-p"))
+            configBuilder.credentials(userOptions.get("-u"), userOptions.get("-p"));
+        if (userOptions.containsKey("--workers")) {
+            try {
+                configBuilder.workers(Arrays.asList(userOptions.get("--workers").split(",")),
+                        userOptions.get("--worker-token"));
+            } catch (IllegalArgumentException ex) {
+                printErrorMessage(new RuntimeException("qtdownloader: "
+                        + ex.getMessage(), ex));
+            }
+        }
+        if (userOptions.containsKey("--fsync"))
+            configBuilder.durability(DurabilityPolicy.parse(userOptions.get("--fsync")));
+        if (userOptions.containsKey("--delta")) {
+            try {
+                configBuilder.delta(userOptions.get("--delta"),
+                        BlockSums.parse(Paths.get(userOptions.get("--blocksums"))));
+            } catch (IOException ex) {
+                printErrorMessage(new RuntimeException("qtdownloader: "
+                        + ex.getMessage(), ex));
+            }
+        }
+        DownloadConfig config = null;
         try {
-            newDownload.joinThread();
+            config = configBuilder.build();
+        } catch (IllegalArgumentException ex) {
+            printErrorMessage(new RuntimeException("qtdownloader: "
+                    + ex.getMessage(), ex));
+        }
+        
+        // Check if there is a file whose name is the same as the output file.
+        // There is no main file when the download is unpacked.
+        boolean checkResult = !config.isUntar();
+        
+        while (checkResult) {
+            try {
+                DownloadConfig checkedConfig = checkForDuplicateFileInFolder(config);
+                checkResult = (checkedConfig != config);
+                config = checkedConfig;
+            } catch (IOException ex) {
+                RuntimeException rte = new RuntimeException(
+                        "Error while reading user's choice", ex);
+                printErrorMessage(rte);
+            }
+        }
+        
+        // Start the download. In JSON mode only the events are printed to
+        // the standard output.
+        boolean json = userOptions.containsKey("--json");
+        ProgressHandler progressHandler = json
+                ? new NdjsonProgressHandler(System.out) : new ConsoleProgressHandler();
+        DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
+        if (!json) {
+            System.out.println("\n--- " + dateFormat.format(new Date()) + " ---\n");
+            System.out.println("Downloading from: " + mURL);
+            System.out.println("Sending HTTP request...");
+        }
+        
+        // Start new download with the given URL and wait for it to finish.
+        DownloadResult result = null;
+        if (daemon != null) {
+            // The daemon saves the session itself.
+            try (DaemonClient client = daemon) {
+                result = client.download(config, progressHandler);
+            } catch (IOException | RuntimeException ex) {
+                printErrorMessage(ex);
+            }
+        } else try (DownloadEngine engine = new DownloadEngine()) {
+            engine.setProfileStore(sessionStore);
+            result = engine.submit(config, progressHandler).get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            printErrorMessage((cause instanceof Exception) ? (Exception) cause : ex);
         } catch (InterruptedException ex) {
             printErrorMessage(ex);
         }
 
-        // Save the download to the downloaded file list
-        currentDownloadSession.setDownloadSize(newDownload.getDownloadedSize());
-        writeDownloadSessionInfoToDB(currentDownloadSession);
+        // Notify that all parts have finished downloading
+        if (!json && result.getExtractedSize() != -1) {
+            System.out.println("\n\nExtracted "
+                    + Utility.readableFileSize(result.getExtractedSize())
+                    + " to " + result.getOutputPath());
+        }
         
-        // Close the database
-        try {
-            if (dbConn != null)
-                dbConn.close();
-        } catch (SQLException ex) {
-            // Fuck it then.
-            // Jk, log the error. Still, fuck it.
-            // TODO Log the error
+        if (!json) {
+            double downloadTime = ((double) result.getDownloadTime().toMillis()) / 1000;
+            System.out.println("\n\nTotal download time: " + downloadTime);
+            
+            if (userOptions.containsKey("--timing"))
+                printTiming(result);
+            
+            // Print the current time
+            System.out.println("Finished downloading!");
+            System.out.println("\n--- " + dateFormat.format(new Date()) + " ---");
+        }
+
+        // Save the download to the downloaded file list and close the
+        // database
+        if (daemon == null) {
+            currentDownloadSession.setDownloadSize(result.getDownloadedSize());
+            sessionStore.save(currentDownloadSession);
+            sessionStore.close();
         }
     }
     
     /**
-     * Connect to the database and set up the table for using.
+     * Print how long the JVM took to start, how long it took from then
+     * until the first byte of data arrived and the time spent in the TLS
+     * handshakes.
+     *
+     * @param result The result of the download.
      */
-    public static void setUpDatabase() {
+    private static void printTiming(DownloadResult result) {
+        Instant jvmStart = Instant.ofEpochMilli(
+                ManagementFactory.getRuntimeMXBean().getStartTime());
+        
+        System.out.println("JVM start to main: "
+                + Duration.between(jvmStart, MAIN_START).toMillis() + " ms");
+        if (result.getFirstByteTime() != null) {
+            System.out.println("Main to first byte: " + Duration.between(
+                    MAIN_START, result.getFirstByteTime()).toMillis() + " ms");
+            System.out.println("Time to first byte: " + Duration.between(
+                    jvmStart, result.getFirstByteTime()).toMillis() + " ms");
+        }
+        if (result.getHandshakeCount() > 0) {
+            System.out.println("TLS handshakes: " + result.getHandshakeCount()
+                    + " (" + result.getResumedHandshakeCount() + " resumed), "
+                    + result.getHandshakeTime().toMillis() + " ms in total");
+        }
+        System.out.println("Parts: " + result.getPartsCount() + ", "
+                + result.getRetryCount() + " segment retries");
+    }
+    
+    /**
+     * Write the block checksum file of the given file next to it, for
+     * others to download it as a delta.
+     *
+     * @param fileName The file's name.
+     */
+    private static void makeBlockSums(String fileName) {
         try {
-	    Class.forName("org.h2.Driver");
-        } catch (ClassNotFoundException ex) {
-            // If the class cannot be found (which should never happen)
-            // The program cannot save the download information in the database
-            // TODO Log the error
-            
-            System.out.println("[WARNING] Cannot find h2 driver: org.h2.driver ");
-            return;
+            BlockSums blockSums = BlockSums.compute(Paths.get(fileName),
+                    BlockSums.DEFAULT_BLOCK_SIZE);
+            String blockSumsFile = fileName + BlockSums.FILE_EXTENSION;
+            blockSums.write(Paths.get(blockSumsFile));
+            System.out.println("Wrote " + blockSumsFile);
+        } catch (IOException ex) {
+            printErrorMessage(new RuntimeException("qtdownloader: "
+                    + ex.getMessage(), ex));
         }
-        
+    }
+
+    /**
+     * Run a caching proxy on all the interfaces until the process is
+     * stopped.
+     *
+     * @param port The port to listen on.
+     */
+    private static void runProxy(int port) {
+        String origins = userOptions.get("--origins");
+        if (origins == null)
+            printErrorMessage(new RuntimeException("qtdownloader: The proxy needs --origins"));
+
+        String cacheDir = userOptions.getOrDefault("--cache-dir",
+                PROGRAM_DIR + File.separator + "cache");
+        long cacheSize = Utility.parseSize(userOptions.getOrDefault("--cache-size",
+                DEFAULT_CACHE_SIZE));
+
+        try (ChunkCache cache = new ChunkCache(Paths.get(cacheDir), cacheSize,
+                ChunkCache.DEFAULT_CHUNK_SIZE, ChunkCache.DEFAULT_FETCH_THREADS);
+                CachingProxy proxy = new CachingProxy(new InetSocketAddress(port),
+                        Arrays.asList(origins.split(",")), cache)) {
+            proxy.start();
+            System.out.println("QTDownloader caching proxy listening on port "
+                    + proxy.getPort());
+            Thread.currentThread().join();
+        } catch (IOException | IllegalArgumentException ex) {
+            printErrorMessage(new RuntimeException("qtdownloader: "
+                    + ex.getMessage(), ex));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Mirror the files under the given URL into the output directory, then
+     * print how many were downloaded.
+     *
+     * @param url The URL of the directory to mirror.
+     */
+    private static void runMirror(String url) {
+        Mirror mirror = null;
         try {
-            dbConn = DriverManager.getConnection(DATABASE_PATH, "", "");
-        } catch (SQLException ex) {
-            System.out.println("[WARNING] Cannot connect to the database");
+            Mirror.Builder builder = new Mirror.Builder(Collections.singletonList(url))
+                    .outputDirectory(userOptions.getOrDefault("-o", "./"))
+                    .tempDirectory(PROGRAM_TEMP_DIR)
+                    .credentials(userOptions.get("-u"), userOptions.get("-p"))
+                    .sessionStore(sessionStore)
+                    .log(System.out);
+            if (userOptions.containsKey("--include"))
+                builder.include(Pattern.compile(userOptions.get("--include")));
+            if (userOptions.containsKey("--exclude"))
+                builder.exclude(Pattern.compile(userOptions.get("--exclude")));
+            if (userOptions.containsKey("--jobs"))
+                builder.maxDownloads(Integer.parseInt(userOptions.get("--jobs")));
+            if (userOptions.containsKey("--host-jobs"))
+                builder.maxDownloadsPerHost(Integer.parseInt(userOptions.get("--host-jobs")));
+            mirror = builder.build();
+        } catch (IllegalArgumentException ex) {
+            printErrorMessage(new RuntimeException("qtdownloader: "
+                    + ex.getMessage(), ex));
+        }
+
+        try (DownloadEngine engine = new DownloadEngine()) {
+            engine.setProfileStore(sessionStore);
+            Mirror.Result result = mirror.run(engine);
+            System.out.println("\nMirrored " + result.getDownloadedCount() + " files ("
+                    + Utility.readableFileSize(result.getDownloadedSize()) + "), "
+                    + result.getSkippedCount() + " unchanged, "
+                    + result.getFailedCount() + " failed");
+        } catch (InterruptedException ex) {
+            printErrorMessage(ex);
+        } finally {
+            sessionStore.close();
+        }
+    }
+
+    /**
+     * Download the URLs listed in the given manifest into the output
+     * directory, then print how many were downloaded.
+     *
+     * @param manifest The manifest file.
+     */
+    private static void runManifest(String manifest) {
+        ManifestBatch.Builder builder = new ManifestBatch.Builder(Paths.get(manifest))
+                .outputDirectory(userOptions.getOrDefault("-o", "./"))
+                .tempDirectory(PROGRAM_TEMP_DIR)
+                .credentials(userOptions.get("-u"), userOptions.get("-p"))
+                .log(System.out);
+        if (userOptions.containsKey("--jobs"))
+            builder.maxDownloads(Integer.parseInt(userOptions.get("--jobs")));
+
+        try (DownloadEngine engine = new DownloadEngine()) {
+            ManifestBatch.Result result = builder.build().run(engine);
+            System.out.println("\nDownloaded " + result.getDownloadedCount() + " files ("
+                    + Utility.readableFileSize(result.getDownloadedSize()) + "), "
+                    + result.getSkippedCount() + " already done, "
+                    + result.getFailedCount() + " failed");
+        } catch (IOException ex) {
+            printErrorMessage(new RuntimeException("qtdownloader: "
+                    + ex.getMessage(), ex));
+        } catch (InterruptedException ex) {
+            printErrorMessage(ex);
+        }
+    }
+
+    /**
+     * Run a range worker until the process is stopped. It only listens on
+     * the loopback interface unless given another address.
+     *
+     * @param bind The address to listen on, or null for the loopback one.
+     * @param port The port to listen on.
+     * @param token The token the coordinators must send.
+     */
+    private static void runWorker(String bind, int port, String token) {
+        try (RangeWorker worker = new RangeWorker(bind == null
+                ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind),
+                port, token)) {
+            System.out.println("QTDownloader range worker listening on port "
+                    + worker.getPort());
+            worker.serve();
+        } catch (IOException | IllegalArgumentException ex) {
+            printErrorMessage(new RuntimeException("qtdownloader: "
+                    + ex.getMessage(), ex));
+        }
+    }
+
+    /**
+     * Run the daemon until it is stopped.
+     */
+    private static void runDaemon() {
+        try (DaemonServer server = new DaemonServer(Paths.get(DAEMON_PORT_FILE),
+                sessionStore)) {
+            System.out.println("QTDownloader daemon listening on port "
+                    + server.getPort());
+            server.serve();
+        } catch (IOException ex) {
+            printErrorMessage(ex);
+        } finally {
+            sessionStore.close();
+        }
+    }
+    
+    /**
+     * Ask the running daemon to stop.
+     */
+    private static void stopDaemon() {
+        DaemonClient daemon = DaemonClient.connect(Paths.get(DAEMON_PORT_FILE));
+        if (daemon == null) {
+            System.err.println("qtdownloader: No daemon is running");
             return;
         }
         
-        // Create the table if not exists
-        String createTableQuery = "CREATE TABLE IF NOT EXISTS "
-                + TABLE_NAME + " ("
-                + "id INT NOT NULL AUTO_INCREMENT,"
-                + "PRIMARY KEY(ID),"
-                + "file_name VARCHAR(255),"
-                + "url VARCHAR(2083),"
-                + "downloaded_size BIGINT,"
-                + "downloaded_date TIMESTAMP);";
-        
-        try {
-            PreparedStatement stmt = dbConn.prepareStatement(createTableQuery);
-            stmt.executeUpdate();
-        } catch (SQLException ex) {
-            System.out.println("[WARNING] Cannot create information table in the database");
+        try (DaemonClient client = daemon) {
+            client.shutdown();
+        } catch (IOException ex) {
+            printErrorMessage(ex);
         }
     }
+    
+    /**
+     * Start connecting to the database in the background.
+     */
+    public static void setUpDatabase() {
+        sessionStore = SessionStore.open(DATABASE_PATH);
+    }
 
     /**
      * Read the options the user provided from the given list of arguments.
@@ -271,6 +661,248 @@ public class Main {
                         i++;
                         break;
                     }
+                    case "--daemon":
+                    case "--no-daemon":
+                    case "--stop-daemon": {
+                        /*
+                         * --daemon, --no-daemon and --stop-daemon: Run,
+                         * bypass or stop the daemon.
+                         */
+                        
+                        usrOptions.put(arg, "y");
+                        break;
+                    }
+                    case "--timing": {
+                        /*
+                         * --timing: Print the startup, time-to-first-byte
+                         * and TLS handshake timings.
+                         */
+                        
+                        usrOptions.put("--timing", "y");
+                        break;
+                    }
+                    case "--json": {
+                        /*
+                         * --json: Print the progress as JSON events instead
+                         * of the progress bar.
+                         */
+                        
+                        usrOptions.put("--json", "y");
+                        break;
+                    }
+                    case "-s":
+                    case "--small-file": {
+                        /*
+                         * -s or --small-file: Size below which a file is
+                         * downloaded in a single request.
+                         */
+                        
+                        try {
+                            if (Long.parseLong(optionValue) < 0)
+                                throw new NumberFormatException();
+                        } catch (NumberFormatException ex) {
+                            String errMessage = "qtdownloader: Invalid small file size - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put("-s", optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--delta":
+                    case "--blocksums":
+                    case "--make-blocksums":
+                    case "--manifest": {
+                        /*
+                         * --delta, --blocksums and --make-blocksums: The
+                         * older file and the block checksum file of a delta
+                         * download, or the file to write the block checksum
+                         * file of. --manifest: The list of URLs to download.
+                         */
+                        
+                        if (optionValue == null || !new File(optionValue).isFile()) {
+                            String errMessage = "qtdownloader: No such file - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put(arg, optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--workers":
+                    case "--worker-token":
+                    case "--worker-bind": {
+                        /*
+                         * --workers and --worker-token: The range workers
+                         * to hand the segments to and their token.
+                         * --worker-bind: The address a range worker
+                         * listens on.
+                         */
+                        
+                        if (optionValue == null || optionValue.isEmpty()) {
+                            String errMessage = "qtdownloader: Missing value of " + arg;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put(arg, optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--origins":
+                    case "--cache-dir": {
+                        /*
+                         * --origins and --cache-dir: The origins and the
+                         * cache directory of the caching proxy.
+                         */
+                        
+                        if (optionValue == null || optionValue.isEmpty()) {
+                            String errMessage = "qtdownloader: Missing value of " + arg;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put(arg, optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--cache-size": {
+                        /*
+                         * --cache-size: The size of the proxy's cache.
+                         */
+                        
+                        try {
+                            if (optionValue == null)
+                                throw new IllegalArgumentException("No cache size");
+                            Utility.parseSize(optionValue);
+                        } catch (IllegalArgumentException ex) {
+                            String errMessage = "qtdownloader: Invalid cache size - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put("--cache-size", optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--proxy":
+                    case "--worker": {
+                        /*
+                         * --proxy and --worker: Run as a caching proxy or a
+                         * range worker on the given port.
+                         */
+                        
+                        try {
+                            Integer.parseInt(optionValue);
+                        } catch (NumberFormatException ex) {
+                            String errMessage = "qtdownloader: Invalid port - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put(arg, optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--fsync": {
+                        /*
+                         * --fsync: The durability policy.
+                         */
+                        
+                        try {
+                            DurabilityPolicy.parse(optionValue);
+                        } catch (IllegalArgumentException | NullPointerException ex) {
+                            String errMessage = "qtdownloader: Invalid fsync policy - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put("--fsync", optionValue);
+                        i++;
+                        break;
+                    }
+                    case "-z":
+                    case "--decompress": {
+                        /*
+                         * -z or --decompress: Decompress the downloaded file.
+                         */
+                        
+                        usrOptions.put("-z", "y");
+                        break;
+                    }
+                    case "-x":
+                    case "--extract": {
+                        /*
+                         * -x or --extract: Decompress and unpack the
+                         * downloaded archive into the output directory.
+                         */
+                        
+                        usrOptions.put("-x", "y");
+                        break;
+                    }
+                    case "--mirror": {
+                        /*
+                         * --mirror: Mirror the files under the URL.
+                         */
+                        
+                        usrOptions.put("--mirror", "y");
+                        break;
+                    }
+                    case "--include":
+                    case "--exclude": {
+                        /*
+                         * --include and --exclude: The patterns of the
+                         * relative paths to mirror or not.
+                         */
+                        
+                        try {
+                            Pattern.compile(optionValue);
+                        } catch (PatternSyntaxException | NullPointerException ex) {
+                            String errMessage = "qtdownloader: Invalid pattern - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put(arg, optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--jobs":
+                    case "--host-jobs": {
+                        /*
+                         * --jobs and --host-jobs: The number of files
+                         * mirrored at the same time, in all and per host.
+                         */
+                        
+                        try {
+                            if (Integer.parseInt(optionValue) < 1)
+                                throw new NumberFormatException();
+                        } catch (NumberFormatException ex) {
+                            String errMessage = "qtdownloader: Invalid number of jobs - "
+                                    + optionValue;
+                            throw new RuntimeException(errMessage);
+                        }
+                        
+                        usrOptions.put(arg, optionValue);
+                        i++;
+                        break;
+                    }
+                    case "--compressed": {
+                        /*
+                         * --compressed: Ask for a gzip encoded transfer.
+                         */
+                        
+                        usrOptions.put("--compressed", "y");
+                        break;
+                    }
+                    case "--direct": {
+                        /*
+                         * --direct: Bypass the page cache when writing.
+                         */
+                        
+                        usrOptions.put("--direct", "y");
+                        break;
+                    }
                     case "-h":
                     case "--help": {
                         /*
@@ -283,11 +915,12 @@ public class Main {
                         break;
                 }
             } else {
+                // Only the URL's syntax is checked here, the download's probe
+                // request is the first request sent to the server. A Metalink
+                // file is read later.
                 try {
-                    URL url = new URL(arg);
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("HEAD");
-                    connection.connect();
+                    if (!Metalink.isMetalinkFile(arg) || !new File(arg).isFile())
+                        new URL(arg);
 
                     if (i != args.length - 1) {
                         String errMessage = "qtdownloader: URL must be at the end!";
@@ -300,123 +933,134 @@ public class Main {
             }
         }
 
+        if (usrOptions.containsKey("--delta") != usrOptions.containsKey("--blocksums")) {
+            String errMessage = "qtdownloader: --delta and --blocksums go together";
+            throw new RuntimeException(errMessage);
+        }
+
         return usrOptions;
     }
 
     /**
      * Check if the file being downloaded has been downloaded or not, 
-     * or if the previous download attempt was interrupted.
+     * or if the previous download attempt was interrupted, and ask the user
+     * whether to resume or download again.
      *
      * TODO find a better way to check if the file was downloaded, since http://test.com/test.bin and http://test.com/test.bin?i=1 are just the same.
      *
-     * @param downloadSessionList List of downloaded files and URLs.
+     * @param session The last session of downloading from the URL.
      */
-    private static DownloadSession checkIfFileWasDownloaded(String fileName, String url) {
-        DownloadSession session = new DownloadSession(fileName, url, -1);
-        session.alreadyDownloaded = false;
+    private static void checkIfFileWasDownloaded(DownloadSession session) {
         session.resumeDownload = false;
         
-        // If the database connection is null then assume that the download is new
-        if (dbConn == null)
-            return session;
+        if (!session.alreadyDownloaded)
+            return;
         
-        try {
-            String selectDownloadQuery = "SELECT * FROM " + TABLE_NAME
-                    + " WHERE url='" + url + "';";
-            PreparedStatement stmt = dbConn.prepareStatement(selectDownloadQuery);
-            ResultSet result = stmt.executeQuery();
-            
-            if (result.next()) {
-                long downloadedSize = result.getLong("downloaded_size");
-                session.alreadyDownloaded = true;
-                
-                if (downloadedSize == -1) {
-                    // Downloaded size equal -1 means that the last 
-                    // download attempt failed.
-                    System.out.print("\nYour previous attempt to download"
-                            + " from this URL was interrupted. ");
-                    System.out.print("Do you want to resume downloading? "
-                            + "(y/n) ");
-
-                    char answer = 0;
-                    Scanner reader = new Scanner(System.in);
-                    while (answer != 'y' && answer != 'Y'
-                            && answer != 'n' && answer != 'N') {
-                        answer = reader.next().charAt(0);
-                    }
+        if (session.getDownloadedSize() == -1) {
+            // Downloaded size equal -1 means that the last 
+            // download attempt failed.
+            System.out.print("\nYour previous attempt to download"
+                    + " from this URL was interrupted. ");
+            System.out.print("Do you want to resume downloading? "
+                    + "(y/n) ");
 
-                    if (answer == 'y' || answer == 'Y') {
-                        session.resumeDownload = true;
-                    }
-                } else {
-                    // If it's not -1, the last download attempt succeeded.
-                    System.out.print("\nYou downloaded from this URL. "
-                            + "Do you want to download again? (y/n) ");
-
-                    char answer = 0;
-                    Scanner reader = new Scanner(System.in);
-                    while (answer != 'y' && answer != 'Y'
-                            && answer != 'n' && answer != 'N') {
-                        answer = reader.next().charAt(0);
-                    }
+            char answer = 0;
+            Scanner reader = new Scanner(System.in);
+            while (answer != 'y' && answer != 'Y'
+                    && answer != 'n' && answer != 'N') {
+                answer = reader.next().charAt(0);
+            }
 
-                    if (answer == 'n' || answer == 'N') {
-                        session.cancelDownload = true;
-                    }
-                }
+            if (answer == 'y' || answer == 'Y') {
+                session.resumeDownload = true;
             }
-        } catch (SQLException ex) {
-            // Cannot select the data from database
-            // So we consider this download session as being new
-            // TODO Log the error.
-        }
+        } else {
+            // If it's not -1, the last download attempt succeeded.
+            System.out.print("\nYou downloaded from this URL. "
+                    + "Do you want to download again? (y/n) ");
 
-        return session;
+            char answer = 0;
+            Scanner reader = new Scanner(System.in);
+            while (answer != 'y' && answer != 'Y'
+                    && answer != 'n' && answer != 'N') {
+                answer = reader.next().charAt(0);
+            }
+
+            if (answer == 'n' || answer == 'N') {
+                session.cancelDownload = true;
+            }
+        }
     }
 
     /**
-     * Write the information for the current download session to the database.
-     * 
-     * @param session The current download session
+     * Check if there is a file with the same name as the output file.
+     * If there is, prompt the user to for their choice:
+     * whether to overwrite, or change the file name to something else.
+     *
+     * @param config The download's configuration.
+     * @return The given configuration if the output file can be written,
+     * or a configuration with a new file name which has to be checked again.
      */
-    private static void writeDownloadSessionInfoToDB(DownloadSession session) {
-        // If the database connection is null then don't write information to
-        // the database
-        if (dbConn == null)
-            return;
+    private static DownloadConfig checkForDuplicateFileInFolder(DownloadConfig config)
+            throws IOException {
+        String fileName = config.getFileName();
+        boolean fileExisted = Files.exists(Paths.get(config.getMainFilePath()));
         
-        // Get the download information
-        long downloadedSize = session.getDownloadedSize();
-        String url = session.getURL();
-        String fileName = session.getFileName();
-        
-        try {
-            if (session.alreadyDownloaded) {
-                // If the file has been downloaded before,
-                // update the downloaded size.
-                String updateInfoQuery = "UPDATE " + TABLE_NAME
-                        + " SET downloaded_size=" + downloadedSize
-                        + ",downloaded_date=NOW()"
-                        + " WHERE url='" + url + "';";
-                PreparedStatement stmt = dbConn.prepareStatement(updateInfoQuery);
-                stmt.executeUpdate();
+        if (fileExisted) {
+            // There exists a file with the same name.
+            System.out.println("\nThere is already a file named " + fileName
+                    + " in folder " + config.getOutputDirectory());
+            
+            
+            // Get the user's choice whether to overwrite the file or not.
+            char answer = 0;
+            Scanner reader = new Scanner(System.in);
+            while (answer != 'y' && answer != 'Y'
+                    && answer != 'n' && answer != 'N') {
+                System.out.print("Do you want to overwrite it (y/n)? ");
+                answer = reader.next().charAt(0);
+            }
+            
+            // Check the user's choice.
+            if (answer != 'y') {
+                // If the user wants to, get the user's choice whether to
+                // manually change the filename or not.
+                System.out.println("If you don't want to change the output file, "
+                        + "your file will be renamed to (1)" + fileName + " ");
+                
+                answer = 0;
+                while (answer != 'y' && answer != 'Y'
+                        && answer != 'n' && answer != 'N') {
+                    System.out.print("Do you want to change it? (y/n) ");
+                    answer = reader.next().charAt(0);
+                }
+                
+                if (answer == 'y') {
+                    // If the user wants to manually change it, prompt
+                    // the user for the new file name.
+                    String newFileName = fileName;
+                    
+                    InputStreamReader inp = new InputStreamReader(System.in);
+                    BufferedReader br = new BufferedReader(inp);
+
+                    while (newFileName.equals(fileName) || newFileName.equals("")) {
+                        System.out.print("New file name: ");
+                        newFileName = br.readLine();
+                    }
+                    
+                    fileName = newFileName;
+                } else {
+                    // If the user doesn't want to, append a prefix.
+                    fileName = "(1)" + fileName;
+                }
+                
+                return config.toBuilder().fileName(fileName).build();
             } else {
-                // If the file hasn't been downloaded before
-                // insert a new entry into the table
-                String insertInfoQuery = "INSERT INTO " + TABLE_NAME + " "
-                        + "(url, downloaded_size, file_name, downloaded_date)"
-                        + " VALUES ('" + url + "', "
-                        + downloadedSize + ", '"
-                        + fileName + "', "
-                        + "NOW());";
-                PreparedStatement stmt = dbConn.prepareStatement(insertInfoQuery);
-                stmt.executeUpdate();
+                // The download replaces the file only once it succeeded
+                return config;
             }
-        } catch (SQLException ex) {
-            // IF failed to write the info, the information will not be written.
-            // Next time the file is downloaded from the url, it will be treated
-            // as a new download.
-            // TODO Log the error.
+        } else {
+            return config;
         }
     }
     
@@ -424,7 +1068,7 @@ public class Main {
      * Print the usage.
      */
     private static void printUsage() {
-        System.err.println("\nUsage: java -jar qtdownloader.jar [OPTIONS] URL");
+        System.err.println("\nUsage: java -jar qtdownloader.jar [OPTIONS] URL|FILE.meta4");
         System.err.println("\nOptions: ");
 
         ArrayList<String> validOptions = new ArrayList<>(cmdLineOptions.keySet());
@@ -0,0 +1,443 @@
+/**
+ * Class: ManifestBatch.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A batch of downloads listed in a manifest file, one entry per line: the
+ * URL, optionally followed by the output file's name. Blank lines and lines
+ * starting with '#' are skipped.
+ *
+ * The manifest is read lazily and only a bounded window of its entries is
+ * downloading at a time, so the memory does not grow with the manifest's
+ * length. The completed entries are recorded in a checkpoint file next to
+ * the manifest, one bit per entry, so that a batch which is run again skips
+ * them with a single lookup each and downloads only the rest. The
+ * checkpoint starts over if the manifest was changed since it was written.
+ *
+ * @author quan
+ */
+public class ManifestBatch {
+
+    public static final int DEFAULT_MAX_DOWNLOADS = 4;
+    public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
+    private final Path manifest;
+    private final Path checkpointPath;
+    private final String outputDirectory;
+    private final String tempDirectory;
+    private final int maxDownloads;
+    private final int partsCount;
+    private final String username;
+    private final String password;
+    private final PrintStream log;
+
+    private ManifestBatch(Builder builder) {
+        this.manifest = builder.manifest;
+        this.checkpointPath = (builder.checkpointPath != null) ? builder.checkpointPath
+                : Paths.get(builder.manifest + CHECKPOINT_EXTENSION);
+        this.outputDirectory = builder.outputDirectory;
+        this.tempDirectory = builder.tempDirectory;
+        this.maxDownloads = builder.maxDownloads;
+        this.partsCount = builder.partsCount;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.log = builder.log;
+    }
+
+    /**
+     * Download the entries which are not completed yet, then wait for the
+     * last downloads to finish.
+     *
+     * @param engine The engine to download the entries with.
+     * @return The numbers of entries downloaded, skipped and failed.
+     * @throws IOException if the manifest or the checkpoint cannot be read.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Result run(DownloadEngine engine) throws IOException,
+            InterruptedException {
+        Semaphore window = new Semaphore(maxDownloads);
+        AtomicInteger downloadedCount = new AtomicInteger();
+        AtomicInteger failedCount = new AtomicInteger();
+        AtomicLong downloadedSize = new AtomicLong();
+        int skippedCount = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8);
+                Checkpoint checkpoint = Checkpoint.open(checkpointPath, manifest)) {
+            long entryCount = 0;
+            long lineNumber = 0;
+            String line;
+
+            try {
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+
+                    long entry = entryCount++;
+                    if (checkpoint.isDone(entry)) {
+                        skippedCount++;
+                        continue;
+                    }
+
+                    DownloadConfig config;
+                    try {
+                        config = parseEntry(line);
+                    } catch (IllegalArgumentException ex) {
+                        failedCount.incrementAndGet();
+                        print("[ERROR] Line " + lineNumber + ": " + ex.getMessage());
+                        continue;
+                    }
+
+                    // Wait for room in the window. A download which is not
+                    // submitted, such as to a closed engine, gives it back.
+                    window.acquire();
+                    CompletableFuture<DownloadResult> download;
+                    try {
+                        download = engine.submit(config);
+                    } catch (RuntimeException ex) {
+                        window.release();
+                        throw ex;
+                    }
+                    download.whenComplete((result, ex) -> {
+                        try {
+                            if (ex != null)
+                                throw (ex.getCause() != null) ? ex.getCause() : ex;
+
+                            checkpoint.markDone(entry);
+                            downloadedCount.incrementAndGet();
+                            downloadedSize.addAndGet(result.getDownloadedSize());
+                        } catch (Throwable failure) {
+                            failedCount.incrementAndGet();
+                            print("[ERROR] " + config.getURL() + ": "
+                                    + failure.getMessage());
+                        } finally {
+                            window.release();
+                        }
+                    });
+                }
+            } finally {
+                // The checkpoint is closed once the last entries are marked
+                window.acquireUninterruptibly(maxDownloads);
+            }
+        }
+
+        return new Result(downloadedCount.get(), skippedCount, failedCount.get(),
+                downloadedSize.get());
+    }
+
+    /**
+     * Get the download of a manifest entry.
+     *
+     * @throws IllegalArgumentException if the entry is not valid.
+     */
+    private DownloadConfig parseEntry(String line) {
+        String[] fields = line.split("\\s+", 2);
+        try {
+            new URL(fields[0]);
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException("Invalid URL " + fields[0], ex);
+        }
+
+        DownloadConfig.Builder builder = new DownloadConfig.Builder(fields[0])
+                .outputDirectory(outputDirectory)
+                .credentials(username, password);
+        if (partsCount > 0)
+            builder.partsCount(partsCount);
+        if (tempDirectory != null)
+            builder.tempDirectory(tempDirectory);
+
+        if (fields.length > 1) {
+            String fileName = fields[1];
+            if (fileName.equals(".") || fileName.equals("..")
+                    || fileName.indexOf('/') >= 0 || fileName.indexOf('\\') >= 0)
+                throw new IllegalArgumentException("Invalid file name " + fileName);
+            builder.fileName(fileName);
+        }
+
+        return builder.build();
+    }
+
+    private void print(String message) {
+        if (log != null)
+            log.println(message);
+    }
+
+    /**
+     * The on-disk record of the completed entries: a header which identifies
+     * the manifest, followed by one bit per entry. The page of the bits
+     * being looked up is kept in memory, as the lookups go through the
+     * manifest in order. The bits are written as soon as their entries
+     * complete, so they survive the process, but are not forced to the disk.
+     */
+    private static class Checkpoint implements AutoCloseable {
+
+        private static final int MAGIC = 0x51544350; // "QTCP"
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 24;
+        private static final int PAGE_SIZE = 4096;
+
+        private final FileChannel channel;
+        private final ByteBuffer page;
+        private long pagePosition;
+
+        private Checkpoint(FileChannel channel) {
+            this.channel = channel;
+            this.page = ByteBuffer.allocate(PAGE_SIZE);
+            this.pagePosition = -1;
+        }
+
+        /**
+         * Open the checkpoint of the given manifest, or start a new one if
+         * there is none or it was written for another version of the
+         * manifest.
+         */
+        private static Checkpoint open(Path path, Path manifest) throws IOException {
+            long manifestSize = Files.size(manifest);
+            long manifestModified = Files.getLastModifiedTime(manifest).toMillis();
+
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+                header.flip();
+
+                boolean valid = header.remaining() == HEADER_SIZE
+                        && header.getInt() == MAGIC && header.getInt() == VERSION
+                        && header.getLong() == manifestSize
+                        && header.getLong() == manifestModified;
+                if (!valid) {
+                    channel.truncate(0);
+                    header.clear();
+                    header.putInt(MAGIC).putInt(VERSION).putLong(manifestSize)
+                            .putLong(manifestModified).flip();
+                    while (header.hasRemaining())
+                        channel.write(header, header.position());
+                }
+
+                return new Checkpoint(channel);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Check if the given entry was completed.
+         */
+        private synchronized boolean isDone(long entry) throws IOException {
+            long position = HEADER_SIZE + entry / 8;
+            long start = position - (position - HEADER_SIZE) % PAGE_SIZE;
+            if (start != pagePosition)
+                loadPage(start);
+
+            int offset = (int) (position - start);
+            return offset < page.limit()
+                    && (page.get(offset) & (1 << (entry % 8))) != 0;
+        }
+
+        /**
+         * Record that the given entry completed.
+         */
+        private synchronized void markDone(long entry) throws IOException {
+            long position = HEADER_SIZE + entry / 8;
+            ByteBuffer bits = ByteBuffer.allocate(1);
+            channel.read(bits, position);
+            byte value = (byte) (((bits.position() == 1) ? bits.get(0) : 0)
+                    | (1 << (entry % 8)));
+
+            bits.clear();
+            bits.put(value).flip();
+            while (bits.hasRemaining())
+                channel.write(bits, position);
+
+            // Keep the page in memory up to date
+            if (pagePosition != -1 && position >= pagePosition
+                    && position < pagePosition + PAGE_SIZE) {
+                int offset = (int) (position - pagePosition);
+                if (offset < page.limit())
+                    page.put(offset, value);
+                else
+                    pagePosition = -1;
+            }
+        }
+
+        private void loadPage(long start) throws IOException {
+            page.clear();
+            while (page.hasRemaining() && channel.read(page, start + page.position()) > 0);
+            page.flip();
+            pagePosition = start;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The outcome of a batch.
+     */
+    public static class Result {
+
+        private final int downloadedCount;
+        private final int skippedCount;
+        private final int failedCount;
+        private final long downloadedSize;
+
+        private Result(int downloadedCount, int skippedCount, int failedCount,
+                long downloadedSize) {
+            this.downloadedCount = downloadedCount;
+            this.skippedCount = skippedCount;
+            this.failedCount = failedCount;
+            this.downloadedSize = downloadedSize;
+        }
+
+        public int getDownloadedCount() {
+            return downloadedCount;
+        }
+
+        /**
+         * Get the number of entries completed by an earlier run.
+         *
+         * @return The number of entries skipped.
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * Get the number of entries which are invalid or could not be
+         * downloaded. They are tried again by the next run.
+         *
+         * @return The number of failures.
+         */
+        public int getFailedCount() {
+            return failedCount;
+        }
+
+        public long getDownloadedSize() {
+            return downloadedSize;
+        }
+    }
+
+    /**
+     * The builder of a batch.
+     */
+    public static class Builder {
+
+        private final Path manifest;
+        private Path checkpointPath;
+        private String outputDirectory;
+        private String tempDirectory;
+        private int maxDownloads;
+        private int partsCount;
+        private String username;
+        private String password;
+        private PrintStream log;
+
+        /**
+         * Start building the batch of the given manifest file.
+         *
+         * @param manifest The manifest file.
+         */
+        public Builder(Path manifest) {
+            if (manifest == null)
+                throw new IllegalArgumentException("The manifest must not be null");
+
+            this.manifest = manifest;
+            this.checkpointPath = null;
+            this.outputDirectory = "." + File.separator;
+            this.tempDirectory = null;
+            this.maxDownloads = DEFAULT_MAX_DOWNLOADS;
+            this.partsCount = 0;
+            this.username = null;
+            this.password = null;
+            this.log = null;
+        }
+
+        /**
+         * Record the completed entries in the given file instead of the
+         * manifest's name with the checkpoint extension.
+         *
+         * @param checkpointPath The checkpoint file.
+         * @return The builder.
+         */
+        public Builder checkpoint(Path checkpointPath) {
+            this.checkpointPath = checkpointPath;
+            return this;
+        }
+
+        public Builder outputDirectory(String outputDirectory) {
+            this.outputDirectory = outputDirectory;
+            return this;
+        }
+
+        public Builder tempDirectory(String tempDirectory) {
+            this.tempDirectory = tempDirectory;
+            return this;
+        }
+
+        /**
+         * Set the size of the window of entries downloading at a time.
+         *
+         * @param maxDownloads The number of entries.
+         * @return The builder.
+         */
+        public Builder maxDownloads(int maxDownloads) {
+            if (maxDownloads < 1)
+                throw new IllegalArgumentException("The number of downloads must be positive");
+            this.maxDownloads = maxDownloads;
+            return this;
+        }
+
+        public Builder partsCount(int partsCount) {
+            this.partsCount = partsCount;
+            return this;
+        }
+
+        public Builder credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Print the entries which failed to the given stream.
+         *
+         * @param log The stream, or null to print nothing.
+         * @return The builder.
+         */
+        public Builder log(PrintStream log) {
+            this.log = log;
+            return this;
+        }
+
+        public ManifestBatch build() {
+            return new ManifestBatch(this);
+        }
+    }
+}
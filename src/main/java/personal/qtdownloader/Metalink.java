@@ -0,0 +1,318 @@
+/**
+ * Class: Metalink.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * A file described by a Metalink (RFC 5854) document: its name, size,
+ * mirrors and hashes. Only the first file of a document is used.
+ *
+ * @author quan
+ */
+public class Metalink {
+
+    public static final String NAMESPACE = "urn:ietf:params:xml:ns:metalink";
+
+    /**
+     * The hash types of RFC 5854 from the strongest, with their names in
+     * Java.
+     */
+    private static final String[][] HASH_TYPES = {
+        {"sha-512", "SHA-512"},
+        {"sha-384", "SHA-384"},
+        {"sha-256", "SHA-256"},
+        {"sha-1", "SHA-1"},
+        {"md5", "MD5"}
+    };
+
+    private final Path source;
+    private final String name;
+    private final long size;
+    private final List<String> urls;
+    private final String hashAlgorithm;
+    private final byte[] hash;
+    private final String pieceHashAlgorithm;
+    private final long pieceLength;
+    private final List<byte[]> pieceHashes;
+
+    private Metalink(Path source, String name, long size, List<String> urls,
+            String hashAlgorithm, byte[] hash, String pieceHashAlgorithm,
+            long pieceLength, List<byte[]> pieceHashes) {
+        this.source = source;
+        this.name = name;
+        this.size = size;
+        this.urls = urls;
+        this.hashAlgorithm = hashAlgorithm;
+        this.hash = hash;
+        this.pieceHashAlgorithm = pieceHashAlgorithm;
+        this.pieceLength = pieceLength;
+        this.pieceHashes = pieceHashes;
+    }
+
+    /**
+     * Check if the given path names a Metalink document.
+     *
+     * @param path The path.
+     * @return True if the path ends with .meta4 or .metalink.
+     */
+    public static boolean isMetalinkFile(String path) {
+        String lowerCase = path.toLowerCase(Locale.ROOT);
+        return lowerCase.endsWith(".meta4") || lowerCase.endsWith(".metalink");
+    }
+
+    /**
+     * Read a Metalink document.
+     *
+     * @param file The document's file.
+     * @return The first file described by the document.
+     * @throws IOException if the document cannot be read, or it describes no
+     * file with an HTTP URL.
+     */
+    public static Metalink parse(Path file) throws IOException {
+        Document document;
+        try (InputStream in = Files.newInputStream(file)) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // The document only needs its elements, never external entities
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setExpandEntityReferences(false);
+
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(in);
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("Invalid Metalink file " + file + ": "
+                    + ex.getMessage(), ex);
+        }
+
+        NodeList files = document.getElementsByTagNameNS(NAMESPACE, "file");
+        if (files.getLength() == 0)
+            throw new IOException("No file in Metalink file " + file);
+
+        Element fileElement = (Element) files.item(0);
+        String name = fileElement.getAttribute("name");
+        // The name may contain directories, which are not created
+        name = name.substring(name.lastIndexOf('/') + 1);
+        if (name.isEmpty())
+            throw new IOException("No file name in Metalink file " + file);
+
+        Element sizeElement = child(fileElement, "size");
+        long size = (sizeElement == null) ? -1
+                : Long.parseLong(sizeElement.getTextContent().trim());
+
+        // The URLs with the lowest priority value come first
+        Map<Integer, List<String>> urlsByPriority = new TreeMap<>();
+        for (Element url : children(fileElement, "url")) {
+            String value = url.getTextContent().trim();
+            if (!value.startsWith("http://") && !value.startsWith("https://"))
+                continue;
+
+            int priority = url.hasAttribute("priority")
+                    ? Integer.parseInt(url.getAttribute("priority")) : Integer.MAX_VALUE;
+            urlsByPriority.computeIfAbsent(priority,
+                    (Integer key) -> new ArrayList<>()).add(value);
+        }
+
+        List<String> urls = new ArrayList<>();
+        for (List<String> sameUrls : urlsByPriority.values())
+            urls.addAll(sameUrls);
+        if (urls.isEmpty())
+            throw new IOException("No HTTP URL in Metalink file " + file);
+
+        // The strongest hash of the whole file
+        String hashAlgorithm = null;
+        byte[] hash = null;
+        for (String[] type : HASH_TYPES) {
+            for (Element hashElement : children(fileElement, "hash")) {
+                if (hash == null && type[0].equalsIgnoreCase(hashElement.getAttribute("type"))
+                        && isSupported(type[1])) {
+                    hashAlgorithm = type[1];
+                    hash = fromHex(hashElement.getTextContent().trim());
+                }
+            }
+        }
+
+        // The strongest piece hashes
+        String pieceHashAlgorithm = null;
+        long pieceLength = 0;
+        List<byte[]> pieceHashes = new ArrayList<>();
+        for (String[] type : HASH_TYPES) {
+            for (Element pieces : children(fileElement, "pieces")) {
+                if (pieceHashAlgorithm == null
+                        && type[0].equalsIgnoreCase(pieces.getAttribute("type"))
+                        && isSupported(type[1])) {
+                    pieceHashAlgorithm = type[1];
+                    pieceLength = Long.parseLong(pieces.getAttribute("length").trim());
+                    for (Element pieceHash : children(pieces, "hash"))
+                        pieceHashes.add(fromHex(pieceHash.getTextContent().trim()));
+                }
+            }
+        }
+
+        // Pieces which do not cover the file cannot be checked
+        if (pieceHashAlgorithm != null && (size <= 0 || pieceLength <= 0
+                || pieceHashes.size() != (size + pieceLength - 1) / pieceLength)) {
+            pieceHashAlgorithm = null;
+            pieceLength = 0;
+            pieceHashes.clear();
+        }
+
+        return new Metalink(file, name, size, Collections.unmodifiableList(urls),
+                hashAlgorithm, hash, pieceHashAlgorithm, pieceLength,
+                Collections.unmodifiableList(pieceHashes));
+    }
+
+    private static Element child(Element parent, String name) {
+        List<Element> elements = children(parent, name);
+        return elements.isEmpty() ? null : elements.get(0);
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> elements = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                Element element = (Element) nodes.item(i);
+                if (NAMESPACE.equals(element.getNamespaceURI())
+                        && name.equals(element.getLocalName()))
+                    elements.add(element);
+            }
+        }
+
+        return elements;
+    }
+
+    private static boolean isSupported(String algorithm) {
+        try {
+            MessageDigest.getInstance(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex.length() % 2 != 0)
+            throw new IOException("Invalid hash in Metalink file: " + hex);
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1)
+                throw new IOException("Invalid hash in Metalink file: " + hex);
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Get the Metalink document's file.
+     *
+     * @return The document's path.
+     */
+    public Path getSource() {
+        return source;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the file's size.
+     *
+     * @return The size, or -1 if the document does not tell it.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the HTTP URLs of the file, in the order of their priority.
+     *
+     * @return The URLs.
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * Get the algorithm of the whole file's hash.
+     *
+     * @return The Java name of the algorithm, or null if the document has no
+     * supported hash of the whole file.
+     */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * Check if the document has hashes of the file's pieces.
+     *
+     * @return True if the pieces can be checked.
+     */
+    public boolean hasPieces() {
+        return pieceHashAlgorithm != null;
+    }
+
+    public String getPieceHashAlgorithm() {
+        return pieceHashAlgorithm;
+    }
+
+    public long getPieceLength() {
+        return pieceLength;
+    }
+
+    public int getPieceCount() {
+        return pieceHashes.size();
+    }
+
+    /**
+     * Get the length of the given piece. The last piece may be shorter.
+     *
+     * @param index The piece's index, starting from 0.
+     * @return The piece's length.
+     */
+    public long getPieceLength(int index) {
+        return Math.min(pieceLength, size - index * pieceLength);
+    }
+
+    /**
+     * Get the hash of the given piece.
+     *
+     * @param index The piece's index, starting from 0.
+     * @return The piece's hash.
+     */
+    public byte[] getPieceHash(int index) {
+        return pieceHashes.get(index);
+    }
+}
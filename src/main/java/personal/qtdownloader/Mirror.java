@@ -0,0 +1,776 @@
+/**
+ * Class: Mirror.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * A recursive mirror of the directory trees under some root URLs, as listed
+ * by the servers' index pages. Each root is crawled by its own thread, which
+ * parses the index pages and queues the files it finds per host, while a
+ * dispatcher thread per host starts their downloads on the engine as soon as
+ * a download slot is free, so that the crawl overlaps the downloads.
+ *
+ * The memory stays flat however large the trees are: the crawl is depth
+ * first, the files waiting for a slot are held in a bounded queue per host,
+ * which blocks the crawl once it is full, and only the directories already
+ * crawled are remembered. A file whose size and last modified time did not
+ * change since it was mirrored last, according to the session store, is
+ * skipped.
+ *
+ * A mirror runs once.
+ *
+ * @author quan
+ */
+public class Mirror {
+
+    public static final int DEFAULT_MAX_DOWNLOADS = 4;
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+    public static final int FRONTIER_CAPACITY = 1024;
+
+    private static final int MAX_INDEX_SIZE = 16 * 1024 * 1024;
+    private static final Pattern HREF = Pattern.compile(
+            "href\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))",
+            Pattern.CASE_INSENSITIVE);
+    private static final FileTask END = new FileTask(null, null, null);
+
+    private final List<URL> roots;
+    private final String outputDirectory;
+    private final String tempDirectory;
+    private final Pattern include;
+    private final Pattern exclude;
+    private final int maxDownloads;
+    private final int maxDownloadsPerHost;
+    private final int partsCount;
+    private final String username;
+    private final String password;
+    private final SessionStore sessionStore;
+    private final PrintStream log;
+
+    private final Set<String> crawledDirectories;
+    private final Set<String> queuedFiles;
+    private final Map<String, HostQueue> hosts;
+    private final Semaphore downloadSlots;
+    private final AtomicInteger downloadedCount;
+    private final AtomicInteger skippedCount;
+    private final AtomicInteger failedCount;
+    private final AtomicLong downloadedSize;
+    private ExecutorService threads;
+    private DownloadEngine engine;
+
+    private Mirror(Builder builder) {
+        this.roots = builder.roots;
+        this.outputDirectory = builder.outputDirectory;
+        this.tempDirectory = builder.tempDirectory;
+        this.include = builder.include;
+        this.exclude = builder.exclude;
+        this.maxDownloads = builder.maxDownloads;
+        this.maxDownloadsPerHost = builder.maxDownloadsPerHost;
+        this.partsCount = builder.partsCount;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.sessionStore = builder.sessionStore;
+        this.log = builder.log;
+
+        this.crawledDirectories = ConcurrentHashMap.newKeySet();
+        this.queuedFiles = ConcurrentHashMap.newKeySet();
+        this.hosts = new ConcurrentHashMap<>();
+        this.downloadSlots = new Semaphore(maxDownloads);
+        this.downloadedCount = new AtomicInteger();
+        this.skippedCount = new AtomicInteger();
+        this.failedCount = new AtomicInteger();
+        this.downloadedSize = new AtomicLong();
+    }
+
+    /**
+     * Crawl the roots and download the new and changed files, then wait for
+     * the downloads to finish.
+     *
+     * @param engine The engine to download the files with.
+     * @return The numbers of files downloaded, skipped and failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Result run(DownloadEngine engine) throws InterruptedException {
+        synchronized (this) {
+            if (this.engine != null)
+                throw new IllegalStateException("The mirror already ran");
+            this.engine = engine;
+        }
+
+        threads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "qtdownloader-mirror");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<?>> crawlers = new ArrayList<>();
+            for (URL root : roots)
+                crawlers.add(threads.submit(() -> crawl(root)));
+
+            for (Future<?> crawler : crawlers) {
+                try {
+                    crawler.get();
+                } catch (ExecutionException ex) {
+                    failedCount.incrementAndGet();
+                    print("[ERROR] Crawling failed: " + ex.getCause());
+                }
+            }
+
+            // No more files are queued: let the dispatchers drain their
+            // queues, then wait for the last downloads to finish
+            for (HostQueue host : hosts.values())
+                host.queue.put(END);
+            for (HostQueue host : hosts.values())
+                host.finished.await();
+
+            downloadSlots.acquire(maxDownloads);
+            downloadSlots.release(maxDownloads);
+        } finally {
+            threads.shutdownNow();
+        }
+
+        return new Result(downloadedCount.get(), skippedCount.get(),
+                failedCount.get(), downloadedSize.get());
+    }
+
+    /**
+     * Crawl the tree under the given root, depth first, and queue its files.
+     */
+    private void crawl(URL root) {
+        Deque<URL> directories = new ArrayDeque<>();
+        if (crawledDirectories.add(root.toString()))
+            directories.push(root);
+
+        while (!directories.isEmpty()) {
+            URL directory = directories.pop();
+
+            List<URL> links;
+            try {
+                links = readIndex(directory);
+            } catch (IOException ex) {
+                failedCount.incrementAndGet();
+                print("[ERROR] Cannot read the index of " + directory + ": "
+                        + ex.getMessage());
+                continue;
+            }
+
+            for (URL link : links) {
+                String relativePath = relativePath(root, link);
+                if (relativePath == null)
+                    continue;
+
+                if (relativePath.endsWith("/")) {
+                    if (!isExcluded(relativePath)
+                            && crawledDirectories.add(link.toString()))
+                        directories.push(link);
+                } else if (isIncluded(relativePath)) {
+                    queue(link, relativePath);
+                }
+            }
+        }
+    }
+
+    private boolean isExcluded(String relativePath) {
+        return exclude != null && exclude.matcher(relativePath).find();
+    }
+
+    private boolean isIncluded(String relativePath) {
+        return !isExcluded(relativePath)
+                && (include == null || include.matcher(relativePath).find());
+    }
+
+    /**
+     * Queue the download of a file, waiting while its host's queue is full.
+     */
+    private void queue(URL url, String relativePath) {
+        File output = localFile(relativePath);
+        if (output == null) {
+            print("[WARNING] Skipping " + url + ": not a valid file name");
+            return;
+        }
+
+        if (!queuedFiles.add(url.toString()))
+            return;
+
+        HostQueue host = hosts.computeIfAbsent(url.getAuthority(), authority -> {
+            HostQueue created = new HostQueue();
+            threads.execute(created::dispatch);
+            return created;
+        });
+
+        try {
+            host.queue.put(new FileTask(url, relativePath, output));
+        } catch (InterruptedException ex) {
+            queuedFiles.remove(url.toString());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if the file changed since it was mirrored last, and download it
+     * if it did. Releases the slots once done.
+     */
+    private void start(FileTask task, Semaphore hostSlots) {
+        CompletableFuture.supplyAsync(() -> head(task.url), threads)
+                .thenCompose(remote -> {
+                    if (isUnchanged(task, remote))
+                        return CompletableFuture.completedFuture(null);
+
+                    task.output.getParentFile().mkdirs();
+                    DownloadConfig.Builder config = new DownloadConfig.Builder(task.url.toString())
+                            .outputDirectory(task.output.getParent())
+                            .fileName(task.output.getName())
+                            .credentials(username, password);
+                    if (partsCount > 0)
+                        config.partsCount(partsCount);
+                    if (tempDirectory != null)
+                        config.tempDirectory(tempDirectory);
+
+                    return engine.submit(config.build()).thenApply(result -> {
+                        saveSession(task, result.getDownloadedSize(), remote);
+                        return result;
+                    });
+                })
+                .whenComplete((result, ex) -> {
+                    if (ex != null) {
+                        failedCount.incrementAndGet();
+                        Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                        print("[ERROR] " + task.relativePath + ": " + cause.getMessage());
+                    } else if (result == null) {
+                        skippedCount.incrementAndGet();
+                    } else {
+                        downloadedCount.incrementAndGet();
+                        downloadedSize.addAndGet(result.getDownloadedSize());
+                        print(task.relativePath);
+                    }
+
+                    queuedFiles.remove(task.url.toString());
+                    hostSlots.release();
+                    downloadSlots.release();
+                });
+    }
+
+    /**
+     * Check if the local copy of a file is as large as the remote file, and
+     * the remote file was not modified since it was mirrored last.
+     */
+    private boolean isUnchanged(FileTask task, RemoteFile remote) {
+        if (sessionStore == null || remote.size < 0 || remote.lastModified <= 0)
+            return false;
+
+        if (!task.output.isFile() || task.output.length() != remote.size)
+            return false;
+
+        DownloadSession session = sessionStore.find(task.url.toString());
+        return session.alreadyDownloaded
+                && session.getDownloadedSize() == remote.size
+                && session.getLastModified() == remote.lastModified;
+    }
+
+    private void saveSession(FileTask task, long size, RemoteFile remote) {
+        if (sessionStore == null)
+            return;
+
+        DownloadSession session = sessionStore.find(task.url.toString());
+        session.setDownloadSize(size);
+        session.setLastModified(remote.lastModified);
+        sessionStore.save(session);
+    }
+
+    /**
+     * Ask the server for the size and the last modified time of a file.
+     */
+    private RemoteFile head(URL url) {
+        try {
+            HttpURLConnection conn = open(url);
+            try {
+                conn.setRequestMethod("HEAD");
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_OK)
+                    return new RemoteFile(-1, 0);
+
+                return new RemoteFile(conn.getContentLengthLong(), conn.getLastModified());
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException ex) {
+            // The download tells why the file cannot be reached
+            return new RemoteFile(-1, 0);
+        }
+    }
+
+    /**
+     * Read an index page and get the links in it, resolved against the URL
+     * the page came from, without their queries and fragments.
+     */
+    private List<URL> readIndex(URL directory) throws IOException {
+        HttpURLConnection conn = open(directory);
+        byte[] page;
+
+        try {
+            int responseCode = conn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("Server returned HTTP response code: "
+                        + responseCode);
+
+            try (InputStream input = conn.getInputStream()) {
+                page = readLimited(input);
+            }
+        } finally {
+            conn.disconnect();
+        }
+
+        URI base;
+        try {
+            base = conn.getURL().toURI();
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid index URL " + conn.getURL(), ex);
+        }
+
+        Set<URL> links = new LinkedHashSet<>();
+        Matcher matcher = HREF.matcher(new String(page, StandardCharsets.UTF_8));
+        while (matcher.find()) {
+            String href = matcher.group(1);
+            if (href == null)
+                href = matcher.group(2);
+            if (href == null)
+                href = matcher.group(3);
+
+            URL link = resolve(base, unescapeHtml(href.trim()));
+            if (link != null)
+                links.add(link);
+        }
+
+        return new ArrayList<>(links);
+    }
+
+    private static byte[] readLimited(InputStream input) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int length = 0;
+        int read;
+
+        while ((read = input.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                if (buffer.length == MAX_INDEX_SIZE)
+                    throw new IOException("The index page is larger than "
+                            + MAX_INDEX_SIZE + " bytes");
+                buffer = Arrays.copyOf(buffer,
+                        Math.min(buffer.length * 2, MAX_INDEX_SIZE));
+            }
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static String unescapeHtml(String href) {
+        return href.replace("&amp;", "&").replace("&quot;", "\"")
+                .replace("&#39;", "'").replace("&lt;", "<").replace("&gt;", ">");
+    }
+
+    /**
+     * Resolve a link of an index page.
+     *
+     * @return The link's URL, or null if it is not an HTTP link or only
+     * changes the query of the page, like the sorting links of most index
+     * pages.
+     */
+    private static URL resolve(URI base, String href) {
+        if (href.isEmpty() || href.startsWith("?") || href.startsWith("#"))
+            return null;
+
+        try {
+            URI link = base.resolve(new URI(href)).normalize();
+            if (link.getRawQuery() != null
+                    || !("http".equalsIgnoreCase(link.getScheme())
+                    || "https".equalsIgnoreCase(link.getScheme())))
+                return null;
+
+            return new URL(link.getScheme() + "://" + link.getRawAuthority()
+                    + link.getRawPath());
+        } catch (URISyntaxException | IllegalArgumentException | MalformedURLException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the path of a link relative to a root, decoded.
+     *
+     * @return The path, ending with a '/' for directories, or null if the
+     * link is not under the root.
+     */
+    private static String relativePath(URL root, URL link) {
+        if (!root.getProtocol().equalsIgnoreCase(link.getProtocol())
+                || !root.getHost().equalsIgnoreCase(link.getHost())
+                || root.getPort() != link.getPort())
+            return null;
+
+        String rootPath = root.getPath();
+        String linkPath = link.getPath();
+        if (!linkPath.startsWith(rootPath) || linkPath.length() == rootPath.length())
+            return null;
+
+        String relative = linkPath.substring(rootPath.length());
+        StringBuilder decoded = new StringBuilder();
+        for (String segment : relative.split("/", -1)) {
+            if (decoded.length() > 0)
+                decoded.append('/');
+            try {
+                decoded.append(URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        return decoded.toString();
+    }
+
+    /**
+     * Get the local file of a file's relative path.
+     *
+     * @return The file, or null if a segment of the path would leave the
+     * output directory or is not a file name.
+     */
+    private File localFile(String relativePath) {
+        File file = new File(outputDirectory);
+
+        for (String segment : relativePath.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")
+                    || segment.indexOf('\\') >= 0 || segment.indexOf('\0') >= 0)
+                return null;
+            file = new File(file, segment);
+        }
+
+        return file;
+    }
+
+    private HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (conn instanceof HttpsURLConnection)
+            ((HttpsURLConnection) conn).setSSLSocketFactory(
+                    engine.getSslContext().getSocketFactory());
+        conn.setReadTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+
+        if (username != null && password != null) {
+            String credentials = username + ":" + password;
+            conn.setRequestProperty("Authorization", "Basic "
+                    + Base64.getEncoder().encodeToString(credentials.getBytes()));
+        }
+
+        return conn;
+    }
+
+    private void print(String message) {
+        if (log != null)
+            log.println(message);
+    }
+
+    /**
+     * The files of a host waiting for a download slot, and the dispatcher
+     * which starts their downloads.
+     */
+    private class HostQueue {
+
+        private final BlockingQueue<FileTask> queue;
+        private final Semaphore hostSlots;
+        private final CountDownLatch finished;
+
+        private HostQueue() {
+            this.queue = new ArrayBlockingQueue<>(FRONTIER_CAPACITY);
+            this.hostSlots = new Semaphore(maxDownloadsPerHost);
+            this.finished = new CountDownLatch(1);
+        }
+
+        /**
+         * Start the downloads of the queued files, each once both a slot of
+         * the host and a slot of the mirror are free.
+         */
+        private void dispatch() {
+            try {
+                while (true) {
+                    FileTask task = queue.take();
+                    if (task == END)
+                        break;
+
+                    hostSlots.acquire();
+                    downloadSlots.acquire();
+                    start(task, hostSlots);
+                }
+            } catch (InterruptedException ex) {
+                // The mirror was stopped.
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * A file to download.
+     */
+    private static class FileTask {
+
+        private final URL url;
+        private final String relativePath;
+        private final File output;
+
+        private FileTask(URL url, String relativePath, File output) {
+            this.url = url;
+            this.relativePath = relativePath;
+            this.output = output;
+        }
+    }
+
+    /**
+     * The size and last modified time of a remote file, or -1 and 0 if they
+     * are unknown.
+     */
+    private static class RemoteFile {
+
+        private final long size;
+        private final long lastModified;
+
+        private RemoteFile(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The outcome of a mirror.
+     */
+    public static class Result {
+
+        private final int downloadedCount;
+        private final int skippedCount;
+        private final int failedCount;
+        private final long downloadedSize;
+
+        private Result(int downloadedCount, int skippedCount, int failedCount,
+                long downloadedSize) {
+            this.downloadedCount = downloadedCount;
+            this.skippedCount = skippedCount;
+            this.failedCount = failedCount;
+            this.downloadedSize = downloadedSize;
+        }
+
+        public int getDownloadedCount() {
+            return downloadedCount;
+        }
+
+        /**
+         * Get the number of files which did not change since they were
+         * mirrored last.
+         *
+         * @return The number of files skipped.
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * Get the number of files and index pages which could not be
+         * downloaded.
+         *
+         * @return The number of failures.
+         */
+        public int getFailedCount() {
+            return failedCount;
+        }
+
+        public long getDownloadedSize() {
+            return downloadedSize;
+        }
+    }
+
+    /**
+     * The builder of a mirror.
+     */
+    public static class Builder {
+
+        private final List<URL> roots;
+        private String outputDirectory;
+        private String tempDirectory;
+        private Pattern include;
+        private Pattern exclude;
+        private int maxDownloads;
+        private int maxDownloadsPerHost;
+        private int partsCount;
+        private String username;
+        private String password;
+        private SessionStore sessionStore;
+        private PrintStream log;
+
+        /**
+         * Start building a mirror of the given directory URLs.
+         *
+         * @param roots The URLs of the directories to mirror, which must be
+         * HTTP or HTTPS URLs.
+         */
+        public Builder(List<String> roots) {
+            if (roots.isEmpty())
+                throw new IllegalArgumentException("No URL to mirror");
+
+            this.roots = new ArrayList<>();
+            for (String root : roots)
+                this.roots.add(toDirectoryUrl(root));
+
+            this.outputDirectory = "./";
+            this.tempDirectory = null;
+            this.include = null;
+            this.exclude = null;
+            this.maxDownloads = DEFAULT_MAX_DOWNLOADS;
+            this.maxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+            this.partsCount = 0;
+            this.username = null;
+            this.password = null;
+            this.sessionStore = null;
+            this.log = null;
+        }
+
+        private static URL toDirectoryUrl(String root) {
+            try {
+                URI uri = new URI(root).normalize();
+                if (!"http".equalsIgnoreCase(uri.getScheme())
+                        && !"https".equalsIgnoreCase(uri.getScheme()))
+                    throw new IllegalArgumentException("Only HTTP and HTTPS URLs can be mirrored: "
+                            + root);
+
+                String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty())
+                        ? "/" : uri.getRawPath();
+                if (!path.endsWith("/"))
+                    path += "/";
+
+                return new URL(uri.getScheme() + "://" + uri.getRawAuthority() + path);
+            } catch (URISyntaxException | MalformedURLException ex) {
+                throw new IllegalArgumentException("Invalid URL " + root, ex);
+            }
+        }
+
+        public Builder outputDirectory(String outputDirectory) {
+            this.outputDirectory = outputDirectory;
+            return this;
+        }
+
+        public Builder tempDirectory(String tempDirectory) {
+            this.tempDirectory = tempDirectory;
+            return this;
+        }
+
+        /**
+         * Only download the files whose path relative to their root matches
+         * the given pattern somewhere.
+         *
+         * @param include The pattern, or null to download all files.
+         * @return The builder.
+         */
+        public Builder include(Pattern include) {
+            this.include = include;
+            return this;
+        }
+
+        /**
+         * Skip the files and directories whose path relative to their root
+         * matches the given pattern somewhere. The paths of directories end
+         * with a '/'.
+         *
+         * @param exclude The pattern, or null to skip nothing.
+         * @return The builder.
+         */
+        public Builder exclude(Pattern exclude) {
+            this.exclude = exclude;
+            return this;
+        }
+
+        public Builder maxDownloads(int maxDownloads) {
+            if (maxDownloads < 1)
+                throw new IllegalArgumentException("The number of downloads must be positive");
+            this.maxDownloads = maxDownloads;
+            return this;
+        }
+
+        public Builder maxDownloadsPerHost(int maxDownloadsPerHost) {
+            if (maxDownloadsPerHost < 1)
+                throw new IllegalArgumentException("The number of downloads per host must be positive");
+            this.maxDownloadsPerHost = maxDownloadsPerHost;
+            return this;
+        }
+
+        public Builder partsCount(int partsCount) {
+            this.partsCount = partsCount;
+            return this;
+        }
+
+        public Builder credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Remember the mirrored files in the given session store, so that
+         * the files which did not change are skipped next time.
+         *
+         * @param sessionStore The session store, or null to download all
+         * files every time.
+         * @return The builder.
+         */
+        public Builder sessionStore(SessionStore sessionStore) {
+            this.sessionStore = sessionStore;
+            return this;
+        }
+
+        /**
+         * Print the downloaded files and the errors to the given stream.
+         *
+         * @param log The stream, or null to print nothing.
+         * @return The builder.
+         */
+        public Builder log(PrintStream log) {
+            this.log = log;
+            return this;
+        }
+
+        public Mirror build() {
+            return new Mirror(this);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Class: NdjsonProgressHandler.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Prints the events of a download as newline-delimited JSON, one object per
+ * line, for other programs to read.
+ *
+ * @author quan
+ */
+public class NdjsonProgressHandler implements ProgressHandler {
+
+    private final PrintStream out;
+
+    /**
+     *
+     * @param out The stream to print the events to.
+     */
+    public NdjsonProgressHandler(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void handle(HttpResult verifyResult) {
+        // Printed as the probe event.
+    }
+
+    @Override
+    public void onEvents(List<ProgressEvent> events) {
+        for (ProgressEvent event : events)
+            out.println(event.toJson());
+        out.flush();
+    }
+}
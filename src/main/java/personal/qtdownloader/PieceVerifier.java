@@ -0,0 +1,100 @@
+/**
+ * Class: PieceVerifier.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the pieces of a part against the hashes of a Metalink document
+ * while the part is downloaded. The part must start at a piece boundary.
+ *
+ * @author quan
+ */
+public class PieceVerifier {
+
+    private final Metalink metalink;
+    private final MessageDigest digest;
+    private final List<Integer> failedPieces;
+    private int piece;
+    private long pieceRemaining;
+
+    /**
+     * Create a verifier for the part starting at the given position.
+     *
+     * @param metalink The document with the piece hashes.
+     * @param startPosition The part's position in the file.
+     */
+    public PieceVerifier(Metalink metalink, long startPosition) {
+        this.metalink = metalink;
+        this.digest = newDigest(metalink.getPieceHashAlgorithm());
+        this.failedPieces = new ArrayList<>();
+        this.piece = (int) (startPosition / metalink.getPieceLength());
+        this.pieceRemaining = (piece < metalink.getPieceCount())
+                ? metalink.getPieceLength(piece) : 0;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            // The document only keeps the supported algorithms
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Check if the given data has the hash of the given piece.
+     *
+     * @param metalink The document with the piece hashes.
+     * @param piece The piece's index, starting from 0.
+     * @param data The piece's data.
+     * @return True if the data matches the hash.
+     */
+    public static boolean verify(Metalink metalink, int piece, byte[] data) {
+        MessageDigest digest = newDigest(metalink.getPieceHashAlgorithm());
+        return MessageDigest.isEqual(digest.digest(data), metalink.getPieceHash(piece));
+    }
+
+    /**
+     * Hash the next bytes of the part, checking each piece as soon as all
+     * of its bytes have been seen.
+     *
+     * @param data The data.
+     * @param offset The offset of the bytes in the data.
+     * @param length The number of bytes.
+     */
+    public void update(byte[] data, int offset, int length) {
+        while (length > 0 && pieceRemaining > 0) {
+            int count = (int) Math.min(length, pieceRemaining);
+            digest.update(data, offset, count);
+            offset += count;
+            length -= count;
+            pieceRemaining -= count;
+
+            if (pieceRemaining == 0) {
+                if (!MessageDigest.isEqual(digest.digest(), metalink.getPieceHash(piece)))
+                    failedPieces.add(piece);
+
+                piece++;
+                pieceRemaining = (piece < metalink.getPieceCount())
+                        ? metalink.getPieceLength(piece) : 0;
+            }
+        }
+    }
+
+    /**
+     * Get the pieces which did not match their hashes so far.
+     *
+     * @return The indexes of the pieces, starting from 0.
+     */
+    public List<Integer> getFailedPieces() {
+        return failedPieces;
+    }
+}
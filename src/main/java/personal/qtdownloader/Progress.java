@@ -15,6 +15,7 @@ public class Progress {
     private long downloadedCount;
     private long downloadedSinceStart;
     private Instant startDownloadTimeStamp;
+    private Instant firstByteTimeStamp;
 
     public Progress() {
         mURLVerifyResult = new HttpResult(0, -1);
@@ -22,6 +23,22 @@ public class Progress {
         downloadedSinceStart = 0;
     }
     
+    /**
+     * Get a copy of the progress as it is now, for reading it without
+     * holding the lock on this progress.
+     *
+     * @return The copy.
+     */
+    public Progress snapshot() {
+        Progress copy = new Progress();
+        copy.mURLVerifyResult = mURLVerifyResult;
+        copy.downloadedCount = downloadedCount;
+        copy.downloadedSinceStart = downloadedSinceStart;
+        copy.startDownloadTimeStamp = startDownloadTimeStamp;
+        copy.firstByteTimeStamp = firstByteTimeStamp;
+        return copy;
+    }
+    
     public long getContentSize() {
         return mURLVerifyResult.contentLength;
     }
@@ -30,6 +47,10 @@ public class Progress {
         return downloadedCount;
     }
     
+    public long getDownloadedSinceStart() {
+        return downloadedSinceStart;
+    }
+    
     public void updateDownloadedSize(long downloadedSize) {
         downloadedCount += downloadedSize;
     }
@@ -45,10 +66,25 @@ public class Progress {
     public void setStartDownloadTime(Instant start) {
         startDownloadTimeStamp = start;
     }
+    
+    public Instant getFirstByteTime() {
+        return firstByteTimeStamp;
+    }
+    
+    public void setFirstByteTime(Instant firstByte) {
+        firstByteTimeStamp = firstByte;
+    }
 
     public void updateProgressBar() {
         // Get the percentage of the part downloaded
         long contentSize = mURLVerifyResult.contentLength;
+        if (contentSize <= 0) {
+            // Without the size there is no bar, only the size so far
+            System.out.format("\r%s downloaded    ",
+                    Utility.readableFileSize(downloadedCount));
+            return;
+        }
+
         double percent = ((double) downloadedCount / (double) contentSize) * 100;
         percent = (double) ((int)Math.round(percent * 100)) / 100;
 
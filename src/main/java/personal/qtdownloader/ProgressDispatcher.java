@@ -0,0 +1,188 @@
+/**
+ * Class: ProgressDispatcher.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the progress of a download to its handlers on the engine's event
+ * thread. The download threads only queue the events, which are handed to
+ * the handlers in a batch once per progress interval along with a bytes
+ * event for the data downloaded in the meantime.
+ *
+ * @author quan
+ */
+public class ProgressDispatcher {
+
+    private final Progress progress;
+    private final List<ProgressHandler> handlers;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalMillis;
+    private final Queue<ProgressEvent> events;
+
+    private volatile HttpResult verifyResult;
+    private ScheduledFuture<?> task;
+    private boolean verifyResultSent;
+    private long lastDownloadedSize;
+    private long lastDownloadedSinceStart;
+    private Instant lastFlushTime;
+
+    /**
+     * Create a dispatcher.
+     *
+     * @param progress The progress of the download.
+     * @param handlers The handlers to notify.
+     * @param scheduler The event thread.
+     * @param intervalMillis The progress interval in milliseconds.
+     */
+    public ProgressDispatcher(Progress progress, List<ProgressHandler> handlers,
+            ScheduledExecutorService scheduler, long intervalMillis) {
+        this.progress = progress;
+        this.handlers = handlers;
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+        this.events = new ConcurrentLinkedQueue<>();
+        this.verifyResult = null;
+        this.task = null;
+        this.verifyResultSent = false;
+        this.lastDownloadedSize = 0;
+        this.lastDownloadedSinceStart = 0;
+        this.lastFlushTime = Instant.now();
+    }
+
+    /**
+     * Start delivering the events once per progress interval.
+     */
+    public void start() {
+        task = scheduler.scheduleWithFixedDelay(this::flush, intervalMillis,
+                intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue the result of the probe request.
+     *
+     * @param result The result.
+     */
+    public void probeDone(HttpResult result) {
+        verifyResult = result;
+        post(ProgressEvent.probeDone(result));
+    }
+
+    /**
+     * Queue an event. Never blocks.
+     *
+     * @param event The event.
+     */
+    public void post(ProgressEvent event) {
+        events.add(event);
+    }
+
+    /**
+     * Stop the periodic delivery and deliver the remaining events followed by
+     * the given last event. Waits until they are delivered, so that the
+     * handlers have seen the end of the download before its result is
+     * returned.
+     *
+     * @param lastEvent The completed or failed event.
+     */
+    public void finish(ProgressEvent lastEvent) {
+        if (task != null)
+            task.cancel(false);
+        post(lastEvent);
+
+        try {
+            scheduler.submit(this::flush).get();
+        } catch (RejectedExecutionException | ExecutionException ex) {
+            // The engine was closed, nobody is listening any more.
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deliver the queued events. Runs on the event thread.
+     */
+    private void flush() {
+        HttpResult result = verifyResult;
+        if (!verifyResultSent && result != null) {
+            for (ProgressHandler handler : handlers)
+                callHandler(() -> handler.handle(result));
+            verifyResultSent = true;
+        }
+
+        List<ProgressEvent> batch = new ArrayList<>();
+        ProgressEvent event;
+        while ((event = events.poll()) != null)
+            batch.add(event);
+
+        // Report the bytes downloaded since the last delivery, before the
+        // end of the download if it is in the batch.
+        Progress snapshot;
+        DownloadEvents.ProgressLockWait lockWait = DownloadEvents.beginProgressLockWait();
+        synchronized (progress) {
+            if (lockWait != null)
+                lockWait.done();
+            snapshot = progress.snapshot();
+        }
+
+        if (snapshot.getDownloadedSize() != lastDownloadedSize) {
+            Instant now = Instant.now();
+            long elapsed = Duration.between(lastFlushTime, now).toMillis();
+            long downloaded = snapshot.getDownloadedSinceStart()
+                    - lastDownloadedSinceStart;
+            double speed = (elapsed == 0) ? 0 : downloaded * 1000.0 / elapsed;
+
+            ProgressEvent bytes = ProgressEvent.bytes(snapshot.getDownloadedSize(),
+                    snapshot.getContentSize(), speed);
+            int position = batch.size();
+            if (position > 0 && isLastEvent(batch.get(position - 1)))
+                position--;
+            batch.add(position, bytes);
+
+            lastDownloadedSize = snapshot.getDownloadedSize();
+            lastDownloadedSinceStart = snapshot.getDownloadedSinceStart();
+            lastFlushTime = now;
+
+            if (verifyResultSent) {
+                for (ProgressHandler handler : handlers)
+                    callHandler(() -> handler.update(snapshot));
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            for (ProgressHandler handler : handlers)
+                callHandler(() -> handler.onEvents(batch));
+        }
+    }
+
+    private static boolean isLastEvent(ProgressEvent event) {
+        return event.getType() == ProgressEvent.Type.COMPLETED
+                || event.getType() == ProgressEvent.Type.FAILED;
+    }
+
+    /**
+     * Call a handler. A failing handler must not stop the delivery to the
+     * others or the later deliveries.
+     */
+    private static void callHandler(Runnable call) {
+        try {
+            call.run();
+        } catch (RuntimeException ex) {
+            // TODO Log the error
+        }
+    }
+}
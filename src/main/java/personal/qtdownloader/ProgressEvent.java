@@ -0,0 +1,300 @@
+/**
+ * Class: ProgressEvent.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.time.Instant;
+
+/**
+ * Something that happened during a download, as delivered to
+ * {@link ProgressHandler#onEvents(java.util.List)}.
+ *
+ * @author quan
+ */
+public class ProgressEvent {
+
+    /**
+     * The kinds of events.
+     */
+    public enum Type {
+        /** The probe request was answered. */
+        PROBE_DONE,
+        /** A TLS handshake with the server completed. */
+        HANDSHAKE,
+        /** A segment started downloading. */
+        SEGMENT_STARTED,
+        /** A segment finished downloading. */
+        SEGMENT_FINISHED,
+        /** A segment failed and is downloaded again from where it stopped. */
+        SEGMENT_RETRIED,
+        /** A piece of a segment did not match its hash and was downloaded again. */
+        PIECE_REPAIRED,
+        /** More bytes were downloaded since the last event of this type. */
+        BYTES,
+        /** The download completed. */
+        COMPLETED,
+        /** The download failed. */
+        FAILED
+    }
+
+    private final Type type;
+    private final Instant time;
+    private int segment;
+    private int attempt;
+    private int piece;
+    private int responseCode;
+    private long downloadedSize;
+    private long contentSize;
+    private double speed;
+    private boolean resumed;
+    private long durationMillis;
+    private String message;
+
+    private ProgressEvent(Type type) {
+        this.type = type;
+        this.time = Instant.now();
+        this.segment = 0;
+        this.attempt = 0;
+        this.piece = 0;
+        this.responseCode = 0;
+        this.downloadedSize = -1;
+        this.contentSize = -1;
+        this.speed = 0;
+        this.resumed = false;
+        this.durationMillis = -1;
+        this.message = null;
+    }
+
+    public static ProgressEvent probeDone(HttpResult result) {
+        ProgressEvent event = new ProgressEvent(Type.PROBE_DONE);
+        event.responseCode = result.responseCode;
+        event.contentSize = result.contentLength;
+        return event;
+    }
+
+    /**
+     * Create a handshake event.
+     *
+     * @param host The server's host.
+     * @param resumed True if an earlier session was resumed.
+     * @param durationMillis The handshake's duration in milliseconds.
+     * @return The event.
+     */
+    public static ProgressEvent handshake(String host, boolean resumed,
+            long durationMillis) {
+        ProgressEvent event = new ProgressEvent(Type.HANDSHAKE);
+        event.resumed = resumed;
+        event.durationMillis = durationMillis;
+        event.message = host;
+        return event;
+    }
+
+    public static ProgressEvent segmentStarted(int segment) {
+        ProgressEvent event = new ProgressEvent(Type.SEGMENT_STARTED);
+        event.segment = segment;
+        return event;
+    }
+
+    public static ProgressEvent segmentFinished(int segment, long size) {
+        ProgressEvent event = new ProgressEvent(Type.SEGMENT_FINISHED);
+        event.segment = segment;
+        event.downloadedSize = size;
+        return event;
+    }
+
+    public static ProgressEvent segmentRetried(int segment, int attempt, String reason) {
+        ProgressEvent event = new ProgressEvent(Type.SEGMENT_RETRIED);
+        event.segment = segment;
+        event.attempt = attempt;
+        event.message = reason;
+        return event;
+    }
+
+    /**
+     * Create a piece repaired event.
+     *
+     * @param segment The segment's number, starting from 1.
+     * @param piece The piece's number, starting from 1.
+     * @param url The URL the piece was downloaded again from.
+     * @return The event.
+     */
+    public static ProgressEvent pieceRepaired(int segment, int piece, String url) {
+        ProgressEvent event = new ProgressEvent(Type.PIECE_REPAIRED);
+        event.segment = segment;
+        event.piece = piece;
+        event.message = url;
+        return event;
+    }
+
+    /**
+     * Create a bytes event.
+     *
+     * @param downloadedSize The size downloaded so far.
+     * @param contentSize The file's size, or -1 if it is unknown.
+     * @param speed The speed since the last bytes event, in bytes per second.
+     * @return The event.
+     */
+    public static ProgressEvent bytes(long downloadedSize, long contentSize, double speed) {
+        ProgressEvent event = new ProgressEvent(Type.BYTES);
+        event.downloadedSize = downloadedSize;
+        event.contentSize = contentSize;
+        event.speed = speed;
+        return event;
+    }
+
+    public static ProgressEvent completed(DownloadResult result) {
+        ProgressEvent event = new ProgressEvent(Type.COMPLETED);
+        event.downloadedSize = result.getDownloadedSize();
+        event.message = result.getOutputPath();
+        return event;
+    }
+
+    public static ProgressEvent failed(String reason) {
+        ProgressEvent event = new ProgressEvent(Type.FAILED);
+        event.message = reason;
+        return event;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Instant getTime() {
+        return time;
+    }
+
+    /**
+     * Get the segment's number, starting from 1.
+     *
+     * @return The segment's number, or 0 if the event is not about a segment.
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Get the number of the repaired piece, starting from 1.
+     *
+     * @return The piece's number, or 0 if the event is not about a piece.
+     */
+    public int getPiece() {
+        return piece;
+    }
+
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    public long getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Get the duration of a handshake.
+     *
+     * @return The duration in milliseconds, or -1 if the event is not about
+     * a handshake.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Get the reason of a retry or a failure, the URL of a repaired piece,
+     * the host of a handshake or the output path of a completed download.
+     *
+     * @return The message, or null if there is none.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the event as a single line JSON object.
+     *
+     * @return The JSON object.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"event\":\"").append(type.name().toLowerCase()).append('"');
+        json.append(",\"time\":\"").append(time).append('"');
+
+        if (segment != 0)
+            json.append(",\"segment\":").append(segment);
+        if (attempt != 0)
+            json.append(",\"attempt\":").append(attempt);
+        if (piece != 0)
+            json.append(",\"piece\":").append(piece);
+        if (responseCode != 0)
+            json.append(",\"responseCode\":").append(responseCode);
+        if (downloadedSize != -1)
+            json.append(",\"downloaded\":").append(downloadedSize);
+        if (type == Type.PROBE_DONE || type == Type.BYTES)
+            json.append(",\"total\":").append(contentSize);
+        if (type == Type.BYTES)
+            json.append(",\"speed\":").append(Math.round(speed));
+        if (type == Type.HANDSHAKE) {
+            json.append(",\"resumed\":").append(resumed);
+            json.append(",\"millis\":").append(durationMillis);
+        }
+        if (message != null)
+            json.append(",\"message\":\"").append(escape(message)).append('"');
+
+        return json.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder();
+
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    else
+                        escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
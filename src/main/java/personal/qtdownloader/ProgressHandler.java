@@ -1,14 +1,45 @@
-/*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
+/**
+ * Class: ProgressHandler.java
+ *
+ * @author quan
+ *
  */
 package personal.qtdownloader;
 
+import java.util.List;
+
 /**
+ * A listener for the progress of a download. The methods are called on the
+ * engine's event thread, never on the download threads, so a slow handler
+ * delays only the events and not the transfer. The events are delivered in
+ * batches, at the download's progress interval.
  *
  * @author Quan
  */
 public interface ProgressHandler {
+
+    /**
+     * Called once the download URL has been verified, before the parts
+     * start downloading.
+     *
+     * @param verifyResult The result of the URL verification.
+     */
     void handle(HttpResult verifyResult);
+
+    /**
+     * Called at most once per progress interval when the downloaded size
+     * has changed.
+     *
+     * @param progress A snapshot of the progress of the download.
+     */
+    default void update(Progress progress) {
+    }
+
+    /**
+     * Called with the events which happened since the last call, in order.
+     *
+     * @param events The events.
+     */
+    default void onEvents(List<ProgressEvent> events) {
+    }
 }
@@ -0,0 +1,210 @@
+/**
+ * Class: RangeWorker.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process which downloads byte ranges of files for a coordinating
+ * download on another node, and streams them back to it. The ranges of a
+ * file spread over several nodes are not held back by an origin which caps
+ * the bandwidth of each client address.
+ *
+ * The protocol is binary, in the encoding of {@link DataOutputStream}. The
+ * coordinator sends the protocol's name, the shared token, then the URL,
+ * the first and the last byte of the range and the Authorization header,
+ * empty if there is none. The worker answers with frames, each an int
+ * length followed by that many bytes of the range. A zero length ends the
+ * range, and a negative one is followed by an error message. A connection
+ * carries a single range.
+ *
+ * @author quan
+ */
+public class RangeWorker implements AutoCloseable {
+
+    public static final String PROTOCOL = "QTDOWNLOADER-RANGE/1";
+
+    static final int FRAME_SIZE = 65536;
+    static final int END_FRAME = 0;
+    static final int ERROR_FRAME = -1;
+
+    private final ServerSocket serverSocket;
+    private final byte[] token;
+    private final ExecutorService clientPool;
+    private final AtomicInteger servedRanges;
+
+    /**
+     * Start listening on the given address.
+     *
+     * @param address The address, or null for all the interfaces.
+     * @param port The port, or 0 for an ephemeral one.
+     * @param token The token the coordinators must send.
+     * @throws IOException if the socket cannot be bound.
+     */
+    public RangeWorker(InetAddress address, int port, String token) throws IOException {
+        if (token == null || token.isEmpty())
+            throw new IllegalArgumentException("A range worker needs a token");
+
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(address, port), 50);
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.clientPool = Executors.newCachedThreadPool();
+        this.servedRanges = new AtomicInteger();
+    }
+
+    /**
+     * Accept coordinators until the worker is closed.
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                clientPool.execute(() -> handleClient(socket));
+            } catch (IOException ex) {
+                // The server socket was closed.
+            }
+        }
+    }
+
+    /**
+     * Accept coordinators on a background thread.
+     */
+    public void start() {
+        clientPool.execute(this::serve);
+    }
+
+    /**
+     * Get the port the worker listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Get the number of ranges sent completely so far.
+     *
+     * @return The number of ranges.
+     */
+    public int getServedRanges() {
+        return servedRanges.get();
+    }
+
+    private void handleClient(Socket socket) {
+        try (Socket client = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        client.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        client.getOutputStream()))) {
+            client.setSoTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+
+            if (!PROTOCOL.equals(in.readUTF()))
+                return;
+            byte[] clientToken = in.readUTF().getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(token, clientToken))
+                return;
+
+            String url = in.readUTF();
+            long start = in.readLong();
+            long end = in.readLong();
+            String authorization = in.readUTF();
+
+            try {
+                sendRange(new URL(url), start, end,
+                        authorization.isEmpty() ? null : authorization, out);
+            } catch (IOException | RuntimeException ex) {
+                // Tell the coordinator, which gives the rest of the range
+                // to another worker.
+                String message = (ex.getMessage() != null) ? ex.getMessage()
+                        : ex.toString();
+                out.writeInt(ERROR_FRAME);
+                out.writeUTF(message);
+            }
+            out.flush();
+        } catch (IOException ex) {
+            // The coordinator went away.
+        }
+    }
+
+    /**
+     * Download the given range and send it in frames.
+     */
+    private void sendRange(URL url, long start, long end, String authorization,
+            DataOutputStream out) throws IOException {
+        if (start < 0 || end < start)
+            throw new IOException("Invalid range " + start + "-" + end);
+        // Only web URLs, so that a coordinator cannot read the worker's files
+        String protocol = url.getProtocol();
+        if (!"http".equalsIgnoreCase(protocol) && !"https".equalsIgnoreCase(protocol))
+            throw new IOException("Unsupported URL scheme " + protocol);
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setReadTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+            conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            if (authorization != null)
+                conn.setRequestProperty("Authorization", authorization);
+
+            HttpResult result = HttpResult.fromConnection(conn);
+            long rangeStart = HttpResult.parseContentRangeStart(
+                    conn.getHeaderField("Content-Range"));
+            if (!result.rangesSupported || rangeStart != start)
+                throw new IOException("The server did not send the requested range");
+
+            byte[] buffer = new byte[FRAME_SIZE];
+            long remaining = end - start + 1;
+            try (InputStream body = conn.getInputStream()) {
+                while (remaining > 0) {
+                    int count = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count == -1)
+                        throw new IOException("Connection closed early at byte "
+                                + (end - remaining + 1));
+
+                    out.writeInt(count);
+                    out.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+
+            out.writeInt(END_FRAME);
+            servedRanges.incrementAndGet();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Stop accepting coordinators and stop the running ranges.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // TODO Log the error
+        }
+
+        clientPool.shutdownNow();
+    }
+}
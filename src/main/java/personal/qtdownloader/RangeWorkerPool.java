@@ -0,0 +1,283 @@
+/**
+ * Class: RangeWorkerPool.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The range workers a coordinating download hands its segments to. Each
+ * attempt of a segment goes to the healthy worker with the fewest ranges
+ * in flight. A worker which fails is left out for a while, and the retry
+ * of its segment goes to another worker from where the segment stopped.
+ *
+ * @author quan
+ * @see RangeWorker
+ */
+public class RangeWorkerPool {
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final long FAILURE_COOLDOWN_MILLIS = 30000;
+
+    private final List<Worker> workers;
+    private final String token;
+
+    /**
+     * Create a pool of the given workers.
+     *
+     * @param addresses The workers' "host:port" addresses.
+     * @param token The token the workers expect.
+     */
+    public RangeWorkerPool(List<String> addresses, String token) {
+        List<Worker> list = new ArrayList<>();
+        for (String address : addresses)
+            list.add(new Worker(address));
+
+        this.workers = Collections.unmodifiableList(list);
+        this.token = token;
+    }
+
+    /**
+     * Parse a worker's "host:port" address.
+     *
+     * @param address The address.
+     * @return The socket address, unresolved.
+     * @throws IllegalArgumentException if the address is invalid.
+     */
+    public static InetSocketAddress parseAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0)
+            throw new IllegalArgumentException("Invalid worker address: " + address);
+
+        String host = address.substring(0, separator);
+        if (host.startsWith("[") && host.endsWith("]"))
+            host = host.substring(1, host.length() - 1);
+
+        try {
+            int port = Integer.parseInt(address.substring(separator + 1));
+            return InetSocketAddress.createUnresolved(host, port);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid worker address: " + address);
+        }
+    }
+
+    /**
+     * Get the workers.
+     *
+     * @return The workers.
+     */
+    public List<Worker> getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Take the healthy worker with the fewest ranges in flight.
+     *
+     * @return The worker, which must be released, or null if all the
+     * workers failed recently.
+     */
+    public synchronized Worker acquire() {
+        long now = System.currentTimeMillis();
+        Worker best = null;
+
+        for (Worker worker : workers) {
+            if (now < worker.failedUntil)
+                continue;
+            if (best == null || worker.activeRanges < best.activeRanges)
+                best = worker;
+        }
+
+        if (best != null)
+            best.activeRanges++;
+        return best;
+    }
+
+    /**
+     * Give back a worker taken with {@link #acquire()}.
+     *
+     * @param worker The worker.
+     * @param failed True if the worker failed its range, which leaves it out
+     * for a while.
+     */
+    public synchronized void release(Worker worker, boolean failed) {
+        worker.activeRanges--;
+        if (failed) {
+            worker.failedUntil = System.currentTimeMillis() + FAILURE_COOLDOWN_MILLIS;
+            worker.failures++;
+        } else {
+            worker.completedRanges++;
+        }
+    }
+
+    /**
+     * A range worker on another node.
+     */
+    public class Worker {
+
+        private final String address;
+        private int activeRanges;
+        private int completedRanges;
+        private int failures;
+        private long failedUntil;
+
+        private Worker(String address) {
+            parseAddress(address);
+
+            this.address = address;
+            this.activeRanges = 0;
+            this.completedRanges = 0;
+            this.failures = 0;
+            this.failedUntil = 0;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * Get the number of ranges the worker sent completely.
+         *
+         * @return The number of ranges.
+         */
+        public int getCompletedRanges() {
+            synchronized (RangeWorkerPool.this) {
+                return completedRanges;
+            }
+        }
+
+        /**
+         * Get the number of ranges the worker failed.
+         *
+         * @return The number of failures.
+         */
+        public int getFailures() {
+            synchronized (RangeWorkerPool.this) {
+                return failures;
+            }
+        }
+
+        /**
+         * Ask the worker for the given range of the file.
+         *
+         * @param url The file's URL.
+         * @param start The first byte of the range.
+         * @param end The last byte of the range.
+         * @param authorization The Authorization header, or null.
+         * @return The stream of the range's bytes, which fails if the
+         * worker does.
+         * @throws IOException if the worker cannot be reached.
+         */
+        public InputStream fetch(URL url, long start, long end, String authorization)
+                throws IOException {
+            InetSocketAddress unresolved = parseAddress(address);
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(unresolved.getHostString(),
+                        unresolved.getPort()), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(DownloadThread.READ_TIMEOUT_MILLIS);
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+                out.writeUTF(RangeWorker.PROTOCOL);
+                out.writeUTF(token);
+                out.writeUTF(url.toString());
+                out.writeLong(start);
+                out.writeLong(end);
+                out.writeUTF((authorization == null) ? "" : authorization);
+                out.flush();
+
+                return new FrameInputStream(socket);
+            } catch (IOException ex) {
+                socket.close();
+                throw new IOException("Range worker " + address + " failed: "
+                        + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * The bytes of a range, read from the worker's frames.
+     */
+    private static class FrameInputStream extends InputStream {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private int frameRemaining;
+        private boolean ended;
+
+        private FrameInputStream(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream(), RangeWorker.FRAME_SIZE));
+            this.frameRemaining = 0;
+            this.ended = false;
+        }
+
+        /**
+         * Read the next frame's header, so that there are bytes to read
+         * unless the range ended.
+         */
+        private void nextFrame() throws IOException {
+            while (frameRemaining == 0 && !ended) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    throw new IOException("Range worker closed the connection", ex);
+                }
+
+                if (length == RangeWorker.ERROR_FRAME)
+                    throw new IOException("Range worker failed: " + in.readUTF());
+                if (length == RangeWorker.END_FRAME)
+                    ended = true;
+                else if (length < 0)
+                    throw new IOException("Invalid frame from the range worker");
+                else
+                    frameRemaining = length;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (read(single, 0, 1) == -1) ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+
+            nextFrame();
+            if (ended)
+                return -1;
+
+            int count = in.read(buffer, offset, Math.min(length, frameRemaining));
+            if (count == -1)
+                throw new IOException("Range worker closed the connection");
+
+            frameRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Class: SessionStore.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The database of past download sessions.
+ *
+ * @author quan
+ */
+public class SessionStore implements AutoCloseable {
+
+    public static final String TABLE_NAME = "sessions";
+    public static final String PROFILES_TABLE_NAME = "host_profiles";
+
+    private final CompletableFuture<Connection> dbConn;
+
+    private SessionStore(CompletableFuture<Connection> dbConn) {
+        this.dbConn = dbConn;
+    }
+
+    /**
+     * Start connecting to the database on a background thread, so that
+     * loading the driver and opening the database is off the critical path.
+     * The first query waits for the connection.
+     *
+     * @param databasePath The JDBC URL of the database.
+     * @return The session store.
+     */
+    public static SessionStore open(String databasePath) {
+        CompletableFuture<Connection> dbConn = new CompletableFuture<>();
+
+        Thread opener = new Thread(() -> {
+            try {
+                dbConn.complete(connect(databasePath));
+            } catch (RuntimeException ex) {
+                System.out.println("[WARNING] Cannot open the database: "
+                        + ex.getMessage());
+                dbConn.complete(null);
+            }
+        }, "qtdownloader-session-store");
+        opener.setDaemon(true);
+        opener.start();
+
+        return new SessionStore(dbConn);
+    }
+
+    /**
+     * Connect to the database and set up the table for using.
+     *
+     * @return The connection, or null if the database cannot be used.
+     */
+    private static Connection connect(String databasePath) {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException ex) {
+            // If the class cannot be found (which should never happen)
+            // The program cannot save the download information in the database
+            // TODO Log the error
+
+            System.out.println("[WARNING] Cannot find h2 driver: org.h2.driver ");
+            return null;
+        }
+
+        Connection dbConn;
+        try {
+            dbConn = DriverManager.getConnection(databasePath, "", "");
+        } catch (SQLException ex) {
+            System.out.println("[WARNING] Cannot connect to the database");
+            return null;
+        }
+
+        // Create the table if not exists
+        String createTableQuery = "CREATE TABLE IF NOT EXISTS "
+                + TABLE_NAME + " ("
+                + "id INT NOT NULL AUTO_INCREMENT,"
+                + "PRIMARY KEY(ID),"
+                + "file_name VARCHAR(255),"
+                + "url VARCHAR(2083),"
+                + "downloaded_size BIGINT,"
+                + "downloaded_date TIMESTAMP);";
+
+        try (PreparedStatement stmt = dbConn.prepareStatement(createTableQuery)) {
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.out.println("[WARNING] Cannot create information table in the database");
+        }
+
+        // Databases created before mirrors kept the last modified times
+        String addColumnQuery = "ALTER TABLE " + TABLE_NAME
+                + " ADD COLUMN IF NOT EXISTS last_modified BIGINT;";
+
+        try (PreparedStatement stmt = dbConn.prepareStatement(addColumnQuery)) {
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.out.println("[WARNING] Cannot update information table in the database");
+        }
+
+        String createProfilesQuery = "CREATE TABLE IF NOT EXISTS "
+                + PROFILES_TABLE_NAME + " ("
+                + "host VARCHAR(255) NOT NULL,"
+                + "PRIMARY KEY(host),"
+                + "parts_count INT,"
+                + "throughput DOUBLE,"
+                + "ttfb_millis DOUBLE,"
+                + "error_rate DOUBLE,"
+                + "ranges_supported BOOLEAN,"
+                + "samples INT,"
+                + "updated_date TIMESTAMP);";
+
+        try (PreparedStatement stmt = dbConn.prepareStatement(createProfilesQuery)) {
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.out.println("[WARNING] Cannot create host profiles table in the database");
+        }
+
+        return dbConn;
+    }
+
+    /**
+     * Wait for the connection to the database.
+     *
+     * @return The connection, or null if the database cannot be used.
+     */
+    private Connection connection() {
+        return dbConn.join();
+    }
+
+    /**
+     * Find the last session of downloading from the given URL.
+     *
+     * @param url The download URL.
+     * @return The session. If the URL was never downloaded from, the
+     * session's alreadyDownloaded is false.
+     */
+    public synchronized DownloadSession find(String url) {
+        DownloadSession session = new DownloadSession(new File(url).getName(), url, -1);
+        session.alreadyDownloaded = false;
+        session.resumeDownload = false;
+
+        // If the database cannot be used then assume that the download is new
+        Connection conn = connection();
+        if (conn == null)
+            return session;
+
+        String selectDownloadQuery = "SELECT * FROM " + TABLE_NAME + " WHERE url=?;";
+        try (PreparedStatement stmt = conn.prepareStatement(selectDownloadQuery)) {
+            stmt.setString(1, url);
+            ResultSet result = stmt.executeQuery();
+
+            if (result.next()) {
+                session.alreadyDownloaded = true;
+                session.setDownloadSize(result.getLong("downloaded_size"));
+                session.setLastModified(result.getLong("last_modified"));
+            }
+        } catch (SQLException ex) {
+            // Cannot select the data from database
+            // So we consider this download session as being new
+            // TODO Log the error.
+        }
+
+        return session;
+    }
+
+    /**
+     * Write the information for the given download session to the database.
+     *
+     * @param session The download session.
+     */
+    public synchronized void save(DownloadSession session) {
+        // If the database cannot be used then don't write information to it
+        Connection conn = connection();
+        if (conn == null)
+            return;
+
+        try {
+            if (session.alreadyDownloaded) {
+                // If the file has been downloaded before,
+                // update the downloaded size.
+                String updateInfoQuery = "UPDATE " + TABLE_NAME
+                        + " SET downloaded_size=?,last_modified=?,downloaded_date=NOW()"
+                        + " WHERE url=?;";
+                try (PreparedStatement stmt = conn.prepareStatement(updateInfoQuery)) {
+                    stmt.setLong(1, session.getDownloadedSize());
+                    stmt.setLong(2, session.getLastModified());
+                    stmt.setString(3, session.getURL());
+                    stmt.executeUpdate();
+                }
+            } else {
+                // If the file hasn't been downloaded before
+                // insert a new entry into the table
+                String insertInfoQuery = "INSERT INTO " + TABLE_NAME + " "
+                        + "(url, downloaded_size, file_name, last_modified, downloaded_date)"
+                        + " VALUES (?, ?, ?, ?, NOW());";
+                try (PreparedStatement stmt = conn.prepareStatement(insertInfoQuery)) {
+                    stmt.setString(1, session.getURL());
+                    stmt.setLong(2, session.getDownloadedSize());
+                    stmt.setString(3, session.getFileName());
+                    stmt.setLong(4, session.getLastModified());
+                    stmt.executeUpdate();
+                }
+            }
+        } catch (SQLException ex) {
+            // IF failed to write the info, the information will not be written.
+            // Next time the file is downloaded from the url, it will be treated
+            // as a new download.
+            // TODO Log the error.
+        }
+    }
+
+    /**
+     * Find the profile learned from the past downloads from the given host.
+     *
+     * @param host The host, as keyed by {@link HostProfile#hostOf(String)}.
+     * @return The profile, or a new one if the host was never downloaded
+     * from or the database cannot be used.
+     */
+    public synchronized HostProfile findProfile(String host) {
+        Connection conn = connection();
+        if (conn == null)
+            return new HostProfile(host);
+
+        String selectProfileQuery = "SELECT * FROM " + PROFILES_TABLE_NAME
+                + " WHERE host=?;";
+        try (PreparedStatement stmt = conn.prepareStatement(selectProfileQuery)) {
+            stmt.setString(1, host);
+            ResultSet result = stmt.executeQuery();
+
+            if (result.next())
+                return new HostProfile(host, result.getInt("parts_count"),
+                        result.getDouble("throughput"), result.getDouble("ttfb_millis"),
+                        result.getDouble("error_rate"), result.getBoolean("ranges_supported"),
+                        result.getInt("samples"));
+        } catch (SQLException ex) {
+            // The downloads from the host start over with the defaults.
+        }
+
+        return new HostProfile(host);
+    }
+
+    /**
+     * Write the given host profile to the database.
+     *
+     * @param profile The profile.
+     */
+    public synchronized void saveProfile(HostProfile profile) {
+        Connection conn = connection();
+        if (conn == null)
+            return;
+
+        String mergeProfileQuery = "MERGE INTO " + PROFILES_TABLE_NAME
+                + " (host, parts_count, throughput, ttfb_millis, error_rate,"
+                + " ranges_supported, samples, updated_date) KEY(host)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, NOW());";
+        try (PreparedStatement stmt = conn.prepareStatement(mergeProfileQuery)) {
+            stmt.setString(1, profile.getHost());
+            stmt.setInt(2, profile.getPartsCount());
+            stmt.setDouble(3, profile.getThroughput());
+            stmt.setDouble(4, profile.getTtfbMillis());
+            stmt.setDouble(5, profile.getErrorRate());
+            stmt.setBoolean(6, profile.isRangesSupported());
+            stmt.setInt(7, profile.getSamples());
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            // The profile keeps what it learned before this download.
+        }
+    }
+
+    /**
+     * Close the database.
+     */
+    @Override
+    public synchronized void close() {
+        Connection conn = connection();
+        if (conn == null)
+            return;
+
+        try {
+            conn.close();
+        } catch (SQLException ex) {
+            // TODO Log the error
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Class: TarExtractor.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unpacks a tar stream (ustar, GNU long names and pax path headers) into a
+ * directory. Only regular files and directories are extracted, links and
+ * special files are skipped.
+ *
+ * @author quan
+ */
+public class TarExtractor {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private final Path outputDirectory;
+    private final byte[] header;
+    private final byte[] buffer;
+
+    /**
+     * Create an extractor writing into the given directory.
+     *
+     * @param outputDirectory The directory to unpack the entries into.
+     */
+    public TarExtractor(Path outputDirectory) {
+        this.outputDirectory = outputDirectory.toAbsolutePath().normalize();
+        this.header = new byte[BLOCK_SIZE];
+        this.buffer = new byte[(int) Math.pow(2, 16)]; // 64KB
+    }
+
+    /**
+     * Read the tar stream to its end and unpack its entries.
+     *
+     * @param in The tar stream.
+     * @return The number of bytes written to the extracted files.
+     * @throws IOException if the stream is not a valid tar stream or an entry
+     * cannot be written.
+     */
+    public long extract(InputStream in) throws IOException {
+        long extractedBytes = 0;
+        String longName = null;
+
+        while (readBlock(in, header)) {
+            // Two zero blocks mark the end of the archive, one is enough
+            // to stop reading.
+            if (isZeroBlock(header))
+                break;
+
+            String name = readString(header, 0, 100);
+            long size = readNumber(header, 124, 12);
+            char type = (char) header[156];
+            String prefix = readString(header, 345, 155);
+            if (!prefix.isEmpty() && longName == null)
+                name = prefix + "/" + name;
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            }
+
+            switch (type) {
+                case 'L': {
+                    // GNU long name: the data is the name of the next entry.
+                    longName = readString(readData(in, size), 0, (int) size);
+                    break;
+                }
+                case 'x': {
+                    // Pax extended header: only the path record is used.
+                    longName = readPaxPath(readData(in, size));
+                    break;
+                }
+                case '0':
+                case '\0': {
+                    Path target = resolve(name);
+                    Files.createDirectories(target.getParent());
+
+                    try (OutputStream out = Files.newOutputStream(target)) {
+                        extractedBytes += copy(in, out, size);
+                    }
+                    skipPadding(in, size);
+                    break;
+                }
+                case '5': {
+                    Files.createDirectories(resolve(name));
+                    break;
+                }
+                default: {
+                    // Links, devices, fifos and pax global headers
+                    skip(in, size);
+                    skipPadding(in, size);
+                    break;
+                }
+            }
+        }
+
+        return extractedBytes;
+    }
+
+    /**
+     * Resolve the entry name against the output directory, refusing names
+     * which would escape it.
+     */
+    private Path resolve(String name) throws IOException {
+        Path target = outputDirectory.resolve(name).normalize();
+
+        if (!target.startsWith(outputDirectory) || target.equals(outputDirectory)) {
+            throw new IOException("Invalid tar entry name: " + name);
+        }
+
+        return target;
+    }
+
+    private long copy(InputStream in, OutputStream out, long size)
+            throws IOException {
+        long remaining = size;
+
+        while (remaining > 0) {
+            int toRead = (int) Math.min(buffer.length, remaining);
+            int result = in.read(buffer, 0, toRead);
+
+            if (result == -1)
+                throw new EOFException("Unexpected end of tar stream");
+
+            out.write(buffer, 0, result);
+            remaining -= result;
+        }
+
+        return size;
+    }
+
+    private byte[] readData(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Tar header entry too large: " + size);
+
+        byte[] data = new byte[(int) size];
+        int offset = 0;
+        while (offset < data.length) {
+            int result = in.read(data, offset, data.length - offset);
+            if (result == -1)
+                throw new EOFException("Unexpected end of tar stream");
+            offset += result;
+        }
+        skipPadding(in, size);
+
+        return data;
+    }
+
+    private void skip(InputStream in, long size) throws IOException {
+        long remaining = size;
+
+        while (remaining > 0) {
+            int result = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (result == -1)
+                throw new EOFException("Unexpected end of tar stream");
+            remaining -= result;
+        }
+    }
+
+    private void skipPadding(InputStream in, long size) throws IOException {
+        long padding = (BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE;
+        skip(in, padding);
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block)
+            throws IOException {
+        int offset = 0;
+
+        while (offset < block.length) {
+            int result = in.read(block, offset, block.length - offset);
+            if (result == -1) {
+                if (offset == 0)
+                    return false;
+                throw new EOFException("Unexpected end of tar stream");
+            }
+            offset += result;
+        }
+
+        return true;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    private static String readString(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0)
+            end++;
+
+        return new String(data, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a numeric header field, either as octal text or, for GNU large
+     * values, as a base-256 number.
+     */
+    private static long readNumber(byte[] data, int offset, int length) {
+        if ((data[offset] & 0x80) != 0) {
+            long value = data[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++)
+                value = (value << 8) | (data[i] & 0xff);
+            return value;
+        }
+
+        String text = readString(data, offset, length).trim();
+        return text.isEmpty() ? 0 : Long.parseLong(text, 8);
+    }
+
+    /**
+     * Get the path record from a pax extended header. Records have the form
+     * "<length> <key>=<value>\n".
+     */
+    private static String readPaxPath(byte[] data) {
+        int position = 0;
+
+        while (position < data.length) {
+            int space = position;
+            while (space < data.length && data[space] != ' ')
+                space++;
+            if (space == data.length)
+                break;
+
+            // The length counts bytes of the whole record, including itself
+            // and the trailing newline.
+            int length = Integer.parseInt(new String(data, position,
+                    space - position, StandardCharsets.US_ASCII));
+            if (length <= 0 || position + length > data.length)
+                break;
+
+            String record = new String(data, space + 1,
+                    position + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path="))
+                return record.substring("path=".length());
+
+            position += length;
+        }
+
+        return null;
+    }
+}
@@ -36,4 +36,37 @@ public class Utility {
         return result;
     }
 
+    /**
+     * Parse a size in bytes, with an optional K, M or G suffix for KB, MB
+     * or GB, such as "512M".
+     *
+     * @param size The size.
+     * @return The size in bytes.
+     * @throws IllegalArgumentException if the size is invalid.
+     */
+    public static long parseSize(String size) {
+        String units = "KMG";
+        String number = size.trim();
+        long multiplier = 1;
+
+        if (!number.isEmpty()) {
+            int unit = units.indexOf(Character.toUpperCase(
+                    number.charAt(number.length() - 1)));
+            if (unit != -1) {
+                multiplier = 1L << (10 * (unit + 1));
+                number = number.substring(0, number.length() - 1);
+            }
+        }
+
+        try {
+            long bytes = Long.parseLong(number);
+            if (bytes < 0)
+                throw new IllegalArgumentException("Invalid size: " + size);
+
+            return bytes * multiplier;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+    }
+
 }
@@ -0,0 +1,99 @@
+/**
+ * Class: Warmup.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+/**
+ * The training run for the class-data-sharing archive built by the
+ * fast-start profile. It opens a session database and downloads a file from
+ * a loopback server, so that every class on the startup and download path
+ * is loaded and ends up in the archive.
+ *
+ * @author quan
+ */
+public class Warmup {
+
+    private static final int CONTENT_SIZE = (int) Math.pow(2, 20); // 1MB
+
+    /**
+     *
+     * @param args Not used.
+     * @throws Exception if the training run failed.
+     */
+    public static void main(String[] args) throws Exception {
+        Path workDir = Files.createTempDirectory("qtdownloader-warmup");
+        byte[] content = new byte[CONTENT_SIZE];
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int start = 0;
+            int end = content.length - 1;
+            int status = 200;
+
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty())
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+            }
+
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("Content-Length",
+                    String.valueOf(end - start + 1));
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            exchange.sendResponseHeaders(status, head ? -1 : end - start + 1);
+
+            if (!head) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content, start, end - start + 1);
+                } catch (IOException ex) {
+                    // The client stopped reading.
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        try (SessionStore sessionStore = SessionStore.open("jdbc:h2:"
+                + workDir.resolve("qtdb"));
+                DownloadEngine engine = new DownloadEngine()) {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/warmup.bin";
+            DownloadSession session = sessionStore.find(url);
+
+            DownloadConfig config = new DownloadConfig.Builder(url)
+                    .outputDirectory(workDir.toString())
+                    .tempDirectory(workDir.toString())
+                    .build();
+            DownloadResult result = engine.submit(config, new ProgressHandler() {
+                @Override
+                public void handle(HttpResult verifyResult) {
+                }
+            }).get();
+
+            session.setDownloadSize(result.getDownloadedSize());
+            sessionStore.save(session);
+        } finally {
+            server.stop(0);
+
+            // Remove the work directory, deepest paths first.
+            Files.walk(workDir).sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        }
+    }
+}
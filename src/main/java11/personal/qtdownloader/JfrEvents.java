@@ -0,0 +1,259 @@
+/**
+ * Class: JfrEvents.java
+ *
+ * @author quan
+ *
+ */
+package personal.qtdownloader;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The flight recorder events behind {@link DownloadEvents}. This class is
+ * compiled for Java 11 from its own source directory, and only loaded by
+ * DownloadEvents if the running JVM has the jdk.jfr API.
+ *
+ * @author quan
+ */
+final class JfrEvents implements DownloadEvents.Recorder {
+
+    @Override
+    public DownloadEvents.Probe beginProbe(String url) {
+        Probe event = new Probe();
+        event.url = url;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public DownloadEvents.Segment beginSegment(String file, int part, long rangeStart,
+            long rangeEnd) {
+        Segment event = new Segment();
+        event.file = file;
+        event.part = part;
+        event.rangeStart = rangeStart;
+        event.rangeEnd = rangeEnd;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void segmentRetried(String file, int part, int attempt, String reason) {
+        SegmentRetry event = new SegmentRetry();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.part = part;
+            event.attempt = attempt;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    @Override
+    public DownloadEvents.Join beginJoin(String partFile, long position) {
+        Join event = new Join();
+        event.partFile = partFile;
+        event.position = position;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public DownloadEvents.BufferWait beginBufferWait(String stage, String file) {
+        BufferWait event = new BufferWait();
+        event.stage = stage;
+        event.file = file;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public DownloadEvents.ProgressLockWait beginProgressLockWait() {
+        ProgressLockWait event = new ProgressLockWait();
+        event.begin();
+        return event;
+    }
+
+    @Name("personal.qtdownloader.Probe")
+    @Label("Probe")
+    @Category("QTDownloader")
+    @Description("The probe request of a download, which answers with the file's size")
+    @StackTrace(false)
+    static final class Probe extends Event implements DownloadEvents.Probe {
+
+        @Label("URL")
+        String url;
+
+        @Label("Response Code")
+        int responseCode;
+
+        @Label("Content Length")
+        @DataAmount
+        long contentLength;
+
+        /**
+         * End the event once the probe was answered.
+         */
+        @Override
+        public void done(int responseCode, long contentLength) {
+            end();
+            if (shouldCommit()) {
+                this.responseCode = responseCode;
+                this.contentLength = contentLength;
+                commit();
+            }
+        }
+    }
+
+    @Name("personal.qtdownloader.Segment")
+    @Label("Segment")
+    @Category("QTDownloader")
+    @Description("The download of a segment, including its retries")
+    @StackTrace(false)
+    static final class Segment extends Event implements DownloadEvents.Segment {
+
+        @Label("File")
+        String file;
+
+        @Label("Part")
+        int part;
+
+        @Label("Range Start")
+        long rangeStart;
+
+        @Label("Range End")
+        long rangeEnd;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        long throughput;
+
+        @Label("Completed")
+        boolean completed;
+
+        transient long startNanos;
+
+        /**
+         * End the event once the segment finished or failed.
+         */
+        @Override
+        public void done(long bytes, boolean completed) {
+            end();
+            if (shouldCommit()) {
+                long nanos = System.nanoTime() - startNanos;
+                this.bytes = bytes;
+                this.throughput = (nanos <= 0) ? 0 : bytes * 1000000000 / nanos;
+                this.completed = completed;
+                commit();
+            }
+        }
+    }
+
+    @Name("personal.qtdownloader.SegmentRetry")
+    @Label("Segment Retry")
+    @Category("QTDownloader")
+    @Description("A failed attempt of a segment, which is downloaded again from where it stopped")
+    @StackTrace(false)
+    static final class SegmentRetry extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Part")
+        int part;
+
+        @Label("Attempt")
+        int attempt;
+
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("personal.qtdownloader.Join")
+    @Label("Join")
+    @Category("QTDownloader")
+    @Description("The copy of a part file into the output file or the extract stage")
+    @StackTrace(false)
+    static final class Join extends Event implements DownloadEvents.Join {
+
+        @Label("Part File")
+        String partFile;
+
+        @Label("Position")
+        long position;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        /**
+         * End the event once the part was joined.
+         */
+        @Override
+        public void done(long bytes) {
+            end();
+            if (shouldCommit()) {
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("personal.qtdownloader.BufferWait")
+    @Label("Buffer Wait")
+    @Category("QTDownloader")
+    @Description("A download thread blocked because the queue of a later stage was full")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class BufferWait extends Event implements DownloadEvents.BufferWait {
+
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        /**
+         * End the event once the buffer was queued.
+         */
+        @Override
+        public void done() {
+            end();
+            if (shouldCommit())
+                commit();
+        }
+    }
+
+    @Name("personal.qtdownloader.ProgressLockWait")
+    @Label("Progress Lock Wait")
+    @Category("QTDownloader")
+    @Description("A thread blocked on the lock of a download's progress")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class ProgressLockWait extends Event implements DownloadEvents.ProgressLockWait {
+
+        /**
+         * End the event once the lock was taken.
+         */
+        @Override
+        public void done() {
+            end();
+            if (shouldCommit())
+                commit();
+        }
+    }
+}
@@ -0,0 +1,1329 @@
+package personal.downloadmanager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.KeyManagerFactory;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import personal.qtdownloader.BlockSums;
+import personal.qtdownloader.CachingProxy;
+import personal.qtdownloader.ChunkCache;
+import personal.qtdownloader.DaemonClient;
+import personal.qtdownloader.DaemonServer;
+import personal.qtdownloader.DiskSpaceAdmission;
+import personal.qtdownloader.Download;
+import personal.qtdownloader.DownloadConfig;
+import personal.qtdownloader.DownloadEngine;
+import personal.qtdownloader.DownloadResult;
+import personal.qtdownloader.DownloadSession;
+import personal.qtdownloader.DurabilityPolicy;
+import personal.qtdownloader.HostProfile;
+import personal.qtdownloader.HostResolver;
+import personal.qtdownloader.HttpResult;
+import personal.qtdownloader.ManifestBatch;
+import personal.qtdownloader.Metalink;
+import personal.qtdownloader.Mirror;
+import personal.qtdownloader.ProgressEvent;
+import personal.qtdownloader.ProgressHandler;
+import personal.qtdownloader.RangeWorker;
+import personal.qtdownloader.SessionStore;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author quan
+ */
+public class DownloadEngineTest {
+
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+	private static final int CORRUPT_POSITION = 300000;
+	private static final int PIECE_LENGTH = 65536;
+
+	private HttpServer server;
+	private byte[] content;
+	private Path outputDir;
+	private Path tempDir;
+	private final AtomicBoolean flakyFailed = new AtomicBoolean();
+	private final Set<String> servedAddresses = ConcurrentHashMap.newKeySet();
+	private final Set<String> hostHeaders = ConcurrentHashMap.newKeySet();
+	private final List<String> servedRanges = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[1000003];
+		new Random(42).nextBytes(content);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this::serve);
+		server.start();
+
+		outputDir = Files.createTempDirectory("qtdownloader-out");
+		tempDir = Files.createTempDirectory("qtdownloader-tmp");
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	/**
+	 * Serve the content under any path, honouring byte ranges. Paths under
+	 * /norange/ ignore ranges, and paths under /chunked/ also leave out the
+	 * content's length. The first ranged request under /flaky/ which does not
+	 * start at the beginning gets only half of its range, the content under
+	 * /corrupt/ has a flipped bit at CORRUPT_POSITION, and the responses under
+	 * /slow/ are delayed.
+	 */
+	private void serve(HttpExchange exchange) throws IOException {
+		int start = 0;
+		int end = content.length - 1;
+		int status = 200;
+
+		servedAddresses.add(exchange.getLocalAddress().getAddress().getHostAddress());
+		hostHeaders.add(exchange.getRequestHeaders().getFirst("Host"));
+
+		String path = exchange.getRequestURI().getPath();
+		boolean chunked = path.startsWith("/chunked/");
+		boolean norange = chunked || path.startsWith("/norange/");
+
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		servedRanges.add(path + " " + range);
+		if (path.startsWith("/slow/")) {
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Matcher matcher = (range == null || norange) ? null : RANGE.matcher(range);
+		if (matcher != null && matcher.matches()) {
+			start = Integer.parseInt(matcher.group(1));
+			if (!matcher.group(2).isEmpty())
+				end = Math.min(end, Integer.parseInt(matcher.group(2)));
+			status = 206;
+			exchange.getResponseHeaders().set("Content-Range",
+					"bytes " + start + "-" + end + "/" + content.length);
+		}
+
+		if (!norange)
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		boolean head = "HEAD".equals(exchange.getRequestMethod());
+		if (!chunked)
+			exchange.getResponseHeaders().set("Content-Length",
+					String.valueOf(end - start + 1));
+		exchange.sendResponseHeaders(status, head ? -1
+				: chunked ? 0 : end - start + 1);
+
+		if (!head) {
+			int length = end - start + 1;
+			if (path.startsWith("/flaky/") && start > 0 && flakyFailed.compareAndSet(false, true))
+				length /= 2;
+
+			byte[] body = content;
+			if (path.startsWith("/corrupt/")) {
+				body = content.clone();
+				body[CORRUPT_POSITION] ^= 1;
+			}
+
+			// A body shorter than promised fails the exchange, which closes
+			// the connection.
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body, start, length);
+			}
+		}
+		exchange.close();
+	}
+
+	private String url(String name) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name;
+	}
+
+	/**
+	 * Test running several downloads concurrently in one engine.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testConcurrentDownloads() throws Exception {
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			CompletableFuture<?>[] results = new CompletableFuture<?>[3];
+			for (int i = 0; i < results.length; i++) {
+				DownloadConfig config = new DownloadConfig.Builder(url("file.bin"))
+						.outputDirectory(outputDir.toString())
+						.fileName("file" + i + ".bin")
+						.tempDirectory(tempDir.resolve("" + i).toString())
+						.partsCount(3 + i)
+						.smallFileThreshold(0)
+						.durability((i == 0) ? DurabilityPolicy.periodic(65536, 0)
+								: DurabilityPolicy.ON_COMPLETION)
+						.build();
+				Files.createDirectories(tempDir.resolve("" + i));
+				results[i] = engine.submit(config);
+			}
+
+			for (int i = 0; i < results.length; i++) {
+				DownloadResult result = (DownloadResult) results[i].get();
+				assertEquals(content.length, result.getDownloadedSize());
+				assertArrayEquals(content, Files.readAllBytes(
+						outputDir.resolve("file" + i + ".bin")));
+			}
+		}
+
+		// The working files were renamed to the output files
+		assertEquals(3, outputDir.toFile().list().length);
+		assertEquals(0, outputDir.toFile().list(
+				(dir, name) -> name.endsWith(Download.WORKING_FILE_EXTENSION)).length);
+	}
+
+	/**
+	 * Test that a failed download leaves an earlier output file untouched and
+	 * deletes its working file, and that a successful one replaces it.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testAtomicOutputFile() throws Exception {
+		byte[] earlier = "earlier content".getBytes(StandardCharsets.UTF_8);
+		Path outputFile = outputDir.resolve("image.bin");
+		Path workingFile = outputDir.resolve(".image.bin" + Download.WORKING_FILE_EXTENSION);
+		Files.write(outputFile, earlier);
+
+		Path metalinkFile = tempDir.resolve("file.meta4");
+		Files.write(metalinkFile, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<metalink xmlns=\"urn:ietf:params:xml:ns:metalink\">"
+				+ "<file name=\"image.bin\"><size>" + content.length + "</size>"
+				+ "<url priority=\"1\">" + url("corrupt/file.bin") + "</url>"
+				+ "<hash type=\"sha-256\">"
+				+ toHex(MessageDigest.getInstance("SHA-256").digest(content))
+				+ "</hash></file></metalink>").getBytes("UTF-8"));
+
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			DownloadConfig corrupt = new DownloadConfig.Builder(Metalink.parse(metalinkFile))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(3)
+					.smallFileThreshold(0)
+					.build();
+			try {
+				engine.submit(corrupt).get();
+				fail("The corrupt download did not fail");
+			} catch (ExecutionException ex) {
+				// It does not match the hash
+			}
+			assertArrayEquals(earlier, Files.readAllBytes(outputFile));
+			assertFalse(Files.exists(workingFile));
+
+			DownloadConfig config = new DownloadConfig.Builder(url("file.bin"))
+					.outputDirectory(outputDir.toString())
+					.fileName("image.bin")
+					.tempDirectory(tempDir.toString())
+					.partsCount(3)
+					.smallFileThreshold(0)
+					.build();
+			engine.submit(config).get();
+			assertArrayEquals(content, Files.readAllBytes(outputFile));
+			assertFalse(Files.exists(workingFile));
+		}
+	}
+
+	/**
+	 * Test parsing the durability policies given to --fsync.
+	 */
+	@Test
+	public void testDurabilityPolicyParse() {
+		assertSame(DurabilityPolicy.NONE, DurabilityPolicy.parse("none"));
+		assertSame(DurabilityPolicy.ON_COMPLETION, DurabilityPolicy.parse("Completion"));
+
+		DurabilityPolicy policy = DurabilityPolicy.parse("64M");
+		assertEquals(DurabilityPolicy.Mode.PERIODIC, policy.getMode());
+		assertEquals(64L << 20, policy.getSyncBytes());
+		assertEquals("10s", DurabilityPolicy.parse("10s").toString());
+		assertEquals(Long.MAX_VALUE, DurabilityPolicy.parse("10s").getSyncBytes());
+		assertEquals("64M,10s", DurabilityPolicy.parse("64M,10s").toString());
+
+		for (String invalid : new String[] {"", "always", "64", "64G", "M", "xs",
+				"-1s", "0M", "64M;10s"}) {
+			try {
+				DurabilityPolicy.parse(invalid);
+				fail("Parsed " + invalid);
+			} catch (IllegalArgumentException ex) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Test downloading from servers which ignore ranges or leave out the
+	 * content's length, which must be downloaded in a single stream.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testSingleStreamFallback() throws Exception {
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			for (String name : new String[] {"norange/file.bin", "chunked/file.bin"}) {
+				String fileName = name.replace('/', '-');
+				DownloadConfig config = new DownloadConfig.Builder(url(name))
+						.outputDirectory(outputDir.toString())
+						.fileName(fileName)
+						.tempDirectory(tempDir.toString())
+						.build();
+
+				DownloadResult result = engine.submit(config).get();
+				assertEquals(content.length, result.getDownloadedSize());
+				assertArrayEquals(content, Files.readAllBytes(
+						outputDir.resolve(fileName)));
+			}
+		}
+	}
+
+	/**
+	 * Test that a file below the small file threshold is downloaded straight
+	 * into the output file, without part files.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testSmallFileFastPath() throws Exception {
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			DownloadConfig config = new DownloadConfig.Builder(url("small.bin"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.smallFileThreshold(content.length + 1)
+					.build();
+
+			DownloadResult result = engine.submit(config).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("small.bin")));
+			assertEquals(0, countPartFiles());
+		}
+	}
+
+	/**
+	 * Test that the events are delivered in order on the event thread, and
+	 * that a part cut short by the server is retried.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testProgressEventsAndRetry() throws Exception {
+		List<ProgressEvent> events = new ArrayList<>();
+		List<String> threads = new ArrayList<>();
+		ProgressHandler handler = new ProgressHandler() {
+			@Override
+			public void handle(HttpResult verifyResult) {
+			}
+
+			@Override
+			public void onEvents(List<ProgressEvent> batch) {
+				events.addAll(batch);
+				threads.add(Thread.currentThread().getName());
+			}
+		};
+
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			DownloadConfig config = new DownloadConfig.Builder(url("flaky/file.bin"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(3)
+					.smallFileThreshold(0)
+					.progressIntervalMillis(10)
+					.build();
+
+			DownloadResult result = engine.submit(config, handler).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+		}
+
+		assertEquals(ProgressEvent.Type.PROBE_DONE, events.get(0).getType());
+		assertEquals(ProgressEvent.Type.COMPLETED, events.get(events.size() - 1).getType());
+		assertEquals(3, events.stream().filter(
+				(ProgressEvent event) -> event.getType() == ProgressEvent.Type.SEGMENT_FINISHED).count());
+		assertEquals(1, events.stream().filter(
+				(ProgressEvent event) -> event.getType() == ProgressEvent.Type.SEGMENT_RETRIED).count());
+		for (String thread : threads)
+			assertTrue(thread, thread.startsWith("qtdownloader-events"));
+	}
+
+	/**
+	 * Test that the segments are spread over all addresses of the host, with
+	 * a resolver which gives localhost a second address.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testSegmentsSpreadOverAddresses() throws Exception {
+		int port = server.getAddress().getPort();
+		HttpServer second = HttpServer.create(new InetSocketAddress("127.0.0.2", port), 0);
+		second.createContext("/", this::serve);
+		second.start();
+
+		try (DownloadEngine engine = new DownloadEngine(4, (String host) -> new InetAddress[] {
+				InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")})) {
+			DownloadConfig config = new DownloadConfig.Builder(
+					"http://localhost:" + port + "/file.bin")
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(4)
+					.smallFileThreshold(0)
+					.build();
+
+			DownloadResult result = engine.submit(config).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+		} finally {
+			second.stop(0);
+		}
+
+		assertTrue(servedAddresses.toString(), servedAddresses.contains("127.0.0.2"));
+		assertEquals(1, hostHeaders.size());
+		assertEquals("localhost:" + port, hostHeaders.iterator().next());
+	}
+
+	/**
+	 * Test that a piece which does not match its Metalink hash is downloaded
+	 * again from another URL of the Metalink file, and only that piece.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testMetalinkPieceRepair() throws Exception {
+		StringBuilder pieces = new StringBuilder();
+		for (int start = 0; start < content.length; start += PIECE_LENGTH) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(content, start, Math.min(PIECE_LENGTH, content.length - start));
+			pieces.append("<hash>").append(toHex(digest.digest())).append("</hash>");
+		}
+
+		Path metalinkFile = tempDir.resolve("file.meta4");
+		Files.write(metalinkFile, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<metalink xmlns=\"urn:ietf:params:xml:ns:metalink\">"
+				+ "<file name=\"image.bin\"><size>" + content.length + "</size>"
+				+ "<url priority=\"1\">" + url("corrupt/file.bin") + "</url>"
+				+ "<url priority=\"2\">" + url("mirror/file.bin") + "</url>"
+				+ "<pieces length=\"" + PIECE_LENGTH + "\" type=\"sha-256\">" + pieces
+				+ "</pieces></file></metalink>").getBytes("UTF-8"));
+
+		List<ProgressEvent> events = Collections.synchronizedList(new ArrayList<>());
+		ProgressHandler handler = new ProgressHandler() {
+			@Override
+			public void handle(HttpResult verifyResult) {
+			}
+
+			@Override
+			public void onEvents(List<ProgressEvent> batch) {
+				events.addAll(batch);
+			}
+		};
+
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			DownloadConfig config = new DownloadConfig.Builder(Metalink.parse(metalinkFile))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(3)
+					.smallFileThreshold(0)
+					.build();
+
+			DownloadResult result = engine.submit(config, handler).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("image.bin")));
+		}
+
+		int piece = CORRUPT_POSITION / PIECE_LENGTH;
+		List<ProgressEvent> repaired = new ArrayList<>();
+		for (ProgressEvent event : events)
+			if (event.getType() == ProgressEvent.Type.PIECE_REPAIRED)
+				repaired.add(event);
+		assertEquals(1, repaired.size());
+		assertEquals(piece + 1, repaired.get(0).getPiece());
+		assertEquals(url("mirror/file.bin"), repaired.get(0).getMessage());
+
+		List<String> mirrorRanges = new ArrayList<>();
+		for (String served : servedRanges)
+			if (served.startsWith("/mirror/"))
+				mirrorRanges.add(served);
+		assertEquals(Collections.singletonList("/mirror/file.bin bytes="
+				+ piece * PIECE_LENGTH + "-" + ((piece + 1) * PIECE_LENGTH - 1)), mirrorRanges);
+	}
+
+	/**
+	 * Test that a delta download copies the blocks found in the older file
+	 * and downloads only the changed ranges.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testDeltaDownload() throws Exception {
+		// The older file lacks some bytes near the start and has a changed
+		// byte further on.
+		byte[] old = new byte[content.length - 1000];
+		System.arraycopy(content, 0, old, 0, 100000);
+		System.arraycopy(content, 101000, old, 100000, content.length - 101000);
+		old[600000] ^= 1;
+		Path oldFile = tempDir.resolve("old.bin");
+		Files.write(oldFile, old);
+
+		Path newFile = tempDir.resolve("new.bin");
+		Files.write(newFile, content);
+		Path blockSumsFile = tempDir.resolve("new.bin.blocksums");
+		BlockSums.compute(newFile, 4096).write(blockSumsFile);
+
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			DownloadConfig config = new DownloadConfig.Builder(url("delta/file.bin"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.smallFileThreshold(0)
+					.delta(oldFile.toString(), BlockSums.parse(blockSumsFile))
+					.build();
+
+			engine.submit(config).get();
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+		}
+
+		// The two changed blocks and the short last block, besides the probe
+		List<String> ranges = new ArrayList<>();
+		for (String served : servedRanges)
+			if (served.startsWith("/delta/") && !served.endsWith("bytes=0-"))
+				ranges.add(served);
+		assertEquals(ranges.toString(), 3, ranges.size());
+	}
+
+	/**
+	 * Test writing the segments straight into the output file with direct
+	 * I/O, with a segment which fails halfway and is downloaded again.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testDirectIo() throws Exception {
+		try (DownloadEngine engine = new DownloadEngine(4)) {
+			DownloadConfig config = new DownloadConfig.Builder(url("flaky/file.bin"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(4)
+					.smallFileThreshold(0)
+					.directIo(true)
+					.build();
+
+			DownloadResult result = engine.submit(config).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+		}
+
+		// No part files were written, and the segments start at aligned
+		// positions.
+		assertEquals(0, countPartFiles());
+		for (String served : servedRanges) {
+			Matcher matcher = RANGE.matcher(served.substring(served.indexOf(' ') + 1));
+			if (matcher.matches())
+				assertEquals(served, 0, Long.parseLong(matcher.group(1)) % 512);
+		}
+
+		// It cannot be resumed, rather than silently starting over
+		try {
+			new DownloadConfig.Builder(url("file.bin"))
+					.directIo(true)
+					.resume(true)
+					.build();
+			fail("A direct I/O download was resumed");
+		} catch (IllegalArgumentException ex) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that concurrent downloads of the same URL download it only once,
+	 * the later one copying the file the first one downloaded.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testSameUrlDownloadedOnce() throws Exception {
+		try (DownloadEngine engine = new DownloadEngine(8)) {
+			List<CompletableFuture<DownloadResult>> results = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				DownloadConfig config = new DownloadConfig.Builder(url("slow/file.bin"))
+						.outputDirectory(outputDir.toString())
+						.fileName("file" + i + ".bin")
+						.tempDirectory(tempDir.toString())
+						.partsCount(4)
+						.smallFileThreshold(0)
+						.build();
+				results.add(engine.submit(config));
+			}
+
+			for (int i = 0; i < results.size(); i++) {
+				assertEquals(content.length, results.get(i).get().getDownloadedSize());
+				assertArrayEquals(content, Files.readAllBytes(
+						outputDir.resolve("file" + i + ".bin")));
+			}
+		}
+
+		// The probe and the three other parts of a single download
+		assertEquals(servedRanges.toString(), 4, servedRanges.size());
+
+		// The lock and status files of the URL are gone
+		assertEquals(0, tempDir.toFile().list(
+				(dir, name) -> name.startsWith(".qtdownloader-")).length);
+	}
+
+	/**
+	 * Test handing the segments to range workers, one of which rejects the
+	 * coordinator, so that its segments are given to the others.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testRangeWorkers() throws Exception {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (RangeWorker first = new RangeWorker(loopback, 0, "secret");
+				RangeWorker second = new RangeWorker(loopback, 0, "secret");
+				RangeWorker rejecting = new RangeWorker(loopback, 0, "other");
+				DownloadEngine engine = new DownloadEngine(8)) {
+			first.start();
+			second.start();
+			rejecting.start();
+
+			List<String> workers = new ArrayList<>();
+			for (RangeWorker worker : new RangeWorker[] {rejecting, first, second})
+				workers.add("127.0.0.1:" + worker.getPort());
+
+			DownloadConfig config = new DownloadConfig.Builder(url("file.bin"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(6)
+					.smallFileThreshold(0)
+					.workers(workers, "secret")
+					.build();
+
+			DownloadResult result = engine.submit(config).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+
+			// The first part came with the probe
+			assertEquals(5, first.getServedRanges() + second.getServedRanges());
+			assertEquals(0, rejecting.getServedRanges());
+
+			// A URL other than a web one gets an error frame
+			try (Socket socket = new Socket(loopback, first.getPort())) {
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				out.writeUTF(RangeWorker.PROTOCOL);
+				out.writeUTF("secret");
+				out.writeUTF(outputDir.resolve("file.bin").toUri().toString());
+				out.writeLong(0);
+				out.writeLong(99);
+				out.writeUTF("");
+				out.flush();
+
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				assertEquals(-1, in.readInt());
+				assertTrue(in.readUTF().contains("scheme"));
+			}
+			assertEquals(5, first.getServedRanges() + second.getServedRanges());
+		}
+	}
+
+	/**
+	 * Test downloading through the caching proxy, which fetches each chunk
+	 * from the origin once even though the parts ask for them concurrently,
+	 * and serves the second download from its cache.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testCachingProxy() throws Exception {
+		try (ChunkCache cache = new ChunkCache(tempDir.resolve("cache"), 1 << 30, 65536, 4);
+				CachingProxy proxy = new CachingProxy(new InetSocketAddress("127.0.0.1", 0),
+						Collections.singletonList(url("")), cache);
+				DownloadEngine engine = new DownloadEngine(8)) {
+			proxy.start();
+
+			for (int i = 0; i < 2; i++) {
+				DownloadConfig config = new DownloadConfig.Builder("http://127.0.0.1:"
+						+ proxy.getPort() + "/cached/file.bin")
+						.outputDirectory(outputDir.toString())
+						.fileName("file" + i + ".bin")
+						.tempDirectory(tempDir.toString())
+						.partsCount(4)
+						.smallFileThreshold(0)
+						.build();
+
+				engine.submit(config).get();
+				assertArrayEquals(content, Files.readAllBytes(
+						outputDir.resolve("file" + i + ".bin")));
+			}
+
+			// The size probe and the 16 chunks in runs of 4
+			assertEquals(servedRanges.toString(), 5, servedRanges.size());
+			assertEquals(content.length, cache.getCachedSize());
+		}
+	}
+
+	/**
+	 * Test that the segments of an HTTPS download take the connections
+	 * opened while probing, and that a later download resumes the TLS
+	 * session of the first one.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testTlsSessionsShared() throws Exception {
+		// A self-signed certificate for the stand-in server, trusted by the
+		// engine
+		Path keyStoreFile = Files.createTempDirectory("qtdownloader-tls").resolve("server.p12");
+		Process keytool = new ProcessBuilder(
+				Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+				"-genkeypair", "-alias", "server", "-keyalg", "EC",
+				"-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1",
+				"-storetype", "PKCS12", "-keystore", keyStoreFile.toString(),
+				"-storepass", "changeit", "-keypass", "changeit")
+				.redirectErrorStream(true).start();
+		while (keytool.getInputStream().read() != -1);
+		assertEquals(0, keytool.waitFor());
+
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(Files.newInputStream(keyStoreFile), "changeit".toCharArray());
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(
+				KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(keyStore, "changeit".toCharArray());
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(
+				TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(keyStore);
+
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keys.getKeyManagers(), null, null);
+		SSLContext clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, trust.getTrustManagers(), null);
+
+		HttpsServer https = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		https.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+		https.createContext("/", this::serve);
+		ExecutorService httpsThreads = Executors.newCachedThreadPool();
+		https.setExecutor(httpsThreads);
+		https.start();
+
+		try (DownloadEngine engine = new DownloadEngine(8, HostResolver.SYSTEM, clientContext)) {
+			List<DownloadResult> results = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				DownloadConfig config = new DownloadConfig.Builder("https://127.0.0.1:"
+						+ https.getAddress().getPort() + "/slow/file.bin")
+						.outputDirectory(outputDir.toString())
+						.fileName("file" + i + ".bin")
+						.tempDirectory(tempDir.toString())
+						.partsCount(4)
+						.smallFileThreshold(0)
+						.build();
+
+				results.add(engine.submit(config).get());
+				assertArrayEquals(content, Files.readAllBytes(
+						outputDir.resolve("file" + i + ".bin")));
+			}
+
+			// The probe's connection and the three opened while probing
+			assertEquals(4, results.get(0).getHandshakeCount());
+			assertTrue(results.get(0).getHandshakeTime().toNanos() > 0);
+
+			// The second probe resumes the session of the first download.
+			// Each TLS 1.3 ticket is used once, so the connections opened at
+			// the same time do not all resume.
+			DownloadResult second = results.get(1);
+			assertEquals(4, second.getHandshakeCount());
+			assertTrue(second.getResumedHandshakeCount() >= 1);
+		} finally {
+			https.stop(0);
+			httpsThreads.shutdownNow();
+		}
+	}
+
+	/**
+	 * Test copying a local file from a file URL in parts.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testFileUrl() throws Exception {
+		Path source = Files.createTempDirectory("qtdownloader-src").resolve("file.bin");
+		Files.write(source, content);
+
+		try (DownloadEngine engine = new DownloadEngine(8)) {
+			DownloadConfig config = new DownloadConfig.Builder(source.toUri().toString())
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(4)
+					.smallFileThreshold(0)
+					.build();
+
+			DownloadResult result = engine.submit(config).get();
+			assertEquals(content.length, result.getDownloadedSize());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+			assertEquals(0, countPartFiles());
+		}
+	}
+
+	/**
+	 * Test submitting downloads to a daemon over its loopback socket, with
+	 * an output directory relative to the client's working directory, and
+	 * the replies to a bad token and to malformed requests.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testDaemon() throws Exception {
+		Path portFile = tempDir.resolve("daemon.port");
+		try (SessionStore sessions = SessionStore.open("jdbc:h2:" + tempDir.resolve("db"));
+				DaemonServer daemon = new DaemonServer(portFile, sessions)) {
+			Thread serveThread = new Thread(daemon::serve);
+			serveThread.setDaemon(true);
+			serveThread.start();
+
+			String relativeOutput = Paths.get("").toAbsolutePath()
+					.relativize(outputDir).toString();
+			DownloadConfig config = new DownloadConfig.Builder(url("daemon/file.bin"))
+					.outputDirectory(relativeOutput)
+					.tempDirectory(tempDir.toString())
+					.build();
+
+			try (DaemonClient client = DaemonClient.connect(portFile)) {
+				assertFalse(client.findSession(config.getURL()).alreadyDownloaded);
+
+				DownloadResult result = client.download(config, verifyResult -> { });
+				assertEquals(outputDir.resolve("file.bin").toString(), result.getOutputPath());
+				assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file.bin")));
+
+				DownloadSession session = client.findSession(config.getURL());
+				assertTrue(session.alreadyDownloaded);
+				assertEquals(content.length, session.getDownloadedSize());
+			}
+
+			List<String> portLines = Files.readAllLines(portFile);
+			int port = Integer.parseInt(portLines.get(0));
+
+			// Only the owner may read the token
+			if (Files.getFileStore(portFile).supportsFileAttributeView("posix"))
+				assertEquals("rw-------", PosixFilePermissions.toString(
+						Files.getPosixFilePermissions(portFile)));
+
+			// A client with a bad token is disconnected without an answer
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				BufferedReader in = sendLines(socket, "AUTH bad", "SESSION x");
+				assertNull(in.readLine());
+			}
+
+			// Malformed requests are answered with errors on the same connection
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				BufferedReader in = sendLines(socket, "AUTH " + portLines.get(1),
+						"DOWNLOAD", "url=" + url("file.bin"), "no separator", "",
+						"DOWNLOAD", "url=" + url("file.bin"), "partsCount=many", "",
+						"UPLOAD",
+						"SESSION " + url("daemon/file.bin"));
+				assertTrue(in.readLine().startsWith("ERROR Malformed"));
+				assertTrue(in.readLine().startsWith("ERROR "));
+				assertTrue(in.readLine().startsWith("ERROR Unknown"));
+				assertEquals("SESSION true " + content.length, in.readLine());
+			}
+		}
+	}
+
+	private static BufferedReader sendLines(Socket socket, String... lines)
+			throws IOException {
+		Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+		for (String line : lines)
+			out.write(line + "\n");
+		out.flush();
+
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test mirroring a directory tree from its index pages, then mirroring it
+	 * again, which skips the files that did not change.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testMirror() throws Exception {
+		server.createContext("/mirror/", exchange -> {
+			String path = exchange.getRequestURI().getPath();
+			String index = null;
+			if (path.equals("/mirror/"))
+				index = "<a href=\"?C=N;O=D\">Name</a> <a href=\"/\">Parent</a>"
+						+ " <a href=\"a.bin\">a.bin</a> <a href='sub/'>sub/</a>";
+			else if (path.equals("/mirror/sub/"))
+				index = "<a href=\"b%20b.bin\">b b.bin</a> <a href=\"c.tmp\">c.tmp</a>";
+
+			if (index == null) {
+				exchange.getResponseHeaders().set("Last-Modified",
+						"Mon, 19 Oct 2026 10:00:00 GMT");
+				serve(exchange);
+				return;
+			}
+
+			byte[] body = index.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+
+		try (SessionStore sessions = SessionStore.open("jdbc:h2:" + tempDir.resolve("db"));
+				DownloadEngine engine = new DownloadEngine(8)) {
+			List<Mirror.Result> results = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				Mirror mirror = new Mirror.Builder(Collections.singletonList(url("mirror")))
+						.outputDirectory(outputDir.toString())
+						.tempDirectory(tempDir.toString())
+						.exclude(Pattern.compile("\\.tmp$"))
+						.partsCount(4)
+						.sessionStore(sessions)
+						.build();
+				results.add(mirror.run(engine));
+			}
+
+			assertEquals(2, results.get(0).getDownloadedCount());
+			assertEquals(0, results.get(0).getFailedCount());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("a.bin")));
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("sub/b b.bin")));
+			assertFalse(Files.exists(outputDir.resolve("sub/c.tmp")));
+
+			assertEquals(0, results.get(1).getDownloadedCount());
+			assertEquals(2, results.get(1).getSkippedCount());
+		}
+	}
+
+	/**
+	 * Test a compressed transfer whose encoded file is downloaded in parts
+	 * and decoded into the output file.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testCompressedTransfer() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			text.append("line ").append(i).append(",value,").append(i % 7).append('\n');
+		byte[] plain = text.toString().getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream encodedOut = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(encodedOut)) {
+			gzip.write(plain);
+		}
+		byte[] encoded = encodedOut.toByteArray();
+
+		// Serve the encoded file, and its ranges, to the clients which
+		// accept gzip
+		List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+		server.createContext("/gzip/", exchange -> {
+			String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			boolean gzip = accept != null && accept.contains("gzip");
+			byte[] body = gzip ? encoded : plain;
+			int start = 0;
+			int end = body.length - 1;
+			int status = 200;
+
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			Matcher matcher = (range == null) ? null : RANGE.matcher(range);
+			if (matcher != null && matcher.matches()) {
+				start = Integer.parseInt(matcher.group(1));
+				if (!matcher.group(2).isEmpty())
+					end = Math.min(end, Integer.parseInt(matcher.group(2)));
+				status = 206;
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + start + "-" + end + "/" + body.length);
+			}
+
+			encodings.add(gzip ? "gzip" : "identity");
+			if (gzip)
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.sendResponseHeaders(status, end - start + 1);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body, start, end - start + 1);
+			}
+		});
+
+		try (DownloadEngine engine = new DownloadEngine(8)) {
+			DownloadConfig config = new DownloadConfig.Builder(url("gzip/data.csv"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(4)
+					.smallFileThreshold(0)
+					.compressedTransfer(true)
+					.build();
+
+			DownloadResult result = engine.submit(config).get();
+			assertArrayEquals(plain, Files.readAllBytes(outputDir.resolve("data.csv")));
+			assertEquals(encoded.length, result.getDownloadedSize());
+			assertEquals(plain.length, result.getExtractedSize());
+			assertEquals(4, encodings.size());
+			assertFalse(encodings.contains("identity"));
+		}
+	}
+
+	/**
+	 * Test downloading the entries of a manifest, then running it again,
+	 * which skips the entries recorded in the checkpoint, and running it with
+	 * a closed engine, which fails instead of waiting.
+	 * @throws java.lang.Exception
+	 */
+	@Test(timeout = 60000)
+	public void testManifestBatch() throws Exception {
+		Path manifest = tempDir.resolve("urls.txt");
+		List<String> lines = new ArrayList<>();
+		lines.add("# Test manifest");
+		for (int i = 0; i < 5; i++)
+			lines.add(url("batch/file.bin") + " file" + i + ".bin");
+		lines.add("");
+		lines.add("not-a-url");
+		Files.write(manifest, lines);
+
+		try (DownloadEngine engine = new DownloadEngine(8)) {
+			List<ManifestBatch.Result> results = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				ManifestBatch batch = new ManifestBatch.Builder(manifest)
+						.outputDirectory(outputDir.toString())
+						.tempDirectory(tempDir.toString())
+						.maxDownloads(2)
+						.partsCount(2)
+						.build();
+				results.add(batch.run(engine));
+
+				// The second run does not look at the output files
+				if (i == 0)
+					Files.delete(outputDir.resolve("file0.bin"));
+			}
+
+			assertEquals(5, results.get(0).getDownloadedCount());
+			assertEquals(1, results.get(0).getFailedCount());
+			assertArrayEquals(content, Files.readAllBytes(outputDir.resolve("file4.bin")));
+
+			assertEquals(0, results.get(1).getDownloadedCount());
+			assertEquals(5, results.get(1).getSkippedCount());
+			assertEquals(1, results.get(1).getFailedCount());
+		}
+
+		Files.delete(manifest.resolveSibling(manifest.getFileName()
+				+ ManifestBatch.CHECKPOINT_EXTENSION));
+		DownloadEngine closed = new DownloadEngine(1);
+		closed.close();
+		try {
+			new ManifestBatch.Builder(manifest)
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.build()
+					.run(closed);
+			fail("A closed engine took the downloads");
+		} catch (RejectedExecutionException ex) {
+			// The window's permit was given back
+		}
+	}
+
+	/**
+	 * Test that the engine learns the profiles of the hosts downloaded from,
+	 * and tunes the next downloads from them.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testHostProfiles() throws Exception {
+		// Large enough for the throughput to be learned
+		content = new byte[5 << 20];
+		new Random(7).nextBytes(content);
+
+		try (SessionStore sessions = SessionStore.open("jdbc:h2:" + tempDir.resolve("db"));
+				DownloadEngine engine = new DownloadEngine(4)) {
+			engine.setProfileStore(sessions);
+			String host = HostProfile.hostOf(url("file.bin"));
+
+			String[] names = {"profiled/file.bin", "norange/file.bin"};
+			for (int i = 0; i < names.length; i++) {
+				String name = names[i];
+				DownloadConfig config = new DownloadConfig.Builder(url(name))
+						.outputDirectory(outputDir.toString())
+						.fileName(name.replace('/', '-'))
+						.tempDirectory(tempDir.toString())
+						.build();
+
+				DownloadResult result = engine.submit(config).get();
+				assertArrayEquals(content, Files.readAllBytes(
+						outputDir.resolve(name.replace('/', '-'))));
+
+				HostProfile profile = awaitProfile(sessions, host, i + 1);
+				assertEquals(result.isRangesSupported(), profile.isRangesSupported());
+				assertTrue(profile.getThroughput() > 0);
+			}
+
+			HostProfile profile = sessions.findProfile(host);
+			assertEquals(2, profile.getSamples());
+			assertFalse(profile.isRangesSupported());
+
+			// The host does not serve ranges any more, so it gets one part
+			DownloadConfig config = new DownloadConfig.Builder(url("file.bin")).build();
+			assertEquals(1, profile.tune(config).getPartsCount());
+			assertEquals(7, profile.tune(config.toBuilder().partsCount(7).build())
+					.getPartsCount());
+		}
+	}
+
+	/**
+	 * Wait for the profile of the given host to be updated after a
+	 * download, which happens once the download completed.
+	 */
+	private static HostProfile awaitProfile(SessionStore sessions, String host, int samples)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		HostProfile profile = sessions.findProfile(host);
+		while (profile.getSamples() < samples && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			profile = sessions.findProfile(host);
+		}
+
+		return profile;
+	}
+
+	/**
+	 * Test that a host profile averages the downloads with decay, and that
+	 * the number of parts it tries every fourth download replaces the best
+	 * one only if it was faster.
+	 */
+	@Test
+	public void testHostProfileLearning() {
+		HostProfile profile = new HostProfile("example.com");
+		DownloadConfig config = new DownloadConfig.Builder("http://example.com/file.bin").build();
+		long size = 8 << 20;
+
+		profile.update(config, profileResult(size, 1000, 8, 0, 100));
+		assertEquals(size, profile.getThroughput(), 1);
+		assertEquals(100, profile.getTtfbMillis(), 0.01);
+
+		// Each download weighs 30% against the history
+		profile.update(config, profileResult(size, 2000, 8, 4, 200));
+		assertEquals(0.3 * size / 2 + 0.7 * size, profile.getThroughput(), 1);
+		assertEquals(130, profile.getTtfbMillis(), 0.01);
+		assertEquals(0.3 * 0.5, profile.getErrorRate(), 0.0001);
+
+		profile.update(config, profileResult(size, 2000, 8, 0, 100));
+		assertEquals(8, profile.tune(config).getPartsCount());
+
+		// The fourth download tries twice the parts, unless they were given
+		profile.update(config, profileResult(size, 2000, 8, 0, 100));
+		DownloadConfig explored = profile.tune(config);
+		assertEquals(16, explored.getPartsCount());
+		DownloadConfig given = config.toBuilder().partsCount(8).bufferSize(4096).build();
+		assertEquals(8, profile.tune(given).getPartsCount());
+		assertEquals(4096, profile.tune(given).getBufferSize());
+
+		// Faster, so the tried number of parts becomes the best one
+		profile.update(explored, profileResult(size, 250, 16, 0, 100));
+		assertEquals(16, profile.getPartsCount());
+		assertEquals(size * 4, profile.getThroughput(), 1);
+
+		// Slower, so it does not
+		DownloadConfig slower = config.toBuilder().partsCount(32).build();
+		profile.update(slower, profileResult(size, 1000, 32, 0, 100));
+		assertEquals(16, profile.getPartsCount());
+		assertEquals(size * 4, profile.getThroughput(), 1);
+		assertEquals(6, profile.getSamples());
+	}
+
+	private static DownloadResult profileResult(long size, long millis, int parts,
+			int retries, long probeMillis) {
+		return new DownloadResult("file.bin", size, -1, Duration.ofMillis(millis), null,
+				0, 0, Duration.ZERO, parts, true, retries, Duration.ofMillis(probeMillis));
+	}
+
+	/**
+	 * Test that a flight recording shows the probe, the segments with their
+	 * ranges and the joins of a download.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		Path recordingFile = tempDir.resolve("download.jfr");
+		try (Recording recording = new Recording();
+				DownloadEngine engine = new DownloadEngine(8)) {
+			recording.enable("personal.qtdownloader.Probe");
+			recording.enable("personal.qtdownloader.Segment");
+			recording.enable("personal.qtdownloader.Join");
+			recording.start();
+
+			DownloadConfig config = new DownloadConfig.Builder(url("file.bin"))
+					.outputDirectory(outputDir.toString())
+					.tempDirectory(tempDir.toString())
+					.partsCount(4)
+					.smallFileThreshold(0)
+					.build();
+			engine.submit(config).get();
+
+			recording.stop();
+			recording.dump(recordingFile);
+		}
+
+		List<String> names = new ArrayList<>();
+		long segmentBytes = 0;
+		for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+			names.add(event.getEventType().getName());
+			if (event.getEventType().getName().equals("personal.qtdownloader.Segment")) {
+				assertTrue(event.getBoolean("completed"));
+				assertEquals(event.getLong("rangeEnd") - event.getLong("rangeStart") + 1,
+						event.getLong("bytes"));
+				segmentBytes += event.getLong("bytes");
+			}
+		}
+
+		assertEquals(1, Collections.frequency(names, "personal.qtdownloader.Probe"));
+		assertEquals(4, Collections.frequency(names, "personal.qtdownloader.Segment"));
+		assertEquals(4, Collections.frequency(names, "personal.qtdownloader.Join"));
+		assertEquals(content.length, segmentBytes);
+	}
+
+	/**
+	 * Test that a second download waits for the space reserved by the first
+	 * one, and that the data the first one wrote is not counted both in its
+	 * reservation and in the disk's usable space.
+	 * @throws java.lang.Exception
+	 */
+	@Test(timeout = 10000)
+	public void testDiskSpaceAdmission() throws Exception {
+		FakeFileStore store = new FakeFileStore(100);
+		DiskSpaceAdmission admission = new DiskSpaceAdmission();
+
+		DiskSpaceAdmission.Reservation first = admission.tryAdmit(
+				Collections.singletonMap(store, 60L));
+		assertNotNull(first);
+		assertNull(admission.tryAdmit(Collections.singletonMap(store, 50L)));
+
+		// Written data leaves the reservation as it takes the disk's space
+		store.usableSpace = 60;
+		first.written(store, 40);
+		assertEquals(20, admission.getReservedSpace(store));
+		DiskSpaceAdmission.Reservation second = admission.tryAdmit(
+				Collections.singletonMap(store, 30L));
+		assertNotNull(second);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (DownloadEngine engine = new DownloadEngine(1)) {
+			Download download = new Download(new DownloadConfig.Builder(url("file.bin"))
+					.outputDirectory(outputDir.toString())
+					.build(), engine, Collections.emptyList());
+			Map<FileStore, Long> neededSpace = Collections.singletonMap(store, 50L);
+			Future<DiskSpaceAdmission.Reservation> third = executor.submit(
+					() -> admission.admit(download, neededSpace));
+
+			Thread.sleep(300);
+			assertFalse(third.isDone());
+			admission.release(first);
+			Thread.sleep(300);
+			assertFalse(third.isDone());
+			admission.release(second);
+			assertNotNull(third.get(5, TimeUnit.SECONDS));
+			assertEquals(50, admission.getReservedSpace(store));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A disk with a settable usable space.
+	 */
+	private static class FakeFileStore extends FileStore {
+
+		private volatile long usableSpace;
+
+		FakeFileStore(long usableSpace) {
+			this.usableSpace = usableSpace;
+		}
+
+		@Override
+		public String name() {
+			return "fake";
+		}
+
+		@Override
+		public String type() {
+			return "fake";
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return false;
+		}
+
+		@Override
+		public long getTotalSpace() {
+			return usableSpace;
+		}
+
+		@Override
+		public long getUsableSpace() {
+			return usableSpace;
+		}
+
+		@Override
+		public long getUnallocatedSpace() {
+			return usableSpace;
+		}
+
+		@Override
+		public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+			return false;
+		}
+
+		@Override
+		public boolean supportsFileAttributeView(String name) {
+			return false;
+		}
+
+		@Override
+		public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+			return null;
+		}
+
+		@Override
+		public Object getAttribute(String attribute) {
+			return null;
+		}
+	}
+
+	private int countPartFiles() {
+		return tempDir.toFile().list((dir, name) -> name.contains(".part")).length;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,156 @@
+package personal.downloadmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import personal.qtdownloader.Decompressors;
+import personal.qtdownloader.ExtractThread;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author quan
+ */
+public class ExtractThreadTest {
+
+	private Path outputDir;
+	private ExecutorService pool;
+
+	@Before
+	public void setUp() throws Exception {
+		outputDir = Files.createTempDirectory("qtdownloader-extract");
+		pool = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Test unpacking a .tar.gz fed in small chunks.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testExtractTarGz() throws Exception {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		writeEntry(tar, "dir/", '5', new byte[0]);
+		writeEntry(tar, "dir/hello.txt", '0',
+				"Hello, world!".getBytes(StandardCharsets.UTF_8));
+		tar.write(new byte[1024]);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(tar.toByteArray());
+		}
+
+		ExtractThread extractThread = new ExtractThread(
+				Decompressors.forFileName("a.tar.gz"), true, outputDir);
+		Future<Long> result = pool.submit(extractThread);
+
+		byte[] data = compressed.toByteArray();
+		for (int i = 0; i < data.length; i += 7) {
+			byte[] chunk = new byte[Math.min(7, data.length - i)];
+			System.arraycopy(data, i, chunk, 0, chunk.length);
+			extractThread.feed(chunk, chunk.length);
+		}
+		extractThread.finish();
+
+		assertEquals(13L, (long) result.get());
+		assertEquals("Hello, world!", new String(Files.readAllBytes(
+				outputDir.resolve("dir/hello.txt")), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test that data after the end of a gzip stream, which the decoder
+	 * ignores, is consumed instead of blocking the feeding thread.
+	 * @throws java.lang.Exception
+	 */
+	@Test(timeout = 10000)
+	public void testTrailingDataAfterGzip() throws Exception {
+		byte[] text = "Hello, world!".getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(text);
+		}
+
+		Path outputFile = outputDir.resolve("hello.txt");
+		ExtractThread extractThread = new ExtractThread(
+				Decompressors.forFileName("hello.txt.gz"), false, outputFile);
+		Future<Long> result = pool.submit(extractThread);
+
+		extractThread.feed(compressed.toByteArray(), compressed.size());
+		byte[] garbage = new byte[512];
+		for (int i = 0; i < 200; i++)
+			extractThread.feed(garbage, garbage.length);
+		extractThread.finish();
+
+		assertEquals(text.length, (long) result.get());
+		assertArrayEquals(text, Files.readAllBytes(outputFile));
+	}
+
+	/**
+	 * Test that entries escaping the output directory are refused.
+	 * @throws java.lang.Exception
+	 */
+	@Test
+	public void testRejectPathTraversal() throws Exception {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		writeEntry(tar, "../evil.txt", '0', new byte[1]);
+		tar.write(new byte[1024]);
+
+		ExtractThread extractThread = new ExtractThread(null, true, outputDir);
+		Future<Long> result = pool.submit(extractThread);
+		extractThread.feed(tar.toByteArray(), tar.size());
+
+		try {
+			extractThread.finish();
+			result.get();
+			fail("Expected the entry to be refused");
+		} catch (Exception ex) {
+			assertFalse(Files.exists(outputDir.resolveSibling("evil.txt")));
+		}
+	}
+
+	private static void writeEntry(ByteArrayOutputStream tar, String name,
+			char type, byte[] data) throws Exception {
+		byte[] header = new byte[512];
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		putOctal(header, 100, 8, 0644);
+		putOctal(header, 124, 12, data.length);
+		putOctal(header, 136, 12, 0);
+		header[156] = (byte) type;
+		byte[] magic = "ustar\u000000".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(magic, 0, header, 257, magic.length);
+
+		// The checksum is computed with its own field filled with spaces.
+		for (int i = 148; i < 156; i++)
+			header[i] = ' ';
+		int checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		putOctal(header, 148, 7, checksum);
+
+		tar.write(header);
+		tar.write(data);
+		tar.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	private static void putOctal(byte[] header, int offset, int length,
+			long value) {
+		String text = Long.toOctalString(value);
+		while (text.length() < length - 1)
+			text = "0" + text;
+		byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, bytes.length);
+	}
+}